@@ -26,13 +26,14 @@ ssize_t byteBuffer_write(byte_buffer_t byteBuffer, size_t byteBufferSize,
     // bytebufferSize is in bytes
     const size_t dataSectionSize = byteBufferSize - sizeof(writer_pos_t);
     writer_pos_t *rear_ptr = (writer_pos_t*)(byteBuffer + dataSectionSize);
-    writer_pos_t rear = *rear_ptr;
+    // only this side changes rear while the pipe is in use
+    int32_t rear = atomic_load_explicit(rear_ptr, memory_order_relaxed);
     // rear should not exceed 2^31 - 1, or else overflow will happen
 
     size_t frameSize = channels * sizeof(short); // only one channel
     int32_t maxLengthInShort = dataSectionSize / frameSize;
     // mask the upper bits to get the correct position in the pipe
-    writer_pos_t tempRear = rear & (maxLengthInShort - 1);
+    int32_t tempRear = rear & (maxLengthInShort - 1);
     size_t part1 = maxLengthInShort - tempRear;
 
     if (part1 > frameCount) {
@@ -50,9 +51,8 @@ ssize_t byteBuffer_write(byte_buffer_t byteBuffer, size_t byteBufferSize,
         }
     }
 
-    // increase value of rear using the strongest memory ordering
-    // (since it's being read by Java we can't control the ordering
-    // used by the other side).
-    atomic_store(rear_ptr, rear + frameCount);
+    // publish the data with release ordering; PipeByteBuffer.readRear() follows its
+    // load of rear with a load fence, which makes the pair acquire/release.
+    atomic_store_explicit(rear_ptr, rear + frameCount, memory_order_release);
     return frameCount;
 }
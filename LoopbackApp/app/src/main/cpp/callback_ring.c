@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "callback_ring.h"
+
+#include <string.h>
+
+#include "audio_utils/atomic.h"
+
+#define NANOS_PER_SECOND 1000000000
+#define NANOS_PER_MICRO 1000
+
+void callback_ring_reset(callbackRing *ring) {
+    android_atomic_release_store(0, &ring->count);
+    ring->start_ns = 0;
+    memset(ring->times_us, 0, sizeof(ring->times_us));
+}
+
+void callback_ring_record(callbackRing *ring, const struct timespec *now) {
+    int64_t now_ns = (int64_t) now->tv_sec * NANOS_PER_SECOND + now->tv_nsec;
+    int32_t count = ring->count;
+    if (count == 0) {
+        ring->start_ns = now_ns;
+    }
+    ring->times_us[count & (CALLBACK_RING_SIZE - 1)] = (now_ns - ring->start_ns) / NANOS_PER_MICRO;
+    // the time is stored before the count that publishes it
+    android_atomic_release_store(count + 1, &ring->count);
+}
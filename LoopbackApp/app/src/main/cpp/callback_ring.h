@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef _Included_org_drrickorang_loopback_callback_ring
+#define _Included_org_drrickorang_loopback_callback_ring
+
+#include <stdint.h>
+#include <time.h>
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+// Must match the constant in LiveBufferStats.java, a power of 2
+#define CALLBACK_RING_SIZE 4096
+
+// The times of the latest callbacks of a stream, which Java drains while the test runs into a
+// CallbackTimeline, see LiveBufferStats.java. Only the callback thread writes the ring: it stores
+// the time of a callback, then publishes it by incrementing count. A time is overwritten
+// CALLBACK_RING_SIZE callbacks later, several seconds, so Java drains the ring more often.
+typedef struct {
+    volatile int32_t count;                    // callbacks recorded since the reset
+    int32_t reserved;
+    int64_t start_ns;                          // CLOCK_MONOTONIC time of the first callback
+    int64_t times_us[CALLBACK_RING_SIZE];      // since the first callback
+} callbackRing;
+
+void callback_ring_reset(callbackRing *ring);
+
+// Records a callback at now, without allocating or locking, so that it can be called from an
+// audio callback.
+void callback_ring_record(callbackRing *ring, const struct timespec *now);
+
+#ifdef __cplusplus
+}
+#endif
+
+#endif  // _Included_org_drrickorang_loopback_callback_ring
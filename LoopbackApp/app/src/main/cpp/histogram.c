@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "histogram.h"
+
+#include <string.h>
+
+static int bucket_index(int64_t value) {
+    if (value < HISTOGRAM_SUB_BUCKET_COUNT) {
+        return (int) value;
+    }
+    // shift the value so that it has HISTOGRAM_SUB_BUCKET_BITS bits left, the top one being set
+    int shift = 64 - __builtin_clzll((unsigned long long) value) - HISTOGRAM_SUB_BUCKET_BITS;
+    int index = shift * HISTOGRAM_SUB_BUCKET_HALF_COUNT + (int) (value >> shift);
+    return index < HISTOGRAM_NUM_BUCKETS ? index : HISTOGRAM_NUM_BUCKETS - 1;
+}
+
+void histogram_reset(histogram *h) {
+    memset(h, 0, sizeof(*h));
+}
+
+void histogram_record(histogram *h, int64_t value) {
+    if (value < 0) {
+        return;
+    }
+    h->counts[bucket_index(value)]++;
+    h->total_count++;
+    if (value > h->max_value) {
+        h->max_value = value;
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef _Included_org_drrickorang_loopback_histogram
+#define _Included_org_drrickorang_loopback_histogram
+
+#include <stdint.h>
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+// Must match the constants in HdrHistogram.java
+#define HISTOGRAM_SUB_BUCKET_BITS 10
+#define HISTOGRAM_SUB_BUCKET_COUNT (1 << HISTOGRAM_SUB_BUCKET_BITS)
+#define HISTOGRAM_SUB_BUCKET_HALF_COUNT (HISTOGRAM_SUB_BUCKET_COUNT / 2)
+#define HISTOGRAM_NUM_BUCKETS (17 * HISTOGRAM_SUB_BUCKET_HALF_COUNT)
+
+// A histogram of durations in microseconds with log-linear buckets, see HdrHistogram.java.
+// The counts, the total and the maximum are passed to Java, which computes the percentiles.
+typedef struct {
+    int counts[HISTOGRAM_NUM_BUCKETS];
+    int64_t total_count;
+    int64_t max_value;
+} histogram;
+
+void histogram_reset(histogram *h);
+
+// Records a duration in microseconds, without allocating or locking, so that it can be called
+// from an audio callback. Negative durations are ignored.
+void histogram_record(histogram *h, int64_t value);
+
+#ifdef __cplusplus
+}
+#endif
+
+#endif  // _Included_org_drrickorang_loopback_histogram
@@ -16,6 +16,7 @@
 
 #include "jni_native.h"
 
+#include <stddef.h>
 #include <stdlib.h>
 
 #include <android/log.h>
@@ -112,6 +113,13 @@ jlong offset) {
 }
 
 
+JNIEXPORT jint JNICALL Java_org_drrickorang_loopback_NativeAudioThread_nativeInjectImpulse
+  (JNIEnv *env __unused, jobject obj __unused, jlong handle) {
+    native_engine_instance_t *pInstance = (native_engine_instance_t*) handle;
+    return pInstance->methods->injectImpulse(pInstance->context);
+}
+
+
 JNIEXPORT jint JNICALL Java_org_drrickorang_loopback_NativeAudioThread_nativeDestroy
   (JNIEnv *env __unused, jobject obj __unused, jlong handle) {
     native_engine_instance_t *pInstance = (native_engine_instance_t*) handle;
@@ -192,6 +200,74 @@ Java_org_drrickorang_loopback_NativeAudioThread_nativeGetPlayerVarianceBufferPer
 }
 
 
+// Returns an HdrHistogram with the counts, the total and the exact maximum of the histogram
+static jobject getHistogram(JNIEnv *env, const histogram *h) {
+    jintArray counts = (*env)->NewIntArray(env, HISTOGRAM_NUM_BUCKETS);
+    (*env)->SetIntArrayRegion(env, counts, 0, HISTOGRAM_NUM_BUCKETS, h->counts);
+
+    jclass cls = (*env)->FindClass(env, "org/drrickorang/loopback/HdrHistogram");
+    jmethodID methodID = (*env)->GetMethodID(env, cls, "<init>", "([IJJ)V");
+    return (*env)->NewObject(env, cls, methodID, counts, (jlong) h->total_count,
+                             (jlong) h->max_value);
+}
+
+
+JNIEXPORT jobject JNICALL
+        Java_org_drrickorang_loopback_NativeAudioThread_nativeGetRecorderBufferPeriodHistogram
+  (JNIEnv *env, jobject obj __unused, jlong handle) {
+    native_engine_instance_t *pInstance = (native_engine_instance_t*) handle;
+    return getHistogram(env,
+            pInstance->methods->getRecorderBufferPeriodHistogram(pInstance->context));
+}
+
+
+JNIEXPORT jobject JNICALL
+        Java_org_drrickorang_loopback_NativeAudioThread_nativeGetPlayerBufferPeriodHistogram
+  (JNIEnv *env, jobject obj __unused, jlong handle) {
+    native_engine_instance_t *pInstance = (native_engine_instance_t*) handle;
+    return getHistogram(env,
+            pInstance->methods->getPlayerBufferPeriodHistogram(pInstance->context));
+}
+
+
+// Returns the moments as MOMENTS_FIELDS doubles each, see WindowedMoments.java
+static jdoubleArray getMoments(JNIEnv *env, const moments *m, int count) {
+    jdoubleArray result = (*env)->NewDoubleArray(env, count * MOMENTS_FIELDS);
+    jdouble *values = (*env)->GetDoubleArrayElements(env, result, NULL);
+    for (int i = 0; i < count; i++) {
+        values[i * MOMENTS_FIELDS] = (double) m[i].count;
+        values[i * MOMENTS_FIELDS + 1] = m[i].mean;
+        values[i * MOMENTS_FIELDS + 2] = m[i].m2;
+        values[i * MOMENTS_FIELDS + 3] = m[i].m3;
+        values[i * MOMENTS_FIELDS + 4] = m[i].m4;
+    }
+    (*env)->ReleaseDoubleArrayElements(env, result, values, 0);
+    return result;
+}
+
+
+JNIEXPORT jdoubleArray JNICALL
+        Java_org_drrickorang_loopback_NativeAudioThread_nativeGetRecorderBufferPeriodMoments
+  (JNIEnv *env, jobject obj __unused, jlong handle) {
+    native_engine_instance_t *pInstance = (native_engine_instance_t*) handle;
+    moments *pMoments;
+    int count = pInstance->methods->getRecorderBufferPeriodMoments(pInstance->context,
+            &pMoments);
+    return getMoments(env, pMoments, count);
+}
+
+
+JNIEXPORT jdoubleArray JNICALL
+        Java_org_drrickorang_loopback_NativeAudioThread_nativeGetPlayerBufferPeriodMoments
+  (JNIEnv *env, jobject obj __unused, jlong handle) {
+    native_engine_instance_t *pInstance = (native_engine_instance_t*) handle;
+    moments *pMoments;
+    int count = pInstance->methods->getPlayerBufferPeriodMoments(pInstance->context,
+            &pMoments);
+    return getMoments(env, pMoments, count);
+}
+
+
 jobject getCallbackTimes(JNIEnv *env, callbackTimeStamps *callbacks, short expectedBufferPeriod){
     jintArray timeStamps = (*env)->NewIntArray(env, callbacks->index);
     (*env)->SetIntArrayRegion(env, timeStamps, 0, callbacks->index, callbacks->timeStampsMs);
@@ -233,3 +309,20 @@ JNICALL Java_org_drrickorang_loopback_NativeAudioThread_nativeGetCaptureRank
     native_engine_instance_t *pInstance = (native_engine_instance_t*) handle;
     return pInstance->methods->getCaptureRank(pInstance->context);
 }
+
+// The layout of the shared stats, which LiveBufferStats.java reads
+_Static_assert(offsetof(sharedBufferStats, buffer_period_histogram) == 24,
+        "sharedBufferStats doesn't match LiveBufferStats.java");
+_Static_assert(offsetof(sharedBufferStats, callbacks) == 24 + HISTOGRAM_NUM_BUCKETS * 4 + 16,
+        "sharedBufferStats doesn't match LiveBufferStats.java");
+_Static_assert(sizeof(sharedStats) == 2 * (24 + HISTOGRAM_NUM_BUCKETS * 4 + 16
+        + 16 + CALLBACK_RING_SIZE * 8), "sharedStats doesn't match LiveBufferStats.java");
+
+// Returns a direct ByteBuffer over the stats that the callbacks update while the test runs
+JNIEXPORT jobject
+JNICALL Java_org_drrickorang_loopback_NativeAudioThread_nativeGetSharedStats
+        (JNIEnv *env, jobject obj __unused, jlong handle) {
+    native_engine_instance_t *pInstance = (native_engine_instance_t*) handle;
+    sharedStats *pStats = pInstance->methods->getSharedStats(pInstance->context);
+    return (*env)->NewDirectByteBuffer(env, pStats, sizeof(sharedStats));
+}
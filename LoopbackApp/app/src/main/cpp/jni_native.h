@@ -36,6 +36,9 @@ JNIEXPORT jlong JNICALL Java_org_drrickorang_loopback_NativeAudioThread_nativeIn
 JNIEXPORT jint JNICALL Java_org_drrickorang_loopback_NativeAudioThread_nativeProcessNext
   (JNIEnv *, jobject, jlong, jdoubleArray, jlong);
 
+JNIEXPORT jint JNICALL Java_org_drrickorang_loopback_NativeAudioThread_nativeInjectImpulse
+  (JNIEnv *, jobject, jlong);
+
 JNIEXPORT jint JNICALL Java_org_drrickorang_loopback_NativeAudioThread_nativeDestroy
   (JNIEnv *, jobject, jlong);
 
@@ -63,10 +66,30 @@ JNIEXPORT jdouble JNICALL
         Java_org_drrickorang_loopback_NativeAudioThread_nativeGetPlayerVarianceBufferPeriod
   (JNIEnv *, jobject, jlong);
 
+JNIEXPORT jobject JNICALL
+        Java_org_drrickorang_loopback_NativeAudioThread_nativeGetRecorderBufferPeriodHistogram
+  (JNIEnv *, jobject, jlong);
+
+JNIEXPORT jobject JNICALL
+        Java_org_drrickorang_loopback_NativeAudioThread_nativeGetPlayerBufferPeriodHistogram
+  (JNIEnv *, jobject, jlong);
+
+JNIEXPORT jdoubleArray JNICALL
+        Java_org_drrickorang_loopback_NativeAudioThread_nativeGetRecorderBufferPeriodMoments
+  (JNIEnv *, jobject, jlong);
+
+JNIEXPORT jdoubleArray JNICALL
+        Java_org_drrickorang_loopback_NativeAudioThread_nativeGetPlayerBufferPeriodMoments
+  (JNIEnv *, jobject, jlong);
+
 JNIEXPORT jint JNICALL
         Java_org_drrickorang_loopback_NativeAudioThread_nativeGetCaptureRank
   (JNIEnv *, jobject, jlong);
 
+JNIEXPORT jobject JNICALL
+        Java_org_drrickorang_loopback_NativeAudioThread_nativeGetSharedStats
+  (JNIEnv *, jobject, jlong);
+
 #ifdef __cplusplus
 }
 #endif
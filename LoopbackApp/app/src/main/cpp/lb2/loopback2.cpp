@@ -49,6 +49,7 @@ int lb2Init(void **ppLbData, int samplingRate, int frameCount, int /*micSource*/
     std::unique_ptr<LbData> lbData(new LbData());  // will auto-release in case if init fails.
     switch (testType) {
         case TEST_TYPE_LATENCY:
+        case TEST_TYPE_LATENCY_MONITOR:
             lbData->testContext.reset(new LatencyTestContext(
                             static_cast<PerformanceMode>(performanceMode), frameCount,
                             CHANNEL_COUNT, samplingRate, ignoreFirstFrames, loopbackTone));
@@ -73,6 +74,7 @@ int lb2Init(void **ppLbData, int samplingRate, int frameCount, int /*micSource*/
     // lbData->soundSys.reset(new SoundSystemEcho(lbData->testContext.get()));
     switch (testType) {
         case TEST_TYPE_LATENCY:
+        case TEST_TYPE_LATENCY_MONITOR:
             lbData->currentTest.reset(new LatencyTest(
                             lbData->soundSys.get(),
                             static_cast<LatencyTestContext*>(lbData->testContext.get())));
@@ -83,6 +85,8 @@ int lb2Init(void **ppLbData, int samplingRate, int frameCount, int /*micSource*/
                             static_cast<GlitchTestContext*>(lbData->testContext.get())));
             break;
     }
+    // the player callback records its times there, the recorder is read from that callback
+    callback_ring_reset(&lb2GetSharedStats(nullptr)->player.callbacks);
     if (!lbData->currentTest->init()) return STATUS_FAIL;
     *ppLbData = lbData.release();
     return STATUS_SUCCESS;
@@ -95,6 +99,13 @@ int lb2ProcessNext(void *pLbData, double *pSamples, long maxSamples) {
             AudioBufferView<double>(pSamples, maxSamples / CHANNEL_COUNT, CHANNEL_COUNT));
 }
 
+int lb2InjectImpulse(void *pLbData) {
+    if (pLbData == nullptr) return STATUS_FAIL;
+    LbData *lbData = static_cast<LbData*>(pLbData);
+    lbData->currentTest->injectImpulse();
+    return STATUS_SUCCESS;
+}
+
 int lb2Destroy(void **ppCtx) {
     LbData** ppLbData = reinterpret_cast<LbData**>(ppCtx);
     if (ppLbData != nullptr) {
@@ -132,10 +143,37 @@ int64_t lb2GetPlayerVarianceBufferPeriod(void*) {
     return 0;
 }
 
+histogram* lb2GetRecorderBufferPeriodHistogram(void*) {
+    static histogram *bufferPeriodHistogram = new histogram();
+    return bufferPeriodHistogram;
+}
+
+histogram* lb2GetPlayerBufferPeriodHistogram(void*) {
+    static histogram *bufferPeriodHistogram = new histogram();
+    return bufferPeriodHistogram;
+}
+
+int lb2GetRecorderBufferPeriodMoments(void*, moments **ppMoments) {
+    static moments bufferPeriodMoments = {0, 0, 0, 0, 0};
+    *ppMoments = &bufferPeriodMoments;
+    return 1;
+}
+
+int lb2GetPlayerBufferPeriodMoments(void*, moments **ppMoments) {
+    static moments bufferPeriodMoments = {0, 0, 0, 0, 0};
+    *ppMoments = &bufferPeriodMoments;
+    return 1;
+}
+
 int lb2GetCaptureRank(void*) {
     return 0;
 }
 
+sharedStats* lb2GetSharedStats(void*) {
+    static sharedStats *stats = new sharedStats();
+    return stats;
+}
+
 int lb2GetPlayerTimeStampsAndExpectedBufferPeriod(void*, callbackTimeStamps **ppTSs) {
     static callbackTimeStamps tss = {
         new int[10],               //int* timeStampsMs
@@ -31,13 +31,19 @@ int lb2Init(void ** ppCtx, int samplingRate, int frameCount, int micSource,
              short* loopbackTone, int maxRecordedLateCallbacks, int ignoreFirstFrames);
 int lb2Destroy(void ** ppCtx);
 int lb2ProcessNext(void *pCtx, double *pSamples, long maxSamples);
+int lb2InjectImpulse(void *pCtx);
 int* lb2GetRecorderBufferPeriod(void *pCtx);
 int lb2GetRecorderMaxBufferPeriod(void *pCtx);
 int64_t lb2GetRecorderVarianceBufferPeriod(void *pCtx);
 int* lb2GetPlayerBufferPeriod(void *pCtx);
 int lb2GetPlayerMaxBufferPeriod(void *pCtx);
 int64_t lb2GetPlayerVarianceBufferPeriod(void *pCtx);
+histogram* lb2GetRecorderBufferPeriodHistogram(void *pCtx);
+histogram* lb2GetPlayerBufferPeriodHistogram(void *pCtx);
+int lb2GetRecorderBufferPeriodMoments(void *pCtx, moments **ppMoments);
+int lb2GetPlayerBufferPeriodMoments(void *pCtx, moments **ppMoments);
 int lb2GetCaptureRank(void *pCtx);
+sharedStats* lb2GetSharedStats(void *pCtx);
 int lb2GetPlayerTimeStampsAndExpectedBufferPeriod(void *pCtx, callbackTimeStamps **ppTSs);
 int lb2GetRecorderTimeStampsAndExpectedBufferPeriod(void *pCtx, callbackTimeStamps **ppTSs);
 
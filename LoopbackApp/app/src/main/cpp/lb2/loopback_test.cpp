@@ -91,6 +91,7 @@ LatencyTest::LatencyTest(SoundSystem* soundSys, LatencyTestContext* testCtx)
           mInitialSilenceFrameCount(wholeMultiplier(
                           testCtx->getSamplingRateHz() * INITIAL_SILENCE_MS, MS_PER_SECOND)),
           mInjectImpulseNextFramePos(0),
+          mInjectImpulseRequested(false),
           mImpulse(testCtx->getImpulse()) {
 }
 
@@ -103,6 +104,10 @@ bool LatencyTest::init() {
     return mSoundSys->init(std::bind(&LatencyTest::writeCallback, this, std::placeholders::_1));
 }
 
+void LatencyTest::injectImpulse() {
+    mInjectImpulseRequested = true;
+}
+
 AudioBufferView<sample_t> LatencyTest::writeCallback(size_t expectedFrames) {
     // Always perform a read operation first since the read buffer is always
     // filling in. But depending on the conditions, the read data is either
@@ -133,6 +138,9 @@ AudioBufferView<sample_t> LatencyTest::writeCallback(size_t expectedFrames) {
         if (framesRead > 0) {
             receiveRecording(framesRead);
         }
+        if (mInjectImpulseNextFramePos < 0 && mInjectImpulseRequested.exchange(false)) {
+            mInjectImpulseNextFramePos = 0;
+        }
         if (mInjectImpulseNextFramePos >= 0) {
             ALOGV("Injecting impulse from pos %d", mInjectImpulseNextFramePos);
             AudioBufferView<sample_t> impulseChunk =
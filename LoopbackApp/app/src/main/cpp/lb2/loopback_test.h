@@ -38,6 +38,8 @@ class LoopbackTest {
 
     virtual bool init();
     virtual int collectRecording(AudioBufferView<double> buffer);
+    // Requests the impulse to be played again, ignored by tests that don't use one.
+    virtual void injectImpulse() {}
 
   protected:
     // This method is called on the sound system callback thread.
@@ -48,7 +50,9 @@ class LoopbackTest {
 
   private:
     static constexpr size_t RECORDING_FIFO_FRAMES = 65536;
-    static constexpr size_t COLLECTION_LOOPS = 10;
+    // A single period is collected per call, so the Java side can stop as soon as
+    // it has enough data. Must match Constant.NATIVE_PROCESS_NEXT_PERIOD_MS.
+    static constexpr size_t COLLECTION_LOOPS = 1;
     static constexpr size_t COLLECTION_PERIOD_MS = 100;
 
     TestContext* mTestCtx;
@@ -68,6 +72,7 @@ class LatencyTest : public LoopbackTest {
     virtual ~LatencyTest();
 
     bool init() override;
+    void injectImpulse() override;
 
   private:
     static constexpr size_t INITIAL_SILENCE_MS = 240;  // Approx. as in the legacy version.
@@ -79,6 +84,7 @@ class LatencyTest : public LoopbackTest {
     int mInputFramesToDiscard;
     int mInitialSilenceFrameCount;
     int mInjectImpulseNextFramePos;
+    std::atomic<bool> mInjectImpulseRequested;  // set from the Java thread
     AudioBufferView<sample_t> mImpulse;
 };
 
@@ -20,6 +20,7 @@
 
 #define LOG_TAG "ss_aaudio"
 #include "lb2/logging.h"
+#include "lb2/loopback2.h"
 #include "lb2/oboe/src/aaudio/AAudioLoader.h"
 #include "lb2/util.h"
 
@@ -295,6 +296,9 @@ aaudio_data_callback_result_t Player::aaudioDataCallback(AAudioStream* /*stream*
         void *audioData,
         int32_t numFrames) {
     ATRACE_CALL();
+    struct timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    callback_ring_record(&lb2GetSharedStats(nullptr)->player.callbacks, &now);
     Player *self = static_cast<Player*>(userData);
     AudioBufferView<sample_t> outputWave = self->mWriteCallback(numFrames);
     if (outputWave.getFrameCount() > static_cast<size_t>(numFrames)) {
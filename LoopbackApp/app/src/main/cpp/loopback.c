@@ -24,13 +24,19 @@ native_engine_t sEngines[NATIVE_ENGINE_COUNT] = {
         slesInit,
         slesDestroy,
         slesProcessNext,
+        slesInjectImpulse,
         slesGetRecorderBufferPeriod,
         slesGetRecorderMaxBufferPeriod,
         slesGetRecorderVarianceBufferPeriod,
         slesGetPlayerBufferPeriod,
         slesGetPlayerMaxBufferPeriod,
         slesGetPlayerVarianceBufferPeriod,
+        slesGetRecorderBufferPeriodHistogram,
+        slesGetPlayerBufferPeriodHistogram,
+        slesGetRecorderBufferPeriodMoments,
+        slesGetPlayerBufferPeriodMoments,
         slesGetCaptureRank,
+        slesGetSharedStats,
         slesGetPlayerTimeStampsAndExpectedBufferPeriod,
         slesGetRecorderTimeStampsAndExpectedBufferPeriod
     },
@@ -40,13 +46,19 @@ native_engine_t sEngines[NATIVE_ENGINE_COUNT] = {
         lb2Init,
         lb2Destroy,
         lb2ProcessNext,
+        lb2InjectImpulse,
         lb2GetRecorderBufferPeriod,
         lb2GetRecorderMaxBufferPeriod,
         lb2GetRecorderVarianceBufferPeriod,
         lb2GetPlayerBufferPeriod,
         lb2GetPlayerMaxBufferPeriod,
         lb2GetPlayerVarianceBufferPeriod,
+        lb2GetRecorderBufferPeriodHistogram,
+        lb2GetPlayerBufferPeriodHistogram,
+        lb2GetRecorderBufferPeriodMoments,
+        lb2GetPlayerBufferPeriodMoments,
         lb2GetCaptureRank,
+        lb2GetSharedStats,
         lb2GetPlayerTimeStampsAndExpectedBufferPeriod,
         lb2GetRecorderTimeStampsAndExpectedBufferPeriod
     }
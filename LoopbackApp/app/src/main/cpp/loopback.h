@@ -20,6 +20,10 @@
 #include <stdbool.h>
 #include <time.h>
 
+#include "callback_ring.h"
+#include "histogram.h"
+#include "moments.h"
+
 #ifdef __cplusplus
 extern "C" {
 #endif
@@ -35,6 +39,28 @@ typedef struct {
 
 #define NANOS_PER_SECOND 1000000000
 #define NANOS_PER_MILLI 1000000
+
+// The stats of a stream that Java reads while the test runs, from a direct ByteBuffer over this
+// struct, see LiveBufferStats.java which must match it. The callback thread is the only writer:
+// it makes sequence odd while it updates the stats, then even again, and a reader retries if
+// sequence was odd or changed during its read. The callback times aren't covered by sequence, see
+// callback_ring.h.
+typedef struct {
+    volatile int32_t sequence;
+    int32_t expected_buffer_period;     // in milliseconds
+    int32_t measurement_count;
+    int32_t max_buffer_period;          // in milliseconds
+    int32_t late_callback_count;        // buffer periods recorded as outliers
+    int32_t xrun_count;                 // recorder overruns or player underruns of the pipe
+    histogram buffer_period_histogram;  // in microseconds
+    callbackRing callbacks;             // every callback, whether measured or discarded
+} sharedBufferStats;
+
+typedef struct {
+    sharedBufferStats recorder;
+    sharedBufferStats player;
+} sharedStats;
+#define NANOS_PER_MICRO 1000
 #define MILLIS_PER_SECOND 1000
 
 enum STATUS_ENUM {
@@ -48,6 +74,7 @@ enum JAVA_CONSTANTS_ENUM {
     // Must match constants in Constant.java
     TEST_TYPE_LATENCY = 222,
     TEST_TYPE_BUFFER_PERIOD = 223,
+    TEST_TYPE_LATENCY_MONITOR = 225,
     AUDIO_THREAD_TYPE_JAVA = 0,
     AUDIO_THREAD_TYPE_NATIVE_SLES = 1,
     AUDIO_THREAD_TYPE_NATIVE_AAUDIO = 2,
@@ -62,13 +89,19 @@ typedef struct {
             short* loopbackTone, int maxRecordedLateCallbacks, int ignoreFirstFrames);
     int (*destroy)(void **ppCtx);
     int (*processNext)(void *pCtx, double *pSamples, long maxSamples);
+    int (*injectImpulse)(void *pCtx);
     int* (*getRecorderBufferPeriod)(void *pCtx);
     int (*getRecorderMaxBufferPeriod)(void *pCtx);
     int64_t (*getRecorderVarianceBufferPeriod)(void *pCtx);
     int* (*getPlayerBufferPeriod)(void *pCtx);
     int (*getPlayerMaxBufferPeriod)(void *pCtx);
     int64_t (*getPlayerVarianceBufferPeriod)(void *pCtx);
+    histogram* (*getRecorderBufferPeriodHistogram)(void *pCtx);
+    histogram* (*getPlayerBufferPeriodHistogram)(void *pCtx);
+    int (*getRecorderBufferPeriodMoments)(void *pCtx, moments **ppMoments);
+    int (*getPlayerBufferPeriodMoments)(void *pCtx, moments **ppMoments);
     int (*getCaptureRank)(void *pCtx);
+    sharedStats* (*getSharedStats)(void *pCtx);
     int (*getPlayerTimeStampsAndExpectedBufferPeriod)(void *pCtx, callbackTimeStamps **ppTSs);
     int (*getRecorderTimeStampsAndExpectedBufferPeriod)(void *pCtx, callbackTimeStamps **ppTSs);
 } native_engine_t;
@@ -31,13 +31,19 @@ int slesInit(void ** ppCtx, int samplingRate, int frameCount, int micSource,
              short* loopbackTone, int maxRecordedLateCallbacks, int ignoreFirstFrames);
 int slesDestroy(void ** ppCtx);
 int slesProcessNext(void *pCtx, double *pSamples, long maxSamples);
+int slesInjectImpulse(void *pCtx);
 int* slesGetRecorderBufferPeriod(void *pCtx);
 int slesGetRecorderMaxBufferPeriod(void *pCtx);
 int64_t slesGetRecorderVarianceBufferPeriod(void *pCtx);
 int* slesGetPlayerBufferPeriod(void *pCtx);
 int slesGetPlayerMaxBufferPeriod(void *pCtx);
 int64_t slesGetPlayerVarianceBufferPeriod(void *pCtx);
+histogram* slesGetRecorderBufferPeriodHistogram(void *pCtx);
+histogram* slesGetPlayerBufferPeriodHistogram(void *pCtx);
+int slesGetRecorderBufferPeriodMoments(void *pCtx, moments **ppMoments);
+int slesGetPlayerBufferPeriodMoments(void *pCtx, moments **ppMoments);
 int slesGetCaptureRank(void *pCtx);
+sharedStats* slesGetSharedStats(void *pCtx);
 int slesGetPlayerTimeStampsAndExpectedBufferPeriod(void *pCtx, callbackTimeStamps **ppTSs);
 int slesGetRecorderTimeStampsAndExpectedBufferPeriod(void *pCtx, callbackTimeStamps **ppTSs);
 
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "moments.h"
+
+#include <string.h>
+
+void moments_reset(moments *m) {
+    memset(m, 0, sizeof(*m));
+}
+
+void moments_record(moments *m, double value) {
+    int64_t n1 = m->count;
+    m->count++;
+    double n = (double) m->count;
+    double delta = value - m->mean;
+    double delta_n = delta / n;
+    double delta_n2 = delta_n * delta_n;
+    double term1 = delta * delta_n * n1;
+
+    m->mean += delta_n;
+    // m4 and m3 are updated first, as they depend on the previous m2 and m3
+    m->m4 += term1 * delta_n2 * (n * n - 3 * n + 3) + 6 * delta_n2 * m->m2 - 4 * delta_n * m->m3;
+    m->m3 += term1 * delta_n * (n - 2) - 3 * delta_n * m->m2;
+    m->m2 += term1;
+}
+
+double moments_variance(const moments *m) {
+    return m->count > 1 ? m->m2 / m->count : 0;
+}
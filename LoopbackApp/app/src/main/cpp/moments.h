@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef _Included_org_drrickorang_loopback_moments
+#define _Included_org_drrickorang_loopback_moments
+
+#include <stdint.h>
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+// Must match the constants in StreamingMoments.java and WindowedMoments.java
+#define MOMENTS_FIELDS 5                    // count, mean, m2, m3 and m4 when copied to Java
+#define MOMENTS_WINDOW_SECONDS 60
+#define MOMENTS_MAX_WINDOWS 601             // BUFFER_TEST_DURATION_SECONDS_MAX / 60, plus one
+
+// The count, mean and sums of the powers 2 to 4 of the deviations from the mean of a stream of
+// values, updated with Welford's method. They are doubles so they can't overflow however long
+// the test, and the mean is updated with each value so no precision is lost to a large sum.
+// See StreamingMoments.java.
+typedef struct {
+    int64_t count;
+    double mean;
+    double m2;
+    double m3;
+    double m4;
+} moments;
+
+void moments_reset(moments *m);
+
+// Adds a value, in constant time and without allocating, so it can be called from an audio
+// callback.
+void moments_record(moments *m, double value);
+
+// Returns the population variance, or 0 if there are fewer than 2 values.
+double moments_variance(const moments *m);
+
+#ifdef __cplusplus
+}
+#endif
+
+#endif  // _Included_org_drrickorang_loopback_moments
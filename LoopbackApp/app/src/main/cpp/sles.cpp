@@ -39,10 +39,13 @@ static int slesCreateServer(sles_data *pSles, int samplingRate, int frameCount,
         short* loopbackTone, int maxRecordedLateCallbacks, int ignoreFirstFrames);
 static int slesDestroyServer(sles_data *pSles);
 
-static void initBufferStats(bufferStats *stats);
+static void initBufferStats(bufferStats *stats, sharedBufferStats *shared);
+static void beginSharedUpdate(sharedBufferStats *shared);
+static void endSharedUpdate(const bufferStats *stats);
 static void collectBufferPeriod(bufferStats *stats, bufferStats *fdpStats,
         callbackTimeStamps *timeStamps, short expectedBufferPeriod);
-static bool updateBufferStats(bufferStats *stats, int64_t diff_in_nano, int expectedBufferPeriod);
+static bool updateBufferStats(bufferStats *stats, int64_t diff_in_nano, int64_t time_stamp,
+        int expectedBufferPeriod);
 static void recordTimeStamp(callbackTimeStamps *timeStamps,
         int64_t callbackDuration, int64_t timeStamp);
 
@@ -125,7 +128,8 @@ static void recorderCallback(SLAndroidSimpleBufferQueueItf caller __unused, void
             pSles->rxFront = 0;
         }
 
-        if (pSles->testType == TEST_TYPE_LATENCY) {
+        if (pSles->testType == TEST_TYPE_LATENCY
+                || pSles->testType == TEST_TYPE_LATENCY_MONITOR) {
             // Throw out first frames
             if (pSles->ignoreFirstFrames) {
                 int framesToErase = pSles->ignoreFirstFrames;
@@ -141,6 +145,7 @@ static void recorderCallback(SLAndroidSimpleBufferQueueItf caller __unused, void
 
             if (actual != (ssize_t) pSles->bufSizeInFrames) {
                 write(1, "?", 1);
+                pSles->recorderBufferStats.xrun_count++;
             }
 
             // This is called by a realtime (SCHED_FIFO) thread,
@@ -161,6 +166,7 @@ static void recorderCallback(SLAndroidSimpleBufferQueueItf caller __unused, void
                 //FIXME should log errors using other methods instead of printing to terminal
                 if (actual != (ssize_t) pSles->bufSizeInFrames) {
                     write(1, "?", 1);
+                    pSles->recorderBufferStats.xrun_count++;
                 }
             }
         }
@@ -217,7 +223,8 @@ static void playerCallback(SLBufferQueueItf caller __unused, void *context) {
             pSles->txFront = 0;
         }
 
-        if (pSles->testType == TEST_TYPE_LATENCY) {
+        if (pSles->testType == TEST_TYPE_LATENCY
+                || pSles->testType == TEST_TYPE_LATENCY_MONITOR) {
             // Jitter buffer should have strictly less than 2 buffers worth of data in it.
             // This is to prevent the test itself from adding too much latency.
             size_t discardedInputFrames = 0;
@@ -248,6 +255,7 @@ static void playerCallback(SLBufferQueueItf caller __unused, void *context) {
             ssize_t actual = audio_utils_fifo_read(&(pSles->fifo), buffer, pSles->bufSizeInFrames);
             if (actual != (ssize_t) pSles->bufSizeInFrames) {
                 write(1, "/", 1);
+                pSles->playerBufferStats.xrun_count++;
                 // on underrun from pipe, substitute silence
                 memset(buffer, 0, pSles->bufSizeInFrames * pSles->channels * sizeof(short));
             }
@@ -324,8 +332,10 @@ static void playerCallback(SLBufferQueueItf caller __unused, void *context) {
 }
 
 // Used to set initial values for the bufferStats struct before values can be recorded.
-static void initBufferStats(bufferStats *stats) {
+static void initBufferStats(bufferStats *stats, sharedBufferStats *shared) {
     stats->buffer_period = new int[RANGE](); // initialized to zeros
+    stats->shared = shared;
+    stats->buffer_period_histogram = &shared->buffer_period_histogram;
     stats->previous_time = {0,0};
     stats->current_time = {0,0};
 
@@ -333,8 +343,36 @@ static void initBufferStats(bufferStats *stats) {
     stats->max_buffer_period = 0;
 
     stats->measurement_count = 0;
-    stats->SDM = 0;
-    stats->var = 0;
+    stats->expected_buffer_period = 0;
+    stats->buffer_period_moments = new moments[1 + MOMENTS_MAX_WINDOWS](); // initialized to zeros
+    stats->num_windows = 0;
+    stats->late_callback_count = 0;
+    stats->xrun_count = 0;
+
+    // the shared stats are those of the previous test, which a reader may still be reading
+    beginSharedUpdate(shared);
+    histogram_reset(&shared->buffer_period_histogram);
+    endSharedUpdate(stats);
+    callback_ring_reset(&shared->callbacks);
+}
+
+// Makes the sequence of the shared stats odd before they are updated, so that Java retries
+// a read which overlaps the update.
+static void beginSharedUpdate(sharedBufferStats *shared) {
+    android_atomic_release_store(shared->sequence + 1, &shared->sequence);
+    __sync_synchronize(); // the odd sequence is stored before any of the stats
+}
+
+// Copies the stats which aren't updated in place to the shared stats, and makes the sequence
+// even again. Called from the callback thread only, this doesn't lock.
+static void endSharedUpdate(const bufferStats *stats) {
+    sharedBufferStats *shared = stats->shared;
+    shared->expected_buffer_period = stats->expected_buffer_period;
+    shared->measurement_count = stats->measurement_count;
+    shared->max_buffer_period = stats->max_buffer_period;
+    shared->late_callback_count = stats->late_callback_count;
+    shared->xrun_count = stats->xrun_count;
+    android_atomic_release_store(shared->sequence + 1, &shared->sequence);
 }
 
 // Called in the beginning of playerCallback() to collect the interval between each callback.
@@ -342,6 +380,7 @@ static void initBufferStats(bufferStats *stats) {
 static void collectBufferPeriod(bufferStats *stats, bufferStats *fdpStats,
         callbackTimeStamps *timeStamps, short expectedBufferPeriod) {
     clock_gettime(CLOCK_MONOTONIC, &(stats->current_time));
+    callback_ring_record(&stats->shared->callbacks, &stats->current_time);
 
     if (timeStamps->startTime.tv_sec == 0 && timeStamps->startTime.tv_nsec == 0) {
         timeStamps->startTime = stats->current_time;
@@ -353,14 +392,18 @@ static void collectBufferPeriod(bufferStats *stats, bufferStats *fdpStats,
          (fdpStats == NULL || fdpStats->buffer_count > BUFFER_PERIOD_DISCARD_FULL_DUPLEX_PARTNER)) {
 
         int64_t callbackDuration = diffInNano(stats->previous_time, stats->current_time);
+        int64_t timeStamp = diffInNano(timeStamps->startTime, stats->current_time);
 
-        bool outlier = updateBufferStats(stats, callbackDuration, expectedBufferPeriod);
+        beginSharedUpdate(stats->shared);
+        bool outlier = updateBufferStats(stats, callbackDuration, timeStamp,
+                expectedBufferPeriod);
 
         //recording timestamps of buffer periods not at expected buffer period
         if (outlier) {
-            int64_t timeStamp = diffInNano(timeStamps->startTime, stats->current_time);
+            stats->late_callback_count++;
             recordTimeStamp(timeStamps, callbackDuration, timeStamp);
         }
+        endSharedUpdate(stats);
     }
 
     stats->previous_time = stats->current_time;
@@ -396,7 +439,8 @@ static void atomicSetIfGreater(volatile int32_t *addr, int32_t val) {
 }
 
 // Updates the stats being collected about buffer periods. Returns true if this is an outlier.
-static bool updateBufferStats(bufferStats *stats, int64_t diff_in_nano, int expectedBufferPeriod) {
+static bool updateBufferStats(bufferStats *stats, int64_t diff_in_nano, int64_t time_stamp,
+        int expectedBufferPeriod) {
     stats->measurement_count++;
 
     // round up to nearest millisecond
@@ -414,12 +458,20 @@ static bool updateBufferStats(bufferStats *stats, int64_t diff_in_nano, int expe
     } else { // for diff_in_milli < 0
         __android_log_print(ANDROID_LOG_INFO, "sles_player", "Having negative BufferPeriod.");
     }
+    histogram_record(stats->buffer_period_histogram, diff_in_nano / NANOS_PER_MICRO);
 
-    int64_t delta = diff_in_nano - (int64_t) expectedBufferPeriod * NANOS_PER_MILLI;
-    stats->SDM += delta * delta;
-    if (stats->measurement_count > 1) {
-        stats->var = stats->SDM / stats->measurement_count;
+    // the moments of the whole test, then of the current window
+    double diff = (double) diff_in_nano / NANOS_PER_MILLI;
+    int window = (int) (time_stamp / ((int64_t) MOMENTS_WINDOW_SECONDS * NANOS_PER_SECOND));
+    if (window >= MOMENTS_MAX_WINDOWS) {
+        window = MOMENTS_MAX_WINDOWS - 1;
+    }
+    moments_record(&stats->buffer_period_moments[0], diff);
+    moments_record(&stats->buffer_period_moments[1 + window], diff);
+    if (window >= stats->num_windows) {
+        stats->num_windows = window + 1;
     }
+    stats->expected_buffer_period = expectedBufferPeriod;
 
     // check if the lateness is so bad that a systrace should be captured
     // TODO: replace static threshold of lateness with a dynamic determination
@@ -572,8 +624,11 @@ static int slesCreateServer(sles_data *pSles, int samplingRate, int frameCount,
         //            sndfile = NULL;
         //        }
 
-        initBufferStats(&pSles->recorderBufferStats);
-        initBufferStats(&pSles->playerBufferStats);
+        // allocated once and reused by every test, as Java may still read them after the test
+        static sharedStats *liveStats = new sharedStats(); // initialized to zeros
+        pSles->liveStats = liveStats;
+        initBufferStats(&pSles->recorderBufferStats, &pSles->liveStats->recorder);
+        initBufferStats(&pSles->playerBufferStats, &pSles->liveStats->player);
 
         // init other variables needed for buffer test
         pSles->testType = testType;
@@ -855,36 +910,34 @@ int slesProcessNext(void *pCtx, double *pSamples, long maxSamples) {
     if (pSles != NULL) {
 
         SLresult result;
-        for (int i = 0; i < 10; i++) {
-            usleep(100000);         // sleep for 0.1s
-            if (pSles->fifo2Buffer != NULL) {
-                for (;;) {
-                    short buffer[pSles->bufSizeInFrames * pSles->channels];
-                    ssize_t actual = audio_utils_fifo_read(&(pSles->fifo2), buffer,
-                            pSles->bufSizeInFrames);
-                    if (actual <= 0)
-                        break;
-                    {
-                        for (int jj = 0; jj < actual && currentSample < maxSamples; jj++) {
-                            *(pCurrentSample++) = ((double) buffer[jj]) / maxValue;
-                            currentSample++;
-                        }
+        // Only a single period is collected, so the caller can process the recording as it
+        // arrives and stop as soon as it has enough data.
+        usleep(PROCESS_NEXT_PERIOD_US);
+        if (pSles->fifo2Buffer != NULL) {
+            for (;;) {
+                short buffer[pSles->bufSizeInFrames * pSles->channels];
+                ssize_t actual = audio_utils_fifo_read(&(pSles->fifo2), buffer,
+                        pSles->bufSizeInFrames);
+                if (actual <= 0)
+                    break;
+                {
+                    for (int jj = 0; jj < actual && currentSample < maxSamples; jj++) {
+                        *(pCurrentSample++) = ((double) buffer[jj]) / maxValue;
+                        currentSample++;
                     }
-                    samplesRead += actual;
                 }
+                samplesRead += actual;
             }
-            if (pSles->injectImpulse > 0) {
-                if (pSles->injectImpulse <= 100) {
-                    pSles->injectImpulse = -1;
-                    write(1, "I", 1);
-                } else {
-                    if ((pSles->injectImpulse % 1000) < 100) {
-                        write(1, "i", 1);
-                    }
-                    pSles->injectImpulse -= 100;
+        }
+        if (pSles->injectImpulse > 0) {
+            if (pSles->injectImpulse <= 100) {
+                pSles->injectImpulse = -1;
+                write(1, "I", 1);
+            } else {
+                if ((pSles->injectImpulse % 1000) < 100) {
+                    write(1, "i", 1);
                 }
-            } else if (i == 9) {
-                write(1, ".", 1);
+                pSles->injectImpulse -= 100;
             }
         }
         SLBufferQueueState playerBQState;
@@ -902,6 +955,16 @@ int slesProcessNext(void *pCtx, double *pSamples, long maxSamples) {
     return samplesRead;
 }
 
+// Inject the loopback tone again on the next player callback, used by the latency monitor.
+int slesInjectImpulse(void *pCtx) {
+    sles_data *pSles = (sles_data*)pCtx;
+    if (pSles == NULL) {
+        return STATUS_FAIL;
+    }
+    pSles->injectImpulse = -1;
+    return STATUS_SUCCESS;
+}
+
 
 static int slesDestroyServer(sles_data *pSles) {
     int status = STATUS_FAIL;
@@ -994,6 +1057,12 @@ static int slesDestroyServer(sles_data *pSles) {
             SLES_PRINTF("  txBuffers NULL, no need to free");
         }
 
+        // Java has copied the moments before destroying the server, the callbacks are stopped
+        delete[] pSles->recorderBufferStats.buffer_period_moments;
+        pSles->recorderBufferStats.buffer_period_moments = NULL;
+        delete[] pSles->playerBufferStats.buffer_period_moments;
+        pSles->playerBufferStats.buffer_period_moments = NULL;
+
 
         status = STATUS_SUCCESS;
     }
@@ -1012,9 +1081,20 @@ int slesGetRecorderMaxBufferPeriod(void *pCtx) {
     return pSles->recorderBufferStats.max_buffer_period;
 }
 
+// Returns the mean square deviation of the buffer periods from the expected one, in ns^2.
+static int64_t varianceFromExpected(const bufferStats *stats) {
+    const moments *m = &stats->buffer_period_moments[0];
+    if (m->count < 2) {
+        return 0;
+    }
+    double deviation = m->mean - stats->expected_buffer_period;
+    double variance = moments_variance(m) + deviation * deviation;
+    return (int64_t) (variance * NANOS_PER_MILLI * NANOS_PER_MILLI);
+}
+
 int64_t slesGetRecorderVarianceBufferPeriod(void *pCtx) {
     sles_data *pSles = (sles_data*)pCtx;
-    return pSles->recorderBufferStats.var;
+    return varianceFromExpected(&pSles->recorderBufferStats);
 }
 
 int* slesGetPlayerBufferPeriod(void *pCtx) {
@@ -1029,7 +1109,29 @@ int slesGetPlayerMaxBufferPeriod(void *pCtx) {
 
 int64_t slesGetPlayerVarianceBufferPeriod(void *pCtx) {
     sles_data *pSles = (sles_data*)pCtx;
-    return pSles->playerBufferStats.var;
+    return varianceFromExpected(&pSles->playerBufferStats);
+}
+
+histogram* slesGetRecorderBufferPeriodHistogram(void *pCtx) {
+    sles_data *pSles = (sles_data*)pCtx;
+    return pSles->recorderBufferStats.buffer_period_histogram;
+}
+
+histogram* slesGetPlayerBufferPeriodHistogram(void *pCtx) {
+    sles_data *pSles = (sles_data*)pCtx;
+    return pSles->playerBufferStats.buffer_period_histogram;
+}
+
+int slesGetRecorderBufferPeriodMoments(void *pCtx, moments **ppMoments) {
+    sles_data *pSles = (sles_data*)pCtx;
+    *ppMoments = pSles->recorderBufferStats.buffer_period_moments;
+    return 1 + pSles->recorderBufferStats.num_windows;
+}
+
+int slesGetPlayerBufferPeriodMoments(void *pCtx, moments **ppMoments) {
+    sles_data *pSles = (sles_data*)pCtx;
+    *ppMoments = pSles->playerBufferStats.buffer_period_moments;
+    return 1 + pSles->playerBufferStats.num_windows;
 }
 
 int slesGetCaptureRank(void *pCtx) {
@@ -1045,6 +1147,11 @@ int slesGetCaptureRank(void *pCtx) {
     }
 }
 
+sharedStats* slesGetSharedStats(void *pCtx) {
+    sles_data *pSles = (sles_data*)pCtx;
+    return pSles->liveStats;
+}
+
 int slesGetPlayerTimeStampsAndExpectedBufferPeriod(void *pCtx, callbackTimeStamps **ppTSs) {
     sles_data *pSles = (sles_data*)pCtx;
     *ppTSs = &pSles->playerTimeStamps;
@@ -33,6 +33,8 @@
 
 typedef struct {
     int* buffer_period;
+    histogram* buffer_period_histogram; // in microseconds, in shared
+    sharedBufferStats* shared;          // read by Java while the test runs
     struct timespec previous_time;
     struct timespec current_time;
     int buffer_count;
@@ -41,8 +43,12 @@ typedef struct {
     volatile int32_t captureRank;   // Set > 0 when the callback requests a systrace/bug report
 
     int measurement_count; // number of measurements which were actually recorded
-    int64_t SDM; // sum of squares of deviations from the expected mean
-    int64_t var; // variance in nanoseconds^2
+    int expected_buffer_period; // in milliseconds
+    // in milliseconds, of the whole test then of each window of MOMENTS_WINDOW_SECONDS
+    moments* buffer_period_moments;
+    int num_windows; // windows of buffer_period_moments which were recorded
+    int late_callback_count;
+    int xrun_count;
 } bufferStats;
 
 //TODO fix this
@@ -89,6 +95,7 @@ typedef struct {
 
     bufferStats recorderBufferStats;
     bufferStats playerBufferStats;
+    sharedStats* liveStats; // recorder and player stats for Java, shared by every test
 
     int testType;
     double frequency1;
@@ -104,6 +111,9 @@ typedef struct {
     short expectedBufferPeriod;
 } sles_data;
 
+// how long slesProcessNext waits before collecting the recording
+#define PROCESS_NEXT_PERIOD_US 100000 // must match Constant.NATIVE_PROCESS_NEXT_PERIOD_MS
+
 // how late in ms a callback must be to trigger a systrace/bugreport
 #define LATE_CALLBACK_CAPTURE_THRESHOLD 4
 #define LATE_CALLBACK_OUTLIER_THRESHOLD 1
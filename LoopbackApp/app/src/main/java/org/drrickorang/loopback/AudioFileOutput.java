@@ -19,7 +19,7 @@ package org.drrickorang.loopback;
 import java.io.FileDescriptor;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.Arrays;
+import java.nio.channels.FileChannel;
 
 import android.content.Context;
 import android.net.Uri;
@@ -28,7 +28,7 @@ import android.util.Log;
 
 
 /**
- * This class is used to save the results to a .wav file.
+ * This class is used to save the results to a .wav file, through a WavWriter.
  * FIXME Should save data in original resolution instead of converting to 16-bit PCM.
  */
 
@@ -59,6 +59,17 @@ public class AudioFileOutput {
      * Returns true on successful write to file
      */
     public boolean writeRingBufferData(double[] data, int startIndex, int endIndex) {
+        return writeRingBufferData(data, null, data.length, startIndex, endIndex);
+    }
+
+    /** Same as above, with samples that are already 16 bit values, which are written as is. */
+    public boolean writeRingBufferData(short[] data, int startIndex, int endIndex) {
+        return writeRingBufferData(null, data, data.length, startIndex, endIndex);
+    }
+
+    /** The samples are in doubleData, or in shortData if doubleData is null. */
+    private boolean writeRingBufferData(double[] doubleData, short[] shortData, int length,
+                                        int startIndex, int endIndex) {
 
         boolean status = false;
         ParcelFileDescriptor parcelFileDescriptor = null;
@@ -68,18 +79,17 @@ public class AudioFileOutput {
             FileDescriptor fileDescriptor = parcelFileDescriptor.getFileDescriptor();
             mOutputStream = new FileOutputStream(fileDescriptor);
             log("Done creating output stream");
-            int sampleCount = endIndex - startIndex;
-            if (sampleCount <= 0) {
-                sampleCount += data.length;
-            }
-            writeHeader(sampleCount);
+            FileChannel channel = mOutputStream.getChannel();
+            WavWriter writer = new WavWriter(channel, mSamplingRate, 1, WavWriter.FORMAT_PCM_16);
 
             if (endIndex > startIndex) {
-                writeDataBuffer(data, startIndex, endIndex);
+                writeDataBuffer(writer, doubleData, shortData, startIndex, endIndex);
             } else {
-                writeDataBuffer(data, startIndex, data.length);
-                writeDataBuffer(data, 0, endIndex);
+                writeDataBuffer(writer, doubleData, shortData, startIndex, length);
+                writeDataBuffer(writer, doubleData, shortData, 0, endIndex);
             }
+            writer.finish();
+            log("Done writing " + writer.getDataBytes() + " bytes of data");
 
             mOutputStream.close();
             status = true;
@@ -100,78 +110,13 @@ public class AudioFileOutput {
         return status;
     }
 
-    private void writeHeader(int samples) {
-        if (mOutputStream != null) {
-            try {
-                int channels = 1;
-                int blockAlignment = 2;
-                int bitsPerSample = 16;
-                byte[] chunkSize = new byte[4];
-                byte[] dataSize = new byte[4];
-                int tempChunkSize =  (samples * 2) + 36;
-                chunkSize[3] = (byte) (tempChunkSize >> 24);
-                chunkSize[2] = (byte) (tempChunkSize >> 16);
-                chunkSize[1] = (byte) (tempChunkSize >> 8);
-                chunkSize[0] = (byte) tempChunkSize;
-                int tempDataSize  = samples * 2;
-                dataSize[3] = (byte) (tempDataSize >> 24);
-                dataSize[2] = (byte) (tempDataSize >> 16);
-                dataSize[1] = (byte) (tempDataSize >> 8);
-                dataSize[0] = (byte) tempDataSize;
-
-                byte[] header = new byte[] {
-                    'R', 'I', 'F', 'F',
-                    chunkSize[0], chunkSize[1], chunkSize[2], chunkSize[3],
-                    'W', 'A', 'V', 'E',
-                    'f', 'm', 't', ' ',
-                    16, 0, 0, 0,
-                    1, 0,   // PCM
-                    (byte) channels, 0,   // number of channels
-                    (byte) mSamplingRate, (byte) (mSamplingRate >> 8), 0, 0,    // sample rate
-                    0, 0, 0, 0, // byte rate
-                    (byte) (channels * blockAlignment),
-                    0,   // block alignment
-                    (byte) bitsPerSample,
-                    0,  // bits per sample
-                    'd', 'a', 't', 'a',
-                    dataSize[0], dataSize[1], dataSize[2], dataSize[3],
-                };
-                mOutputStream.write(header);
-                log("Done writing header");
-            } catch (IOException e) {
-                Log.e(TAG, "Error writing header " + e);
-            }
-        }
-    }
-
 
-    private void writeDataBuffer(double[] data, int startIndex, int end) {
-        if (mOutputStream != null) {
-            try {
-                int bufferSize = 1024; //blocks of 1024 samples
-                byte[] buffer = new byte[bufferSize * 2];
-
-                for (int ii = startIndex; ii < end; ii += bufferSize) {
-                    //clear buffer
-                    Arrays.fill(buffer, (byte) 0);
-                    int bytesUsed = 0;
-                    for (int jj = 0; jj < bufferSize; jj++) {
-                        int index = ii + jj;
-                        if (index >= end)
-                            break;
-                        int value = (int) Math.round(data[index] * Short.MAX_VALUE);
-                        byte ba = (byte) (0xFF & (value >> 8));  //little-endian
-                        byte bb = (byte) (0xFF & (value));
-                        buffer[(jj * 2) + 1] = ba;
-                        buffer[jj * 2]   = bb;
-                        bytesUsed += 2;
-                    }
-                    mOutputStream.write(buffer, 0, bytesUsed);
-                }
-                log("Done writing data");
-            } catch (IOException e) {
-                Log.e(TAG, "Error writing data " + e);
-            }
+    private void writeDataBuffer(WavWriter writer, double[] doubleData, short[] shortData,
+                                 int startIndex, int end) throws IOException {
+        if (doubleData != null) {
+            writer.write(doubleData, startIndex, end - startIndex);
+        } else {
+            writer.write(shortData, startIndex, end - startIndex);
         }
     }
 
@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.drrickorang.loopback;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * A ring of recorded samples with one writer and any number of readers. The writer writes each
+ * sample once, and every reader (consumer) reads all of them at its own pace through its own
+ * cursor, so consumers don't each need a pipe of their own. The writer never waits for the
+ * consumers: a consumer that falls behind by more than the size of the ring has its read return
+ * OVERRUN, and the samples it lost are counted, along with how far behind it has been.
+ * Sequences are counted with longs, so they don't overflow during long tests.
+ *
+ * The Java recorder writes into one ring, read by the latency test player and by the glitch
+ * detection. The other readers of recorded audio don't read it:
+ * - WaveDataRingBuffer isn't a reader of its own but the history that captures and plots need,
+ *   the last seconds before a trigger, so the glitch detection fills it from the samples it has
+ *   already converted, with the gaps of overruns, instead of converting them a second time.
+ * - WavePlotView and the spectrum views are only given the samples once the test is over.
+ * - In native mode the callback writes into a PipeByteBuffer from C, and the glitch detection
+ *   is its only reader, the latency test reads through nativeProcessNext(). A BroadcastRing
+ *   would need the callback to call into Java, or a Java thread to copy every sample into it.
+ */
+
+public class BroadcastRing {
+    private final short[] mBuffer;
+    private final int     mMaxValues;   // always a power of two
+    private long          mRear;        // writer's current position
+    private volatile long mVolatileRear; // used to keep rear synchronized
+
+    // copied on write, so that the writer can go through them without taking a lock
+    private volatile Consumer[] mConsumers = new Consumer[0];
+    private final StringBuilder mRemovedConsumerStats = new StringBuilder(); // as they were removed
+
+
+    /** maxSamples must be >= 2. */
+    public BroadcastRing(int maxSamples) {
+        mMaxValues = Utilities.roundup(maxSamples); // round up to the nearest power of 2
+        mBuffer = new short[mMaxValues];
+    }
+
+
+    /**
+     * Write "count" samples of "buffer" starting from "offset", overwriting the oldest samples of
+     * the ring, then wake up the consumers waiting for them. Return the number of samples written.
+     */
+    public int write(short[] buffer, int offset, int count) {
+        if (count > mMaxValues) {
+            // only the most recent samples would be left anyway
+            offset += count - mMaxValues;
+            mRear += count - mMaxValues;
+            count = mMaxValues;
+        }
+
+        int rear = (int) (mRear & (mMaxValues - 1));
+        int part1 = Math.min(count, mMaxValues - rear);
+        System.arraycopy(buffer, offset, mBuffer, rear, part1);
+        if (count > part1) {
+            System.arraycopy(buffer, offset + part1, mBuffer, 0, count - part1);
+        }
+
+        mRear += count;
+        mVolatileRear = mRear;
+
+        for (Consumer consumer : mConsumers) {
+            Thread reader = consumer.mWaitingReader;
+            if (reader != null && mRear - consumer.mWakeRear >= 0) {
+                LockSupport.unpark(reader);
+            }
+        }
+        return count;
+    }
+
+
+    /**
+     * Add a consumer that reads the samples written from now on. The name is only used to report
+     * the consumer's statistics.
+     */
+    public synchronized Consumer addConsumer(String name) {
+        Consumer consumer = new Consumer(name, mMaxValues);
+        Consumer[] consumers = Arrays.copyOf(mConsumers, mConsumers.length + 1);
+        consumers[consumers.length - 1] = consumer;
+        mConsumers = consumers;
+        return consumer;
+    }
+
+
+    /** Remove a consumer, it must not be read anymore. Its statistics are kept. */
+    public synchronized void removeConsumer(Consumer consumer) {
+        Consumer[] consumers = new Consumer[mConsumers.length];
+        int count = 0;
+        for (Consumer c : mConsumers) {
+            if (c != consumer) {
+                consumers[count++] = c;
+            } else {
+                mRemovedConsumerStats.append(c.toString());
+                mRemovedConsumerStats.append("\n");
+            }
+        }
+        mConsumers = Arrays.copyOf(consumers, count);
+    }
+
+
+    /**
+     * Return the statistics of every consumer the ring has had, one line each, those removed as
+     * they were when removed.
+     */
+    public synchronized String getConsumerStats() {
+        StringBuilder sb = new StringBuilder(mRemovedConsumerStats);
+        for (Consumer consumer : mConsumers) {
+            sb.append(consumer.toString());
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+
+
+    /**
+     * One reader of the ring, which is read like any other pipe. Only one thread may read a
+     * consumer, but its statistics can be read from any thread.
+     */
+    public class Consumer extends Pipe {
+        private final String    mName;
+        private long            mFront;         // reader's current position
+        private volatile long   mVolatileFront; // used to compute the lag from other threads
+
+        // the reader waiting in waitForSamples(), to be woken up by the writer once mRear
+        // reaches mWakeRear
+        private volatile Thread mWaitingReader;
+        private volatile long   mWakeRear;
+
+
+        private Consumer(String name, int maxSamples) {
+            super(maxSamples);
+            mName = name;
+            mFront = mVolatileRear;
+            mVolatileFront = mFront;
+        }
+
+
+        @Override
+        public int read(short[] buffer, int offset, int count) {
+            int avail = availableToRead();
+            if (avail <= 0) {
+                return avail;
+            }
+            if (count > avail) {
+                count = avail;
+            }
+
+            int front = (int) (mFront & (mMaxValues - 1));
+            int part1 = Math.min(count, mMaxValues - front);
+            System.arraycopy(mBuffer, front, buffer, offset, part1);
+            if (count > part1) {
+                System.arraycopy(mBuffer, 0, buffer, offset + part1, count - part1);
+            }
+            return endRead(count);
+        }
+
+
+        @Override
+        public int read(double[] buffer, int offset, int count) {
+            int avail = availableToRead();
+            if (avail <= 0) {
+                return avail;
+            }
+            if (count > avail) {
+                count = avail;
+            }
+
+            // the samples wrap around at most once, mask the upper bits to get their positions
+            int mask = mMaxValues - 1;
+            for (int i = 0; i < count; i++) {
+                buffer[offset + i] = mBuffer[(int) ((mFront + i) & mask)] * SHORT_TO_DOUBLE;
+            }
+            return endRead(count);
+        }
+
+
+        /**
+         * Move the front past the "count" samples just read, unless the writer overwrote them
+         * while they were being read, in which case they are dropped and OVERRUN is returned.
+         * A write that isn't finished yet can't be seen here, as with the other pipes.
+         */
+        private int endRead(int count) {
+            if (mVolatileRear - mFront > mMaxValues) {
+                availableToRead(); // counts the overrun
+                return OVERRUN;
+            }
+            mFront += count;
+            mVolatileFront = mFront;
+            onSamplesRead(count);
+            return count;
+        }
+
+
+        @Override
+        public int availableToRead() {
+            long rear = mVolatileRear;
+            long avail = rear - mFront;
+            if (avail > mMaxValues) {
+                // Discard 1/16 of the most recent data in ring to avoid another overrun immediately
+                long oldFront = mFront;
+                mFront = rear - mMaxValues + (mMaxValues >> 4);
+                mVolatileFront = mFront;
+                onSamplesLost((int) (mFront - oldFront));
+                return OVERRUN;
+            }
+
+            updateHighWatermark((int) avail);
+            return (int) avail;
+        }
+
+
+        @Override
+        public int waitForSamples(int minSamples, int timeoutMs) throws InterruptedException {
+            long deadline = System.nanoTime() + timeoutMs * Constant.NANOS_PER_MILLI;
+
+            // mWakeRear must be set before mWaitingReader, and mWaitingReader before checking
+            // the available samples, so that either this sees the samples or the writer sees
+            // the reader
+            mWakeRear = mFront + minSamples;
+            mWaitingReader = Thread.currentThread();
+            try {
+                while (true) {
+                    int avail = availableToRead();
+                    if (avail >= minSamples || avail == OVERRUN) {
+                        return avail;
+                    }
+
+                    long remainingNs = deadline - System.nanoTime();
+                    if (remainingNs <= 0) {
+                        return avail;
+                    }
+                    LockSupport.parkNanos(this, remainingNs);
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                }
+            } finally {
+                mWaitingReader = null;
+            }
+        }
+
+
+        /** Drop the samples not read yet. */
+        @Override
+        public void flush() {
+            mFront = mVolatileRear;
+            mVolatileFront = mFront;
+            resetReadIndex();
+        }
+
+
+        /** Return how many samples have been written but not read yet by this consumer. */
+        public long getLag() {
+            return mVolatileRear - mVolatileFront;
+        }
+
+
+        /** Return the largest lag seen when reading, which is the size of the ring on overruns. */
+        public int getMaxLag() {
+            return getHighWatermark();
+        }
+
+
+        /** Return how many samples were overwritten before this consumer could read them. */
+        public long getLostSamples() {
+            return getLostFrames();
+        }
+
+
+        public synchronized int getOverruns() {
+            return mOverruns;
+        }
+
+
+        @Override
+        public String toString() {
+            return String.format("%s: lag %d, max lag %d of %d, overruns %d, lost samples %d",
+                    mName, getLag(), getMaxLag(), mMaxValues, getOverruns(), getLostSamples());
+        }
+    }
+
+}
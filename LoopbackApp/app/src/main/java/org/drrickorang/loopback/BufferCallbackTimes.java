@@ -24,7 +24,10 @@ import java.util.Iterator;
 
 /**
  * Maintains and returns pairs of callback timestamps (in milliseconds since beginning of test) and
- * lengths (milliseconds between a callback and the previous callback).
+ * lengths (milliseconds between a callback and the previous callback), for the callbacks that were
+ * late or early. They are read from the CallbackTimeline of every callback of the stream, Java or
+ * native, except for a native stream without callbacks of its own, the AAudio recorder, for
+ * which only the late callbacks the native code recorded, up to a maximum, are available.
  */
 public class BufferCallbackTimes implements Iterable<BufferCallbackTimes.BufferCallback>,
         Parcelable {
@@ -34,12 +37,27 @@ public class BufferCallbackTimes implements Iterable<BufferCallbackTimes.BufferC
     private boolean mExceededCapacity;
     private int mIndex;
 
-    public BufferCallbackTimes(int maxRecords, int expectedBufferPeriod) {
-        mIndex = 0;
-        mTimeStamps = new int[maxRecords];
-        mCallbackDurations = new short[maxRecords];
-        mExceededCapacity = false;
+    // with a timeline, the callbacks from mFirstCallback on, instead of the arrays
+    private final CallbackTimeline mTimeline;
+    private final int mFirstCallback;
+
+    /**
+     * Instantiates an iterable object over the late and early callbacks of a timeline, from
+     * callback firstCallback on. The timeline must be complete.
+     */
+    public BufferCallbackTimes(CallbackTimeline timeline, int firstCallback,
+                               int expectedBufferPeriod) {
+        mTimeStamps = null;
+        mCallbackDurations = null;
+        mTimeline = timeline;
+        mFirstCallback = firstCallback;
         mExpectedBufferPeriod = (short) expectedBufferPeriod;
+        mExceededCapacity = timeline.isCapacityExceeded();
+        for (CallbackTimeline.Callback callback : timeline.from(firstCallback)) {
+            if (isLateOrEarly(roundUpToMillis(callback.durationUs))) {
+                mIndex++;
+            }
+        }
     }
 
     /**
@@ -56,21 +74,17 @@ public class BufferCallbackTimes implements Iterable<BufferCallbackTimes.BufferC
         mExceededCapacity = exceededCapacity;
         mIndex = mTimeStamps.length;
         mExpectedBufferPeriod = expectedBufferPeriod;
+        mTimeline = null;
+        mFirstCallback = 0;
     }
 
-    /** Record the length of a late/early callback and the time it occurred. Used by Java Thread. */
-    public void recordCallbackTime(int timeStamp, short callbackLength) {
-        if (!mExceededCapacity && callbackLength != mExpectedBufferPeriod
-                && callbackLength != mExpectedBufferPeriod + 1) {
-            //only marked as exceeded if attempting to record a late callback after arrays full
-            if (mIndex == mTimeStamps.length) {
-                mExceededCapacity = true;
-                return;
-            }
-            mTimeStamps[mIndex] = timeStamp;
-            mCallbackDurations[mIndex] = callbackLength;
-            mIndex++;
-        }
+    private boolean isLateOrEarly(int callbackLength) {
+        return callbackLength != mExpectedBufferPeriod
+                && callbackLength != mExpectedBufferPeriod + 1;
+    }
+
+    private static int roundUpToMillis(long micros) {
+        return (int) ((micros + Constant.MICROS_PER_MILLI - 1) / Constant.MICROS_PER_MILLI);
     }
 
     @Override
@@ -100,6 +114,9 @@ public class BufferCallbackTimes implements Iterable<BufferCallbackTimes.BufferC
 
     @Override
     public Iterator<BufferCallback> iterator() {
+        if (mTimeline != null) {
+            return timelineIterator();
+        }
         return new Iterator<BufferCallback>() {
             int mIteratorIndex = 0;
 
@@ -121,19 +138,76 @@ public class BufferCallbackTimes implements Iterable<BufferCallbackTimes.BufferC
         };
     }
 
+    private Iterator<BufferCallback> timelineIterator() {
+        final Iterator<CallbackTimeline.Callback> callbacks =
+                mTimeline.from(mFirstCallback).iterator();
+        return new Iterator<BufferCallback>() {
+            BufferCallback mNext = findNext();
+
+            private BufferCallback findNext() {
+                while (callbacks.hasNext()) {
+                    CallbackTimeline.Callback callback = callbacks.next();
+                    int callbackLength = roundUpToMillis(callback.durationUs);
+                    if (isLateOrEarly(callbackLength)) {
+                        return new BufferCallback(roundUpToMillis(callback.timeUs),
+                                (short) callbackLength);
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return mNext != null;
+            }
+
+            @Override
+            public BufferCallback next() {
+                BufferCallback callback = mNext;
+                mNext = findNext();
+                return callback;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("Buffer Time Stamps are Immutable");
+            }
+        };
+    }
+
     @Override
     public int describeContents() {
         return 0;
     }
 
+    // The timeline isn't saved, there may be tens of MB of it. Its late and early callbacks are
+    // saved as arrays instead, up to MAX_RECORDED_LATE_CALLBACKS_PER_SECOND like in native mode.
     @Override
     public void writeToParcel(Parcel dest, int flags) {
+        int[] timeStamps = mTimeStamps;
+        short[] callbackDurations = mCallbackDurations;
+        boolean exceededCapacity = mExceededCapacity;
+        if (mTimeline != null) {
+            int seconds = (int) (mTimeline.getLastTimeUs() / Constant.MICROS_PER_SECOND) + 1;
+            int maxRecords = Math.min(mIndex,
+                    seconds * Constant.MAX_RECORDED_LATE_CALLBACKS_PER_SECOND);
+            timeStamps = new int[maxRecords];
+            callbackDurations = new short[maxRecords];
+            exceededCapacity = mIndex > maxRecords;
+            Iterator<BufferCallback> callbacks = iterator();
+            for (int i = 0; i < maxRecords; i++) {
+                BufferCallback callback = callbacks.next();
+                timeStamps[i] = callback.timeStamp;
+                callbackDurations[i] = callback.callbackDuration;
+            }
+        }
+
         Bundle out = new Bundle();
-        out.putIntArray("mTimeStamps", mTimeStamps);
-        out.putShortArray("mCallbackDurations", mCallbackDurations);
+        out.putIntArray("mTimeStamps", timeStamps);
+        out.putShortArray("mCallbackDurations", callbackDurations);
         out.putShort("mExpectedBufferPeriod", mExpectedBufferPeriod);
-        out.putBoolean("mExceededCapacity", mExceededCapacity);
-        out.putInt("mIndex", mIndex);
+        out.putBoolean("mExceededCapacity", exceededCapacity);
+        out.putInt("mIndex", timeStamps.length);
         dest.writeBundle(out);
     }
 
@@ -144,6 +218,8 @@ public class BufferCallbackTimes implements Iterable<BufferCallbackTimes.BufferC
         mExpectedBufferPeriod = in.getShort("mExpectedBufferPeriod");
         mExceededCapacity = in.getBoolean("mExceededCapacity");
         mIndex = in.getInt("mIndex");
+        mTimeline = null;
+        mFirstCallback = 0;
     }
 
     public static final Parcelable.Creator<BufferCallbackTimes> CREATOR
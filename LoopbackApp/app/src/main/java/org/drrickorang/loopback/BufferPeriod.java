@@ -26,10 +26,10 @@ import java.util.Arrays;
 
 /**
  * This class records the buffer period of the audio player or recorder when in Java mode.
- * Currently the accuracy is in 1ms.
+ * The buffer periods are counted in 1ms bins, and in a HdrHistogram in microseconds for their
+ * percentiles. Their moments are kept per minute and for the whole test.
  */
 
-//TODO for native mode, should use a scale more accurate than the current 1ms
 public class BufferPeriod implements Parcelable {
     private static final String TAG = "BufferPeriod";
 
@@ -37,9 +37,7 @@ public class BufferPeriod implements Parcelable {
     private long mPreviousTimeNs = 0;
     private long mCurrentTimeNs = 0;
 
-    private int       mMeasurements = 0;
-    private long      mVar;     // variance in nanoseconds^2
-    private long      mSDM = 0; // sum of squares of deviations from the expected mean
+    private WindowedMoments mMoments = new WindowedMoments(); // in milliseconds
     private int       mMaxBufferPeriod = 0;
 
     private int       mCount = 0;
@@ -48,7 +46,9 @@ public class BufferPeriod implements Parcelable {
     private int       mExpectedBufferPeriod = 0;
 
     private int[] mBufferPeriod = new int[range];
-    private BufferCallbackTimes mCallbackTimes;
+    private HdrHistogram mHistogram = new HdrHistogram(); // in microseconds
+    private CallbackTimeline mCallbackTimeline; // every callback, from the first one
+    private BufferCallbackTimes mCallbackTimes;  // read from mCallbackTimeline after the test
     private CaptureHolder mCaptureHolder;
 
     public BufferPeriod() {
@@ -67,19 +67,14 @@ public class BufferPeriod implements Parcelable {
         if (mPreviousTimeNs == 0) {
             mStartTimeNs = mCurrentTimeNs;
         }
+        mCallbackTimeline.record((mCurrentTimeNs - mStartTimeNs) / Constant.NANOS_PER_MICRO);
 
         if (mPreviousTimeNs != 0 && mCount > Constant.BUFFER_PERIOD_DISCARD) {
-            mMeasurements++;
-
             long diffInNano = mCurrentTimeNs - mPreviousTimeNs;
             // diffInMilli is rounded up
             int diffInMilli = (int) ((diffInNano + Constant.NANOS_PER_MILLI - 1) /
                                       Constant.NANOS_PER_MILLI);
 
-            long timeStampInNano = mCurrentTimeNs - mStartTimeNs;
-            int timeStampInMilli = (int) ((timeStampInNano + Constant.NANOS_PER_MILLI - 1) /
-                                           Constant.NANOS_PER_MILLI);
-
             if (diffInMilli > mMaxBufferPeriod) {
                 mMaxBufferPeriod = diffInMilli;
             }
@@ -92,14 +87,10 @@ public class BufferPeriod implements Parcelable {
             } else { // for diffInMilli < 0
                 log("Having negative BufferPeriod.");
             }
+            mHistogram.record(diffInNano / Constant.NANOS_PER_MICRO);
 
-            long delta = diffInNano - (long) mExpectedBufferPeriod * Constant.NANOS_PER_MILLI;
-            mSDM += delta * delta;
-            if (mCount > 1) {
-                mVar = mSDM / mMeasurements;
-            }
-
-            mCallbackTimes.recordCallbackTime(timeStampInMilli, (short) diffInMilli);
+            mMoments.record((double) diffInNano / Constant.NANOS_PER_MILLI,
+                    (mCurrentTimeNs - mStartTimeNs) / Constant.NANOS_PER_MILLI);
 
             // If diagnosing specific Java thread callback behavior set a conditional here and use
             // mCaptureHolder.captureState(rank); to capture systraces and bugreport and/or wav file
@@ -114,36 +105,72 @@ public class BufferPeriod implements Parcelable {
         mPreviousTimeNs = 0;
         mCurrentTimeNs = 0;
         Arrays.fill(mBufferPeriod, 0);
+        mHistogram.reset();
         mMaxBufferPeriod = 0;
-        mMeasurements = 0;
+        mMoments.reset();
         mExpectedBufferPeriod = 0;
         mCount = 0;
+        mCallbackTimeline = null;
         mCallbackTimes = null;
     }
 
-    public void prepareMemberObjects(int maxRecords, int expectedBufferPeriod,
+    /** Prepare for a test of testDurationUs, allocating all that the callbacks record into. */
+    public void prepareMemberObjects(long expectedBufferPeriodUs, long testDurationUs,
                                      CaptureHolder captureHolder) {
-        mCallbackTimes = new BufferCallbackTimes(maxRecords, expectedBufferPeriod);
+        mCallbackTimeline = new CallbackTimeline(expectedBufferPeriodUs, testDurationUs);
         mCaptureHolder = captureHolder;
-        mExpectedBufferPeriod = expectedBufferPeriod;
+        mExpectedBufferPeriod = Math.round((float) expectedBufferPeriodUs /
+                                           Constant.MICROS_PER_MILLI);
     }
 
     public int[] getBufferPeriodArray() {
         return mBufferPeriod;
     }
 
+    public HdrHistogram getHistogram() {
+        return mHistogram;
+    }
+
     public double getStdDevBufferPeriod() {
-        return Math.sqrt(mVar) / (double) Constant.NANOS_PER_MILLI;
+        // the deviation from the expected buffer period, rather than from the mean
+        return Math.sqrt(mMoments.getTotal().getMeanSquareDeviation(mExpectedBufferPeriod));
+    }
+
+    public WindowedMoments getMoments() {
+        return mMoments;
     }
 
     public int getMaxBufferPeriod() {
         return mMaxBufferPeriod;
     }
 
+    /** Return the late and early callbacks, once the test is over. */
     public BufferCallbackTimes getCallbackTimes() {
+        if (mCallbackTimes == null && mCallbackTimeline != null) {
+            // the same callbacks as the buffer periods, the first ones are discarded
+            mCallbackTimes = new BufferCallbackTimes(mCallbackTimeline,
+                    Math.max(Constant.BUFFER_PERIOD_DISCARD, 1), mExpectedBufferPeriod);
+        }
         return mCallbackTimes;
     }
 
+    /**
+     * Return the spectrum of the lateness of the callbacks, once the test is over, or null if
+     * the test was too short or restored from a Parcel.
+     */
+    public JitterSpectrum getJitterSpectrum() {
+        if (mCallbackTimeline == null) {
+            return null;
+        }
+        return JitterSpectrum.analyze(mCallbackTimeline,
+                Math.max(Constant.BUFFER_PERIOD_DISCARD, 1));
+    }
+
+    /** Return every callback of the test, or null if it was restored from a Parcel. */
+    public CallbackTimeline getCallbackTimeline() {
+        return mCallbackTimeline;
+    }
+
     @Override
     public int describeContents() {
         return 0;
@@ -156,6 +183,8 @@ public class BufferPeriod implements Parcelable {
         Bundle out = new Bundle();
         out.putInt("mMaxBufferPeriod", mMaxBufferPeriod);
         out.putIntArray("mBufferPeriod", mBufferPeriod);
+        out.putParcelable("mHistogram", mHistogram);
+        out.putParcelable("mMoments", mMoments);
         out.putInt("mExpectedBufferPeriod", mExpectedBufferPeriod);
         out.putParcelable("mCallbackTimes", mCallbackTimes);
         dest.writeBundle(out);
@@ -165,6 +194,8 @@ public class BufferPeriod implements Parcelable {
         Bundle in = source.readBundle(getClass().getClassLoader());
         mMaxBufferPeriod = in.getInt("mMaxBufferPeriod");
         mBufferPeriod = in.getIntArray("mBufferPeriod");
+        mHistogram = in.getParcelable("mHistogram");
+        mMoments = in.getParcelable("mMoments");
         mExpectedBufferPeriod = in.getInt("mExpectedBufferPeriod");
         mCallbackTimes = in.getParcelable("mCallbackTimes");
     }
@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.drrickorang.loopback;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+
+/**
+ * A log of every callback of the player or the recorder, as its time in microseconds since the
+ * start of the test. Each callback is stored as the difference between its duration and the
+ * expected buffer period, zigzag and varint encoded, so a callback within 64 us of the expected
+ * period takes one byte, and one within 8 ms two bytes.
+ *
+ * The bytes are kept in chunks of CHUNK_SIZE, and each chunk is indexed by its first callback and
+ * the time of the callback before it. A range of the log is read by decoding only the chunks it
+ * covers, and nothing is decoded until the log is read. The chunks for the expected duration of
+ * the test are allocated up front, up to 16 MB, so record() only allocates if the test runs longer
+ * than that or the callbacks come faster than expected, a chunk per 32K callbacks or so. There is
+ * no cap on the number of chunks: the callbacks are only not recorded once memory runs out, or
+ * once markLost() is called, and then isCapacityExceeded() returns true.
+ */
+
+public class CallbackTimeline implements Iterable<CallbackTimeline.Callback> {
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int MAX_VARINT_BYTES = 10; // for a long
+    private static final int BYTES_PER_CALLBACK = 2; // on average, most are within 8 ms
+    private static final int MAX_PREALLOCATED_CHUNKS = 256; // 16 MB, the rest are added as needed
+
+    private final long mExpectedPeriodUs;
+
+    private byte[][]       mChunks;         // the first mNumChunks are allocated
+    private int[]          mChunkFirstCallbacks;
+    private long[]         mChunkBaseTimes; // of the callback before
+    private int            mNumChunks;
+    private int            mPosition;       // in the last chunk
+    private int            mCount;
+    private long           mLastTimeUs;
+    private boolean        mExceededCapacity;
+
+
+    /** A callback, with its duration since the previous callback, or since 0 for the first. */
+    public static class Callback {
+        public final int  index;
+        public final long timeUs;
+        public final long durationUs;
+
+        Callback(int index, long timeUs, long durationUs) {
+            this.index = index;
+            this.timeUs = timeUs;
+            this.durationUs = durationUs;
+        }
+    }
+
+
+    /** Create a timeline with room for the callbacks of a test of durationUs. */
+    public CallbackTimeline(long expectedPeriodUs, long durationUs) {
+        mExpectedPeriodUs = expectedPeriodUs;
+        long callbacks = durationUs / Math.max(expectedPeriodUs, 1) + 1;
+        int numChunks = (int) Math.min(
+                callbacks * BYTES_PER_CALLBACK / (CHUNK_SIZE - MAX_VARINT_BYTES) + 1,
+                MAX_PREALLOCATED_CHUNKS);
+        mChunks = new byte[numChunks][CHUNK_SIZE];
+        mChunkFirstCallbacks = new int[numChunks];
+        mChunkBaseTimes = new long[numChunks];
+    }
+
+
+    /** Record a callback at timeUs, which must not be before the previous one. */
+    public void record(long timeUs) {
+        if (mExceededCapacity) {
+            return;
+        }
+        if (mNumChunks == 0 || mPosition > CHUNK_SIZE - MAX_VARINT_BYTES) {
+            if (!startChunk()) {
+                mExceededCapacity = true;
+                return;
+            }
+        }
+
+        long delta = timeUs - mLastTimeUs - mExpectedPeriodUs;
+        long zigzag = (delta << 1) ^ (delta >> 63);
+        byte[] chunk = mChunks[mNumChunks - 1];
+        while ((zigzag & ~0x7FL) != 0) {
+            chunk[mPosition++] = (byte) ((zigzag & 0x7F) | 0x80);
+            zigzag >>>= 7;
+        }
+        chunk[mPosition++] = (byte) zigzag;
+
+        mLastTimeUs = timeUs;
+        mCount++;
+    }
+
+
+    /** Start a new chunk, adding one if all are in use. Return false if memory ran out. */
+    private boolean startChunk() {
+        if (mNumChunks == mChunks.length) {
+            try {
+                int numChunks = mNumChunks * 2;
+                mChunks = Arrays.copyOf(mChunks, numChunks);
+                mChunkFirstCallbacks = Arrays.copyOf(mChunkFirstCallbacks, numChunks);
+                mChunkBaseTimes = Arrays.copyOf(mChunkBaseTimes, numChunks);
+            } catch (OutOfMemoryError e) {
+                return false;
+            }
+        }
+        if (mChunks[mNumChunks] == null) {
+            try {
+                mChunks[mNumChunks] = new byte[CHUNK_SIZE];
+            } catch (OutOfMemoryError e) {
+                return false;
+            }
+        }
+        mChunkFirstCallbacks[mNumChunks] = mCount;
+        mChunkBaseTimes[mNumChunks] = mLastTimeUs;
+        mNumChunks++;
+        mPosition = 0;
+        return true;
+    }
+
+
+    public int getCount() {
+        return mCount;
+    }
+
+
+    /**
+     * Mark that callbacks were lost before they could be recorded, so the timeline isn't
+     * complete, and record no more.
+     */
+    public void markLost() {
+        mExceededCapacity = true;
+    }
+
+
+    /** Return true if callbacks were not recorded, because memory ran out or they were lost. */
+    public boolean isCapacityExceeded() {
+        return mExceededCapacity;
+    }
+
+
+    /** Return the time of the last callback in microseconds, or 0 if there was none. */
+    public long getLastTimeUs() {
+        return mLastTimeUs;
+    }
+
+
+    public long getExpectedPeriodUs() {
+        return mExpectedPeriodUs;
+    }
+
+
+    /** Return the memory used by the log, in bytes. */
+    public long getSizeInBytes() {
+        long size = 0;
+        for (byte[] chunk : mChunks) {
+            size += (chunk != null) ? chunk.length : 0;
+        }
+        return size;
+    }
+
+
+    /** Iterate over all the callbacks. The log isn't synchronized, so read it after the test. */
+    @Override
+    public Iterator<Callback> iterator() {
+        return new Reader(0, 0, Long.MAX_VALUE);
+    }
+
+
+    /** Return the callbacks from startUs included to endUs excluded. */
+    public Iterable<Callback> range(final long startUs, final long endUs) {
+        return new Iterable<Callback>() {
+            @Override
+            public Iterator<Callback> iterator() {
+                return new Reader(findChunk(startUs), startUs, endUs);
+            }
+        };
+    }
+
+
+    /** Return the callbacks from callback firstIndex on. */
+    public Iterable<Callback> from(final int firstIndex) {
+        return new Iterable<Callback>() {
+            @Override
+            public Iterator<Callback> iterator() {
+                Reader reader = new Reader(findChunkOf(firstIndex), 0, Long.MAX_VALUE);
+                reader.skipTo(firstIndex);
+                return reader;
+            }
+        };
+    }
+
+
+    /** Return the last chunk that starts before timeUs, which is the first one that may hold it. */
+    private int findChunk(long timeUs) {
+        int low = 0;
+        int high = mNumChunks - 1;
+        while (low < high) {
+            int middle = (low + high + 1) / 2;
+            if (mChunkBaseTimes[middle] < timeUs) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return Math.max(low, 0);
+    }
+
+
+    /** Return the chunk that holds callback index. */
+    private int findChunkOf(int index) {
+        int chunk = Arrays.binarySearch(mChunkFirstCallbacks, 0, Math.max(mNumChunks, 1), index);
+        return (chunk >= 0) ? chunk : Math.max(-chunk - 2, 0);
+    }
+
+
+    /** Decodes the callbacks from the start of a chunk, and returns those in [startUs, endUs). */
+    private class Reader implements Iterator<Callback> {
+        private final long mEndUs;
+        private final int  mEndIndex;
+        private int        mChunk;
+        private int        mChunkPosition;
+        private int        mIndex;      // of the next callback
+        private long       mTimeUs;     // of the previous callback
+        private Callback   mNext;
+
+        Reader(int chunk, long startUs, long endUs) {
+            mEndUs = endUs;
+            mEndIndex = mCount;
+            mChunk = chunk;
+            if (mNumChunks > 0) {
+                mIndex = mChunkFirstCallbacks[chunk];
+                mTimeUs = mChunkBaseTimes[chunk];
+            }
+            mNext = decode();
+            while (mNext != null && mNext.timeUs < startUs) {
+                mNext = decode();
+            }
+        }
+
+
+        void skipTo(int index) {
+            while (mNext != null && mNext.index < index) {
+                mNext = decode();
+            }
+        }
+
+
+        private Callback decode() {
+            if (mIndex >= mEndIndex) {
+                return null;
+            }
+            if (mChunk + 1 < mNumChunks && mIndex == mChunkFirstCallbacks[mChunk + 1]) {
+                mChunk++;
+                mChunkPosition = 0;
+            }
+
+            byte[] chunk = mChunks[mChunk];
+            long zigzag = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = chunk[mChunkPosition++];
+                zigzag |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            long duration = ((zigzag >>> 1) ^ -(zigzag & 1)) + mExpectedPeriodUs;
+
+            mTimeUs += duration;
+            if (mTimeUs >= mEndUs) {
+                mIndex = mEndIndex;
+                return null;
+            }
+            return new Callback(mIndex++, mTimeUs, duration);
+        }
+
+
+        @Override
+        public boolean hasNext() {
+            return mNext != null;
+        }
+
+
+        @Override
+        public Callback next() {
+            if (mNext == null) {
+                throw new NoSuchElementException();
+            }
+            Callback callback = mNext;
+            mNext = decode();
+            return callback;
+        }
+
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("The timeline is immutable");
+        }
+    }
+
+}
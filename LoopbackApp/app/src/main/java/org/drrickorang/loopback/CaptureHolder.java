@@ -25,11 +25,17 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.util.Comparator;
+import java.util.PriorityQueue;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Captures systrace, bugreport, and wav snippets. Capable of relieving capture requests from
  * multiple threads and maintains queue of most interesting records
+ *
+ * Each type of artifact is taken by its own CaptureWorker, so the wav snippets are written while
+ * the listener script is still busy with a slow bugreport. The captures waiting for a worker are
+ * taken most interesting first, and only a few may wait for each type of artifact.
  */
 public class CaptureHolder {
 
@@ -45,6 +51,15 @@ public class CaptureHolder {
     private static final String WAV_SUFFIX = ".wav";
     private static final String TERMINATE_SIGNAL = "QUIT";
 
+    // captures requested this soon after the last one only update its rank
+    private static final long MIN_CAPTURE_INTERVAL_MS = 5 * Constant.MILLIS_PER_SECOND;
+    // how many captures may wait for each type of artifact, a rough budget of their cost
+    private static final int MAX_WAITING_WAVS = 4;       // under a second each
+    private static final int MAX_WAITING_SYSTRACES = 2;  // a few seconds each
+    private static final int MAX_WAITING_BUGREPORTS = 1; // a minute or more each
+    // how much longer than the post-trigger window to wait for its samples
+    private static final long POST_TRIGGER_TIMEOUT_MS = Constant.MILLIS_PER_SECOND;
+
     // Status codes returned by captureState
     public static final int NEW_CAPTURE_IS_LEAST_INTERESTING = -1;
     public static final int CAPTURE_ALREADY_IN_PROGRESS = 0;
@@ -57,9 +72,15 @@ public class CaptureHolder {
     private final boolean mIsCapturingSystraces;
     private final boolean mIsCapturingBugreports;
     private final int mCaptureCapacity;
-    private CaptureThread mCaptureThread;
+    private final CaptureWorker mWavWorker;
+    private final CaptureWorker mScriptWorker; // systraces and bugreports
+    private CapturedState mLastCapture;
+    private boolean mSignalScriptToQuit; // once the capture taken by mScriptWorker is done
     private final CapturedState mCapturedStates[];
     private WaveDataRingBuffer mWaveDataBuffer;
+    private int mPreTriggerSeconds = Constant.DEFAULT_CAPTURE_PRE_TRIGGER_SECONDS;
+    private int mPostTriggerSeconds = Constant.DEFAULT_CAPTURE_POST_TRIGGER_SECONDS;
+    private FlightRecorder mFlightRecorder;
 
     //for creating AudioFileOutput objects
     private final Context mContext;
@@ -77,6 +98,10 @@ public class CaptureHolder {
         mCapturedStates = new CapturedState[mCaptureCapacity];
         mContext = context;
         mSamplingRate = samplingRate;
+
+        mWavWorker = new WavWorker();
+        mScriptWorker = new ScriptWorker(mIsCapturingBugreports ? MAX_WAITING_BUGREPORTS
+                : MAX_WAITING_SYSTRACES);
     }
 
     public void setWaveDataBuffer(WaveDataRingBuffer waveDataBuffer) {
@@ -84,10 +109,40 @@ public class CaptureHolder {
     }
 
     /**
-     * Launch thread to capture a systrace/bugreport and/or wav snippets and insert into collection
-     * If capturing is not enabled or capture state thread is already running returns immediately
-     * If newly requested capture is determined to be less interesting than all previous captures
-     * returns without running capture thread
+     * Set how many seconds of wav data are captured before and after the capture is triggered.
+     * The whole window is limited to the length of the WaveDataRingBuffer.
+     */
+    public void setTriggerWindow(int preTriggerSeconds, int postTriggerSeconds) {
+        mPreTriggerSeconds = preTriggerSeconds;
+        mPostTriggerSeconds = postTriggerSeconds;
+    }
+
+    /**
+     * Record the whole buffer test of at most maxSeconds to a file next to the captures, see
+     * FlightRecorder. The GlitchDetectionThread records to it and closes it.
+     */
+    public void startFlightRecorder(int maxSeconds) {
+        try {
+            mFlightRecorder = new FlightRecorder(STORAGE + mFileNamePrefix, mSamplingRate,
+                    maxSeconds);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to start the flight recorder " + e);
+            mFlightRecorder = null;
+        }
+    }
+
+    /** Return the flight recorder of the test, or null if there's none. */
+    public FlightRecorder getFlightRecorder() {
+        return mFlightRecorder;
+    }
+
+    /**
+     * Schedule the capture of a systrace/bugreport and/or wav snippets, to be inserted into the
+     * collection once they are taken. Returns immediately if capturing is not enabled.
+     * If the last capture was requested less than MIN_CAPTURE_INTERVAL_MS ago, only its rank is
+     * updated. If newly requested capture is determined to be less interesting than all previous
+     * captures, or than the captures already waiting for the workers, returns without scheduling
+     * it.
      *
      * Can be called from both GlitchDetectionThread and Sles/Java buffer callbacks.
      * Rank parameter and time of capture can be used by getIndexOfLeastInterestingCapture to
@@ -106,14 +161,15 @@ public class CaptureHolder {
             return CAPTURING_DISABLED;
         }
 
-        if (mCaptureThread != null && mCaptureThread.getState() != Thread.State.TERMINATED) {
+        long timeFromTestStartMS = System.currentTimeMillis() - mStartTimeMS;
+        if (mLastCapture != null && timeFromTestStartMS - mLastCapture.timeFromStartOfTestMS
+                < MIN_CAPTURE_INTERVAL_MS) {
             // Capture already in progress
-            Log.d(TAG, "captureState: Capture thread already running");
-            mCaptureThread.updateRank(rank);
+            Log.d(TAG, "captureState: Capture requested too soon after the last one");
+            updateRank(mLastCapture, rank);
             return CAPTURE_ALREADY_IN_PROGRESS;
         }
 
-        long timeFromTestStartMS = System.currentTimeMillis() - mStartTimeMS;
         long hours = TimeUnit.MILLISECONDS.toHours(timeFromTestStartMS);
         long minutes = TimeUnit.MILLISECONDS.toMinutes(timeFromTestStartMS) -
                 TimeUnit.HOURS.toMinutes(TimeUnit.MILLISECONDS.toHours(timeFromTestStartMS));
@@ -131,9 +187,20 @@ public class CaptureHolder {
             return NEW_CAPTURE_IS_LEAST_INTERESTING;
         }
 
-        mCaptureThread = new CaptureThread(cs, indexOfLeastInteresting);
-        mCaptureThread.start();
+        if (mIsCapturingWavs && mWaveDataBuffer != null) {
+            cs.triggerSample = mWaveDataBuffer.getWrittenSamples();
+            mWavWorker.schedule(cs);
+        }
+        if (mIsCapturingSystraces || mIsCapturingBugreports) {
+            mScriptWorker.schedule(cs);
+        }
+        if (cs.pendingArtifacts == 0) {
+            Log.d(TAG, "captureState: The captures waiting were more interesting than" +
+                    " requested capture");
+            return NEW_CAPTURE_IS_LEAST_INTERESTING;
+        }
 
+        mLastCapture = cs;
         return STATE_CAPTURED;
     }
 
@@ -141,10 +208,14 @@ public class CaptureHolder {
      * Send signal to listener script to terminate and stop atrace
      **/
     public void stopLoopbackListenerScript() {
-        if (mCaptureThread == null || !mCaptureThread.stopLoopbackListenerScript()) {
-            // The capture thread is unable to execute this operation.
-            stopLoopbackListenerScriptImpl();
+        synchronized (this) {
+            if (mScriptWorker.isRunning()) {
+                // The script is told once the capture being taken is done.
+                mSignalScriptToQuit = true;
+                return;
+            }
         }
+        stopLoopbackListenerScriptImpl();
     }
 
     static void stopLoopbackListenerScriptImpl() {
@@ -159,6 +230,60 @@ public class CaptureHolder {
         Log.d(TAG, "stopLoopbackListenerScript: Signaled Listener Script to exit");
     }
 
+    // Sets the rank of a capture to rank if it is greater than the current value
+    private synchronized void updateRank(CapturedState cs, int rank) {
+        if (rank > cs.rank) {
+            cs.rank = rank;
+            mWavWorker.reorder(cs);
+            mScriptWorker.reorder(cs);
+        }
+    }
+
+    /** Called once an artifact of cs has been taken, or was dropped if taken is false. */
+    private synchronized void onArtifactDone(CapturedState cs, boolean taken) {
+        cs.pendingArtifacts--;
+        cs.isTaken |= taken;
+        if (cs.pendingArtifacts > 0) {
+            return;
+        }
+        if (!cs.isTaken) {
+            Log.d(TAG, "Capture dropped: " + cs);
+            return;
+        }
+
+        // Delete least interesting if necessary and insert new capture in list, the list may
+        // have changed since the capture was requested
+        int indexToPlace = getIndexOfLeastInterestingCapture(cs);
+        if (indexToPlace == NEW_CAPTURE_IS_LEAST_INTERESTING) {
+            Log.d(TAG, "Deleting capture, less interesting than the others: " + cs);
+            deleteCapture(cs);
+            return;
+        }
+        if (mCapturedStates[indexToPlace] != null) {
+            Log.d(TAG, "Deleting capture: " + mCapturedStates[indexToPlace]);
+            deleteCapture(mCapturedStates[indexToPlace]);
+        }
+        Log.d(TAG, "Adding capture to list: " + cs);
+        mCapturedStates[indexToPlace] = cs;
+
+        // Log captured states
+        String log = "Captured states:";
+        for (CapturedState state : mCapturedStates) log += "\n...." + state;
+        Log.d(TAG, log);
+    }
+
+    private void deleteCapture(CapturedState cs) {
+        String suffixes[] = {SYSTRACE_SUFFIX, BUGREPORT_SUFFIX, WAV_SUFFIX};
+        for (String suffix : suffixes) {
+            File oldFile = new File(cs.fileNameBase + suffix);
+            boolean deleted = oldFile.delete();
+            if (!deleted) {
+                Log.d(TAG, "Delete old capture: " + oldFile.toString() +
+                        (oldFile.exists() ? " unable to delete" : " was not present"));
+            }
+        }
+    }
+
     /**
      * Currently returns recorded state with lowest Glitch count
      * Alternate criteria can be established here and in captureState rank parameter
@@ -194,6 +319,10 @@ public class CaptureHolder {
         public final String fileNameBase;
         public final long timeFromStartOfTestMS;
         public int rank;
+        // guarded by the CaptureHolder
+        public int pendingArtifacts; // artifacts neither taken nor dropped yet
+        public boolean isTaken; // true once an artifact has been taken
+        public long triggerSample; // index in the WaveDataRingBuffer when it was requested
 
         public CapturedState(String fileNameBase, long timeFromStartOfTestMS, int rank) {
             this.fileNameBase = fileNameBase;
@@ -207,120 +336,213 @@ public class CaptureHolder {
         }
     }
 
-    private class CaptureThread extends Thread {
+    /** Most interesting first, then earliest first. */
+    private final Comparator<CapturedState> mInterestOrder = new Comparator<CapturedState>() {
+        @Override
+        public int compare(CapturedState a, CapturedState b) {
+            if (a.rank != b.rank) {
+                return a.rank > b.rank ? -1 : 1;
+            }
+            if (a.timeFromStartOfTestMS != b.timeFromStartOfTestMS) {
+                return a.timeFromStartOfTestMS < b.timeFromStartOfTestMS ? -1 : 1;
+            }
+            return 0;
+        }
+    };
 
-        private CapturedState mNewCapturedState;
-        private int mIndexToPlace;
-        private boolean mIsRunning;
-        private boolean mSignalScriptToQuit;
+    /**
+     * Takes one type of artifact for the captures waiting in its queue, most interesting first,
+     * on a thread that runs while there are captures waiting. At most maxWaiting captures may
+     * wait, past that the least interesting one is dropped. Except in capture(), the methods are
+     * called with the lock of the CaptureHolder held.
+     */
+    private abstract class CaptureWorker {
 
-        /**
-         * Create new thread with capture state struct for captured systrace, bugreport and wav
-         **/
-        public CaptureThread(CapturedState cs, int indexToPlace) {
-            mNewCapturedState = cs;
-            mIndexToPlace = indexToPlace;
-            setName("CaptureThread");
-            setPriority(Thread.MIN_PRIORITY);
+        private final String mName;
+        private final int mMaxWaiting;
+        private final PriorityQueue<CapturedState> mWaiting;
+        private Thread mThread; // null when there's no capture to take
+
+        public CaptureWorker(String name, int maxWaiting) {
+            mName = name;
+            mMaxWaiting = maxWaiting;
+            mWaiting = new PriorityQueue<CapturedState>(maxWaiting + 1, mInterestOrder);
         }
 
-        @Override
-        public void run() {
-            synchronized (this) {
-                mIsRunning = true;
+        /** Queue cs, unless it is less interesting than all the captures waiting already. */
+        public void schedule(CapturedState cs) {
+            if (mWaiting.size() >= mMaxWaiting) {
+                CapturedState leastInteresting = cs;
+                for (CapturedState waiting : mWaiting) {
+                    if (mInterestOrder.compare(waiting, leastInteresting) > 0) {
+                        leastInteresting = waiting;
+                    }
+                }
+                Log.d(TAG, mName + ": too many captures waiting, dropping " + leastInteresting);
+                if (leastInteresting == cs) {
+                    return;
+                }
+                mWaiting.remove(leastInteresting);
+                onArtifactDone(leastInteresting, false);
             }
 
-            // Write names of desired captures to signal file, signalling
-            // the listener script to write systrace and/or bugreport to those files
-            if (mIsCapturingSystraces || mIsCapturingBugreports) {
-                Log.d(TAG, "CaptureThread: signaling listener to write to:" +
-                        mNewCapturedState.fileNameBase + "*");
-                try {
-                    PrintWriter writer = new PrintWriter(SIGNAL_FILE);
-                    // mNewCapturedState.fileNameBase is the path and basename of the state files.
-                    // Each suffix is used to tell the listener script to record that type of data.
-                    if (mIsCapturingSystraces) {
-                        writer.println(mNewCapturedState.fileNameBase + SYSTRACE_SUFFIX);
+            cs.pendingArtifacts++;
+            mWaiting.add(cs);
+            if (mThread == null) {
+                mThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        takeCaptures();
                     }
-                    if (mIsCapturingBugreports) {
-                        writer.println(mNewCapturedState.fileNameBase + BUGREPORT_SUFFIX);
-                    }
-                    writer.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+                });
+                mThread.setName("CaptureThread_" + mName);
+                mThread.setPriority(Thread.MIN_PRIORITY);
+                mThread.start();
             }
+        }
 
-            // Write wav if member mWaveDataBuffer has been set
-            if (mIsCapturingWavs && mWaveDataBuffer != null) {
-                Log.d(TAG, "CaptureThread: begin Writing wav data to file");
-                WaveDataRingBuffer.ReadableWaveDeck deck = mWaveDataBuffer.getWaveDeck();
-                if (deck != null) {
-                    AudioFileOutput audioFile = new AudioFileOutput(mContext,
-                            Uri.parse("file://mnt" + mNewCapturedState.fileNameBase
-                                    + WAV_SUFFIX),
-                            mSamplingRate);
-                    boolean success = deck.writeToFile(audioFile);
-                    Log.d(TAG, "CaptureThread: wav data written successfully: " + success);
-                }
+        /** Move cs to its place in the queue after its rank has changed. */
+        public void reorder(CapturedState cs) {
+            if (mWaiting.remove(cs)) {
+                mWaiting.add(cs);
             }
+        }
 
-            // Check for sys and bug finished
-            // loopback listener script signals completion by deleting signal file
-            if (mIsCapturingSystraces || mIsCapturingBugreports) {
-                File signalFile = new File(SIGNAL_FILE);
-                while (signalFile.exists()) {
-                    try {
-                        sleep(100);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                }
+        /** Drop all the captures waiting. */
+        public void clear() {
+            CapturedState cs;
+            while ((cs = mWaiting.poll()) != null) {
+                onArtifactDone(cs, false);
             }
+        }
 
-            // Delete least interesting if necessary and insert new capture in list
-            String suffixes[] = {SYSTRACE_SUFFIX, BUGREPORT_SUFFIX, WAV_SUFFIX};
-            if (mCapturedStates[mIndexToPlace] != null) {
-                Log.d(TAG, "Deleting capture: " + mCapturedStates[mIndexToPlace]);
-                for (String suffix : suffixes) {
-                    File oldFile = new File(mCapturedStates[mIndexToPlace].fileNameBase + suffix);
-                    boolean deleted = oldFile.delete();
-                    if (!deleted) {
-                        Log.d(TAG, "Delete old capture: " + oldFile.toString() +
-                                (oldFile.exists() ? " unable to delete" : " was not present"));
+        public boolean isRunning() {
+            return mThread != null;
+        }
+
+        private void takeCaptures() {
+            boolean quitScript;
+            while (true) {
+                CapturedState cs;
+                synchronized (CaptureHolder.this) {
+                    cs = mWaiting.poll();
+                    if (cs == null) {
+                        mThread = null;
+                        // checked as the worker stops, so a stopLoopbackListenerScript() that
+                        // found it running is never missed
+                        quitScript = takeQuitSignal();
+                        break;
                     }
                 }
+                onArtifactDone(cs, capture(cs));
+            }
+            if (quitScript) {
+                CaptureHolder.stopLoopbackListenerScriptImpl();
             }
-            Log.d(TAG, "Adding capture to list: " + mNewCapturedState);
-            mCapturedStates[mIndexToPlace] = mNewCapturedState;
+            Log.d(TAG, "Completed capture thread terminating");
+        }
 
-            // Log captured states
-            String log = "Captured states:";
-            for (CapturedState cs:mCapturedStates) log += "\n...." + cs;
-            Log.d(TAG, log);
+        /**
+         * Take the artifact for cs, called on the thread of the worker without the lock. Return
+         * false if it couldn't be taken.
+         */
+        protected abstract boolean capture(CapturedState cs);
 
-            synchronized (this) {
-                if (mSignalScriptToQuit) {
-                    CaptureHolder.stopLoopbackListenerScriptImpl();
-                    mSignalScriptToQuit = false;
-                }
-                mIsRunning = false;
+        /**
+         * Called with the lock once there's no capture left to take, as isRunning() turns false.
+         * Return true to have the listener script told to quit, after the lock is released.
+         */
+        protected boolean takeQuitSignal() {
+            return false;
+        }
+    }
+
+    private class WavWorker extends CaptureWorker {
+
+        public WavWorker() {
+            super("wav", MAX_WAITING_WAVS);
+        }
+
+        @Override
+        protected boolean capture(CapturedState cs) {
+            Log.d(TAG, "CaptureThread: begin Writing wav data to file");
+            // the capture is sealed once the samples after the trigger have arrived
+            WaveDataRingBuffer.ReadableWaveDeck deck = null;
+            try {
+                deck = mWaveDataBuffer.getWaveDeck(cs.triggerSample,
+                        mPreTriggerSeconds * mSamplingRate, mPostTriggerSeconds * mSamplingRate,
+                        mPostTriggerSeconds * Constant.MILLIS_PER_SECOND + POST_TRIGGER_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
             }
-            Log.d(TAG, "Completed capture thread terminating");
+            if (deck != null) {
+                AudioFileOutput audioFile = new AudioFileOutput(mContext,
+                        Uri.parse("file://mnt" + cs.fileNameBase + WAV_SUFFIX),
+                        mSamplingRate);
+                boolean success = deck.writeToFile(audioFile);
+                Log.d(TAG, "CaptureThread: wav data written successfully: " + success);
+                return success;
+            }
+            // the samples were overwritten while the capture was waiting
+            Log.d(TAG, "CaptureThread: wav data no longer available, dropping " + cs);
+            return false;
         }
+    }
+
+    /** Has the listener script write a systrace and/or bugreport, one capture at a time. */
+    private class ScriptWorker extends CaptureWorker {
 
-        // Sets the rank of the current capture to rank if it is greater than the current value
-        public synchronized void updateRank(int rank) {
-            mNewCapturedState.rank = Math.max(mNewCapturedState.rank, rank);
+        public ScriptWorker(int maxWaiting) {
+            super("script", maxWaiting);
         }
 
-        public synchronized boolean stopLoopbackListenerScript() {
-            if (mIsRunning) {
-                mSignalScriptToQuit = true;
-                return true;
-            } else {
-                return false;
+        @Override
+        protected boolean capture(CapturedState cs) {
+            // Write names of desired captures to signal file, signalling
+            // the listener script to write systrace and/or bugreport to those files
+            Log.d(TAG, "CaptureThread: signaling listener to write to:" +
+                    cs.fileNameBase + "*");
+            try {
+                PrintWriter writer = new PrintWriter(SIGNAL_FILE);
+                // cs.fileNameBase is the path and basename of the state files.
+                // Each suffix is used to tell the listener script to record that type of data.
+                if (mIsCapturingSystraces) {
+                    writer.println(cs.fileNameBase + SYSTRACE_SUFFIX);
+                }
+                if (mIsCapturingBugreports) {
+                    writer.println(cs.fileNameBase + BUGREPORT_SUFFIX);
+                }
+                writer.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+
+            // Check for sys and bug finished
+            // loopback listener script signals completion by deleting signal file
+            File signalFile = new File(SIGNAL_FILE);
+            while (signalFile.exists()) {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
             }
+
+            synchronized (CaptureHolder.this) {
+                if (mSignalScriptToQuit) {
+                    // the script is told to quit once this worker stops, right after this
+                    // capture, so the captures waiting can't be taken
+                    clear();
+                }
+            }
+            return true;
+        }
+
+        @Override
+        protected boolean takeQuitSignal() {
+            boolean quit = mSignalScriptToQuit;
+            mSignalScriptToQuit = false;
+            return quit;
         }
     }
 }
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.drrickorang.loopback;
+
+import android.util.Log;
+
+
+/**
+ * This class detects glitches by comparing the center of mass of the spectrum of overlapping
+ * blocks of samples with the center of mass of the spectrum of a clean sine wave. A glitch is
+ * reported at the first new sample of the block it was found in.
+ */
+
+public class CenterOfMassGlitchDetector implements GlitchDetector {
+    private static final String TAG = "CenterOfMassGlitchDetector";
+    // the acceptable difference between the expected center of mass and what we actually get
+    private static final double mAcceptablePercentDifference = 0.02; // change this if necessary
+
+    private final GlitchListener mListener;
+    private final double  mFrequency;
+    private final int     mSamplingRate;
+    private final int     mFFTSamplingSize;   // amount of samples used to perform a FFT
+    private final int     mFFTOverlapSamples; // amount of overlapped samples used between two FFTs
+    private final int     mNewSamplesPerFFT;  // amount of new samples (not from last FFT) in a FFT
+    private final FFT     mFFT;
+    private double  mCenterOfMass;  // expected center of mass of samples
+
+    // Pre-Allocated buffers for glitch detection process
+    private final double[] mSamples; // circular, the last mFFTSamplingSize samples
+    private long           mSamplesWritten; // total number of samples written to mSamples
+    private long           mNextFFTEnd; // the next FFT is done when mSamplesWritten reaches this
+    private final double[] mWindow; // Hanning window, applied while the FFT packs the samples
+    private final double[] mFFTResult;
+
+
+    public CenterOfMassGlitchDetector(double frequency, int samplingRate, int FFTSamplingSize,
+                                      int FFTOverlapSamples, GlitchListener listener) {
+        mListener = listener;
+        mFrequency = frequency;
+        mSamplingRate = samplingRate;
+        mFFTSamplingSize = FFTSamplingSize;
+        mFFTOverlapSamples = FFTOverlapSamples;
+        mNewSamplesPerFFT = mFFTSamplingSize - mFFTOverlapSamples;
+
+        mSamples = new double[mFFTSamplingSize];
+        mNextFFTEnd = mFFTSamplingSize;
+        mWindow = Utilities.hanningWindow(mFFTSamplingSize);
+        mFFTResult = new double[mFFTSamplingSize/2];
+
+        mFFT = new FFT(mFFTSamplingSize);
+        computeExpectedCenterOfMass();
+    }
+
+
+    @Override
+    public void process(double[] data, int offset, int count) {
+        while (count > 0) {
+            // copy up to the end of the next FFT, or of mSamples
+            int index = (int) (mSamplesWritten & (mFFTSamplingSize - 1));
+            int length = (int) Math.min(count, mNextFFTEnd - mSamplesWritten);
+            length = Math.min(length, mFFTSamplingSize - index);
+            System.arraycopy(data, offset, mSamples, index, length);
+            mSamplesWritten += length;
+            offset += length;
+            count -= length;
+
+            // Once we have enough data, we can do a FFT on it. Note that between two FFTs, part
+            // of the samples (of size mFFTOverlapSamples) are used in both FFTs, they are left
+            // in place and the FFT starts at the oldest sample of mSamples.
+            if (mSamplesWritten == mNextFFTEnd) {
+                detectGlitches((int) (mSamplesWritten & (mFFTSamplingSize - 1)));
+                mNextFFTEnd += mNewSamplesPerFFT;
+            }
+        }
+    }
+
+
+    /**
+     * The samples before and after the lost ones don't follow each other, so the next FFT is done
+     * on samples after them only. It's kept on the same grid of mNewSamplesPerFFT samples as the
+     * FFTs before, so that glitches are still reported at a whole number of hops.
+     */
+    @Override
+    public void skip(long count) {
+        mSamplesWritten += count;
+        long hops = (mSamplesWritten + mNewSamplesPerFFT - 1) / mNewSamplesPerFFT;
+        mNextFFTEnd = hops * mNewSamplesPerFFT + mFFTSamplingSize;
+    }
+
+
+    /**
+     * Use the data in mSamples, starting at index start, to do glitch detection since we know
+     * what data we are expecting.
+     */
+    private void detectGlitches(int start) {
+        double centerOfMass;
+
+        double width = (double) mSamplingRate / mFFTSamplingSize;
+        // gives an array of sampleSize / 2, windowed on the fly
+        mFFT.powerSpectrum(mSamples, start, mWindow, mFFTResult);
+        final double threshold = 0.1;
+
+        // for all elements in the FFT result that are smaller than threshold,
+        // eliminate them as they are probably noise. Only the remaining ones need a magnitude.
+        for (int j = 0; j < mFFTResult.length; j++) {
+            if (mFFTResult[j] < threshold * threshold) {
+                mFFTResult[j] = 0;
+            } else {
+                mFFTResult[j] = Math.sqrt(mFFTResult[j]);
+            }
+        }
+
+        // calculate the center of mass of sample's FFT
+        centerOfMass = computeCenterOfMass(mFFTResult, width);
+        double difference = (Math.abs(centerOfMass - mCenterOfMass) / mCenterOfMass);
+        // centerOfMass == -1 if the wave we get is silence.
+        if (difference > mAcceptablePercentDifference || centerOfMass == -1) {
+            // Glitch Detected
+            mListener.onGlitch(mNextFFTEnd - mFFTSamplingSize, difference);
+        }
+    }
+
+
+    /** Compute the center of mass of fftResults. Width is the width of each beam. */
+    private double computeCenterOfMass(double[] fftResult, double width) {
+        int length = fftResult.length;
+        double weightedSum = 0;
+        double totalWeight = 0;
+        for (int i = 0; i < length; i++) {
+            weightedSum += fftResult[i] * i;
+            totalWeight += fftResult[i];
+        }
+
+        // this may happen since we are eliminating the noises. So if the wave we got is silence,
+        // totalWeight might == 0.
+        if (totalWeight == 0) {
+            return -1;
+        }
+
+        return (weightedSum * width) / totalWeight;
+    }
+
+
+    /** Compute the power spectrum (FFT magnitude squared) of a set of data "samples". */
+    private void computeFFT(double[] src, double[] dst) {
+        mFFT.powerSpectrum(src, dst);
+    }
+
+
+    /** Compute the center of mass if the samples have no glitches. */
+    private void computeExpectedCenterOfMass() {
+        SineWaveTone sineWaveTone = new SineWaveTone(mSamplingRate, mFrequency);
+        double[] sineWave = new double[mFFTSamplingSize];
+        double centerOfMass;
+        double[] sineFFTResult = new double[mFFTSamplingSize/2];
+
+        sineWaveTone.generateTone(sineWave, mFFTSamplingSize);
+        Utilities.hanningWindow(sineWave);
+        double width = (double) mSamplingRate / sineWave.length;
+
+        computeFFT(sineWave, sineFFTResult);     // gives an array of sample sizes / 2
+        for (int i = 0; i < sineFFTResult.length; i++) {
+            sineFFTResult[i] = Math.sqrt(sineFFTResult[i]);
+        }
+        centerOfMass = computeCenterOfMass(sineFFTResult, width);  // return center of mass
+        mCenterOfMass = centerOfMass;
+        log("the expected center of mass:" + Double.toString(mCenterOfMass));
+    }
+
+
+    private static void log(String msg) {
+        Log.v(TAG, msg);
+    }
+
+}
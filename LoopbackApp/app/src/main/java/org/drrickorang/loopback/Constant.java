@@ -24,13 +24,17 @@ package org.drrickorang.loopback;
 public class Constant {
     public static final double TWO_PI = 2.0 * Math.PI;
     public static final long   NANOS_PER_MILLI = 1000000;
+    public static final long   NANOS_PER_MICRO = 1000;
+    public static final int    MICROS_PER_MILLI = 1000;
     public static final int    MILLIS_PER_SECOND = 1000;
+    public static final long   MICROS_PER_SECOND = 1000000;
     public static final int    SECONDS_PER_HOUR = 3600;
 
     // Must match constants in jni/loopback.h
     public static final int LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_LATENCY = 222;
     public static final int LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_BUFFER_PERIOD = 223;
     public static final int LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_CALIBRATION = 224;
+    public static final int LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_LATENCY_MONITOR = 225;
 
     // Keys for CTS Loopback invocation
     public static final String KEY_CTSINVOCATION = "CTS-Test";
@@ -40,7 +44,15 @@ public class Constant {
     public static final int AUDIO_THREAD_TYPE_NATIVE_SLES = 1;
     public static final int AUDIO_THREAD_TYPE_NATIVE_AAUDIO = 2;
 
+    // glitch detectors used by the buffer test
+    public static final int GLITCH_DETECTOR_CENTER_OF_MASS = 0;
+    public static final int GLITCH_DETECTOR_SLIDING_DFT = 1;
+    public static final int GLITCH_DETECTOR_PHASE_TRACKING = 2;
+    public static final int NUM_GLITCH_DETECTORS = 3;
+
     public static final int BYTES_PER_SHORT = 2;
+    public static final int BYTES_PER_INT = 4;
+    public static final int BYTES_PER_LONG = 8;
     public static final int SHORTS_PER_INT = 2;
     // FIXME Assumes 16-bit and mono, will not work for other bit depths or multi-channel.
     public static final int BYTES_PER_FRAME = 2;    // bytes per sample
@@ -55,6 +67,8 @@ public class Constant {
 
     // the number used to configured PipeShort/PipeByteBuffer
     public static final int MAX_SHORTS = 65536;
+    // the stall of the reader of a pipe that its size allows for, until a buffer test measures it
+    public static final int DEFAULT_PIPE_STALL_MS = 500;
 
     // used to identify a variable is currently unknown
     public static final int UNKNOWN = -1;
@@ -66,6 +80,13 @@ public class Constant {
     public static final int LOOPBACK_SAMPLE_FRAMES = 300;
     public static final double LOOPBACK_AMPLITUDE = 0.95;
     public static final int LOOPBACK_FREQUENCY = 4000;
+    public static final int LATENCY_TEST_DURATION_SECONDS = 4; // length of latency test recording
+    // Must match PROCESS_NEXT_PERIOD_US in jni/sles.h and COLLECTION_PERIOD_MS in jni/lb2
+    public static final int NATIVE_PROCESS_NEXT_PERIOD_MS = 100;
+    // the latency monitor re-injects the tone and measures the latency once per period
+    public static final int LATENCY_MONITOR_PERIOD_MS = 1000;
+    // the live buffer period stats of a native buffer test are shown once per period
+    public static final int LIVE_BUFFER_STATS_PERIOD_MS = 250;
 
     // Settings Activity and ADB constants
     public static final int SAMPLING_RATE_MAX = 48000;
@@ -79,6 +100,8 @@ public class Constant {
     public static final int RECORDER_BUFFER_FRAMES_MIN = 16;
     public static final int BUFFER_TEST_DURATION_SECONDS_MAX = 36000;
     public static final int BUFFER_TEST_DURATION_SECONDS_MIN = 1;
+    public static final int LATENCY_MONITOR_DURATION_SECONDS_MAX = 36000;
+    public static final int LATENCY_MONITOR_DURATION_SECONDS_MIN = 1;
     public static final int BUFFER_TEST_WAVE_PLOT_DURATION_SECONDS_MAX = 120;
     public static final int BUFFER_TEST_WAVE_PLOT_DURATION_SECONDS_MIN = 1;
     public static final int MAX_NUM_LOAD_THREADS = 20;
@@ -86,6 +109,12 @@ public class Constant {
     public static final int MIN_NUM_CAPTURES = 1;
     public static final int MAX_NUM_CAPTURES = 100;
     public static final int DEFAULT_NUM_CAPTURES = 5;
+    // seconds of a wav capture before and after the capture is triggered
+    public static final int CAPTURE_TRIGGER_SECONDS_MAX =
+            BUFFER_TEST_WAVE_PLOT_DURATION_SECONDS_MAX;
+    public static final int CAPTURE_TRIGGER_SECONDS_MIN = 0;
+    public static final int DEFAULT_CAPTURE_PRE_TRIGGER_SECONDS = 5;
+    public static final int DEFAULT_CAPTURE_POST_TRIGGER_SECONDS = 2;
     public static final int MIN_IGNORE_FIRST_FRAMES = 0;
     // impulse happens after 300 ms and shouldn't be ignored
     public static final int MAX_IGNORE_FIRST_FRAMES = SAMPLING_RATE_MAX * 3 / 10;
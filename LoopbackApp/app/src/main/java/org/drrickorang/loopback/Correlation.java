@@ -21,6 +21,8 @@ import android.os.Parcel;
 import android.os.Parcelable;
 import android.util.Log;
 
+import java.util.Arrays;
+
 
 /**
  * This class is used to automatically estimate latency and its confidence.
@@ -31,8 +33,11 @@ public class Correlation implements Parcelable {
 
     private int       mBlockSize = Constant.DEFAULT_CORRELATION_BLOCK_SIZE;
     private int       mSamplingRate;
-    private double [] mDataDownsampled;
+    private double [] mDataEnvelope;
     private double [] mDataAutocorrelated;
+    private double [] mTemplateWindow;  // window of the loopback tone, normalized
+    private double [] mTemplateReal;
+    private double [] mTemplateImag;
 
     public double mEstimatedLatencySamples = 0;
     public double mEstimatedLatencyMs = 0;
@@ -42,6 +47,14 @@ public class Correlation implements Parcelable {
 
     private double mAmplitudeThreshold = 0.001;  // 0.001 = -60 dB noise
 
+    // peak to sidelobe ratios mapped to a matched filter confidence of 0 and 1
+    static final double PSR_MIN_DB = 6.0;
+    static final double PSR_MAX_DB = 20.0;
+
+    // sampling rate used when searching for the loopback tone before refining at full rate
+    private static final int COARSE_SAMPLING_RATE = 3000;
+    private static final int MAX_CANDIDATES = 3; // loopback peaks refined at full rate
+
     private boolean mDataIsValid = false; // Used to mark computed latency information is available
 
     public Correlation() {
@@ -54,43 +67,339 @@ public class Correlation implements Parcelable {
         mSamplingRate = samplingRate;
     }
 
+    /**
+     * Estimate the latency of the loopback tone in data. The recording is first matched against
+     * the injected tone, if that fails the envelope of the recording is autocorrelated instead.
+     */
     public void computeCorrelation(double [] data, int samplingRate) {
-        log("Started Auto Correlation for data with " + data.length + " points");
         mSamplingRate = samplingRate;
-        mDataDownsampled = new double [mBlockSize];
-        mDataAutocorrelated = new double[mBlockSize];
-        downsampleData(data, mDataDownsampled, mAmplitudeThreshold);
+        if (!computeMatchedFilterLatency(data)) {
+            log("Matched filter failed to find the loopback tone, using autocorrelation");
+            computeAutocorrelationLatency(data);
+        }
+    }
 
-        //correlation vector
-        autocorrelation(mDataDownsampled, mDataAutocorrelated);
 
+    /**
+     * Cross correlate data with the injected RampedSineTone, then measure the distance between
+     * the first occurrence of the tone and its loopback. The search is first done on a decimated
+     * version of the recording, then only the lags around the candidates found are refined at
+     * full sample rate. Returns false if no loopback was found.
+     */
+    private boolean computeMatchedFilterLatency(double [] data) {
+        log("Started Matched Filter for data with " + data.length + " points");
+        int templateLength = Constant.LOOPBACK_SAMPLE_FRAMES;
+        int N = data.length - templateLength + 1; // number of lags
+        if (N <= 0) {
+            return false;
+        }
+        createTemplate(templateLength);
+
+        // coarse search
+        int decimation = Math.max(1, mSamplingRate / COARSE_SAMPLING_RATE);
+        double [] coarse = coarseMatchedFilter(data, N, decimation);
+        int coarseN = coarse.length;
+        int coarseTemplateLength = templateLength / decimation + 1;
+
+        // the tone first appears at the first peak that is at least half of the strongest one
+        double globalMax = 0;
+        for (int i = 0; i < coarseN; i++) {
+            globalMax = Math.max(globalMax, coarse[i]);
+        }
+        if (globalMax <= 0) {
+            return false;
+        }
+        int firstCoarse = -1;
+        for (int i = 0; i < coarseN; i++) {
+            if (coarse[i] >= globalMax / 2) {
+                firstCoarse = i;
+                break;
+            }
+        }
+        int firstEnd = Math.min(firstCoarse + coarseTemplateLength, coarseN);
+        for (int i = firstCoarse + 1; i < firstEnd; i++) {
+            if (coarse[i] > coarse[firstCoarse]) {
+                firstCoarse = i;
+            }
+        }
+
+        // the loopback candidates are the strongest local maxima at least minLatencyMs after
+        // the first occurrence
+        double minLatencyMs = 8; //min latency expected.
+        int minLag = Math.max(templateLength,
+                (int) (0.5 + minLatencyMs * mSamplingRate / 1000));
+        int [] candidates = new int[MAX_CANDIDATES];
+        Arrays.fill(candidates, -1);
+        for (int i = firstCoarse + (minLag + decimation - 1) / decimation; i < coarseN; i++) {
+            if ((i > 0 && coarse[i - 1] > coarse[i])
+                    || (i < coarseN - 1 && coarse[i + 1] >= coarse[i])) {
+                continue;
+            }
+            // insert in descending order
+            for (int j = 0; j < MAX_CANDIDATES; j++) {
+                if (candidates[j] < 0 || coarse[i] > coarse[candidates[j]]) {
+                    System.arraycopy(candidates, j, candidates, j + 1, MAX_CANDIDATES - j - 1);
+                    candidates[j] = i;
+                    break;
+                }
+            }
+        }
+        if (candidates[0] < 0) {
+            return false;
+        }
+
+        // fine search, only around the candidates
+        int firstIndex = refinePeak(data, firstCoarse * decimation, 2 * decimation, N);
+        double secondValue = 0;
+        int secondIndex = -1;
+        int secondCoarse = -1;
+        for (int candidate : candidates) {
+            if (candidate < 0) {
+                break;
+            }
+            int index = refinePeak(data, candidate * decimation, 2 * decimation, N);
+            double value = matchedFilterAt(data, index);
+            if (index - firstIndex >= minLag && value > secondValue) {
+                secondValue = value;
+                secondIndex = index;
+                secondCoarse = candidate;
+            }
+        }
+        if (secondIndex < 0) {
+            return false;
+        }
+
+        // sidelobe level, excluding the main lobes of the tone and all of its loopback echoes
+        int coarseLag = Math.max(1, secondCoarse - firstCoarse);
+        double average = 0;
+        double rms = 0;
+        int count = 0;
+        for (int i = 0; i < coarseN; i++) {
+            int offset = i - firstCoarse;
+            if (offset > -coarseTemplateLength) {
+                int distance = (offset + coarseLag / 2) % coarseLag - coarseLag / 2;
+                if (Math.abs(distance) < coarseTemplateLength) {
+                    continue;
+                }
+            }
+            double value = coarse[i] / globalMax;
+            average += value;
+            rms += value * value;
+            count++;
+        }
+        if (count > 0) {
+            average = average / count;
+            rms = Math.sqrt(rms / count);
+        }
+        mAverage = average;
+        mRms = rms;
+        double peak = coarse[secondCoarse] / globalMax;
+        log(String.format(" first Index : %d, loopback Index : %d/%d (%f), decimation %d",
+                firstIndex, secondIndex, N, peak, decimation));
+        log(String.format("  sidelobe average : %.4f  rms: %.4f", average, rms));
+
+        // map the peak to sidelobe ratio to a confidence between 0 and 1
+        mEstimatedLatencyConfidence = 1.0;
+        if (rms > 0) {
+            double psrDb = 20 * Math.log10(peak / rms);
+            log(String.format("Peak to sidelobe ratio: %.2f dB", psrDb));
+            mEstimatedLatencyConfidence = Math.max(Math.min(
+                    (psrDb - PSR_MIN_DB) / (PSR_MAX_DB - PSR_MIN_DB), 1.0), 0.0);
+        }
+        log(String.format(" ****Confidence: %.2f", mEstimatedLatencyConfidence));
+
+        mEstimatedLatencySamples = (secondIndex + interpolatePeak(data, secondIndex, N))
+                - (firstIndex + interpolatePeak(data, firstIndex, N));
+        mEstimatedLatencyMs = mEstimatedLatencySamples * 1000 / mSamplingRate;
+        log(String.format(" latencySamples: %.2f  %.2f ms", mEstimatedLatencySamples,
+                mEstimatedLatencyMs));
+
+        mDataIsValid = mEstimatedLatencyMs > 0.0001;
+        return true;
+    }
+
+
+    /** Create the matched filter template for the loopback tone. */
+    private void createTemplate(int templateLength) {
+        mTemplateWindow = new double[templateLength];
+        mTemplateReal = new double[templateLength];
+        mTemplateImag = new double[templateLength];
+        createTemplate(mSamplingRate, mTemplateWindow, mTemplateReal, mTemplateImag);
+    }
+
+
+    /**
+     * Fill real and imag with the complex (analytic) version of the loopback tone, so the matched
+     * filter output doesn't depend on the phase of the tone. The window is normalized by its
+     * energy. Also used by StreamingCorrelation.
+     */
+    static void createTemplate(int samplingRate, double [] window, double [] real,
+                               double [] imag) {
+        int templateLength = window.length;
+
+        // same triangular window as RampedSineTone
+        double phaseIncrement = Constant.TWO_PI * Constant.LOOPBACK_FREQUENCY / samplingRate;
+        double energy = 0;
+        for (int i = 0; i < templateLength; i++) {
+            if (i < templateLength / 2) {
+                window[i] = (i / (double) templateLength) * 2;
+            } else {
+                window[i] = ((templateLength - i) / (double) templateLength) * 2;
+            }
+            energy += window[i] * window[i];
+        }
+        for (int i = 0; i < templateLength; i++) {
+            window[i] /= energy;
+            real[i] = window[i] * Math.cos(phaseIncrement * i);
+            imag[i] = window[i] * Math.sin(phaseIncrement * i);
+        }
+    }
 
-        int N = data.length; //all samples available
-        double groupSize =  (double) N / mBlockSize;  //samples per downsample point.
+
+    /** Returns the magnitude of the matched filter output at full sample rate for a lag. */
+    private double matchedFilterAt(double [] data, int lag) {
+        double real = 0;
+        double imag = 0;
+        for (int i = 0; i < mTemplateReal.length; i++) {
+            real += data[lag + i] * mTemplateReal[i];
+            imag -= data[lag + i] * mTemplateImag[i];
+        }
+        return Math.hypot(real, imag);
+    }
+
+
+    /** Returns the lag with the largest matched filter output within radius of center. */
+    private int refinePeak(double [] data, int center, int radius, int N) {
+        int start = Math.max(center - radius, 0);
+        int end = Math.min(center + radius, N - 1);
+        int maxIndex = start;
+        double maxValue = -1;
+        for (int i = start; i <= end; i++) {
+            double value = matchedFilterAt(data, i);
+            if (value > maxValue) {
+                maxValue = value;
+                maxIndex = i;
+            }
+        }
+        return maxIndex;
+    }
+
+
+    /**
+     * Returns the matched filter output magnitude for every decimation-th lag. The recording is
+     * shifted to baseband, anti-alias filtered (two cascaded moving averages) and decimated, then
+     * correlated with the decimated window of the tone. This is O(N) for a fixed tone length.
+     */
+    private double [] coarseMatchedFilter(double [] data, int N, int decimation) {
+        int length = (data.length + decimation - 1) / decimation;
+        double [] basebandReal = new double[length];
+        double [] basebandImag = new double[length];
+        double phaseIncrement = Constant.TWO_PI * Constant.LOOPBACK_FREQUENCY / mSamplingRate;
+
+        // triangular filter of length 2 * decimation - 1, centered on each decimated sample
+        for (int m = 0; m < length; m++) {
+            int center = m * decimation;
+            int start = Math.max(center - decimation + 1, 0);
+            int end = Math.min(center + decimation - 1, data.length - 1);
+            double real = 0;
+            double imag = 0;
+            for (int n = start; n <= end; n++) {
+                double weight = decimation - Math.abs(n - center);
+                double phase = phaseIncrement * n;
+                real += weight * data[n] * Math.cos(phase);
+                imag -= weight * data[n] * Math.sin(phase);
+            }
+            basebandReal[m] = real / (decimation * decimation);
+            basebandImag[m] = imag / (decimation * decimation);
+        }
+
+        int coarseTemplateLength = (mTemplateWindow.length + decimation - 1) / decimation;
+        int coarseN = (N + decimation - 1) / decimation;
+        double [] coarse = new double[coarseN];
+        for (int m = 0; m < coarseN; m++) {
+            double real = 0;
+            double imag = 0;
+            for (int j = 0; j < coarseTemplateLength && m + j < length; j++) {
+                double weight = mTemplateWindow[j * decimation];
+                real += basebandReal[m + j] * weight;
+                imag += basebandImag[m + j] * weight;
+            }
+            coarse[m] = Math.hypot(real, imag);
+        }
+        return coarse;
+    }
+
+
+    /** Returns the sub-sample offset of the matched filter peak at index. */
+    private double interpolatePeak(double [] data, int index, int N) {
+        if (index <= 0 || index >= N - 1) {
+            return 0;
+        }
+        return interpolatePeak(matchedFilterAt(data, index - 1), matchedFilterAt(data, index),
+                matchedFilterAt(data, index + 1));
+    }
+
+
+    /** Returns the sub-sample offset of a peak, using parabolic interpolation. */
+    private static double interpolatePeak(double left, double center, double right) {
+        double denominator = left - 2 * center + right;
+        if (denominator >= 0) {
+            return 0;
+        }
+        return 0.5 * (left - right) / denominator;
+    }
+
+
+    /** Estimate the latency by autocorrelating the envelope of data. */
+    private void computeAutocorrelationLatency(double [] data) {
+        log("Started Auto Correlation for data with " + data.length + " points");
+        mDataEnvelope = new double [data.length];
+        mDataAutocorrelated = new double[data.length];
+        computeEnvelope(data, mDataEnvelope, mAmplitudeThreshold);
+
+        //correlation vector, computed at full sample rate
+        autocorrelation(mDataEnvelope, mDataAutocorrelated);
 
         double maxValue = 0;
         int maxIndex = -1;
 
         double minLatencyMs = 8; //min latency expected. This algorithm should be improved.
-        int minIndex = (int) (0.5 + minLatencyMs * mSamplingRate / (groupSize * 1000));
-
-        double average = 0;
-        double rms = 0;
+        int minIndex = (int) (0.5 + minLatencyMs * mSamplingRate / 1000);
 
         //find max
         for (int i = minIndex; i < mDataAutocorrelated.length; i++) {
-            average += mDataAutocorrelated[i];
-            rms += mDataAutocorrelated[i] * mDataAutocorrelated[i];
            if (mDataAutocorrelated[i] > maxValue) {
                maxValue = mDataAutocorrelated[i];
                maxIndex = i;
            }
         }
 
-        rms = Math.sqrt(rms / mDataAutocorrelated.length);
-        average = average / mDataAutocorrelated.length;
-        log(String.format(" Maxvalue %f, max Index : %d/%d (%d)  minIndex = %d", maxValue, maxIndex,
-                          mDataAutocorrelated.length, data.length, minIndex));
+        // Confidence statistics are gathered over mBlockSize groups of lags, so that they stay
+        // comparable with the values produced when the data was decimated before correlating.
+        int N = mDataAutocorrelated.length;
+        double groupSize = (double) N / mBlockSize;  //lags per group.
+        int minGroup = (int) (minIndex / groupSize);
+        double average = 0;
+        double rms = 0;
+        int groupStart = 0;
+        for (int group = 0; group < mBlockSize; group++) {
+            int groupEnd = Math.min((int) ((group + 1) * groupSize), N);
+            double value = 0;
+            for (int i = groupStart; i < groupEnd; i++) {
+                value += mDataAutocorrelated[i];
+            }
+            groupStart = groupEnd;
+
+            if (group >= minGroup) {
+                average += value;
+                rms += value * value;
+            }
+        }
+
+        rms = Math.sqrt(rms / mBlockSize);
+        average = average / mBlockSize;
+        log(String.format(" Maxvalue %f, max Index : %d/%d  minIndex = %d", maxValue, maxIndex,
+                          mDataAutocorrelated.length, minIndex));
         log(String.format("  average : %.3f  rms: %.3f", average, rms));
 
         mAverage = average;
@@ -106,7 +415,7 @@ public class Correlation implements Parcelable {
         }
         log(String.format(" ****Confidence: %.2f", mEstimatedLatencyConfidence));
 
-        mEstimatedLatencySamples = maxIndex * groupSize;
+        mEstimatedLatencySamples = maxIndex;
         mEstimatedLatencyMs = mEstimatedLatencySamples * 1000 / mSamplingRate;
         log(String.format(" latencySamples: %.2f  %.2f ms", mEstimatedLatencySamples,
                           mEstimatedLatencyMs));
@@ -129,67 +438,55 @@ public class Correlation implements Parcelable {
                 Constant.CORRELATION_BLOCK_SIZE_MAX);
     }
 
-    private boolean downsampleData(double [] data, double [] dataDownsampled, double threshold) {
-        log("Correlation block size used in down sample: " + mBlockSize);
-
-        boolean status;
-        for (int i = 0; i < mBlockSize; i++) {
-            dataDownsampled[i] = 0;
-        }
-
+    /** Fill dataEnvelope with the magnitude of data, ignoring samples below threshold. */
+    private void computeEnvelope(double [] data, double [] dataEnvelope, double threshold) {
         int N = data.length; //all samples available
-        double groupSize =  (double) N / mBlockSize;
-
         int ignored = 0;
-
-        int currentIndex = 0;
-        double nextGroup = groupSize;
-        for (int i = 0; i < N && currentIndex < mBlockSize; i++) {
-
-            if (i > nextGroup) { //advanced to next group.
-                currentIndex++;
-                nextGroup += groupSize;
-            }
-
-            if (currentIndex >= mBlockSize) {
-                break;
-            }
-
+        for (int i = 0; i < N; i++) {
             double value =  Math.abs(data[i]);
             if (value >= threshold) {
-                dataDownsampled[currentIndex] += value;
+                dataEnvelope[i] = value;
             } else {
+                dataEnvelope[i] = 0;
                 ignored++;
             }
         }
 
-        log(String.format(" Threshold: %.3f, ignored:%d/%d (%%.2f)",
+        log(String.format(" Threshold: %.3f, ignored:%d/%d (%.2f)",
                 threshold, ignored, N, (double) ignored/(double)N));
-
-        status = true;
-        return status;
     }
 
 
+    /**
+     * Compute the normalized (non circular) autocorrelation of data in O(N log N).
+     * The data is zero padded to at least twice its length so the circular correlation
+     * computed through the FFT doesn't wrap around.
+     */
     private boolean autocorrelation(double [] data, double [] dataOut) {
         boolean status = false;
 
-        double sumsquared = 0;
         int N = data.length;
-        for (int i = 0; i < N; i++) {
-            double value = data[i];
-            sumsquared += value * value;
+        int size = Utilities.roundup(2 * N);
+        double [] real = new double[size];
+        double [] imag = new double[size];
+        System.arraycopy(data, 0, real, 0, N);
+
+        FFT fft = new FFT(size);
+        fft.fft(real, imag, 1);
+
+        // power spectrum
+        for (int i = 0; i < size; i++) {
+            real[i] = real[i] * real[i] + imag[i] * imag[i];
+            imag[i] = 0;
         }
 
+        fft.fft(real, imag, -1);
+
+        // lag 0 holds the sum of squares (scaled by size)
+        double sumsquared = real[0];
         if (sumsquared > 0) {
-            //correlate (not circular correlation)
             for (int i = 0; i < N; i++) {
-                dataOut[i] = 0;
-                for (int j = 0; j < N - i; j++) {
-
-                    dataOut[i] += data[j] * data[i + j];
-                }
-                dataOut[i] = dataOut[i] / sumsquared;
+                dataOut[i] = real[i] / sumsquared;
             }
             status = true;
         }
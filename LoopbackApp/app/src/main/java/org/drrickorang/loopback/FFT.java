@@ -28,8 +28,14 @@ public class FFT {
     private int       m;
     private double[]  cos;   // precomputed cosine tables for FFT
     private double[]  sin;   // precomputed sine tables for FFT
+    private int[]     bitReverse;  // precomputed bit-reversed index of each index
     private final int mFFTSamplingSize;
 
+    // used by powerSpectrum(), which packs the real input into a complex FFT of half the size
+    private FFT       mHalfFFT;
+    private double[]  mHalfReal;
+    private double[]  mHalfImag;
+
 
     FFT(int FFTSamplingSize) {
         mFFTSamplingSize = FFTSamplingSize;
@@ -49,6 +55,21 @@ public class FFT {
             cos[i] = Math.cos(-2 * Math.PI * i / mFFTSamplingSize);
             sin[i] = Math.sin(-2 * Math.PI * i / mFFTSamplingSize);
         }
+
+        bitReverse = new int[mFFTSamplingSize];
+        int j = 0;
+        for (int i = 1; i < mFFTSamplingSize - 1; i++) {
+            int n1 = mFFTSamplingSize / 2;
+            while (j >= n1) {
+                j = j - n1;
+                n1 = n1 / 2;
+            }
+            j = j + n1;
+            bitReverse[i] = j;
+        }
+        if (mFFTSamplingSize > 1) {
+            bitReverse[mFFTSamplingSize - 1] = mFFTSamplingSize - 1;
+        }
     }
 
 
@@ -60,16 +81,8 @@ public class FFT {
         double c, s, t1, t2;
 
         // Bit-reverse
-        j = 0;
-        n2 = mFFTSamplingSize / 2;
         for (i = 1; i < mFFTSamplingSize - 1; i++) {
-            n1 = n2;
-            while (j >= n1) {
-                j = j - n1;
-                n1 = n1 / 2;
-            }
-            j = j + n1;
-
+            j = bitReverse[i];
             if (i < j) {
                 t1 = x[i];
                 x[i] = x[j];
@@ -106,4 +119,57 @@ public class FFT {
         }
     }
 
+
+    /**
+     * Compute the power spectrum (magnitude squared) of the real samples in "x", and store
+     * the first half of it to "power". The samples are packed into a complex FFT of half the size,
+     * which is then split into the spectrum of the even and odd samples. "x" is left unchanged.
+     */
+    public void powerSpectrum(double[] x, double[] power) {
+        powerSpectrum(x, 0, null, power);
+    }
+
+
+    /**
+     * Same as powerSpectrum(x, power), except that the samples are read from "ring", a circular
+     * buffer of FFT sampling size starting at index "start", and multiplied by "window" (unless
+     * it's null) as they are packed. This way windowing needs neither a copy nor a pass of its own.
+     */
+    public void powerSpectrum(double[] ring, int start, double[] window, double[] power) {
+        int half = mFFTSamplingSize / 2;
+        if (mHalfFFT == null) {
+            mHalfFFT = new FFT(half);
+            mHalfReal = new double[half];
+            mHalfImag = new double[half];
+        }
+
+        int mask = mFFTSamplingSize - 1;
+        if (window == null) {
+            for (int i = 0; i < half; i++) {
+                mHalfReal[i] = ring[(start + 2 * i) & mask];
+                mHalfImag[i] = ring[(start + 2 * i + 1) & mask];
+            }
+        } else {
+            for (int i = 0; i < half; i++) {
+                mHalfReal[i] = ring[(start + 2 * i) & mask] * window[2 * i];
+                mHalfImag[i] = ring[(start + 2 * i + 1) & mask] * window[2 * i + 1];
+            }
+        }
+        mHalfFFT.fft(mHalfReal, mHalfImag, 1);
+
+        for (int k = 0; k < half; k++) {
+            int nk = (half - k) % half;
+            // even = (Z[k] + conj(Z[half - k])) / 2, odd = (Z[k] - conj(Z[half - k])) / 2i
+            double evenReal = (mHalfReal[k] + mHalfReal[nk]) / 2;
+            double evenImag = (mHalfImag[k] - mHalfImag[nk]) / 2;
+            double oddReal = (mHalfImag[k] + mHalfImag[nk]) / 2;
+            double oddImag = (mHalfReal[nk] - mHalfReal[k]) / 2;
+
+            // X[k] = even + W^k * odd
+            double re = evenReal + cos[k] * oddReal - sin[k] * oddImag;
+            double im = evenImag + cos[k] * oddImag + sin[k] * oddReal;
+            power[k] = re * re + im * im;
+        }
+    }
+
 }
@@ -0,0 +1,379 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.drrickorang.loopback;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import android.util.Log;
+
+
+/**
+ * Records the whole buffer test to a file, so that the samples around any glitch can be looked at
+ * after the test, not only those still in the WaveDataRingBuffer. The samples are stored as raw
+ * 16 bit little endian values, sample n at byte 2 * n, written a second at a time at their place
+ * in the file. Samples that were lost before they reached the recorder are left as zeros.
+ *
+ * The samples are handed over in chunks of one second from a small pool, and written by a
+ * thread of the recorder, so neither the audio threads nor the caller ever wait for the disk.
+ * If the disk can't keep up, whole seconds are dropped instead. Once the recording is closed, an
+ * index file gives the sampling rate then the byte offset of each second, or NOT_RECORDED for the
+ * seconds that were dropped, and extract() reads any part of the recording through it. If a write
+ * fails, that second and the later ones are dropped too, and getSummary() reports the error.
+ */
+
+public class FlightRecorder {
+    private static final String TAG = "FlightRecorder";
+
+    public static final String DATA_SUFFIX = "_flight.raw";
+    public static final String INDEX_SUFFIX = "_flight.idx";
+    public static final long   NOT_RECORDED = -1;
+    private static final int   BYTES_PER_LONG = 8;
+
+    // chunks of one second waiting to be written, this bounds the memory used
+    private static final int NUM_CHUNKS = 8;
+
+    private final String mFileNameBase;
+    private final int    mSamplingRate;
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final long[] mSecondOffsets; // written by the writer thread only
+
+    private final BlockingQueue<Chunk> mFreeChunks = new ArrayBlockingQueue<Chunk>(NUM_CHUNKS);
+    private final BlockingQueue<Chunk> mFullChunks = new ArrayBlockingQueue<Chunk>(NUM_CHUNKS + 1);
+    private final Chunk  mStopChunk = new Chunk(0); // tells the writer to finish
+    private final Writer mWriter;
+
+    private Chunk   mCurrentChunk;  // second being filled, null if it's dropped
+    private long    mCurrentSecond = -1;
+    private int     mDroppedSeconds; // includes mUnwrittenSeconds once closed
+    private int     mUnwrittenSeconds; // written by the writer thread only, seconds not written
+    private boolean mIsClosed;
+    private volatile String mWriteError; // null unless the writer failed
+
+
+    /** A second of samples, starting at sample mSecond * mSamplingRate of the recording. */
+    private static class Chunk {
+        final short[] mSamples;
+        long mSecond;
+        int  mCount; // the samples after mCount haven't been recorded
+
+        Chunk(int size) {
+            mSamples = new short[size];
+        }
+    }
+
+
+    /**
+     * Writes the chunks to the file, in the order they were filled, through a direct buffer that
+     * is reused. After a failed write, the chunks are only handed back.
+     */
+    private class Writer extends Thread {
+        private final ByteBuffer  mBuffer;    // direct, little endian
+        private final ShortBuffer mShortView; // view of mBuffer
+
+        Writer() {
+            setName("Loopback_FlightRecorder");
+            mBuffer = ByteBuffer.allocateDirect(mSamplingRate * Constant.BYTES_PER_SHORT);
+            mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+            mShortView = mBuffer.asShortBuffer();
+        }
+
+
+        public void run() {
+            try {
+                while (true) {
+                    Chunk chunk = mFullChunks.take();
+                    if (chunk == mStopChunk) {
+                        break;
+                    }
+                    if (mWriteError == null) {
+                        try {
+                            write(chunk);
+                        } catch (IOException e) {
+                            mWriteError = "second " + chunk.mSecond + ": " + e;
+                            log("write failed at " + mWriteError
+                                    + ", the rest of the test isn't recorded");
+                            e.printStackTrace();
+                        }
+                    }
+                    if (mWriteError != null) {
+                        mUnwrittenSeconds++;
+                    }
+                    mFreeChunks.offer(chunk);
+                }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+
+
+        private void write(Chunk chunk) throws IOException {
+            mShortView.clear();
+            mShortView.put(chunk.mSamples, 0, chunk.mCount);
+            mBuffer.clear();
+            mBuffer.limit(chunk.mCount * Constant.BYTES_PER_SHORT);
+
+            // a positional write, the seconds which were dropped are left as a hole of zeros
+            long offset = chunk.mSecond * mSamplingRate * Constant.BYTES_PER_SHORT;
+            while (mBuffer.hasRemaining()) {
+                mChannel.write(mBuffer, offset + mBuffer.position());
+            }
+            mSecondOffsets[(int) chunk.mSecond] = offset;
+        }
+    }
+
+
+    /**
+     * Start a recording of at most maxSeconds, to the files fileNameBase + DATA_SUFFIX and
+     * fileNameBase + INDEX_SUFFIX.
+     */
+    public FlightRecorder(String fileNameBase, int samplingRate, int maxSeconds)
+            throws IOException {
+        mFileNameBase = fileNameBase;
+        mSamplingRate = samplingRate;
+        mSecondOffsets = new long[maxSeconds];
+        Arrays.fill(mSecondOffsets, NOT_RECORDED);
+
+        mFile = new RandomAccessFile(fileNameBase + DATA_SUFFIX, "rw");
+        mFile.setLength(0);
+        mChannel = mFile.getChannel();
+
+        for (int i = 0; i < NUM_CHUNKS; i++) {
+            mFreeChunks.offer(new Chunk(samplingRate));
+        }
+        mWriter = new Writer();
+        mWriter.start();
+        log("recording to " + fileNameBase + DATA_SUFFIX);
+    }
+
+
+    /**
+     * Record count samples of data starting at offset, the first of which is sample sampleIndex
+     * of the recording. The samples must be recorded in order, but may skip lost samples.
+     */
+    public void record(long sampleIndex, double[] data, int offset, int count) {
+        while (count > 0 && !mIsClosed) {
+            long second = sampleIndex / mSamplingRate;
+            if (second != mCurrentSecond) {
+                startSecond(second);
+            }
+
+            int position = (int) (sampleIndex - second * mSamplingRate);
+            int length = Math.min(count, mSamplingRate - position);
+            if (mCurrentChunk != null) {
+                short[] samples = mCurrentChunk.mSamples;
+                for (int i = 0; i < length; i++) {
+                    // the samples were recorded as 16 bit values, so this only guards rounding
+                    double value = data[offset + i] * Short.MAX_VALUE;
+                    value = Math.max(Short.MIN_VALUE, Math.min(value, Short.MAX_VALUE));
+                    samples[position + i] = (short) Math.round(value);
+                }
+                mCurrentChunk.mCount = position + length;
+            }
+
+            sampleIndex += length;
+            offset += length;
+            count -= length;
+        }
+    }
+
+
+    /** Hand the current second to the writer, and take a free chunk for the given one. */
+    private void startSecond(long second) {
+        if (mCurrentChunk != null) {
+            mFullChunks.offer(mCurrentChunk); // never full, there are only NUM_CHUNKS chunks
+        }
+        mCurrentSecond = second;
+
+        if (second >= mSecondOffsets.length) {
+            // past the end of the test, nothing else is recorded
+            mCurrentChunk = null;
+            return;
+        }
+        mCurrentChunk = mFreeChunks.poll();
+        if (mCurrentChunk == null) {
+            mDroppedSeconds++;
+            log("the disk is too slow, second " + second + " is dropped");
+            return;
+        }
+        Arrays.fill(mCurrentChunk.mSamples, (short) 0);
+        mCurrentChunk.mSecond = second;
+        mCurrentChunk.mCount = 0;
+    }
+
+
+    /** Finish the recording: wait for the writer, then write the index. */
+    public void close() {
+        if (mIsClosed) {
+            return;
+        }
+        mIsClosed = true;
+        if (mCurrentChunk != null) {
+            mFullChunks.offer(mCurrentChunk);
+            mCurrentChunk = null;
+        }
+        mFullChunks.offer(mStopChunk);
+
+        // the caller may have been interrupted to stop it, which must not cut the wait short
+        Thread.interrupted();
+        try {
+            mWriter.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        mDroppedSeconds += mUnwrittenSeconds;
+
+        DataOutputStream index = null;
+        try {
+            mFile.close();
+            index = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(mFileNameBase + INDEX_SUFFIX)));
+            index.writeLong(mSamplingRate);
+            for (long offset : mSecondOffsets) {
+                index.writeLong(offset);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                if (index != null) {
+                    index.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        log("recording closed, " + mDroppedSeconds + " seconds dropped");
+    }
+
+
+    /** Return the base of the file names of the recording, see extract(). */
+    public String getFileNameBase() {
+        return mFileNameBase;
+    }
+
+
+    public int getDroppedSeconds() {
+        return mDroppedSeconds;
+    }
+
+
+    /** Return the error of the write that failed, or null if the recording was written. */
+    public String getWriteError() {
+        return mWriteError;
+    }
+
+
+    /** Return a line for the results: the seconds dropped, and the error of a failed write. */
+    public String getSummary() {
+        String summary = mDroppedSeconds + " seconds dropped";
+        if (mWriteError != null) {
+            summary += ", write failed at " + mWriteError;
+        }
+        return summary;
+    }
+
+
+    /**
+     * Read count samples starting at sample startSample of a closed recording, reading only the
+     * seconds they are in. The samples that weren't recorded are returned as zeros.
+     */
+    public static short[] extract(String fileNameBase, long startSample, int count)
+            throws IOException {
+        short[] samples = new short[count];
+        DataInputStream index = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(fileNameBase + INDEX_SUFFIX)));
+        RandomAccessFile file = new RandomAccessFile(fileNameBase + DATA_SUFFIX, "r");
+        try {
+            // the sampling rate, then an offset per second
+            long numSeconds = new File(fileNameBase + INDEX_SUFFIX).length() / BYTES_PER_LONG - 1;
+            int samplingRate = (int) index.readLong();
+            long firstSecond = startSample / samplingRate;
+            index.skipBytes((int) Math.min(firstSecond, numSeconds) * BYTES_PER_LONG);
+
+            FileChannel channel = file.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(samplingRate * Constant.BYTES_PER_SHORT);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            int extracted = 0;
+            for (long second = firstSecond; second < numSeconds && extracted < count; second++) {
+                long offset = index.readLong();
+                int position = (int) (startSample + extracted - second * samplingRate);
+                int length = Math.min(count - extracted, samplingRate - position);
+                if (offset != NOT_RECORDED) {
+                    buffer.clear();
+                    buffer.limit(length * Constant.BYTES_PER_SHORT);
+                    channel.read(buffer, offset + position * Constant.BYTES_PER_SHORT);
+                    buffer.flip();
+                    // the last second may be shorter, the rest is left as zeros
+                    buffer.asShortBuffer().get(samples, extracted, buffer.remaining()
+                            / Constant.BYTES_PER_SHORT);
+                }
+                extracted += length;
+            }
+        } finally {
+            index.close();
+            file.close();
+        }
+        return samples;
+    }
+
+
+    /** Save count samples starting at sample startSample of a closed recording to a .wav file. */
+    public static void extractToWav(String fileNameBase, long startSample, int count,
+                                    String wavFileName) throws IOException {
+        short[] samples = extract(fileNameBase, startSample, count);
+        DataInputStream index = new DataInputStream(new FileInputStream(
+                fileNameBase + INDEX_SUFFIX));
+        int samplingRate;
+        try {
+            samplingRate = (int) index.readLong();
+        } finally {
+            index.close();
+        }
+
+        FileOutputStream output = new FileOutputStream(wavFileName);
+        try {
+            WavWriter writer = new WavWriter(output.getChannel(), samplingRate, 1,
+                    WavWriter.FORMAT_PCM_16);
+            writer.write(samples, 0, samples.length);
+            writer.finish();
+        } finally {
+            output.close();
+        }
+    }
+
+
+    private static void log(String msg) {
+        Log.v(TAG, msg);
+    }
+
+}
@@ -18,8 +18,6 @@ package org.drrickorang.loopback;
 
 import android.util.Log;
 
-import java.util.Arrays;
-
 
 /**
  * This thread is responsible for detecting glitches in the samples.
@@ -27,23 +25,18 @@ import java.util.Arrays;
 
 public class GlitchDetectionThread extends Thread {
     private static final String TAG = "GlitchDetectionThread";
-    // the acceptable difference between the expected center of mass and what we actually get
-    private static final double mAcceptablePercentDifference = 0.02; // change this if necessary
+    // how long to wait for samples before checking mIsRunning again
+    private static final int PIPE_READ_TIMEOUT_MS = 100;
 
     // Measured in FFT samples
     private static final int GLITCH_CONCENTRATION_WINDOW_SIZE = 1500; // approx 30 seconds at 48kHz
     private static final int COOLDOWN_WINDOW = 4500; // approx 90 seconds at 48kHz
 
     private boolean mIsRunning; // condition must be true for the thread to run
-    private short   mShortBuffer[]; // keep the data read from Pipe
-    private int     mShortBufferIndex = 0;
     private Pipe    mPipe;
-    private static int mThreadSleepDurationMs;
-
-    private double  mDoubleBuffer[]; // keep the data used for FFT calculation
-    private boolean mIsFirstFFT = true; // whether or not it's the first FFT calculation
 
     private WaveDataRingBuffer mWaveDataRing; // Record last n seconds of wave data
+    private FlightRecorder     mFlightRecorder; // Record the whole test, may be null
 
     private final double  mFrequency1;
     private final double  mFrequency2; //currently not used
@@ -51,26 +44,32 @@ public class GlitchDetectionThread extends Thread {
     private final int     mFFTSamplingSize;   // amount of samples used to perform a FFT
     private final int     mFFTOverlapSamples; // amount of overlapped samples used between two FFTs
     private final int     mNewSamplesPerFFT;  // amount of new samples (not from last FFT) in a FFT
-    private double  mCenterOfMass;  // expected center of mass of samples
 
-    private final int[]   mGlitches;  // for every value = n, n is nth FFT where a glitch is found
+    // the glitches of mGlitchDetector go to mGlitches, the glitches of all detectors (including
+    // mGlitchDetector) go to mGlitchEventLog
+    private final int     mGlitchDetector;
+    private final GlitchDetectorFanOut mFanOut;
+    private final GlitchEventLog mGlitchEventLog;
+    private long mSamplesDispatched; // absolute index of the sample after the last block
+
+    // for every value = n, n is nth FFT where a glitch is found, or the nth sample with the
+    // sliding DFT and phase tracking detectors
+    private final int[]   mGlitches;
+    private final double[] mGlitchMagnitudes; // how large each glitch is, depends on the detector
     private int     mGlitchesIndex;
-    private int     mFFTCount; // store the current number of FFT performed
-    private FFT     mFFT;
+    private final int     mGlitchUnit; // number of samples per unit of mGlitches
     private boolean mGlitchingIntervalTooLong = false; // true if mGlitches is full
 
-    // Pre-Allocated buffers for glitch detection process
-    private final double[] mFFTResult;
-    private final double[] mCurrentSamples;
-    private final double[] mImagArray;
-
     // Used for captured SysTrace dumps
     private CaptureHolder mCaptureHolder;
     private int mLastGlitchCaptureAttempt = 0;
+    private final int mGlitchConcentrationWindowSize; // in the same unit as mGlitches
+    private final int mCooldownWindow;
 
     GlitchDetectionThread(double frequency1, double frequency2, int samplingRate,
           int FFTSamplingSize, int FFTOverlapSamples, int bufferTestDurationInSeconds,
-          int bufferTestWavePlotDurationInSeconds, Pipe pipe, CaptureHolder captureHolder) {
+          int bufferTestWavePlotDurationInSeconds, Pipe pipe, CaptureHolder captureHolder,
+          int glitchDetector, int extraGlitchDetectors) {
         mPipe = pipe;
         mFrequency1 = frequency1;
         mFrequency2 = frequency2;
@@ -80,90 +79,109 @@ public class GlitchDetectionThread extends Thread {
         mSamplingRate = samplingRate;
         mIsRunning = true;
 
-        mShortBuffer = new short[mFFTSamplingSize];
-        mDoubleBuffer = new double[mFFTSamplingSize];
         mWaveDataRing = new WaveDataRingBuffer(mSamplingRate * bufferTestWavePlotDurationInSeconds);
 
         final int acceptableGlitchingIntervalsPerSecond = 10;
         mGlitches = new int[bufferTestDurationInSeconds * acceptableGlitchingIntervalsPerSecond];
+        mGlitchMagnitudes = new double[mGlitches.length];
         mGlitchesIndex = 0;
-        mFFTCount = 0;
 
-        mFFTResult = new double[mFFTSamplingSize/2];
-        mCurrentSamples = new double[mFFTSamplingSize];
-        mImagArray = new double[mFFTSamplingSize];
+        // mGlitchDetector always runs, the extra detectors run next to it
+        mGlitchDetector = glitchDetector;
+        int detectors = (1 << mGlitchDetector) | extraGlitchDetectors;
+        GlitchDetector[] glitchDetectors = new GlitchDetector[Integer.bitCount(detectors)];
+        int index = 0;
+        for (int id = 0; id < Constant.NUM_GLITCH_DETECTORS; id++) {
+            if ((detectors & (1 << id)) != 0) {
+                glitchDetectors[index] = createGlitchDetector(id);
+                index++;
+            }
+        }
+        mFanOut = new GlitchDetectorFanOut(glitchDetectors, mNewSamplesPerFFT);
+        mGlitchEventLog = new GlitchEventLog(mSamplingRate,
+                mGlitches.length * glitchDetectors.length);
 
-        mFFT = new FFT(mFFTSamplingSize);
-        computeExpectedCenterOfMass();
+        if (mGlitchDetector == Constant.GLITCH_DETECTOR_CENTER_OF_MASS) {
+            mGlitchUnit = mNewSamplesPerFFT;
+        } else {
+            mGlitchUnit = 1;
+        }
+        mGlitchConcentrationWindowSize =
+                GLITCH_CONCENTRATION_WINDOW_SIZE * mNewSamplesPerFFT / mGlitchUnit;
+        mCooldownWindow = COOLDOWN_WINDOW * mNewSamplesPerFFT / mGlitchUnit;
 
         setName("Loopback_GlitchDetection");
 
         mCaptureHolder = captureHolder;
         mCaptureHolder.setWaveDataBuffer(mWaveDataRing);
+        mFlightRecorder = mCaptureHolder.getFlightRecorder();
+    }
+
 
-        mThreadSleepDurationMs = FFTOverlapSamples * Constant.MILLIS_PER_SECOND / mSamplingRate;
-        if (mThreadSleepDurationMs < 1) {
-            mThreadSleepDurationMs = 1; // sleeps at least 1ms
+    /** Create the glitch detector with the given id, reporting to the glitch event stream. */
+    private GlitchDetector createGlitchDetector(final int id) {
+        GlitchListener listener = new GlitchListener() {
+            @Override
+            public void onGlitch(long sampleIndex, double magnitude) {
+                recordGlitch(id, sampleIndex, magnitude);
+            }
+        };
+
+        switch (id) {
+            case Constant.GLITCH_DETECTOR_SLIDING_DFT:
+                return new SlidingDFTGlitchDetector(mFrequency1, mSamplingRate, listener);
+            case Constant.GLITCH_DETECTOR_PHASE_TRACKING:
+                return new PhaseTrackingGlitchDetector(mFrequency1, mSamplingRate, listener);
+            case Constant.GLITCH_DETECTOR_CENTER_OF_MASS:
+            default:
+                return new CenterOfMassGlitchDetector(mFrequency1, mSamplingRate,
+                        mFFTSamplingSize, mFFTOverlapSamples, listener);
         }
     }
 
 
     public void run() {
-        while (mIsRunning) {
-            int requiredRead;
-            int actualRead;
-
-            requiredRead = mFFTSamplingSize - mShortBufferIndex;
-            actualRead = mPipe.read(mShortBuffer, mShortBufferIndex, requiredRead);
-
-            if (actualRead > 0) {
-                mShortBufferIndex += actualRead;
-            }
+        try {
+            while (mIsRunning) {
+                // sleep until a whole hop of new samples is in the pipe, instead of polling it
+                int avail = mPipe.waitForSamples(mNewSamplesPerFFT, PIPE_READ_TIMEOUT_MS);
 
-            if (actualRead == Pipe.OVERRUN) {
-                log("There's an overrun");
-            }
-
-            // Once we have enough data, we can do a FFT on it. Note that between two FFTs, part of
-            // the samples (of size mFFTOverlapSamples) are used in both FFTs .
-            if (mShortBufferIndex == mFFTSamplingSize) {
-                bufferShortToDouble(mShortBuffer, mDoubleBuffer);
-
-                // copy data in mDoubleBuffer to mWaveData
-                if (mIsFirstFFT) {
-                    // if it's the first FFT, copy the whole "mNativeBuffer" to mWaveData
-                    mWaveDataRing.writeWaveData(mDoubleBuffer, 0, mFFTSamplingSize);
-                    mIsFirstFFT = false;
-                } else {
-                    mWaveDataRing.writeWaveData(mDoubleBuffer, mFFTOverlapSamples,
-                            mNewSamplesPerFFT);
+                if (avail == Pipe.OVERRUN) {
+                    log("There's an overrun, " + mPipe.getLostFrames() + " samples lost so far");
                 }
 
-                detectGlitches();
-                // move new samples to the beginning of the array as they will be reused in next fft
-                System.arraycopy(mShortBuffer, mNewSamplesPerFFT, mShortBuffer,
-                                 0, mFFTOverlapSamples);
-                mShortBufferIndex = mFFTOverlapSamples;
-            } else {
-                try {
-                    sleep(mThreadSleepDurationMs);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+                // Once we have a whole hop of new samples, hand them to the detectors. The
+                // detectors that work on overlapping blocks keep the overlap themselves. The
+                // samples are converted as they are copied out of the pipe, straight into the
+                // block that all the detectors share.
+                if (avail >= mNewSamplesPerFFT) {
+                    double[] samples = mFanOut.getBuffer();
+                    // an overrun may still happen since waitForSamples(), then the block is kept
+                    if (mPipe.read(samples, 0, mNewSamplesPerFFT) == mNewSamplesPerFFT) {
+                        // the samples lost in overruns since the last block are accounted for,
+                        // so that glitches and captured samples stay aligned with the recording
+                        long lost = mPipe.getLastReadIndex() - mSamplesDispatched;
+                        mSamplesDispatched = mPipe.getReadIndex();
+                        if (lost > 0) {
+                            mWaveDataRing.writeSilence(lost);
+                        }
+                        mWaveDataRing.writeWaveData(samples, 0, mNewSamplesPerFFT);
+                        if (mFlightRecorder != null) {
+                            mFlightRecorder.record(mPipe.getLastReadIndex(), samples, 0,
+                                    mNewSamplesPerFFT);
+                        }
+                        mFanOut.dispatch(mNewSamplesPerFFT, lost);
+                    }
                 }
             }
+        } catch (InterruptedException e) {
+            // stopped while waiting for samples or for the detectors
+            e.printStackTrace();
         }
 
-    }
-
-
-    /** convert samples in shortBuffer to double, then copy into doubleBuffer. */
-    // TODO move to audio_utils
-    private void bufferShortToDouble(short[] shortBuffer, double[] doubleBuffer) {
-        double temp;
-        for (int i = 0; i < shortBuffer.length; i++) {
-            temp = (double) shortBuffer[i];
-            temp *= (1.0 / Short.MAX_VALUE);
-            doubleBuffer[i] = temp;
+        mFanOut.stop();
+        if (mFlightRecorder != null) {
+            mFlightRecorder.close();
         }
     }
 
@@ -176,32 +194,15 @@ public class GlitchDetectionThread extends Thread {
 
 
     /**
-     * Use the data in mDoubleBuffer to do glitch detection since we know what
-     * data we are expecting.
+     * Record a glitch found by a detector at the given sample. This is called from the thread of
+     * the detector, which is not this thread when several detectors run side by side.
      */
-    private void detectGlitches() {
-        double centerOfMass;
-
-        // retrieve a copy of recorded wave data for manipulating and analyzing
-        System.arraycopy(mDoubleBuffer, 0, mCurrentSamples, 0, mDoubleBuffer.length);
-
-        Utilities.hanningWindow(mCurrentSamples);
-
-        double width = (double) mSamplingRate / mCurrentSamples.length;
-        computeFFT(mCurrentSamples, mFFTResult);     // gives an array of sampleSize / 2
-        final double threshold = 0.1;
-
-        // for all elements in the FFT result that are smaller than threshold,
-        // eliminate them as they are probably noise
-        for (int j = 0; j < mFFTResult.length; j++) {
-            if (mFFTResult[j] < threshold) {
-                mFFTResult[j] = 0;
-            }
+    private synchronized void recordGlitch(int detector, long sampleIndex, double magnitude) {
+        mGlitchEventLog.recordEvent(detector, sampleIndex, magnitude);
+        if (detector != mGlitchDetector) {
+            return;
         }
 
-        // calculate the center of mass of sample's FFT
-        centerOfMass = computeCenterOfMass(mFFTResult, width);
-        double difference = (Math.abs(centerOfMass - mCenterOfMass) / mCenterOfMass);
         if (mGlitchesIndex >= mGlitches.length) {
             // we just want to show this log once and set the flag once.
             if (!mGlitchingIntervalTooLong) {
@@ -209,27 +210,23 @@ public class GlitchDetectionThread extends Thread {
                 mGlitchingIntervalTooLong = true;
             }
         } else {
-            // centerOfMass == -1 if the wave we get is silence.
-            if (difference > mAcceptablePercentDifference || centerOfMass == -1) {
-                // Glitch Detected
-                mGlitches[mGlitchesIndex] = mFFTCount;
-                mGlitchesIndex++;
-                if (mCaptureHolder.isCapturing()) {
-                    checkGlitchConcentration();
-                }
+            mGlitches[mGlitchesIndex] = (int) (sampleIndex / mGlitchUnit);
+            mGlitchMagnitudes[mGlitchesIndex] = magnitude;
+            mGlitchesIndex++;
+            if (mCaptureHolder.isCapturing()) {
+                checkGlitchConcentration();
             }
         }
-        mFFTCount++;
     }
 
     private void checkGlitchConcentration() {
 
         final int recordedGlitch = mGlitches[mGlitchesIndex-1];
-        if (recordedGlitch - mLastGlitchCaptureAttempt <= COOLDOWN_WINDOW) {
+        if (recordedGlitch - mLastGlitchCaptureAttempt <= mCooldownWindow) {
             return;
         }
 
-        final int windowBegin = recordedGlitch - GLITCH_CONCENTRATION_WINDOW_SIZE;
+        final int windowBegin = recordedGlitch - mGlitchConcentrationWindowSize;
 
         int numGlitches = 0;
         for (int index = mGlitchesIndex-1; index >= 0 && mGlitches[index] >= windowBegin; --index) {
@@ -243,72 +240,40 @@ public class GlitchDetectionThread extends Thread {
 
     }
 
-    /** Compute the center of mass of fftResults. Width is the width of each beam. */
-    private double computeCenterOfMass(double[] fftResult, double width) {
-        int length = fftResult.length;
-        double weightedSum = 0;
-        double totalWeight = 0;
-        for (int i = 0; i < length; i++) {
-            weightedSum += fftResult[i] * i;
-            totalWeight += fftResult[i];
-        }
-
-        // this may happen since we are eliminating the noises. So if the wave we got is silence,
-        // totalWeight might == 0.
-        if (totalWeight == 0) {
-            return -1;
-        }
-
-        return (weightedSum * width) / totalWeight;
+    public double[] getWaveData() {
+        return mWaveDataRing.getWaveRecord();
     }
 
 
-    /** Compute FFT of a set of data "samples". */
-    private void computeFFT(double[] src, double[] dst) {
-        Arrays.fill(mImagArray, 0);
-        mFFT.fft(src, mImagArray, 1);    // here src array and imagArray get set
-
-
-        for (int i = 0; i < (src.length / 2); i++) {
-            dst[i] = Math.sqrt(src[i] * src[i] + mImagArray[i] * mImagArray[i]);
-        }
-
+    public synchronized boolean getGlitchingIntervalTooLong() {
+        return mGlitchingIntervalTooLong;
     }
 
 
-    /** Compute the center of mass if the samples have no glitches. */
-    private void computeExpectedCenterOfMass() {
-        SineWaveTone sineWaveTone = new SineWaveTone(mSamplingRate, mFrequency1);
-        double[] sineWave = new double[mFFTSamplingSize];
-        double centerOfMass;
-        double[] sineFFTResult = new double[mFFTSamplingSize/2];
-
-        sineWaveTone.generateTone(sineWave, mFFTSamplingSize);
-        Utilities.hanningWindow(sineWave);
-        double width = (double) mSamplingRate / sineWave.length;
-
-        computeFFT(sineWave, sineFFTResult);     // gives an array of sample sizes / 2
-        centerOfMass = computeCenterOfMass(sineFFTResult, width);  // return center of mass
-        mCenterOfMass = centerOfMass;
-        log("the expected center of mass:" + Double.toString(mCenterOfMass));
+    /** Return the number of samples per unit of the glitches, 1 if they are sample indexes. */
+    public int getGlitchUnit() {
+        return mGlitchUnit;
     }
 
 
-    public double[] getWaveData() {
-        return mWaveDataRing.getWaveRecord();
+    public synchronized int[] getGlitches() {
+        //return a copy of recorded glitches in an array sized to hold only recorded glitches
+        int[] output = new int[mGlitchesIndex];
+        System.arraycopy(mGlitches, 0, output, 0, mGlitchesIndex);
+        return output;
     }
 
 
-    public boolean getGlitchingIntervalTooLong() {
-        return mGlitchingIntervalTooLong;
+    /** Return the magnitudes of the glitches returned by getGlitches(), in the same order. */
+    public synchronized double[] getGlitchMagnitudes() {
+        double[] output = new double[mGlitchesIndex];
+        System.arraycopy(mGlitchMagnitudes, 0, output, 0, mGlitchesIndex);
+        return output;
     }
 
 
-    public int[] getGlitches() {
-        //return a copy of recorded glitches in an array sized to hold only recorded glitches
-        int[] output = new int[mGlitchesIndex];
-        System.arraycopy(mGlitches, 0, output, 0, mGlitchesIndex);
-        return output;
+    public GlitchEventLog getGlitchEventLog() {
+        return mGlitchEventLog;
     }
 
 
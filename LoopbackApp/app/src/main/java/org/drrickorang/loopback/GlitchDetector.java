@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.drrickorang.loopback;
+
+
+/**
+ * A glitch detector that is fed the samples of the buffer test in order, one block at a time,
+ * and reports the glitches it finds to the GlitchListener it was created with.
+ */
+
+public interface GlitchDetector {
+
+    /** Process count samples of data starting at offset, following the samples of last call. */
+    void process(double[] data, int offset, int count);
+
+    /**
+     * Skip count samples that were lost before the next call of process(), so that the sample
+     * indices of the glitches found after them still count them.
+     */
+    void skip(long count);
+
+}
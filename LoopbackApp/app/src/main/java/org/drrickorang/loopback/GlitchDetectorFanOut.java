@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.drrickorang.loopback;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+
+/**
+ * Hands the same blocks of samples to several glitch detectors, each one running on its own
+ * worker thread so that an expensive detector doesn't hold up a cheap one. The samples are
+ * written once into a block from a small pool, and the block goes back to the pool when all the
+ * detectors are done with it. A single detector is run on the calling thread instead.
+ */
+
+public class GlitchDetectorFanOut {
+    private static final String TAG = "GlitchDetectorFanOut";
+
+    // how many blocks a detector can fall behind before the caller waits for a free block
+    private static final int NUM_BLOCKS = 8;
+
+    private final Block    mStopBlock = new Block(0); // tells a worker to finish
+    private final Worker[] mWorkers;    // null when there's a single detector
+    private final GlitchDetector mDetector;
+    private final BlockingQueue<Block> mFreeBlocks;
+    private Block mCurrentBlock;
+
+
+    /** A block of samples, shared by all the detectors. */
+    private static class Block {
+        final double[] mSamples;
+        int mCount;
+        long mLostBefore; // samples lost between the previous block and this one
+        final AtomicInteger mPendingDetectors = new AtomicInteger();
+
+        Block(int size) {
+            mSamples = new double[size];
+        }
+    }
+
+
+    /** Runs one detector on the blocks it's handed, in order. */
+    private class Worker extends Thread {
+        private final GlitchDetector mWorkerDetector;
+        private final BlockingQueue<Block> mBlocks =
+                new ArrayBlockingQueue<Block>(NUM_BLOCKS + 1);
+
+        Worker(GlitchDetector detector, int index) {
+            mWorkerDetector = detector;
+            setName("Loopback_GlitchDetector" + index);
+        }
+
+
+        public void run() {
+            try {
+                while (true) {
+                    Block block = mBlocks.take();
+                    if (block == mStopBlock) {
+                        break;
+                    }
+                    if (block.mLostBefore > 0) {
+                        mWorkerDetector.skip(block.mLostBefore);
+                    }
+                    mWorkerDetector.process(block.mSamples, 0, block.mCount);
+                    if (block.mPendingDetectors.decrementAndGet() == 0) {
+                        mFreeBlocks.offer(block);
+                    }
+                }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+
+    public GlitchDetectorFanOut(GlitchDetector[] detectors, int blockSize) {
+        if (detectors.length == 1) {
+            mDetector = detectors[0];
+            mWorkers = null;
+            mFreeBlocks = null;
+            mCurrentBlock = new Block(blockSize);
+        } else {
+            mDetector = null;
+            mFreeBlocks = new ArrayBlockingQueue<Block>(NUM_BLOCKS);
+            for (int i = 0; i < NUM_BLOCKS; i++) {
+                mFreeBlocks.offer(new Block(blockSize));
+            }
+            mWorkers = new Worker[detectors.length];
+            for (int i = 0; i < detectors.length; i++) {
+                mWorkers[i] = new Worker(detectors[i], i);
+                mWorkers[i].start();
+            }
+        }
+    }
+
+
+    /**
+     * Return the buffer the next block of samples must be written to before calling dispatch(),
+     * waiting until a block is free if the detectors are behind.
+     */
+    public double[] getBuffer() throws InterruptedException {
+        if (mCurrentBlock == null) {
+            mCurrentBlock = mFreeBlocks.take();
+        }
+        return mCurrentBlock.mSamples;
+    }
+
+
+    /**
+     * Hand the first count samples of the buffer to all the detectors, after telling them that
+     * lostBefore samples were lost since the previous block.
+     */
+    public void dispatch(int count, long lostBefore) {
+        if (mWorkers == null) {
+            if (lostBefore > 0) {
+                mDetector.skip(lostBefore);
+            }
+            mDetector.process(mCurrentBlock.mSamples, 0, count);
+            return;
+        }
+
+        Block block = mCurrentBlock;
+        mCurrentBlock = null;
+        block.mCount = count;
+        block.mLostBefore = lostBefore;
+        block.mPendingDetectors.set(mWorkers.length);
+        for (Worker worker : mWorkers) {
+            worker.mBlocks.offer(block); // never full, a block is queued at most once
+        }
+    }
+
+
+    /** Wait until the detectors have processed all the blocks, then stop the workers. */
+    public void stop() {
+        if (mWorkers == null) {
+            return;
+        }
+
+        for (Worker worker : mWorkers) {
+            worker.mBlocks.offer(mStopBlock);
+        }
+        // the caller may have been interrupted to stop it, which must not cut the wait short
+        Thread.interrupted();
+        for (Worker worker : mWorkers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        log("stopped " + mWorkers.length + " detectors");
+    }
+
+
+    private static void log(String msg) {
+        Log.v(TAG, msg);
+    }
+
+}
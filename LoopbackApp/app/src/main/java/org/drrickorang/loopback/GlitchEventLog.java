@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.drrickorang.loopback;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+
+/**
+ * The common stream of glitch events of the buffer test, filled by all the glitch detectors that
+ * run side by side. Each event has the sample it was found at, the detector that found it and
+ * its magnitude, in the order they were reported.
+ */
+public class GlitchEventLog implements Parcelable {
+    private final int      mSamplingRate;
+    private final long[]   mSampleIndices;
+    private final int[]    mDetectors;
+    private final double[] mMagnitudes;
+    private boolean        mExceededCapacity;
+    private int            mIndex;
+
+    public GlitchEventLog(int samplingRate, int maxEvents) {
+        mSamplingRate = samplingRate;
+        mSampleIndices = new long[maxEvents];
+        mDetectors = new int[maxEvents];
+        mMagnitudes = new double[maxEvents];
+    }
+
+
+    /** Record a glitch found by the given detector, may be called from any thread. */
+    public synchronized void recordEvent(int detector, long sampleIndex, double magnitude) {
+        if (mIndex == mSampleIndices.length) {
+            mExceededCapacity = true;
+            return;
+        }
+        mSampleIndices[mIndex] = sampleIndex;
+        mDetectors[mIndex] = detector;
+        mMagnitudes[mIndex] = magnitude;
+        mIndex++;
+    }
+
+
+    public synchronized int getNumEvents() {
+        return mIndex;
+    }
+
+
+    /** Return the sample the given event was found at, events being numbered in order. */
+    public synchronized long getSampleIndex(int event) {
+        return mSampleIndices[event];
+    }
+
+
+    // True only if the arrays are full and recording more events is attempted.
+    public synchronized boolean isCapacityExceeded() {
+        return mExceededCapacity;
+    }
+
+
+    /** Return the number of events found by the given detector. */
+    public synchronized int getNumEvents(int detector) {
+        int count = 0;
+        for (int i = 0; i < mIndex; i++) {
+            if (mDetectors[i] == detector) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < mIndex; i++) {
+            sb.append(String.format("%.3f", (double) mSampleIndices[i] * Constant.MILLIS_PER_SECOND
+                    / mSamplingRate));
+            sb.append(",");
+            sb.append(mDetectors[i]);
+            sb.append(",");
+            sb.append(String.format("%.3f", mMagnitudes[i]));
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+
+    @Override
+    public synchronized void writeToParcel(Parcel dest, int flags) {
+        Bundle out = new Bundle();
+        out.putInt("mSamplingRate", mSamplingRate);
+        out.putLongArray("mSampleIndices", mSampleIndices);
+        out.putIntArray("mDetectors", mDetectors);
+        out.putDoubleArray("mMagnitudes", mMagnitudes);
+        out.putBoolean("mExceededCapacity", mExceededCapacity);
+        out.putInt("mIndex", mIndex);
+        dest.writeBundle(out);
+    }
+
+
+    private GlitchEventLog(Parcel source) {
+        Bundle in = source.readBundle(getClass().getClassLoader());
+        mSamplingRate = in.getInt("mSamplingRate");
+        mSampleIndices = in.getLongArray("mSampleIndices");
+        mDetectors = in.getIntArray("mDetectors");
+        mMagnitudes = in.getDoubleArray("mMagnitudes");
+        mExceededCapacity = in.getBoolean("mExceededCapacity");
+        mIndex = in.getInt("mIndex");
+    }
+
+
+    public static final Parcelable.Creator<GlitchEventLog> CREATOR
+             = new Parcelable.Creator<GlitchEventLog>() {
+         public GlitchEventLog createFromParcel(Parcel in) {
+             return new GlitchEventLog(in);
+         }
+
+         public GlitchEventLog[] newArray(int size) {
+             return new GlitchEventLog[size];
+         }
+     };
+
+}
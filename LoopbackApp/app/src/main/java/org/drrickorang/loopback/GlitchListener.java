@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.drrickorang.loopback;
+
+
+/**
+ * Receives the glitches found by a glitch detector that works sample by sample.
+ */
+
+public interface GlitchListener {
+
+    /**
+     * Called with the index of the sample where a glitch starts, and how large the glitch is
+     * relative to the sine wave, in a way that depends on the detector.
+     */
+    void onGlitch(long sampleIndex, double magnitude);
+
+}
@@ -35,13 +35,15 @@ public class GlitchesStringBuilder {
         throw new RuntimeException("not reachable");
     }
 
-    public static String getGlitchString(int fftsamplingsize, int FFTOverlapSamples,
+    /**
+     * glitchUnit is the number of samples per unit of glitchesData: the new samples per FFT for
+     * glitches found at an FFT, or 1 for glitches found at a sample.
+     */
+    public static String getGlitchString(int fftsamplingsize, int glitchUnit,
                                          int[] glitchesData, int samplingRate,
                                          boolean glitchingIntervalTooLong, int numberOfGlitches) {
-        int newSamplesPerFFT = fftsamplingsize - FFTOverlapSamples;
-
-        // the time span of new samples for a single FFT in ms
-        double newSamplesInMs = ((double) newSamplesPerFFT / samplingRate) *
+        // the time span of a unit of glitchesData in ms
+        double newSamplesInMs = ((double) glitchUnit / samplingRate) *
                                 Constant.MILLIS_PER_SECOND;
         log("newSamplesInMs: " + Double.toString(newSamplesInMs));
 
@@ -60,19 +62,23 @@ public class GlitchesStringBuilder {
             int timeInMs; // starting time of glitches
             //append the time of glitches to "listOfGlitches"
             timeInMs = (int) (glitchesData[i] * newSamplesInMs); // round down
-            listOfGlitches.append(timeInMs + "~" + (timeInMs + (int) allSamplesInMs) + "ms\n");
+            if (glitchUnit > 1) {
+                // the glitch was found in the samples of an FFT
+                listOfGlitches.append(timeInMs + "~" + (timeInMs + (int) allSamplesInMs) + "ms\n");
+            } else {
+                // the glitch was found at a single sample
+                listOfGlitches.append(timeInMs + "ms\n");
+            }
         }
 
         return listOfGlitches.toString();
     }
 
-    /** Generate String of Glitch Times in ms return separated. */
-    public static String getGlitchStringForFile(int fftSamplingSize, int FFTOverlapSamples,
-                                                int[] glitchesData, int samplingRate) {
-        int newSamplesPerFFT = fftSamplingSize - FFTOverlapSamples;
-
-        // the time span of new samples for a single FFT in ms
-        double newSamplesInMs = ((double) newSamplesPerFFT / samplingRate) *
+    /** Generate String of Glitch Times in ms return separated, glitchUnit as above. */
+    public static String getGlitchStringForFile(int glitchUnit, int[] glitchesData,
+                                                int samplingRate) {
+        // the time span of a unit of glitchesData in ms
+        double newSamplesInMs = ((double) glitchUnit / samplingRate) *
                 Constant.MILLIS_PER_SECOND;
 
         StringBuilder listOfGlitches = new StringBuilder();
@@ -87,14 +93,24 @@ public class GlitchesStringBuilder {
         return listOfGlitches.toString();
     }
 
-    /** Generate array of Glitch Times in ms */
-    public static int[] getGlitchMilliseconds(int fftSamplingSize, int FFTOverlapSamples,
-                                                int[] glitchesData, int samplingRate) {
+    /** Generate String of glitch magnitudes return separated, in the same order as the times. */
+    public static String getGlitchMagnitudeStringForFile(double[] glitchMagnitudes) {
+        StringBuilder listOfMagnitudes = new StringBuilder();
+
+        for (int i = 0; i < glitchMagnitudes.length; i++) {
+            listOfMagnitudes.append(String.format("%.3f", glitchMagnitudes[i]) + "\n");
+        }
+
+        return listOfMagnitudes.toString();
+    }
+
+    /** Generate array of Glitch Times in ms, glitchUnit as above */
+    public static int[] getGlitchMilliseconds(int glitchUnit, int[] glitchesData,
+                                              int samplingRate) {
         int[] glitchMilliseconds = new int[glitchesData.length];
-        int newSamplesPerFFT = fftSamplingSize - FFTOverlapSamples;
 
-        // the time span of new samples for a single FFT in ms
-        double newSamplesInMs = ((double) newSamplesPerFFT / samplingRate) *
+        // the time span of a unit of glitchesData in ms
+        double newSamplesInMs = ((double) glitchUnit / samplingRate) *
                 Constant.MILLIS_PER_SECOND;
 
         for (int i = 0; i < glitchesData.length; i++) {
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.drrickorang.loopback;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+
+/**
+ * A histogram of durations in microseconds with a fixed number of log-linear buckets, like an
+ * HdrHistogram. Durations below SUB_BUCKET_COUNT microseconds each have their own bucket, and
+ * every power of 2 above that is split into SUB_BUCKET_COUNT / 2 buckets, so a duration is known
+ * to within 1 / 512 of its value, e.g. 4 us at 2.67 ms. Durations from NUM_BUCKETS on, about 33
+ * seconds, all go to the last bucket, but the largest one is kept exactly.
+ * record() doesn't allocate, so it can be called from an audio thread.
+ */
+
+public class HdrHistogram implements Parcelable {
+    // Must match the constants in cpp/histogram.h
+    private static final int SUB_BUCKET_BITS = 10;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT / 2;
+    public static final int  NUM_BUCKETS = 17 * SUB_BUCKET_HALF_COUNT;
+
+    // the percentiles in the report
+    public static final double[] REPORTED_PERCENTILES = {50, 90, 99, 99.9};
+
+    private final int[] mCounts;
+    private long mTotalCount;
+    private long mMaxValue;
+
+
+    public HdrHistogram() {
+        mCounts = new int[NUM_BUCKETS];
+    }
+
+
+    /** Create a histogram as recorded by the native code, called through JNI. */
+    public HdrHistogram(int[] counts, long totalCount, long maxValue) {
+        mCounts = Arrays.copyOf(counts, NUM_BUCKETS);
+        mTotalCount = totalCount;
+        mMaxValue = maxValue;
+    }
+
+
+    /** Record a duration in microseconds. Negative durations are ignored. */
+    public void record(long value) {
+        if (value < 0) {
+            return;
+        }
+        mCounts[bucketIndex(value)]++;
+        mTotalCount++;
+        if (value > mMaxValue) {
+            mMaxValue = value;
+        }
+    }
+
+
+    /** Add the counts of other to this histogram. */
+    public void add(HdrHistogram other) {
+        for (int index = 0; index < NUM_BUCKETS; index++) {
+            mCounts[index] += other.mCounts[index];
+        }
+        mTotalCount += other.mTotalCount;
+        mMaxValue = Math.max(mMaxValue, other.mMaxValue);
+    }
+
+
+    public void reset() {
+        Arrays.fill(mCounts, 0);
+        mTotalCount = 0;
+        mMaxValue = 0;
+    }
+
+
+    /** Set the counts, total and maximum as read from native, without allocating. */
+    void set(int[] counts, long totalCount, long maxValue) {
+        System.arraycopy(counts, 0, mCounts, 0, NUM_BUCKETS);
+        mTotalCount = totalCount;
+        mMaxValue = maxValue;
+    }
+
+
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        // shift the value so that it has SUB_BUCKET_BITS bits left, the top one being set
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int index = shift * SUB_BUCKET_HALF_COUNT + (int) (value >> shift);
+        return Math.min(index, NUM_BUCKETS - 1);
+    }
+
+
+    private static long lowestEquivalentValue(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_HALF_COUNT - 1;
+        return (long) (index - shift * SUB_BUCKET_HALF_COUNT) << shift;
+    }
+
+
+    private static long highestEquivalentValue(int index) {
+        if (index == NUM_BUCKETS - 1) {
+            return Long.MAX_VALUE;
+        }
+        return lowestEquivalentValue(index + 1) - 1;
+    }
+
+
+    /**
+     * Return the duration in microseconds that percentile percent of the durations don't exceed,
+     * to within the width of its bucket, or 0 if nothing was recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long countAtPercentile = Math.max(1, (long) Math.ceil(percentile / 100 * mTotalCount));
+        long count = 0;
+        int index = 0;
+        for (; index < NUM_BUCKETS - 1; index++) {
+            count += mCounts[index];
+            if (count >= countAtPercentile) {
+                break;
+            }
+        }
+        // the last bucket has no upper bound, but holds the maximum
+        return Math.min(highestEquivalentValue(index), mMaxValue);
+    }
+
+
+    public long getMaxValue() {
+        return mMaxValue;
+    }
+
+
+    public long getTotalCount() {
+        return mTotalCount;
+    }
+
+
+    /** Return the REPORTED_PERCENTILES and the maximum in milliseconds, for the report. */
+    public String getPercentilesString() {
+        StringBuilder sb = new StringBuilder();
+        for (double percentile : REPORTED_PERCENTILES) {
+            sb.append(String.format(Locale.US, "p%s %.3f, ", formatPercentile(percentile),
+                    (double) getValueAtPercentile(percentile) / Constant.MICROS_PER_MILLI));
+        }
+        sb.append(String.format(Locale.US, "max %.3f",
+                (double) mMaxValue / Constant.MICROS_PER_MILLI));
+        return sb.toString();
+    }
+
+
+    /** Return 50 for 50.0 and 99.9 for 99.9. */
+    private static String formatPercentile(double percentile) {
+        if (percentile == Math.rint(percentile)) {
+            return Integer.toString((int) percentile);
+        }
+        return Double.toString(percentile);
+    }
+
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        Bundle out = new Bundle();
+        out.putIntArray("mCounts", mCounts);
+        out.putLong("mTotalCount", mTotalCount);
+        out.putLong("mMaxValue", mMaxValue);
+        dest.writeBundle(out);
+    }
+
+    private HdrHistogram(Parcel source) {
+        Bundle in = source.readBundle(getClass().getClassLoader());
+        mCounts = in.getIntArray("mCounts");
+        mTotalCount = in.getLong("mTotalCount");
+        mMaxValue = in.getLong("mMaxValue");
+    }
+
+    public static final Parcelable.Creator<HdrHistogram> CREATOR
+             = new Parcelable.Creator<HdrHistogram>() {
+         public HdrHistogram createFromParcel(Parcel in) {
+             return new HdrHistogram(in);
+         }
+
+         public HdrHistogram[] newArray(int size) {
+             return new HdrHistogram[size];
+         }
+     };
+
+}
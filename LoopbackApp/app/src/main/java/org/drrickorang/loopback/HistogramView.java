@@ -42,6 +42,7 @@ public class HistogramView extends View {
     private int[] mData; // data for buffer period
     private int[] mDisplayData; // modified data that is used to draw histogram
     private int mMaxBufferPeriod = 0;
+    private HdrHistogram mHistogram; // same buffer periods in microseconds, for the percentiles
     // number of x-axis labels excluding the last x-axis label
     private int mNumberOfXLabel = 5;  // mNumberOfXLabel must > 0
 
@@ -316,6 +317,13 @@ public class HistogramView extends View {
                 currentLeft = currentRight + beamInterval;
             }
 
+            // the percentiles, at the top right where the beams are usually low
+            if (mHistogram != null && mHistogram.getTotalCount() > 0) {
+                String percentiles = mHistogram.getPercentilesString() + " ms";
+                canvas.drawText(percentiles,
+                        right - getTextWidth(percentiles, mXLabelPaint) - 1,
+                        mXLabelSize, mXLabelPaint);
+            }
         }
     }
 
@@ -348,6 +356,11 @@ public class HistogramView extends View {
     }
 
 
+    public void setHistogram(HdrHistogram histogram) {
+        mHistogram = histogram;
+    }
+
+
     private static void log(String msg) {
         Log.v(TAG, msg);
     }
@@ -0,0 +1,540 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.drrickorang.loopback;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+
+
+/**
+ * The spectrum of the lateness of the callbacks of a stream, which shows interference that
+ * repeats, such as a housekeeping task every 10 s, where the histogram of the buffer periods
+ * only shows that some callbacks were late.
+ *
+ * The callbacks are resampled onto a grid of one expected buffer period: each cell holds how late
+ * the callbacks that ended in it were. Early callbacks are counted as on time, as the early
+ * callback that catches up after a late one would otherwise cancel it at low frequencies. The
+ * grid is streamed through Welch's method: the power spectra of overlapping Hann windowed
+ * segments are averaged, so the memory doesn't grow with the number of callbacks. As the
+ * callbacks sample the interference once per buffer period, a period shorter than two buffer
+ * periods shows as an alias.
+ *
+ * Late callbacks which repeat are an impulse train, with all the harmonics of its frequency, so
+ * each peak is traced as a comb of harmonics from its fundamental, and reported with the energy
+ * of all of them. The strongest line not yet in a comb is looked at until none is left above the
+ * floor, the median of the bins not in a comb. A line at a harmonic of a comb found before, or a
+ * few bins from one, is leakage or a line the tracing missed, unless it's much stronger. A period
+ * which isn't a whole number of cells, 187.5 say, repeats every few periods, which adds a comb
+ * at a fraction of the frequency whose first lines are weak: it's reported as the period.
+ */
+
+public class JitterSpectrum {
+    private static final int    MIN_FFT_SIZE = 64;
+    private static final int    MAX_FFT_SIZE = 65536;
+    private static final int    SEGMENT_SECONDS = 120; // at most, periods up to half are found
+    private static final int    FIRST_BIN = 2; // the bins below hold the mean, through the window
+    private static final int    MAIN_LOBE_BINS = 2; // on each side of a line, for a Hann window
+    private static final int    MERGE_BINS = 4; // from a line, where its leakage may be a line
+    // of a fundamental from a multiple of another, for it to be a harmonic of that other
+    private static final double FUNDAMENTAL_TOLERANCE = 0.25;
+    private static final int    MAX_ALIAS_ORDER = 4; // periods after which the cells repeat
+    // of that many periods from a whole number of cells
+    private static final double ALIAS_TOLERANCE_CELLS = 0.05;
+    // of the power of a peak to the median, which varies less the more segments are averaged
+    private static final double PEAK_TO_FLOOR = 8;
+    private static final double MIN_PEAK_TO_FLOOR = 2;
+    private static final double HARMONIC_RATIO = 8; // of a harmonic to a lower one of the peak
+    private static final int    CHECKED_HARMONICS = 8; // to tell a fundamental from chance
+    private static final int    MAX_PEAKS = 3;
+    private static final int    MAX_CANDIDATES = 16; // peaks looked at
+    private static final double MIN_ENERGY_FRACTION = 0.01; // of a reported peak
+
+    private final long     mGridUs;
+    private final int      mFFTSize;
+    private final FFT      mFFT;
+    private final double[] mWindow;
+    private final double[] mRing;           // the last mFFTSize cells of the grid
+    private final double[] mPower;          // summed over the segments
+    private final double[] mSegmentPower;
+    private int            mNumSegments;
+    private long           mNumCells;       // pushed to mRing
+    private double         mLatenessUs;     // of the cell being filled, number mNumCells
+    private long           mNumCallbacks;
+    private List<Peak>     mPeaks;
+
+
+    /** An interference found in the spectrum. */
+    public static class Peak {
+        public final double periodMs;
+        public final double energyFraction; // of the lateness energy, harmonics included
+
+        Peak(double periodMs, double energyFraction) {
+            this.periodMs = periodMs;
+            this.energyFraction = energyFraction;
+        }
+    }
+
+
+    /**
+     * Create a spectrum of callbacks resampled every gridUs, in segments of fftSize cells, which
+     * must be a power of 2.
+     */
+    public JitterSpectrum(long gridUs, int fftSize) {
+        mGridUs = gridUs;
+        mFFTSize = fftSize;
+        mFFT = new FFT(fftSize);
+        mWindow = new double[fftSize];
+        for (int i = 0; i < fftSize; i++) {
+            mWindow[i] = 0.5 - 0.5 * Math.cos(2 * Math.PI * i / fftSize);
+        }
+        mRing = new double[fftSize];
+        mPower = new double[fftSize / 2];
+        mSegmentPower = new double[fftSize / 2];
+    }
+
+
+    /**
+     * Return the size of the segments for a test of durationUs resampled every gridUs, or 0 if
+     * the test is too short for a spectrum.
+     */
+    public static int getFFTSize(long durationUs, long gridUs) {
+        if (gridUs <= 0) {
+            return 0;
+        }
+        long cells = Math.min(durationUs, (long) SEGMENT_SECONDS * Constant.MICROS_PER_SECOND)
+                / gridUs;
+        if (cells < MIN_FFT_SIZE) {
+            return 0;
+        }
+        return (int) Long.highestOneBit(Math.min(cells, MAX_FFT_SIZE));
+    }
+
+
+    /**
+     * Return the spectrum of the callbacks of timeline from callback firstCallback on, or null if
+     * there are too few. The timeline must be complete.
+     */
+    public static JitterSpectrum analyze(CallbackTimeline timeline, int firstCallback) {
+        long periodUs = timeline.getExpectedPeriodUs();
+        int fftSize = getFFTSize(timeline.getLastTimeUs(), periodUs);
+        if (fftSize == 0) {
+            return null;
+        }
+        JitterSpectrum spectrum = new JitterSpectrum(periodUs, fftSize);
+        for (CallbackTimeline.Callback callback : timeline.from(firstCallback)) {
+            spectrum.add(callback.timeUs, callback.durationUs - periodUs);
+        }
+        spectrum.finish(timeline.getLastTimeUs());
+        return spectrum;
+    }
+
+
+    /**
+     * Return the spectrum of the late and early callbacks of a test of durationUs, or null if it
+     * is too short. The callbacks which were not recorded count as on time.
+     */
+    public static JitterSpectrum analyze(BufferCallbackTimes callbackTimes, long durationUs) {
+        int expectedMs = callbackTimes.getExpectedBufferPeriod();
+        long periodUs = (long) expectedMs * Constant.MICROS_PER_MILLI;
+        int fftSize = getFFTSize(durationUs, periodUs);
+        if (fftSize == 0) {
+            return null;
+        }
+        JitterSpectrum spectrum = new JitterSpectrum(periodUs, fftSize);
+        for (BufferCallbackTimes.BufferCallback callback : callbackTimes) {
+            spectrum.add((long) callback.timeStamp * Constant.MICROS_PER_MILLI,
+                    (long) (callback.callbackDuration - expectedMs) * Constant.MICROS_PER_MILLI);
+        }
+        spectrum.finish(durationUs);
+        return spectrum;
+    }
+
+
+    /**
+     * Add a callback which ended at timeUs since the start of the test, latenessUs after the
+     * expected buffer period. Callbacks must be added in order.
+     */
+    public void add(long timeUs, long latenessUs) {
+        long cell = timeUs / mGridUs;
+        while (mNumCells < cell) {
+            push(mLatenessUs);
+            mLatenessUs = 0;
+        }
+        if (latenessUs > 0) {
+            mLatenessUs += latenessUs;
+        }
+        mNumCallbacks++;
+    }
+
+
+    /** Add the cells up to the end of the test at endUs, and find the peaks. */
+    public void finish(long endUs) {
+        long cells = Math.max(endUs / mGridUs, mNumCells + 1);
+        while (mNumCells < cells) {
+            push(mLatenessUs);
+            mLatenessUs = 0;
+        }
+        mPeaks = findPeaks();
+    }
+
+
+    /** Add a cell, and the spectrum of the last segment each half segment. */
+    private void push(double latenessUs) {
+        int mask = mFFTSize - 1;
+        mRing[(int) (mNumCells & mask)] = latenessUs;
+        mNumCells++;
+        if (mNumCells >= mFFTSize && (mNumCells - mFFTSize) % (mFFTSize / 2) == 0) {
+            // the oldest cell of the segment is the next one to be overwritten
+            mFFT.powerSpectrum(mRing, (int) (mNumCells & mask), mWindow, mSegmentPower);
+            for (int k = 0; k < mPower.length; k++) {
+                mPower[k] += mSegmentPower[k];
+            }
+            mNumSegments++;
+        }
+    }
+
+
+    private List<Peak> findPeaks() {
+        List<Peak> peaks = new ArrayList<Peak>();
+        int half = mFFTSize / 2;
+        double total = 0;
+        for (int k = FIRST_BIN; k < half; k++) {
+            total += mPower[k];
+        }
+        if (mNumSegments == 0 || total == 0) {
+            return peaks;
+        }
+
+        List<Comb> combs = new ArrayList<Comb>();
+        boolean[] assigned = new boolean[half]; // to a comb, in the main lobe of one of its lines
+        for (int candidate = 0; candidate < MAX_CANDIDATES; candidate++) {
+            // the floor of the bins left, so that strong combs don't raise it
+            double threshold = getFloor(assigned)
+                    * Math.max(PEAK_TO_FLOOR / Math.sqrt(mNumSegments), MIN_PEAK_TO_FLOOR);
+            int peak = -1;
+            for (int k = FIRST_BIN; k < half - 1; k++) {
+                if (!assigned[k] && isLine(k, threshold)
+                        && (peak < 0 || mPower[k] > mPower[peak])) {
+                    peak = k;
+                }
+            }
+            if (peak < 0) {
+                break;
+            }
+
+            // the lowest harmonic of the peak whose first harmonics are all lines, which may be
+            // shared with an interference found before
+            double bin = interpolate(peak);
+            double fundamental = bin;
+            double harmonicThreshold = Math.max(threshold, mPower[peak] / HARMONIC_RATIO);
+            for (int harmonic = (int) (bin / FIRST_BIN); harmonic >= 2; harmonic--) {
+                if (isComb(bin / harmonic, harmonic, harmonicThreshold)) {
+                    fundamental = bin / harmonic;
+                    break;
+                }
+            }
+            Comb comb = traceComb(fundamental, threshold, assigned);
+            assigned[peak] = true; // even if the tracing missed it
+
+            // A repeat of a comb found before, at one of its harmonics or a line a few bins off,
+            // is the leakage of its lines or lines its tracing missed, unless its lines are much
+            // stronger: then it's another interference, at a multiple of the frequency. So is an
+            // alias of a comb found before, whose first lines are much weaker than those it shares.
+            Comb parent = null;
+            for (Comb found : combs) {
+                boolean isRepeat = comb.isMultipleOf(found.fundamental)
+                        || (comb.numLines <= 1 && found.isNearHarmonic(peak));
+                boolean isAlias = found.aliasOrder > 1
+                        && comb.isMultipleOf(found.getLineSpacing())
+                        && getPowerOffHarmonics(comb, found) * HARMONIC_RATIO < found.linePower;
+                if ((isRepeat && comb.linePower < HARMONIC_RATIO * found.linePower) || isAlias) {
+                    parent = found;
+                    break;
+                }
+            }
+            if (parent != null) {
+                parent.energy += comb.energy;
+                continue;
+            }
+            // and the combs found before at its harmonics were harmonics of this one, unless the
+            // lines it doesn't share with them are much weaker: then it's another interference
+            for (Iterator<Comb> it = combs.iterator(); it.hasNext(); ) {
+                Comb found = it.next();
+                if (found.isMultipleOf(comb.fundamental)
+                        && found.linePower < HARMONIC_RATIO * getPowerOffHarmonics(comb, found)) {
+                    comb.energy += found.energy;
+                    it.remove();
+                }
+            }
+            combs.add(comb);
+        }
+
+        for (Comb comb : combs) {
+            if (comb.energy / total >= MIN_ENERGY_FRACTION) {
+                double periodMs = (double) mFFTSize * mGridUs / comb.fundamental
+                        / Constant.MICROS_PER_MILLI;
+                peaks.add(new Peak(periodMs, comb.energy / total));
+            }
+        }
+        Collections.sort(peaks, new Comparator<Peak>() {
+            @Override
+            public int compare(Peak a, Peak b) {
+                return Double.compare(b.energyFraction, a.energyFraction);
+            }
+        });
+        return peaks.subList(0, Math.min(peaks.size(), MAX_PEAKS));
+    }
+
+
+    /** The harmonics of an interference, while the peaks are being found. */
+    private static class Comb {
+        double fundamental; // in bins, fitted to the harmonics found
+        double linePower;   // the median of the lines of its harmonics
+        double energy;      // of its harmonics, over the main lobe of the window
+        int[]  lines;       // the bins of the lines of its harmonics
+        int    numLines;
+        int    aliasOrder;  // the number of its periods after which its cells repeat
+
+        /** Return the spacing of the lines that the comb may show, its aliases included. */
+        double getLineSpacing() {
+            return fundamental / aliasOrder;
+        }
+
+        /** Return true if the fundamental of this comb is a harmonic of frequency, in bins. */
+        boolean isMultipleOf(double frequency) {
+            double multiple = Math.max(Math.round(fundamental / frequency), 1);
+            return Math.abs(fundamental - multiple * frequency) <= FUNDAMENTAL_TOLERANCE;
+        }
+
+        /** Return true if bin is within MERGE_BINS of one of the harmonics or their aliases. */
+        boolean isNearHarmonic(int bin) {
+            double harmonic = Math.max(Math.round(bin / getLineSpacing()), 1);
+            return Math.abs(bin - harmonic * getLineSpacing()) <= MERGE_BINS;
+        }
+    }
+
+
+    /**
+     * Follow the harmonics of fundamental up to the Nyquist frequency, each a line near where
+     * the ones before predict it, fit the fundamental to them, and assign their main lobes, whose
+     * energy above threshold the comb takes unless another comb took it first.
+     */
+    private Comb traceComb(double fundamental, double threshold, boolean[] assigned) {
+        int half = mPower.length;
+        Comb comb = new Comb();
+        comb.fundamental = fundamental;
+        comb.lines = new int[(int) (half / fundamental) + 1];
+        double[] linePowers = new double[comb.lines.length];
+        double sumHarmonicBins = 0;
+        double sumHarmonicsSquared = 0;
+        for (int harmonic = 1; harmonic * comb.fundamental < half - 1; harmonic++) {
+            int line = findLine((int) Math.round(harmonic * comb.fundamental), threshold);
+            if (line < 0) {
+                continue;
+            }
+            if (comb.numLines == comb.lines.length) { // the fit lowered the fundamental
+                comb.lines = Arrays.copyOf(comb.lines, 2 * comb.numLines);
+                linePowers = Arrays.copyOf(linePowers, 2 * comb.numLines);
+            }
+            comb.lines[comb.numLines] = line;
+            linePowers[comb.numLines++] = mPower[line];
+            sumHarmonicBins += harmonic * interpolate(line);
+            sumHarmonicsSquared += (double) harmonic * harmonic;
+            comb.fundamental = sumHarmonicBins / sumHarmonicsSquared;
+
+            for (int k = Math.max(line - MAIN_LOBE_BINS, FIRST_BIN);
+                    k <= Math.min(line + MAIN_LOBE_BINS, half - 1); k++) {
+                if (!assigned[k] && mPower[k] > threshold) {
+                    comb.energy += mPower[k];
+                }
+                assigned[k] = true;
+            }
+        }
+        if (comb.numLines > 0) {
+            Arrays.sort(linePowers, 0, comb.numLines);
+            comb.linePower = linePowers[comb.numLines / 2];
+        }
+        comb.aliasOrder = getAliasOrder(comb.fundamental);
+        return comb;
+    }
+
+
+    /**
+     * Return the number of periods of an interference of fundamental, in bins, after which the
+     * cells it makes late repeat. A period of 187.5 cells makes the cells 187 then 188 apart,
+     * a pattern which repeats every 2 periods and shows as a comb at half the frequency, whose
+     * lines are strong near the Nyquist frequency. It's 1 if the period is a whole number of
+     * cells, or too far from a simple fraction to matter.
+     */
+    private int getAliasOrder(double fundamental) {
+        double cells = mFFTSize / fundamental;
+        for (int order = 1; order <= MAX_ALIAS_ORDER; order++) {
+            double repeat = order * cells;
+            if (Math.abs(repeat - Math.round(repeat)) <= ALIAS_TOLERANCE_CELLS) {
+                return order;
+            }
+        }
+        return 1;
+    }
+
+
+    /**
+     * Return the median power of the lines of comb below the first CHECKED_HARMONICS of other
+     * which aren't near one of them, or 0 if it has none. Aliases, strong near the Nyquist
+     * frequency, are weak there.
+     */
+    private double getPowerOffHarmonics(Comb comb, Comb other) {
+        double[] powers = new double[comb.numLines];
+        int count = 0;
+        for (int i = 0; i < comb.numLines; i++) {
+            int line = comb.lines[i];
+            if (line > CHECKED_HARMONICS * other.fundamental) {
+                break;
+            }
+            double harmonic = Math.max(Math.round(line / other.fundamental), 1);
+            if (Math.abs(line - harmonic * other.fundamental) > MERGE_BINS) {
+                powers[count++] = mPower[line];
+            }
+        }
+        if (count == 0) {
+            return 0;
+        }
+        Arrays.sort(powers, 0, count);
+        return powers[count / 2];
+    }
+
+
+    /** Return the median power of the bins not assigned to a comb. */
+    private double getFloor(boolean[] assigned) {
+        double[] floor = new double[mPower.length];
+        int count = 0;
+        for (int k = FIRST_BIN; k < mPower.length; k++) {
+            if (!assigned[k]) {
+                floor[count++] = mPower[k];
+            }
+        }
+        if (count == 0) {
+            return Double.MAX_VALUE;
+        }
+        Arrays.sort(floor, 0, count);
+        return floor[count / 2];
+    }
+
+
+    /** Return the bin of the line, between bins, from a parabola through the 3 bins of line. */
+    private double interpolate(int line) {
+        double before = mPower[line - 1];
+        double after = mPower[line + 1];
+        double curvature = before - 2 * mPower[line] + after;
+        return line + ((curvature == 0) ? 0 : (before - after) / (2 * curvature));
+    }
+
+
+    /** Return the strongest line within a bin of center, or -1 if there's none. */
+    private int findLine(int center, double threshold) {
+        int line = -1;
+        for (int k = center - 1; k <= center + 1; k++) {
+            if (isLine(k, threshold) && (line < 0 || mPower[k] > mPower[line])) {
+                line = k;
+            }
+        }
+        return line;
+    }
+
+
+    /** Return true if bin k is a local maximum above threshold. */
+    private boolean isLine(int k, double threshold) {
+        return k >= FIRST_BIN && k < mPower.length - 1 && mPower[k] > threshold
+                && mPower[k] >= mPower[k - 1] && mPower[k] >= mPower[k + 1];
+    }
+
+
+    /**
+     * Return true if the first harmonics of frequency, in bins, are lines, and those next to its
+     * harmonic number peak, as a high harmonic can be divided into almost any frequency.
+     */
+    private boolean isComb(double frequency, int peak, double threshold) {
+        for (int harmonic = 1; harmonic <= Math.min(peak, CHECKED_HARMONICS); harmonic++) {
+            if (findLine((int) Math.round(harmonic * frequency), threshold) < 0) {
+                return false;
+            }
+        }
+        int next = (int) Math.round((peak + 1) * frequency);
+        return findLine((int) Math.round((peak - 1) * frequency), threshold) >= 0
+                && (next >= mPower.length - 2 || findLine(next, threshold) >= 0);
+    }
+
+
+    /** Return the interferences found, by decreasing energy, once finished. */
+    public List<Peak> getPeaks() {
+        return mPeaks;
+    }
+
+
+    public long getNumCallbacks() {
+        return mNumCallbacks;
+    }
+
+
+    public int getNumSegments() {
+        return mNumSegments;
+    }
+
+
+    /** Return the peaks for the report, as "period ms (percent of the energy)". */
+    public String getPeaksString() {
+        if (mPeaks == null || mPeaks.isEmpty()) {
+            return "none";
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Peak peak : mPeaks) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(String.format(Locale.US, "%.1f (%.1f%%)", peak.periodMs,
+                    peak.energyFraction * 100));
+        }
+        return sb.toString();
+    }
+
+
+    /**
+     * Return a line of comma separated values per frequency, for a text file. The power is the
+     * mean square lateness in each bin, averaged over the segments.
+     */
+    public String getSpectrumString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("frequency (Hz),period (ms),power (us^2)\n");
+        double windowEnergy = 0;
+        for (double w : mWindow) {
+            windowEnergy += w * w;
+        }
+        double scale = (mNumSegments > 0) ? 1 / (mNumSegments * windowEnergy) : 0;
+        double binHz = (double) Constant.MICROS_PER_SECOND / (mFFTSize * mGridUs);
+        for (int k = 1; k < mPower.length; k++) {
+            sb.append(String.format(Locale.US, "%.5f,%.3f,%.5g\n", k * binHz,
+                    (double) Constant.MILLIS_PER_SECOND / (k * binHz), mPower[k] * scale));
+        }
+        return sb.toString();
+    }
+
+}
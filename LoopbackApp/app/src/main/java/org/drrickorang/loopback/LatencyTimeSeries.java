@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.drrickorang.loopback;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+
+/**
+ * Maintains the round trip latency measurements of the latency monitor test, each one with the
+ * time it was made at (in milliseconds since beginning of test) and its confidence.
+ */
+public class LatencyTimeSeries implements Parcelable {
+    private final int[]    mTimeStamps;
+    private final double[] mLatenciesMs;
+    private final double[] mConfidences;
+    private boolean        mExceededCapacity;
+    private int            mIndex;
+
+    public LatencyTimeSeries(int maxRecords) {
+        mTimeStamps = new int[maxRecords];
+        mLatenciesMs = new double[maxRecords];
+        mConfidences = new double[maxRecords];
+    }
+
+
+    /** Record a latency measurement and the time it was made at. */
+    public void recordLatency(int timeStamp, double latencyMs, double confidence) {
+        if (mIndex == mTimeStamps.length) {
+            mExceededCapacity = true;
+            return;
+        }
+        mTimeStamps[mIndex] = timeStamp;
+        mLatenciesMs[mIndex] = latencyMs;
+        mConfidences[mIndex] = confidence;
+        mIndex++;
+    }
+
+
+    public int getNumMeasurements() {
+        return mIndex;
+    }
+
+
+    public int getTimeStamp(int index) {
+        return mTimeStamps[index];
+    }
+
+
+    public double getLatencyMs(int index) {
+        return mLatenciesMs[index];
+    }
+
+
+    public double getConfidence(int index) {
+        return mConfidences[index];
+    }
+
+
+    // True only if the arrays are full and recording more measurements is attempted.
+    public boolean isCapacityExceeded() {
+        return mExceededCapacity;
+    }
+
+
+    public double getMinLatencyMs() {
+        double min = Double.MAX_VALUE;
+        for (int i = 0; i < mIndex; i++) {
+            min = Math.min(min, mLatenciesMs[i]);
+        }
+        return mIndex > 0 ? min : 0;
+    }
+
+
+    public double getMaxLatencyMs() {
+        double max = 0;
+        for (int i = 0; i < mIndex; i++) {
+            max = Math.max(max, mLatenciesMs[i]);
+        }
+        return max;
+    }
+
+
+    public double getMeanLatencyMs() {
+        double sum = 0;
+        for (int i = 0; i < mIndex; i++) {
+            sum += mLatenciesMs[i];
+        }
+        return mIndex > 0 ? sum / mIndex : 0;
+    }
+
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < mIndex; i++) {
+            sb.append(mTimeStamps[i]);
+            sb.append(",");
+            sb.append(String.format("%.2f", mLatenciesMs[i]));
+            sb.append(",");
+            sb.append(String.format("%.2f", mConfidences[i]));
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        Bundle out = new Bundle();
+        out.putIntArray("mTimeStamps", mTimeStamps);
+        out.putDoubleArray("mLatenciesMs", mLatenciesMs);
+        out.putDoubleArray("mConfidences", mConfidences);
+        out.putBoolean("mExceededCapacity", mExceededCapacity);
+        out.putInt("mIndex", mIndex);
+        dest.writeBundle(out);
+    }
+
+
+    private LatencyTimeSeries(Parcel source) {
+        Bundle in = source.readBundle(getClass().getClassLoader());
+        mTimeStamps = in.getIntArray("mTimeStamps");
+        mLatenciesMs = in.getDoubleArray("mLatenciesMs");
+        mConfidences = in.getDoubleArray("mConfidences");
+        mExceededCapacity = in.getBoolean("mExceededCapacity");
+        mIndex = in.getInt("mIndex");
+    }
+
+
+    public static final Parcelable.Creator<LatencyTimeSeries> CREATOR
+             = new Parcelable.Creator<LatencyTimeSeries>() {
+         public LatencyTimeSeries createFromParcel(Parcel in) {
+             return new LatencyTimeSeries(in);
+         }
+
+         public LatencyTimeSeries[] newArray(int size) {
+             return new LatencyTimeSeries[size];
+         }
+     };
+
+}
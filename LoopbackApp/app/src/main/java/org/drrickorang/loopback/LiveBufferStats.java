@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.drrickorang.loopback;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+
+/**
+ * The buffer period stats of a native test, read while the test runs from the memory that the
+ * native callbacks update, a direct ByteBuffer over the sharedStats struct of cpp/loopback.h.
+ * A read doesn't go through JNI, and the callbacks never wait for a reader: a callback makes the
+ * sequence of the stats odd while it updates them, and a read which saw an odd or a changed
+ * sequence is retried. The memory stays valid after the test, with the final stats.
+ *
+ * The memory also holds a ring of the times of the latest callbacks of each stream, which
+ * drainCallbacks() appends to a CallbackTimeline, see cpp/callback_ring.h.
+ *
+ * A LiveBufferStats must only be read from one thread, and only drained from one thread, which
+ * may be another one.
+ */
+
+public class LiveBufferStats {
+    public static final int RECORDER = 0;
+    public static final int PLAYER = 1;
+
+    // Offsets in a sharedBufferStats, must match cpp/loopback.h
+    private static final int SEQUENCE = 0;
+    private static final int EXPECTED_BUFFER_PERIOD = 4;
+    private static final int MEASUREMENT_COUNT = 8;
+    private static final int MAX_BUFFER_PERIOD = 12;
+    private static final int LATE_CALLBACK_COUNT = 16;
+    private static final int XRUN_COUNT = 20;
+    private static final int HISTOGRAM_COUNTS = 24;
+    private static final int HISTOGRAM_TOTAL_COUNT =
+            HISTOGRAM_COUNTS + HdrHistogram.NUM_BUCKETS * Constant.BYTES_PER_INT;
+    private static final int HISTOGRAM_MAX_VALUE = HISTOGRAM_TOTAL_COUNT + Constant.BYTES_PER_LONG;
+    private static final int CALLBACK_COUNT = HISTOGRAM_MAX_VALUE + Constant.BYTES_PER_LONG;
+    private static final int CALLBACK_TIMES = CALLBACK_COUNT + 2 * Constant.BYTES_PER_LONG;
+    private static final int CALLBACK_RING_SIZE = 4096; // must match cpp/callback_ring.h
+    private static final int STREAM_SIZE =
+            CALLBACK_TIMES + CALLBACK_RING_SIZE * Constant.BYTES_PER_LONG;
+
+    // a callback updates the stats in a few microseconds, so a read rarely needs a second try
+    private static final int MAX_READ_TRIES = 4;
+
+    private final ByteBuffer  mBuffer;
+    private final IntBuffer[] mCounts = new IntBuffer[2]; // the histogram counts of each stream
+    private final int[]       mReadCounts = new int[HdrHistogram.NUM_BUCKETS];
+    private volatile int      mFence;
+
+    private final int[]       mDrainedCallbacks = new int[2]; // of each stream
+    private final long[]      mDrainedTimes = new long[CALLBACK_RING_SIZE];
+    private volatile int      mDrainFence;
+
+
+    /** The stats of a stream, as of the last successful read. */
+    public static class Snapshot {
+        private final HdrHistogram mHistogram = new HdrHistogram();
+        private int mExpectedBufferPeriod;
+        private int mMeasurementCount;
+        private int mMaxBufferPeriod;
+        private int mLateCallbackCount;
+        private int mXrunCount;
+
+        public HdrHistogram getHistogram() {
+            return mHistogram;
+        }
+
+        public int getExpectedBufferPeriod() {
+            return mExpectedBufferPeriod;
+        }
+
+        public int getMeasurementCount() {
+            return mMeasurementCount;
+        }
+
+        public int getMaxBufferPeriod() {
+            return mMaxBufferPeriod;
+        }
+
+        public int getLateCallbackCount() {
+            return mLateCallbackCount;
+        }
+
+        /** Return the recorder overruns or the player underruns of the native pipe. */
+        public int getXrunCount() {
+            return mXrunCount;
+        }
+    }
+
+
+    public LiveBufferStats(ByteBuffer buffer) {
+        if (buffer.capacity() < 2 * STREAM_SIZE) {
+            throw new IllegalArgumentException("The shared stats take " + 2 * STREAM_SIZE
+                    + " bytes, got " + buffer.capacity());
+        }
+        mBuffer = buffer.order(ByteOrder.nativeOrder());
+        for (int stream = RECORDER; stream <= PLAYER; stream++) {
+            ByteBuffer counts = mBuffer.duplicate();
+            counts.position(stream * STREAM_SIZE + HISTOGRAM_COUNTS);
+            counts.limit(stream * STREAM_SIZE + HISTOGRAM_TOTAL_COUNT);
+            // a slice is big endian whatever the order of the buffer
+            mCounts[stream] = counts.slice().order(ByteOrder.nativeOrder()).asIntBuffer();
+        }
+    }
+
+
+    /**
+     * Read the stats of stream, RECORDER or PLAYER, into snapshot without allocating. Return
+     * false if the callback kept updating them, in which case snapshot is left as it was.
+     */
+    public boolean read(int stream, Snapshot snapshot) {
+        int base = stream * STREAM_SIZE;
+        for (int tries = 0; tries < MAX_READ_TRIES; tries++) {
+            int sequence = mBuffer.getInt(base + SEQUENCE);
+            if ((sequence & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            fence();
+
+            int expectedBufferPeriod = mBuffer.getInt(base + EXPECTED_BUFFER_PERIOD);
+            int measurementCount = mBuffer.getInt(base + MEASUREMENT_COUNT);
+            int maxBufferPeriod = mBuffer.getInt(base + MAX_BUFFER_PERIOD);
+            int lateCallbackCount = mBuffer.getInt(base + LATE_CALLBACK_COUNT);
+            int xrunCount = mBuffer.getInt(base + XRUN_COUNT);
+            mCounts[stream].position(0);
+            mCounts[stream].get(mReadCounts);
+            long totalCount = mBuffer.getLong(base + HISTOGRAM_TOTAL_COUNT);
+            long maxValue = mBuffer.getLong(base + HISTOGRAM_MAX_VALUE);
+
+            fence();
+            if (mBuffer.getInt(base + SEQUENCE) == sequence) {
+                snapshot.mExpectedBufferPeriod = expectedBufferPeriod;
+                snapshot.mMeasurementCount = measurementCount;
+                snapshot.mMaxBufferPeriod = maxBufferPeriod;
+                snapshot.mLateCallbackCount = lateCallbackCount;
+                snapshot.mXrunCount = xrunCount;
+                snapshot.mHistogram.set(mReadCounts, totalCount, maxValue);
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Append the callbacks of stream, RECORDER or PLAYER, recorded since the last drain to
+     * timeline, without allocating unless the timeline grows. If the ring wrapped around since
+     * then, the callbacks overwritten are lost, and the timeline is marked so. Return the number
+     * of callbacks read from the ring.
+     */
+    public int drainCallbacks(int stream, CallbackTimeline timeline) {
+        int base = stream * STREAM_SIZE;
+        int drained = mDrainedCallbacks[stream];
+        int count = mBuffer.getInt(base + CALLBACK_COUNT);
+        drainFence(); // the times are read after the count which published them
+        int first = Math.max(drained, count - CALLBACK_RING_SIZE);
+        for (int i = first; i < count; i++) {
+            int slot = i & (CALLBACK_RING_SIZE - 1);
+            mDrainedTimes[slot] = mBuffer.getLong(
+                    base + CALLBACK_TIMES + slot * Constant.BYTES_PER_LONG);
+        }
+        drainFence();
+        // the times overwritten while they were read are lost too
+        first = Math.max(first, mBuffer.getInt(base + CALLBACK_COUNT) - CALLBACK_RING_SIZE);
+        if (first > drained) {
+            timeline.markLost();
+        }
+        for (int i = first; i < count; i++) {
+            timeline.record(mDrainedTimes[i & (CALLBACK_RING_SIZE - 1)]);
+        }
+        mDrainedCallbacks[stream] = count;
+        return Math.max(count - first, 0);
+    }
+
+
+    /**
+     * A volatile store then a volatile load, which no read of the buffer can be moved across,
+     * as there are no explicit memory fences before Java 8. Returns the value loaded.
+     */
+    private int fence() {
+        mFence = 0;
+        return mFence;
+    }
+
+
+    /** The fence() of the draining thread. */
+    private int drainFence() {
+        mDrainFence = 0;
+        return mDrainFence;
+    }
+
+}
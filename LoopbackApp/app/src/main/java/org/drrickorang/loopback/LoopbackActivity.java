@@ -62,6 +62,7 @@ import android.widget.Toast;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Locale;
@@ -93,6 +94,9 @@ public class LoopbackActivity extends Activity
     private static final int SETTINGS_ACTIVITY_REQUEST = 54;
 
     private static final int THREAD_SLEEP_DURATION_MS = 200;
+    private static final int FLIGHT_RECORDER_EXTRA_SECONDS = 10;
+    private static final int MAX_FLIGHT_RECORDER_GLITCH_WAVS = 20;
+    private static final int CALLBACK_TIMELINE_EXTRA_SECONDS = 10;
     private static final int PERMISSIONS_REQUEST_RECORD_AUDIO_LATENCY = 201;
     private static final int PERMISSIONS_REQUEST_RECORD_AUDIO_BUFFER = 202;
     private static final int PERMISSIONS_REQUEST_WRITE_EXTERNAL_STORAGE_RESULTS = 203;
@@ -140,8 +144,17 @@ public class LoopbackActivity extends Activity
     private int[]  mNativePlayerBufferPeriodArray;
     private int    mNativePlayerMaxBufferPeriod;
     private double mNativePlayerStdDevBufferPeriod;
+    private HdrHistogram mNativeRecorderBufferPeriodHistogram;
+    private HdrHistogram mNativePlayerBufferPeriodHistogram;
+    private WindowedMoments mNativeRecorderBufferPeriodMoments;
+    private WindowedMoments mNativePlayerBufferPeriodMoments;
+    private CallbackTimeline mNativeRecorderCallbackTimeline; // not kept across a restart
+    private CallbackTimeline mNativePlayerCallbackTimeline;
     private BufferCallbackTimes mRecorderCallbackTimes;
     private BufferCallbackTimes mPlayerCallbackTimes;
+    private JitterSpectrum      mRecorderJitterSpectrum; // computed when first needed
+    private JitterSpectrum      mPlayerJitterSpectrum;
+    private LatencyTimeSeries   mLatencyTimeSeries;
 
     private static final String INTENT_SAMPLING_FREQUENCY = "SF";
     private static final String INTENT_CHANNEL_INDEX = "CI";
@@ -156,12 +169,18 @@ public class LoopbackActivity extends Activity
     private static final String INTENT_IGNORE_FIRST_FRAMES = "IgnoreFirstFrames";
     private static final String INTENT_TEST_TYPE = "TestType";
     private static final String INTENT_BUFFER_TEST_DURATION = "BufferTestDuration";
+    private static final String INTENT_LATENCY_MONITOR_DURATION = "LatencyMonitorDuration";
     private static final String INTENT_NUMBER_LOAD_THREADS = "NumLoadThreads";
     private static final String INTENT_ENABLE_SYSTRACE = "CaptureSysTrace";
     private static final String INTENT_ENABLE_WAVCAPTURE = "CaptureWavs";
     private static final String INTENT_NUM_CAPTURES = "NumCaptures";
     private static final String INTENT_WAV_DURATION = "WavDuration";
+    private static final String INTENT_WAV_PRE_TRIGGER = "WavPreTrigger";
+    private static final String INTENT_WAV_POST_TRIGGER = "WavPostTrigger";
     private static final String INTENT_USB_AUDIO_ROUTE = "USB";
+    private static final String INTENT_GLITCH_DETECTOR = "GlitchDetector";
+    private static final String INTENT_EXTRA_GLITCH_DETECTORS = "ExtraGlitchDetectors";
+    private static final String INTENT_FLIGHT_RECORDER = "FlightRecorder";
 
     // for running the test using adb command
     private volatile boolean mIntentRunning; // if it is running triggered by intent with parameters
@@ -181,12 +200,23 @@ public class LoopbackActivity extends Activity
 
     // for buffer test
     private int[]   mGlitchesData;
+    private double[] mGlitchMagnitudes; // in the same order as mGlitchesData
+    private GlitchEventLog mGlitchEventLog; // glitches of all the detectors
     private boolean mGlitchingIntervalTooLong;
+    private int     mPipeSize;          // of the pipe read by the glitch detection, in samples
+    private int     mPipeHighWatermark; // most samples waiting in that pipe
+    private String  mPipeConsumerStats; // of each reader of the recorded audio, in Java mode
+    private String  mFlightRecorderSummary; // null if the test wasn't recorded
+    private String  mFlightRecorderFileBase; // null if the test wasn't recorded
     private int     mFFTSamplingSize;
     private int     mFFTOverlapSamples;
+    private int     mGlitchUnit;        // number of samples per unit of mGlitchesData
+    private int     mGlitchDetector;
+    private int     mExtraGlitchDetectors;
     private long    mBufferTestStartTime;
     private int     mBufferTestElapsedSeconds;
     private int     mBufferTestDurationInSeconds;
+    private int     mLatencyMonitorDurationInSeconds;
     private int     mBufferTestWavePlotDurationInSeconds;
 
     // CTS Test Flag
@@ -211,6 +241,28 @@ public class LoopbackActivity extends Activity
         }
     };
 
+    // shows the buffer period stats that the native callbacks update, while a buffer test runs
+    private final LiveBufferStats.Snapshot mLiveRecorderStats = new LiveBufferStats.Snapshot();
+    private final LiveBufferStats.Snapshot mLivePlayerStats = new LiveBufferStats.Snapshot();
+    private final Runnable mLiveBufferStatsUpdater = new Runnable() {
+        @Override
+        public void run() {
+            if (mNativeAudioThread == null) {
+                return;
+            }
+            LiveBufferStats stats = mNativeAudioThread.getLiveBufferStats();
+            if (stats != null) {
+                // a read which fails leaves the snapshot as it was, so it's shown again
+                stats.read(LiveBufferStats.RECORDER, mLiveRecorderStats);
+                stats.read(LiveBufferStats.PLAYER, mLivePlayerStats);
+                mTextViewResultSummary.setText(
+                        formatLiveBufferStats("Recorder", "overruns", mLiveRecorderStats) + "\n"
+                        + formatLiveBufferStats("Player", "underruns", mLivePlayerStats));
+            }
+            mMessageHandler.postDelayed(this, Constant.LIVE_BUFFER_STATS_PERIOD_MS);
+        }
+    };
+
     private Handler mMessageHandler = new Handler(Looper.getMainLooper()) {
         public void handleMessage(Message msg) {
             super.handleMessage(msg);
@@ -285,7 +337,15 @@ public class LoopbackActivity extends Activity
                 if (mAudioThread != null) {
                     mRetainedFragment.setWaveData(mAudioThread.getWaveData());
                     mGlitchesData = mAudioThread.getAllGlitches();
+                    mGlitchUnit = mAudioThread.getGlitchUnit();
+                    mGlitchMagnitudes = mAudioThread.getAllGlitchMagnitudes();
+                    mGlitchEventLog = mAudioThread.getGlitchEventLog();
                     mGlitchingIntervalTooLong = mAudioThread.getGlitchingIntervalTooLong();
+                    mPipeSize = mAudioThread.getPipeSize();
+                    mPipeHighWatermark = mAudioThread.getPipeHighWatermark();
+                    mPipeConsumerStats = mAudioThread.getPipeConsumerStats();
+                    updatePipeStallMs();
+                    updateFlightRecorderSummary();
                     mFFTSamplingSize = mAudioThread.getFFTSamplingSize();
                     mFFTOverlapSamples = mAudioThread.getFFTOverlapSamples();
                     mRecorderCallbackTimes = mRecorderBufferPeriod.getCallbackTimes();
@@ -331,6 +391,8 @@ public class LoopbackActivity extends Activity
                 refreshState();
                 refreshPlots();
                 mBufferTestStartTime = System.currentTimeMillis();
+                mMessageHandler.postDelayed(mLiveBufferStatsUpdater,
+                        Constant.LIVE_BUFFER_STATS_PERIOD_MS);
                 break;
 
             case NativeAudioThread.LOOPBACK_NATIVE_AUDIO_THREAD_MESSAGE_LATENCY_REC_ERROR:
@@ -357,7 +419,14 @@ public class LoopbackActivity extends Activity
             case NativeAudioThread.LOOPBACK_NATIVE_AUDIO_THREAD_MESSAGE_LATENCY_REC_COMPLETE_ERRORS:
                     if (mNativeAudioThread != null) {
                     mGlitchesData = mNativeAudioThread.getNativeAllGlitches();
+                    mGlitchUnit = mNativeAudioThread.getGlitchUnit();
+                    mGlitchMagnitudes = mNativeAudioThread.getNativeAllGlitchMagnitudes();
+                    mGlitchEventLog = mNativeAudioThread.getGlitchEventLog();
                     mGlitchingIntervalTooLong = mNativeAudioThread.getGlitchingIntervalTooLong();
+                    mPipeSize = mNativeAudioThread.getPipeSize();
+                    mPipeHighWatermark = mNativeAudioThread.getPipeHighWatermark();
+                    updatePipeStallMs();
+                    updateFlightRecorderSummary();
                     mFFTSamplingSize = mNativeAudioThread.getNativeFFTSamplingSize();
                     mFFTOverlapSamples = mNativeAudioThread.getNativeFFTOverlapSamples();
                     mRetainedFragment.setWaveData(mNativeAudioThread.getWaveData());
@@ -370,8 +439,21 @@ public class LoopbackActivity extends Activity
                     mNativePlayerMaxBufferPeriod = mNativeAudioThread.getPlayerMaxBufferPeriod();
                     mNativePlayerStdDevBufferPeriod =
                             mNativeAudioThread.getPlayerStdDevBufferPeriod();
+                    mNativeRecorderBufferPeriodHistogram =
+                            mNativeAudioThread.getRecorderBufferPeriodHistogram();
+                    mNativePlayerBufferPeriodHistogram =
+                            mNativeAudioThread.getPlayerBufferPeriodHistogram();
+                    mNativeRecorderBufferPeriodMoments =
+                            mNativeAudioThread.getRecorderBufferPeriodMoments();
+                    mNativePlayerBufferPeriodMoments =
+                            mNativeAudioThread.getPlayerBufferPeriodMoments();
+                    mNativeRecorderCallbackTimeline =
+                            mNativeAudioThread.getRecorderCallbackTimeline();
+                    mNativePlayerCallbackTimeline =
+                            mNativeAudioThread.getPlayerCallbackTimeline();
                     mRecorderCallbackTimes = mNativeAudioThread.getRecorderCallbackTimes();
                     mPlayerCallbackTimes = mNativeAudioThread.getPlayerCallbackTimes();
+                    mLatencyTimeSeries = mNativeAudioThread.getLatencyTimeSeries();
 
                     if (msg.what != NativeAudioThread.
                             LOOPBACK_NATIVE_AUDIO_THREAD_MESSAGE_BUFFER_REC_COMPLETE) {
@@ -631,7 +713,7 @@ public class LoopbackActivity extends Activity
             // --ei AudioThread 1 --ei MicSource 3 --ei AudioLevel 12
             // --ei TestType 223 --ei BufferTestDuration 60 --ei NumLoadThreads 4
             // --ei CI -1 --ez CaptureSysTrace true --ez CaptureWavs false --ei NumCaptures 5
-            // --ei WavDuration 15
+            // --ei WavDuration 15 --ei LatencyMonitorDuration 600
 
             // Note: for native mode, player and recorder buffer sizes are the same, and can only be
             // set through player buffer size
@@ -673,6 +755,11 @@ public class LoopbackActivity extends Activity
                 mIntentRunning = true;
             }
 
+            if (b.containsKey(INTENT_LATENCY_MONITOR_DURATION)) {
+                getApp().setLatencyMonitorDuration(b.getInt(INTENT_LATENCY_MONITOR_DURATION));
+                mIntentRunning = true;
+            }
+
             if (b.containsKey(INTENT_SAMPLING_FREQUENCY)) {
                 getApp().setSamplingRate(b.getInt(INTENT_SAMPLING_FREQUENCY));
                 mIntentRunning = true;
@@ -743,6 +830,11 @@ public class LoopbackActivity extends Activity
                 mIntentRunning = true;
             }
 
+            if (b.containsKey(INTENT_FLIGHT_RECORDER)) {
+                getApp().setFlightRecorderEnabled(b.getBoolean(INTENT_FLIGHT_RECORDER));
+                mIntentRunning = true;
+            }
+
             if (b.containsKey(INTENT_NUM_CAPTURES)) {
                 getApp().setNumberOfCaptures(b.getInt(INTENT_NUM_CAPTURES));
                 mIntentRunning = true;
@@ -753,6 +845,26 @@ public class LoopbackActivity extends Activity
                 mIntentRunning = true;
             }
 
+            if (b.containsKey(INTENT_WAV_PRE_TRIGGER)) {
+                getApp().setCapturePreTriggerSeconds(b.getInt(INTENT_WAV_PRE_TRIGGER));
+                mIntentRunning = true;
+            }
+
+            if (b.containsKey(INTENT_WAV_POST_TRIGGER)) {
+                getApp().setCapturePostTriggerSeconds(b.getInt(INTENT_WAV_POST_TRIGGER));
+                mIntentRunning = true;
+            }
+
+            if (b.containsKey(INTENT_GLITCH_DETECTOR)) {
+                getApp().setGlitchDetector(b.getInt(INTENT_GLITCH_DETECTOR));
+                mIntentRunning = true;
+            }
+
+            if (b.containsKey(INTENT_EXTRA_GLITCH_DETECTORS)) {
+                getApp().setExtraGlitchDetectors(b.getInt(INTENT_EXTRA_GLITCH_DETECTORS));
+                mIntentRunning = true;
+            }
+
             if (b.containsKey(INTENT_USB_AUDIO_ROUTE)) {
                 waitForUsbRoute();
             }
@@ -771,6 +883,9 @@ public class LoopbackActivity extends Activity
                     case Constant.LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_CALIBRATION:
                         doCalibration();
                         break;
+                    case Constant.LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_LATENCY_MONITOR:
+                        startLatencyMonitorTest();
+                        break;
                     case Constant.LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_LATENCY:
                     default:
                         if (b.containsKey(Constant.KEY_CTSINVOCATION)) {
@@ -791,6 +906,25 @@ public class LoopbackActivity extends Activity
     }
 
 
+    /** Size the pipes of the next tests for the worst stall of the glitch detection in this one. */
+    private void updatePipeStallMs() {
+        if (mPipeSize > 0) {
+            getApp().updatePipeStallMs((int) ((long) mPipeHighWatermark
+                    * Constant.MILLIS_PER_SECOND / mSamplingRate));
+        }
+    }
+
+
+    /** Keep how the flight recorder did, so that a failed recording shows in the results. */
+    private void updateFlightRecorderSummary() {
+        FlightRecorder flightRecorder = (mCaptureHolder != null)
+                ? mCaptureHolder.getFlightRecorder() : null;
+        mFlightRecorderSummary = (flightRecorder != null) ? flightRecorder.getSummary() : null;
+        mFlightRecorderFileBase = (flightRecorder != null) ? flightRecorder.getFileNameBase()
+                : null;
+    }
+
+
     /** Stop all currently running threads that are related to audio test. */
     private void stopAudioTestThreads() {
         log("stopping audio threads");
@@ -820,6 +954,7 @@ public class LoopbackActivity extends Activity
 
 
     public void onDestroy() {
+        mMessageHandler.removeCallbacks(mLiveBufferStatsUpdater);
         stopAudioTestThreads();
         super.onDestroy();
         stopService(new Intent(this, AudioTestService.class));
@@ -922,12 +1057,24 @@ public class LoopbackActivity extends Activity
         AudioManager am = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
         mSoundLevel = am.getStreamVolume(AudioManager.STREAM_MUSIC);
         mBufferTestDurationInSeconds = getApp().getBufferTestDuration();
+        mLatencyMonitorDurationInSeconds = getApp().getLatencyMonitorDuration();
         mBufferTestWavePlotDurationInSeconds = getApp().getBufferTestWavePlotDuration();
+        mGlitchDetector = getApp().getGlitchDetector();
+        mExtraGlitchDetectors = getApp().getExtraGlitchDetectors();
+        mLatencyTimeSeries = null;
 
         mCaptureHolder = new CaptureHolder(getApp().getNumStateCaptures(),
                 getFileNamePrefix(), getApp().isCaptureWavSnippetsEnabled(),
                 getApp().isCaptureSysTraceEnabled(), getApp().isCaptureBugreportEnabled(),
                 this, mSamplingRate);
+        mCaptureHolder.setTriggerWindow(getApp().getCapturePreTriggerSeconds(),
+                getApp().getCapturePostTriggerSeconds());
+        if (mTestType == Constant.LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_BUFFER_PERIOD
+                && getApp().isFlightRecorderEnabled()) {
+            // leave some room for the time the test takes to stop
+            mCaptureHolder.startFlightRecorder(mBufferTestDurationInSeconds
+                    + FLIGHT_RECORDER_EXTRA_SECONDS);
+        }
 
         log(" current sampling rate: " + mSamplingRate);
         stopAudioTestThreads();
@@ -940,19 +1087,25 @@ public class LoopbackActivity extends Activity
         case Constant.AUDIO_THREAD_TYPE_JAVA:
             micSourceMapped = getApp().mapMicSource(Constant.AUDIO_THREAD_TYPE_JAVA, mMicSource);
 
-            int expectedRecorderBufferPeriod = Math.round(
-                    (float) (mRecorderBufferSizeInBytes * Constant.MILLIS_PER_SECOND)
-                            / (Constant.BYTES_PER_FRAME * mSamplingRate));
-            mRecorderBufferPeriod.prepareMemberObjects(
-                    Constant.MAX_RECORDED_LATE_CALLBACKS_PER_SECOND * mBufferTestDurationInSeconds,
-                    expectedRecorderBufferPeriod, mCaptureHolder);
+            int testDurationSeconds = mBufferTestDurationInSeconds;
+            if (mTestType == Constant.LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_LATENCY) {
+                testDurationSeconds = Constant.LATENCY_TEST_DURATION_SECONDS;
+            }
+            // leave some room for the time the test takes to start and stop
+            long testDurationUs = (testDurationSeconds + CALLBACK_TIMELINE_EXTRA_SECONDS)
+                    * Constant.MICROS_PER_SECOND;
+
+            long expectedRecorderBufferPeriodUs =
+                    mRecorderBufferSizeInBytes * Constant.MICROS_PER_SECOND
+                            / (Constant.BYTES_PER_FRAME * mSamplingRate);
+            mRecorderBufferPeriod.prepareMemberObjects(expectedRecorderBufferPeriodUs,
+                    testDurationUs, mCaptureHolder);
 
-            int expectedPlayerBufferPeriod = Math.round(
-                    (float) (mPlayerBufferSizeInBytes * Constant.MILLIS_PER_SECOND)
-                            / (Constant.BYTES_PER_FRAME * mSamplingRate));
-            mPlayerBufferPeriod.prepareMemberObjects(
-                    Constant.MAX_RECORDED_LATE_CALLBACKS_PER_SECOND * mBufferTestDurationInSeconds,
-                    expectedPlayerBufferPeriod, mCaptureHolder);
+            long expectedPlayerBufferPeriodUs =
+                    mPlayerBufferSizeInBytes * Constant.MICROS_PER_SECOND
+                            / (Constant.BYTES_PER_FRAME * mSamplingRate);
+            mPlayerBufferPeriod.prepareMemberObjects(expectedPlayerBufferPeriodUs,
+                    testDurationUs, mCaptureHolder);
 
             mAudioThread = new LoopbackAudioThread(mSamplingRate, mPlayerBufferSizeInBytes,
                           mRecorderBufferSizeInBytes, micSourceMapped,
@@ -961,6 +1114,9 @@ public class LoopbackActivity extends Activity
                           mBufferTestWavePlotDurationInSeconds, getApplicationContext(),
                           mChannelIndex, mCaptureHolder);
             mAudioThread.setMessageHandler(mMessageHandler);
+            mAudioThread.setGlitchDetector(mGlitchDetector);
+            mAudioThread.setExtraGlitchDetectors(mExtraGlitchDetectors);
+            mAudioThread.setPipeStallMs(getApp().getPipeStallMs());
             mAudioThread.mSessionId = sessionId;
             mAudioThread.start();
             break;
@@ -977,6 +1133,10 @@ public class LoopbackActivity extends Activity
                                 mBufferTestDurationInSeconds, mBufferTestWavePlotDurationInSeconds,
                                 mIgnoreFirstFrames, mCaptureHolder);
             mNativeAudioThread.setMessageHandler(mMessageHandler);
+            mNativeAudioThread.setGlitchDetector(mGlitchDetector);
+            mNativeAudioThread.setExtraGlitchDetectors(mExtraGlitchDetectors);
+            mNativeAudioThread.setPipeStallMs(getApp().getPipeStallMs());
+            mNativeAudioThread.setLatencyMonitorDuration(mLatencyMonitorDurationInSeconds);
             mNativeAudioThread.mSessionId = sessionId;
             mNativeAudioThread.start();
             break;
@@ -1045,6 +1205,16 @@ public class LoopbackActivity extends Activity
         return false;
     }
 
+    private boolean canPerformLatencyMonitorTest() {
+        // The latency monitor needs the native side to inject the tone again.
+        switch (getApp().getAudioThreadType()) {
+            case Constant.AUDIO_THREAD_TYPE_NATIVE_SLES:
+            case Constant.AUDIO_THREAD_TYPE_NATIVE_AAUDIO:
+                return true;
+        }
+        return false;
+    }
+
     private void setTransportButtonsState(int state) {
         Button latencyStart = (Button) findViewById(R.id.buttonStartLatencyTest);
         Button bufferStart = (Button) findViewById(R.id.buttonStartBufferTest);
@@ -1088,6 +1258,7 @@ public class LoopbackActivity extends Activity
                 break;
 
             case BUFFER_TEST_ENDED:
+                mMessageHandler.removeCallbacks(mLiveBufferStatsUpdater);
                 findViewById(R.id.zoomAndSaveControlPanel).setVisibility(View.VISIBLE);
                 findViewById(R.id.resultSummary).setVisibility(View.VISIBLE);
                 findViewById(R.id.glitchReportPanel).setVisibility(View.VISIBLE);
@@ -1317,6 +1488,38 @@ public class LoopbackActivity extends Activity
     }
 
 
+    /**
+     * Start the latency monitor test, which measures the latency repeatedly for the latency
+     * monitor duration. Only available via an intent.
+     */
+    private void startLatencyMonitorTest() {
+        if (!canPerformLatencyMonitorTest()) {
+            showToastImportant("Latency monitor test is not supported with this thread type");
+            log("Latency monitor test is not supported with this thread type");
+            return;
+        }
+
+        if (isBusy()) {
+            showToast("Test in progress... please wait");
+            return;
+        }
+
+        mBarMasterLevel.setEnabled(false);
+        resetBufferPeriodRecord(mRecorderBufferPeriod, mPlayerBufferPeriod);
+        mTestType = Constant.LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_LATENCY_MONITOR;
+        restartAudioSystem();
+        try {
+            Thread.sleep(THREAD_SLEEP_DURATION_MS);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        if (mNativeAudioThread != null) {
+            mNativeAudioThread.runTest();
+        }
+    }
+
+
     /** Stop the ongoing test. */
     public void stopTests() throws InterruptedException {
         if (mAudioThread != null) {
@@ -1449,9 +1652,19 @@ public class LoopbackActivity extends Activity
         saveBufferPeriod(Uri.parse(FILE_SAVE_PATH + fileName + "_recorderBufferPeriod.txt"),
                 bufferPeriodArray, maxBufferPeriod);
         saveHistogram(Uri.parse(FILE_SAVE_PATH + fileName + "_recorderBufferPeriod.png"),
-                bufferPeriodArray, maxBufferPeriod);
+                bufferPeriodArray, maxBufferPeriod, getRecorderBufferPeriodHistogram());
         saveTextToFile(Uri.parse(FILE_SAVE_PATH + fileName + "_recorderBufferPeriodTimes.txt"),
                 mRecorderCallbackTimes.toString());
+        WindowedMoments moments = getRecorderBufferPeriodMoments();
+        if (moments != null) {
+            saveTextToFile(Uri.parse(FILE_SAVE_PATH + fileName
+                    + "_recorderBufferPeriodMinutes.txt"), moments.getWindowsString());
+        }
+        JitterSpectrum spectrum = getRecorderJitterSpectrum();
+        if (spectrum != null) {
+            saveTextToFile(Uri.parse(FILE_SAVE_PATH + fileName + "_recorderJitterSpectrum.txt"),
+                    spectrum.getSpectrumString());
+        }
 
         bufferPeriodArray = null;
         maxBufferPeriod = Constant.UNKNOWN;
@@ -1471,20 +1684,85 @@ public class LoopbackActivity extends Activity
         saveBufferPeriod(Uri.parse(FILE_SAVE_PATH + fileName + "_playerBufferPeriod.txt")
                 , bufferPeriodArray, maxBufferPeriod);
         saveHistogram(Uri.parse(FILE_SAVE_PATH + fileName + "_playerBufferPeriod.png"),
-                bufferPeriodArray, maxBufferPeriod);
+                bufferPeriodArray, maxBufferPeriod, getPlayerBufferPeriodHistogram());
         saveTextToFile(Uri.parse(FILE_SAVE_PATH + fileName + "_playerBufferPeriodTimes.txt"),
                 mPlayerCallbackTimes.toString());
+        moments = getPlayerBufferPeriodMoments();
+        if (moments != null) {
+            saveTextToFile(Uri.parse(FILE_SAVE_PATH + fileName
+                    + "_playerBufferPeriodMinutes.txt"), moments.getWindowsString());
+        }
+        spectrum = getPlayerJitterSpectrum();
+        if (spectrum != null) {
+            saveTextToFile(Uri.parse(FILE_SAVE_PATH + fileName + "_playerJitterSpectrum.txt"),
+                    spectrum.getSpectrumString());
+        }
 
         if (mGlitchesData != null) {
             saveGlitchOccurrences(Uri.parse(FILE_SAVE_PATH + fileName + "_glitchMillis.txt"),
                     mGlitchesData);
+            if (mGlitchMagnitudes != null) {
+                saveTextToFile(Uri.parse(FILE_SAVE_PATH + fileName + "_glitchMagnitudes.txt"),
+                        GlitchesStringBuilder.getGlitchMagnitudeStringForFile(mGlitchMagnitudes));
+            }
+            if (mGlitchEventLog != null && mExtraGlitchDetectors != 0) {
+                saveTextToFile(Uri.parse(FILE_SAVE_PATH + fileName + "_glitchEvents.txt"),
+                        mGlitchEventLog.toString());
+            }
+            if (mGlitchEventLog != null && mFlightRecorderFileBase != null) {
+                saveFlightRecorderGlitches(fileName);
+            }
             saveHeatMap(Uri.parse(FILE_SAVE_PATH + fileName + "_heatMap.png"),
                     mRecorderCallbackTimes, mPlayerCallbackTimes,
-                    GlitchesStringBuilder.getGlitchMilliseconds(mFFTSamplingSize,
-                            mFFTOverlapSamples, mGlitchesData, mSamplingRate),
+                    GlitchesStringBuilder.getGlitchMilliseconds(mGlitchUnit, mGlitchesData,
+                            mSamplingRate),
                     mGlitchingIntervalTooLong, mBufferTestElapsedSeconds, fileName);
         }
 
+        if (mLatencyTimeSeries != null) {
+            saveTextToFile(Uri.parse(FILE_SAVE_PATH + fileName + "_latencyTimeSeries.txt"),
+                    mLatencyTimeSeries.toString());
+        }
+
+    }
+
+
+    /**
+     * Save the samples around each glitch of mGlitchEventLog from the flight recording, with the
+     * same window as the wav captures, to fileName + "_glitch<n>.wav". A glitch already in the
+     * previous window isn't saved again.
+     */
+    private void saveFlightRecorderGlitches(String fileName) {
+        long preTriggerSamples = (long) getApp().getCapturePreTriggerSeconds() * mSamplingRate;
+        int count = (getApp().getCapturePreTriggerSeconds()
+                + getApp().getCapturePostTriggerSeconds()) * mSamplingRate;
+        if (count <= 0) {
+            return;
+        }
+
+        int numSaved = 0;
+        long savedStart = 0;
+        long savedEnd = 0;
+        int numEvents = mGlitchEventLog.getNumEvents();
+        for (int event = 0; event < numEvents && numSaved < MAX_FLIGHT_RECORDER_GLITCH_WAVS;
+                event++) {
+            long sampleIndex = mGlitchEventLog.getSampleIndex(event);
+            if (sampleIndex >= savedStart && sampleIndex < savedEnd) {
+                continue;
+            }
+            savedStart = Math.max(0, sampleIndex - preTriggerSamples);
+            savedEnd = savedStart + count;
+            String wavFileName = CaptureHolder.STORAGE + fileName + "_glitch" + numSaved + ".wav";
+            try {
+                FlightRecorder.extractToWav(mFlightRecorderFileBase, savedStart, count,
+                        wavFileName);
+                numSaved++;
+            } catch (IOException e) {
+                log("Failed to save the flight recording of a glitch to " + wavFileName + " " + e);
+                return;
+            }
+        }
+        log("Saved " + numSaved + " glitches of " + numEvents + " from the flight recording");
     }
 
 
@@ -1568,7 +1846,8 @@ public class LoopbackActivity extends Activity
                             maxBufferPeriod = mNativeRecorderMaxBufferPeriod;
                             break;
                     }
-                    saveHistogram(resultData.getData(), bufferPeriodArray, maxBufferPeriod);
+                    saveHistogram(resultData.getData(), bufferPeriodArray, maxBufferPeriod,
+                            getRecorderBufferPeriodHistogram());
                 }
                 break;
 
@@ -1587,7 +1866,8 @@ public class LoopbackActivity extends Activity
                             maxBufferPeriod = mNativePlayerMaxBufferPeriod;
                             break;
                     }
-                    saveHistogram(resultData.getData(), bufferPeriodArray, maxBufferPeriod);
+                    saveHistogram(resultData.getData(), bufferPeriodArray, maxBufferPeriod,
+                            getPlayerBufferPeriodHistogram());
                 }
                 break;
 
@@ -1615,8 +1895,8 @@ public class LoopbackActivity extends Activity
                 if (resultData != null && mGlitchesData != null && mRecorderCallbackTimes != null
                         && mPlayerCallbackTimes != null) {
                     saveHeatMap(resultData.getData(), mRecorderCallbackTimes, mPlayerCallbackTimes,
-                            GlitchesStringBuilder.getGlitchMilliseconds(mFFTSamplingSize,
-                                    mFFTOverlapSamples, mGlitchesData, mSamplingRate),
+                            GlitchesStringBuilder.getGlitchMilliseconds(mGlitchUnit,
+                                    mGlitchesData, mSamplingRate),
                             mGlitchingIntervalTooLong, mBufferTestElapsedSeconds,
                             resultData.getData().toString());
                 }
@@ -1653,9 +1933,24 @@ public class LoopbackActivity extends Activity
         mCorrelation.invalidate();
         mNativeRecorderBufferPeriodArray = null;
         mNativePlayerBufferPeriodArray = null;
+        mNativeRecorderBufferPeriodHistogram = null;
+        mNativePlayerBufferPeriodHistogram = null;
+        mNativeRecorderBufferPeriodMoments = null;
+        mNativePlayerBufferPeriodMoments = null;
+        mNativeRecorderCallbackTimeline = null;
+        mNativePlayerCallbackTimeline = null;
         mPlayerCallbackTimes = null;
         mRecorderCallbackTimes = null;
+        mRecorderJitterSpectrum = null;
+        mPlayerJitterSpectrum = null;
         mGlitchesData = null;
+        mGlitchMagnitudes = null;
+        mGlitchEventLog = null;
+        mPipeSize = 0;
+        mPipeHighWatermark = 0;
+        mPipeConsumerStats = null;
+        mFlightRecorderSummary = null;
+        mFlightRecorderFileBase = null;
         mRetainedFragment.setWaveData(null);
     }
 
@@ -1725,6 +2020,8 @@ public class LoopbackActivity extends Activity
                         mNativeRecorderMaxBufferPeriod);
                 break;
             }
+            RecorderBufferPeriodIntent.putExtra("recorderBufferPeriodHistogram",
+                    getRecorderBufferPeriodHistogram());
 
             RecorderBufferPeriodIntent.putExtra("recorderBufferSize", recorderBufferSizeInFrames);
             RecorderBufferPeriodIntent.putExtra("samplingRate", mSamplingRate);
@@ -1755,6 +2052,8 @@ public class LoopbackActivity extends Activity
                         mNativePlayerMaxBufferPeriod);
                 break;
             }
+            PlayerBufferPeriodIntent.putExtra("playerBufferPeriodHistogram",
+                    getPlayerBufferPeriodHistogram());
 
             PlayerBufferPeriodIntent.putExtra("playerBufferSize", playerBufferSizeInFrames);
             PlayerBufferPeriodIntent.putExtra("samplingRate", mSamplingRate);
@@ -1777,7 +2076,7 @@ public class LoopbackActivity extends Activity
                 TextView GlitchText =
                         (TextView) popUp.getContentView().findViewById(R.id.ReportInfo);
                 GlitchText.setText(GlitchesStringBuilder.getGlitchString(mFFTSamplingSize,
-                        mFFTOverlapSamples, mGlitchesData, mSamplingRate,
+                        mGlitchUnit, mGlitchesData, mSamplingRate,
                         mGlitchingIntervalTooLong, estimateNumberOfGlitches(mGlitchesData)));
 
                 // display pop up window, dismissible with back button
@@ -1797,7 +2096,9 @@ public class LoopbackActivity extends Activity
             if ((mTestType == Constant.LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_BUFFER_PERIOD
                     && mGlitchesData != null)
                     || (mTestType == Constant.LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_LATENCY
-                    && mCorrelation.isValid())) {
+                    && mCorrelation.isValid())
+                    || (mTestType == Constant.LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_LATENCY_MONITOR
+                    && mLatencyTimeSeries != null)) {
                 // Create a PopUpWindow with scrollable TextView
                 View puLayout = this.getLayoutInflater().inflate(R.layout.report_window, null);
                 PopupWindow popUp = new PopupWindow(puLayout, ViewGroup.LayoutParams.MATCH_PARENT,
@@ -1834,8 +2135,8 @@ public class LoopbackActivity extends Activity
                 ((LinearLayout) popUp.getContentView()).addView(
                         new GlitchAndCallbackHeatMapView(this, mRecorderCallbackTimes,
                                 mPlayerCallbackTimes,
-                                GlitchesStringBuilder.getGlitchMilliseconds(mFFTSamplingSize,
-                                        mFFTOverlapSamples, mGlitchesData, mSamplingRate),
+                                GlitchesStringBuilder.getGlitchMilliseconds(mGlitchUnit,
+                                        mGlitchesData, mSamplingRate),
                                 mGlitchingIntervalTooLong, mBufferTestElapsedSeconds,
                                 getResources().getString(R.string.heatTitle)));
 
@@ -1922,6 +2223,12 @@ public class LoopbackActivity extends Activity
                         mCorrelation.mEstimatedLatencyMs, mCorrelation.mEstimatedLatencyConfidence,
                         mCorrelation.mAverage, mCorrelation.mRms));
             }
+        } else if (mTestType == Constant.LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_LATENCY_MONITOR &&
+                mLatencyTimeSeries != null) {
+            mTextViewResultSummary.setText(String.format("Latency Measurements: %d" +
+                            " Min = %.2f ms Max = %.2f ms Mean = %.2f ms",
+                    mLatencyTimeSeries.getNumMeasurements(), mLatencyTimeSeries.getMinLatencyMs(),
+                    mLatencyTimeSeries.getMaxLatencyMs(), mLatencyTimeSeries.getMeanLatencyMs()));
         } else if (mTestType == Constant.LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_BUFFER_PERIOD &&
                 mGlitchesData != null) {
             // show buffer test duration
@@ -1945,6 +2252,17 @@ public class LoopbackActivity extends Activity
     }
 
 
+    /** Return a line of the live buffer period stats of a stream of a native test. */
+    private static String formatLiveBufferStats(String stream, String xruns,
+                                                LiveBufferStats.Snapshot stats) {
+        return String.format(Locale.US, "%s: %d callbacks, p99 %.3f ms, max %d ms, %d late, %d %s",
+                stream, stats.getMeasurementCount(),
+                (double) stats.getHistogram().getValueAtPercentile(99) / Constant.MICROS_PER_MILLI,
+                stats.getMaxBufferPeriod(), stats.getLateCallbackCount(), stats.getXrunCount(),
+                xruns);
+    }
+
+
     private static void log(String msg) {
         Log.v(TAG, msg);
     }
@@ -2045,11 +2363,132 @@ public class LoopbackActivity extends Activity
         }
     }
 
-    private void saveHistogram(Uri uri, int[] bufferPeriodArray, int maxBufferPeriod) {
+    /** Return the histogram of the recorder buffer periods of the last test, or null. */
+    private HdrHistogram getRecorderBufferPeriodHistogram() {
+        switch (mAudioThreadType) {
+        case Constant.AUDIO_THREAD_TYPE_JAVA:
+            return mRecorderBufferPeriod.getHistogram();
+        case Constant.AUDIO_THREAD_TYPE_NATIVE_SLES:
+        case Constant.AUDIO_THREAD_TYPE_NATIVE_AAUDIO:
+            return mNativeRecorderBufferPeriodHistogram;
+        default:
+            return null;
+        }
+    }
+
+
+    /** Return the histogram of the player buffer periods of the last test, or null. */
+    private HdrHistogram getPlayerBufferPeriodHistogram() {
+        switch (mAudioThreadType) {
+        case Constant.AUDIO_THREAD_TYPE_JAVA:
+            return mPlayerBufferPeriod.getHistogram();
+        case Constant.AUDIO_THREAD_TYPE_NATIVE_SLES:
+        case Constant.AUDIO_THREAD_TYPE_NATIVE_AAUDIO:
+            return mNativePlayerBufferPeriodHistogram;
+        default:
+            return null;
+        }
+    }
+
+
+    /** Return the moments of the recorder buffer periods of the last test, or null. */
+    private WindowedMoments getRecorderBufferPeriodMoments() {
+        switch (mAudioThreadType) {
+        case Constant.AUDIO_THREAD_TYPE_JAVA:
+            return mRecorderBufferPeriod.getMoments();
+        case Constant.AUDIO_THREAD_TYPE_NATIVE_SLES:
+        case Constant.AUDIO_THREAD_TYPE_NATIVE_AAUDIO:
+            return mNativeRecorderBufferPeriodMoments;
+        default:
+            return null;
+        }
+    }
+
+
+    /** Return the moments of the player buffer periods of the last test, or null. */
+    private WindowedMoments getPlayerBufferPeriodMoments() {
+        switch (mAudioThreadType) {
+        case Constant.AUDIO_THREAD_TYPE_JAVA:
+            return mPlayerBufferPeriod.getMoments();
+        case Constant.AUDIO_THREAD_TYPE_NATIVE_SLES:
+        case Constant.AUDIO_THREAD_TYPE_NATIVE_AAUDIO:
+            return mNativePlayerBufferPeriodMoments;
+        default:
+            return null;
+        }
+    }
+
+
+    /** Return the spectrum of the lateness of the recorder callbacks of the last test, or null. */
+    private JitterSpectrum getRecorderJitterSpectrum() {
+        if (mRecorderJitterSpectrum == null) {
+            mRecorderJitterSpectrum = computeJitterSpectrum(mRecorderBufferPeriod,
+                    mNativeRecorderCallbackTimeline, mRecorderCallbackTimes);
+        }
+        return mRecorderJitterSpectrum;
+    }
+
+
+    /** Return the spectrum of the lateness of the player callbacks of the last test, or null. */
+    private JitterSpectrum getPlayerJitterSpectrum() {
+        if (mPlayerJitterSpectrum == null) {
+            mPlayerJitterSpectrum = computeJitterSpectrum(mPlayerBufferPeriod,
+                    mNativePlayerCallbackTimeline, mPlayerCallbackTimes);
+        }
+        return mPlayerJitterSpectrum;
+    }
+
+
+    /**
+     * Compute the spectrum from every callback, recorded by the Java stream or drained from the
+     * native one, or else from the late and early callbacks, which are all that is left once the
+     * activity restarts, and all that the native code records for the AAudio recorder.
+     */
+    private JitterSpectrum computeJitterSpectrum(BufferPeriod bufferPeriod,
+                                                 CallbackTimeline nativeTimeline,
+                                                 BufferCallbackTimes callbackTimes) {
+        JitterSpectrum spectrum = null;
+        if (mAudioThreadType == Constant.AUDIO_THREAD_TYPE_JAVA) {
+            spectrum = bufferPeriod.getJitterSpectrum();
+        } else if (nativeTimeline != null) {
+            spectrum = JitterSpectrum.analyze(nativeTimeline,
+                    Math.max(Constant.BUFFER_PERIOD_DISCARD, 1));
+        }
+        if (spectrum == null && callbackTimes != null) {
+            spectrum = JitterSpectrum.analyze(callbackTimes,
+                    mBufferTestElapsedSeconds * Constant.MICROS_PER_SECOND);
+        }
+        return spectrum;
+    }
+
+
+    /** Append the moments of the buffer periods of "Recorder" or "Player" to the report. */
+    private static void appendMoments(StringBuilder sb, String name, WindowedMoments moments,
+                                      String endline) {
+        StreamingMoments total = moments.getTotal();
+        sb.append(name + " Buffer Period Mean = "
+                + String.format(Locale.US, "%.5f ms", total.getMean()) + endline);
+        sb.append(name + " Buffer Period Skewness = "
+                + String.format(Locale.US, "%.5f", total.getSkewness()) + endline);
+        sb.append(name + " Buffer Period Kurtosis = "
+                + String.format(Locale.US, "%.5f", total.getKurtosis()) + endline);
+        int worst = moments.getWorstWindow();
+        if (worst >= 0) {
+            sb.append(name + " Buffer Period Worst Minute = "
+                    + String.format(Locale.US, "%d s, Std Dev %.5f ms",
+                    worst * WindowedMoments.WINDOW_SECONDS,
+                    moments.getWindow(worst).getStdDev()) + endline);
+        }
+    }
+
+
+    private void saveHistogram(Uri uri, int[] bufferPeriodArray, int maxBufferPeriod,
+                               HdrHistogram histogram) {
         // Create and histogram view bitmap
         HistogramView recordHisto = new HistogramView(this,null);
         recordHisto.setBufferPeriodArray(bufferPeriodArray);
         recordHisto.setMaxBufferPeriod(maxBufferPeriod);
+        recordHisto.setHistogram(histogram);
 
         // Draw histogram on bitmap canvas
         Bitmap histoBmp = Bitmap.createBitmap(HISTOGRAM_EXPORT_WIDTH,
@@ -2214,8 +2653,29 @@ public class LoopbackActivity extends Activity
                 sb.append(String.format("RMS = %.4f", mCorrelation.mRms) + endline);
                 break;
 
+            case Constant.LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_LATENCY_MONITOR:
+                sb.append("Latency Monitor Duration (s) = " + mLatencyMonitorDurationInSeconds
+                        + endline);
+                sb.append("Latency Monitor Period (ms) = " + Constant.LATENCY_MONITOR_PERIOD_MS
+                        + endline);
+                if (mLatencyTimeSeries != null) {
+                    sb.append("LatencyMeasurements = " + mLatencyTimeSeries.getNumMeasurements()
+                            + endline);
+                    sb.append(String.format("MinLatencyMs = %.2f",
+                            mLatencyTimeSeries.getMinLatencyMs()) + endline);
+                    sb.append(String.format("MaxLatencyMs = %.2f",
+                            mLatencyTimeSeries.getMaxLatencyMs()) + endline);
+                    sb.append(String.format("MeanLatencyMs = %.2f",
+                            mLatencyTimeSeries.getMeanLatencyMs()) + endline);
+                } else {
+                    sb.append("Cannot Find Latency Monitor Data!" + endline);
+                }
+                break;
+
             case Constant.LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_BUFFER_PERIOD:
                 sb.append("Buffer Test Duration (s) = " + mBufferTestDurationInSeconds + endline);
+                sb.append(INTENT_GLITCH_DETECTOR + " = " + mGlitchDetector + endline);
+                sb.append(INTENT_EXTRA_GLITCH_DETECTORS + " = " + mExtraGlitchDetectors + endline);
 
                 // report recorder results
                 int[] recorderBufferData = null;
@@ -2255,6 +2715,20 @@ public class LoopbackActivity extends Activity
                     sb.append("Recorder Buffer Period Std Dev = "
                             + String.format(Locale.US, "%.5f ms", recorderBufferDataStdDev)
                             + endline);
+                    HdrHistogram recorderHistogram = getRecorderBufferPeriodHistogram();
+                    if (recorderHistogram != null) {
+                        sb.append("Recorder Buffer Period Percentiles (ms) = "
+                                + recorderHistogram.getPercentilesString() + endline);
+                    }
+                    WindowedMoments recorderMoments = getRecorderBufferPeriodMoments();
+                    if (recorderMoments != null) {
+                        appendMoments(sb, "Recorder", recorderMoments, endline);
+                    }
+                    JitterSpectrum recorderSpectrum = getRecorderJitterSpectrum();
+                    if (recorderSpectrum != null) {
+                        sb.append("Recorder Callback Jitter Periods (ms) = "
+                                + recorderSpectrum.getPeaksString() + endline);
+                    }
 
                     // output thousandths of a percent not at expected buffer period
                     sb.append("kth% Late Recorder Buffer Callbacks = "
@@ -2303,6 +2777,20 @@ public class LoopbackActivity extends Activity
                     sb.append("Player Buffer Period Std Dev = "
                             + String.format(Locale.US, "%.5f ms", playerBufferDataStdDev)
                             + endline);
+                    HdrHistogram playerHistogram = getPlayerBufferPeriodHistogram();
+                    if (playerHistogram != null) {
+                        sb.append("Player Buffer Period Percentiles (ms) = "
+                                + playerHistogram.getPercentilesString() + endline);
+                    }
+                    WindowedMoments playerMoments = getPlayerBufferPeriodMoments();
+                    if (playerMoments != null) {
+                        appendMoments(sb, "Player", playerMoments, endline);
+                    }
+                    JitterSpectrum playerSpectrum = getPlayerJitterSpectrum();
+                    if (playerSpectrum != null) {
+                        sb.append("Player Callback Jitter Periods (ms) = "
+                                + playerSpectrum.getPeaksString() + endline);
+                    }
 
                     // output thousandths of a percent not at expected buffer period
                     sb.append("kth% Late Player Buffer Callbacks = "
@@ -2325,6 +2813,29 @@ public class LoopbackActivity extends Activity
                     sb.append("Glitches Per Hour = " + glitchesPerHour + endline);
                 }
                 sb.append("Total Number of Glitches = " + numberOfGlitches + endline);
+                if (mGlitchEventLog != null && mExtraGlitchDetectors != 0) {
+                    for (int i = 0; i < Constant.NUM_GLITCH_DETECTORS; i++) {
+                        if (i == mGlitchDetector || (mExtraGlitchDetectors & (1 << i)) != 0) {
+                            sb.append("Glitch Events of Detector " + i + " = "
+                                    + mGlitchEventLog.getNumEvents(i) + endline);
+                        }
+                    }
+                }
+                if (mPipeSize > 0) {
+                    sb.append("Pipe Size = " + mPipeSize + " samples" + endline);
+                    sb.append("Pipe High Watermark = " + mPipeHighWatermark + " samples" + endline);
+                }
+                if (mPipeConsumerStats != null) {
+                    // a consumer which fell behind lost the samples of its overruns
+                    for (String consumerStats : mPipeConsumerStats.split("\n")) {
+                        if (!consumerStats.isEmpty()) {
+                            sb.append("Pipe Consumer " + consumerStats + endline);
+                        }
+                    }
+                }
+                if (mFlightRecorderSummary != null) {
+                    sb.append("Flight Recorder = " + mFlightRecorderSummary + endline);
+                }
 
                 // report if the total glitching interval is too long
                 sb.append("Total glitching interval too long =  " +
@@ -2361,8 +2872,8 @@ public class LoopbackActivity extends Activity
 
             log("Done creating output stream");
 
-            outputStream.write(GlitchesStringBuilder.getGlitchStringForFile(mFFTSamplingSize,
-                    mFFTOverlapSamples, glitchesData, mSamplingRate).getBytes());
+            outputStream.write(GlitchesStringBuilder.getGlitchStringForFile(mGlitchUnit,
+                    glitchesData, mSamplingRate).getBytes());
         } catch (Exception e) {
             log("Failed to open text file " + e);
         } finally {
@@ -2532,12 +3043,24 @@ public class LoopbackActivity extends Activity
 
         mGlitchesData = in.getIntArray("mGlitchesData");
         if (mGlitchesData != null) {
+            mGlitchMagnitudes = in.getDoubleArray("mGlitchMagnitudes");
+            mGlitchEventLog = in.getParcelable("mGlitchEventLog");
+            mExtraGlitchDetectors = in.getInt("mExtraGlitchDetectors");
             mGlitchingIntervalTooLong = in.getBoolean("mGlitchingIntervalTooLong");
+            mPipeSize = in.getInt("mPipeSize");
+            mPipeHighWatermark = in.getInt("mPipeHighWatermark");
+            mPipeConsumerStats = in.getString("mPipeConsumerStats");
+            mFlightRecorderSummary = in.getString("mFlightRecorderSummary");
+            mFlightRecorderFileBase = in.getString("mFlightRecorderFileBase");
             mFFTSamplingSize = in.getInt("mFFTSamplingSize");
             mFFTOverlapSamples = in.getInt("mFFTOverlapSamples");
+            // states saved before the unit was kept hold FFT indexes
+            mGlitchUnit = in.getInt("mGlitchUnit", mFFTSamplingSize - mFFTOverlapSamples);
+            mGlitchDetector = in.getInt("mGlitchDetector");
             mBufferTestStartTime = in.getLong("mBufferTestStartTime");
             mBufferTestElapsedSeconds = in.getInt("mBufferTestElapsedSeconds");
             mBufferTestDurationInSeconds = in.getInt("mBufferTestDurationInSeconds");
+            mLatencyMonitorDurationInSeconds = in.getInt("mLatencyMonitorDurationInSeconds");
             mBufferTestWavePlotDurationInSeconds =
                     in.getInt("mBufferTestWavePlotDurationInSeconds");
 
@@ -2550,11 +3073,19 @@ public class LoopbackActivity extends Activity
             mRecorderBufferPeriod = in.getParcelable("mRecorderBufferPeriod");
             mPlayerCallbackTimes = in.getParcelable("mPlayerCallbackTimes");
             mRecorderCallbackTimes = in.getParcelable("mRecorderCallbackTimes");
+            mLatencyTimeSeries = in.getParcelable("mLatencyTimeSeries");
 
             mNativePlayerBufferPeriodArray = in.getIntArray("mNativePlayerBufferPeriodArray");
             mNativePlayerMaxBufferPeriod = in.getInt("mNativePlayerMaxBufferPeriod");
             mNativeRecorderBufferPeriodArray = in.getIntArray("mNativeRecorderBufferPeriodArray");
             mNativeRecorderMaxBufferPeriod = in.getInt("mNativeRecorderMaxBufferPeriod");
+            mNativePlayerBufferPeriodHistogram =
+                    in.getParcelable("mNativePlayerBufferPeriodHistogram");
+            mNativeRecorderBufferPeriodHistogram =
+                    in.getParcelable("mNativeRecorderBufferPeriodHistogram");
+            mNativePlayerBufferPeriodMoments = in.getParcelable("mNativePlayerBufferPeriodMoments");
+            mNativeRecorderBufferPeriodMoments =
+                    in.getParcelable("mNativeRecorderBufferPeriodMoments");
 
             mWavePlotView.setData(mRetainedFragment.getWaveData(), mSamplingRate);
             refreshState();
@@ -2582,20 +3113,39 @@ public class LoopbackActivity extends Activity
         out.putParcelable("mRecorderBufferPeriod", mRecorderBufferPeriod);
         out.putParcelable("mPlayerCallbackTimes", mPlayerCallbackTimes);
         out.putParcelable("mRecorderCallbackTimes", mRecorderCallbackTimes);
+        out.putParcelable("mLatencyTimeSeries", mLatencyTimeSeries);
 
         out.putIntArray("mNativePlayerBufferPeriodArray", mNativePlayerBufferPeriodArray);
         out.putInt("mNativePlayerMaxBufferPeriod", mNativePlayerMaxBufferPeriod);
         out.putIntArray("mNativeRecorderBufferPeriodArray", mNativeRecorderBufferPeriodArray);
         out.putInt("mNativeRecorderMaxBufferPeriod", mNativeRecorderMaxBufferPeriod);
+        out.putParcelable("mNativePlayerBufferPeriodHistogram",
+                mNativePlayerBufferPeriodHistogram);
+        out.putParcelable("mNativeRecorderBufferPeriodHistogram",
+                mNativeRecorderBufferPeriodHistogram);
+        out.putParcelable("mNativePlayerBufferPeriodMoments", mNativePlayerBufferPeriodMoments);
+        out.putParcelable("mNativeRecorderBufferPeriodMoments",
+                mNativeRecorderBufferPeriodMoments);
 
         // buffer test values
         out.putIntArray("mGlitchesData", mGlitchesData);
+        out.putDoubleArray("mGlitchMagnitudes", mGlitchMagnitudes);
         out.putBoolean("mGlitchingIntervalTooLong", mGlitchingIntervalTooLong);
+        out.putInt("mPipeSize", mPipeSize);
+        out.putInt("mPipeHighWatermark", mPipeHighWatermark);
+        out.putString("mPipeConsumerStats", mPipeConsumerStats);
+        out.putString("mFlightRecorderSummary", mFlightRecorderSummary);
+        out.putString("mFlightRecorderFileBase", mFlightRecorderFileBase);
         out.putInt("mFFTSamplingSize", mFFTSamplingSize);
         out.putInt("mFFTOverlapSamples", mFFTOverlapSamples);
+        out.putInt("mGlitchUnit", mGlitchUnit);
+        out.putInt("mGlitchDetector", mGlitchDetector);
+        out.putInt("mExtraGlitchDetectors", mExtraGlitchDetectors);
+        out.putParcelable("mGlitchEventLog", mGlitchEventLog);
         out.putLong("mBufferTestStartTime", mBufferTestStartTime);
         out.putInt("mBufferTestElapsedSeconds", mBufferTestElapsedSeconds);
         out.putInt("mBufferTestDurationInSeconds", mBufferTestDurationInSeconds);
+        out.putInt("mLatencyMonitorDurationInSeconds", mLatencyMonitorDurationInSeconds);
         out.putInt("mBufferTestWavePlotDurationInSeconds", mBufferTestWavePlotDurationInSeconds);
     }
 
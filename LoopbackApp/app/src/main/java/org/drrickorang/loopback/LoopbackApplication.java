@@ -43,12 +43,19 @@ public class LoopbackApplication extends Application {
     private int mIgnoreFirstFrames = 0;
     private int mBufferTestDurationInSeconds = 5;
     private int mBufferTestWavePlotDurationInSeconds = 7;
+    private int mLatencyMonitorDurationInSeconds = 60;
     private int mNumberOfLoadThreads = 4;
     private boolean mCaptureSysTraceEnabled = false;
     private boolean mCaptureBugreportEnabled = false;
     private boolean mCaptureWavSnippetsEnabled = false;
+    private boolean mFlightRecorderEnabled = false; // record the whole buffer test to a file
     private boolean mSoundLevelCalibrationEnabled = false;
     private int mNumStateCaptures = Constant.DEFAULT_NUM_CAPTURES;
+    private int mCapturePreTriggerSeconds = Constant.DEFAULT_CAPTURE_PRE_TRIGGER_SECONDS;
+    private int mCapturePostTriggerSeconds = Constant.DEFAULT_CAPTURE_POST_TRIGGER_SECONDS;
+    private int mGlitchDetector = Constant.GLITCH_DETECTOR_CENTER_OF_MASS;
+    private int mExtraGlitchDetectors; // bit n set to also run glitch detector n
+    private int mPipeStallMs = Constant.DEFAULT_PIPE_STALL_MS; // worst stall of a pipe reader
 
     public void setDefaults() {
         // Prefer SLES until buffer test is implemented for AAudio.
@@ -233,6 +240,45 @@ public class LoopbackApplication extends Application {
         mIgnoreFirstFrames = ignoreFirstFrames;
     }
 
+    int getGlitchDetector() {
+        return mGlitchDetector;
+    }
+
+    void setGlitchDetector(int glitchDetector) {
+        switch (glitchDetector) {
+            case Constant.GLITCH_DETECTOR_CENTER_OF_MASS:
+            case Constant.GLITCH_DETECTOR_SLIDING_DFT:
+            case Constant.GLITCH_DETECTOR_PHASE_TRACKING:
+                mGlitchDetector = glitchDetector;
+                break;
+            default:
+                mGlitchDetector = Constant.GLITCH_DETECTOR_CENTER_OF_MASS;
+                break;
+        }
+    }
+
+    int getExtraGlitchDetectors() {
+        return mExtraGlitchDetectors;
+    }
+
+    void setExtraGlitchDetectors(int extraGlitchDetectors) {
+        // ignore the bits that don't match a detector
+        mExtraGlitchDetectors = extraGlitchDetectors & ((1 << Constant.NUM_GLITCH_DETECTORS) - 1);
+    }
+
+    int getPipeStallMs() {
+        return mPipeStallMs;
+    }
+
+    /**
+     * Update the stall of the reader of a pipe that the pipes of the next tests are sized for,
+     * with the worst stall measured in a buffer test. It only decreases by half at a time, so
+     * that one quiet test doesn't shrink the pipes too much for a busier one.
+     */
+    void updatePipeStallMs(int measuredStallMs) {
+        mPipeStallMs = Math.max(measuredStallMs, mPipeStallMs / 2);
+    }
+
     int getPlayerBufferSizeInBytes() {
         return mSettings.getPlayerBufferSizeInBytes();
     }
@@ -264,6 +310,18 @@ public class LoopbackApplication extends Application {
     }
 
 
+    int getLatencyMonitorDuration() {
+        return mLatencyMonitorDurationInSeconds;
+    }
+
+
+    void setLatencyMonitorDuration(int latencyMonitorDurationInSeconds) {
+        mLatencyMonitorDurationInSeconds = Utilities.clamp(latencyMonitorDurationInSeconds,
+                Constant.LATENCY_MONITOR_DURATION_SECONDS_MIN,
+                Constant.LATENCY_MONITOR_DURATION_SECONDS_MAX);
+    }
+
+
     int getBufferTestWavePlotDuration() {
         return mBufferTestWavePlotDurationInSeconds;
     }
@@ -289,6 +347,16 @@ public class LoopbackApplication extends Application {
                 Constant.MAX_NUM_CAPTURES);
     }
 
+    public void setCapturePreTriggerSeconds(int seconds) {
+        mCapturePreTriggerSeconds = Utilities.clamp(seconds, Constant.CAPTURE_TRIGGER_SECONDS_MIN,
+                Constant.CAPTURE_TRIGGER_SECONDS_MAX);
+    }
+
+    public void setCapturePostTriggerSeconds(int seconds) {
+        mCapturePostTriggerSeconds = Utilities.clamp(seconds, Constant.CAPTURE_TRIGGER_SECONDS_MIN,
+                Constant.CAPTURE_TRIGGER_SECONDS_MAX);
+    }
+
     public void setCaptureSysTraceEnabled (boolean enabled) {
         mCaptureSysTraceEnabled = enabled;
     }
@@ -301,6 +369,10 @@ public class LoopbackApplication extends Application {
         mCaptureWavSnippetsEnabled = enabled;
     }
 
+    public void setFlightRecorderEnabled(boolean enabled) {
+        mFlightRecorderEnabled = enabled;
+    }
+
     public void setSoundLevelCalibrationEnabled(boolean enabled) {
         mSoundLevelCalibrationEnabled = enabled;
     }
@@ -325,10 +397,22 @@ public class LoopbackApplication extends Application {
         return mNumStateCaptures;
     }
 
+    public int getCapturePreTriggerSeconds() {
+        return mCapturePreTriggerSeconds;
+    }
+
+    public int getCapturePostTriggerSeconds() {
+        return mCapturePostTriggerSeconds;
+    }
+
     public boolean isCaptureWavSnippetsEnabled() {
         return mCaptureWavSnippetsEnabled;
     }
 
+    public boolean isFlightRecorderEnabled() {
+        return mFlightRecorderEnabled;
+    }
+
 
     /** Compute Default audio settings. */
     public void computeDefaults() {
@@ -67,8 +67,10 @@ public class LoopbackAudioThread extends Thread {
     private boolean   mIsPlaying = false;
     private boolean   mIsRequestStop = false;
     private Handler   mMessageHandler;
+    // The recorder writes all the recorded samples here, for each of their consumers.
+    private BroadcastRing mRecordedAudio;
     // This is the pipe that connects the player and the recorder in latency test.
-    private PipeShort mLatencyTestPipe = new PipeShort(Constant.MAX_SHORTS);
+    private BroadcastRing.Consumer mLatencyTestPipe;
 
     // for buffer test
     private BufferPeriod   mRecorderBufferPeriod; // used to collect recorder's buffer period
@@ -79,6 +81,9 @@ public class LoopbackAudioThread extends Thread {
     private int            mBufferTestWavePlotDurationInSeconds;
     private final CaptureHolder mCaptureHolder;
     private boolean        mIsAdjustingSoundLevel = true; // only used in buffer test
+    private int            mGlitchDetector = Constant.GLITCH_DETECTOR_CENTER_OF_MASS;
+    private int            mExtraGlitchDetectors;
+    private int            mPipeStallMs = Constant.DEFAULT_PIPE_STALL_MS;
 
     public static TestSettings computeDefaultSettings() {
         int samplingRate = AudioTrack.getNativeOutputSampleRate(AudioManager.STREAM_MUSIC);
@@ -137,11 +142,28 @@ public class LoopbackAudioThread extends Thread {
         short[] bufferTestTone = new short[audioTrackWriteDataSize]; // used by AudioTrack.write()
         ToneGeneration toneGeneration = new SineWaveTone(mSamplingRate, frequency1);
 
-        mRecorderRunnable = new RecorderRunnable(mLatencyTestPipe, mSamplingRate, mChannelConfigIn,
+        // the player keeps up with the recorder in latency test, but the glitch detection may
+        // stall in buffer test
+        int pipeStallMs = 0;
+        if (mTestType == Constant.LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_BUFFER_PERIOD) {
+            pipeStallMs = mPipeStallMs;
+        }
+        int bufferSizeInFrames = Math.max(mMinPlayerBufferSizeSamples,
+                mMinRecorderBuffSizeInBytes / Constant.BYTES_PER_FRAME);
+        int ringSize = Pipe.getSize(mSamplingRate, bufferSizeInFrames, pipeStallMs);
+        log("recorded audio ring size: " + ringSize);
+        mRecordedAudio = new BroadcastRing(ringSize);
+
+        if (mTestType == Constant.LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_LATENCY) {
+            mLatencyTestPipe = mRecordedAudio.addConsumer("latency test player");
+        }
+        mRecorderRunnable = new RecorderRunnable(mRecordedAudio, mSamplingRate, mChannelConfigIn,
                 mAudioFormat, mMinRecorderBuffSizeInBytes, MediaRecorder.AudioSource.MIC, this,
                 mRecorderBufferPeriod, mTestType, frequency1, frequency2,
                 mBufferTestWavePlotDurationInSeconds, mContext, mChannelIndex, mCaptureHolder);
         mRecorderRunnable.setBufferTestDurationInSeconds(mBufferTestDurationInSeconds);
+        mRecorderRunnable.setGlitchDetector(mGlitchDetector);
+        mRecorderRunnable.setExtraGlitchDetectors(mExtraGlitchDetectors);
         mRecorderThread = new Thread(mRecorderRunnable);
         mRecorderThread.setName("Loopback_RecorderRunnable");
 
@@ -242,6 +264,30 @@ public class LoopbackAudioThread extends Thread {
     }
 
 
+    /** Select the glitch detector used by the buffer test, must be called before start(). */
+    public void setGlitchDetector(int glitchDetector) {
+        mGlitchDetector = glitchDetector;
+    }
+
+
+    /**
+     * Select the glitch detectors that run next to the one of setGlitchDetector(), bit n set for
+     * detector n. Must be called before start().
+     */
+    public void setExtraGlitchDetectors(int extraGlitchDetectors) {
+        mExtraGlitchDetectors = extraGlitchDetectors;
+    }
+
+
+    /**
+     * Set the worst stall of the glitch detection the pipe must allow for in buffer test, which
+     * sizes the pipe. Must be called before start().
+     */
+    public void setPipeStallMs(int pipeStallMs) {
+        mPipeStallMs = pipeStallMs;
+    }
+
+
     public void setIsAdjustingSoundLevel(boolean isAdjustingSoundLevel) {
         mIsAdjustingSoundLevel = isAdjustingSoundLevel;
     }
@@ -314,7 +360,11 @@ public class LoopbackAudioThread extends Thread {
 
         mIsPlaying = false;
         mAudioTrack.pause();
-        mLatencyTestPipe.flush();
+        if (mLatencyTestPipe != null) {
+            log(mLatencyTestPipe.toString());
+            mRecordedAudio.removeConsumer(mLatencyTestPipe);
+            mLatencyTestPipe = null;
+        }
         mAudioTrack.flush();
 
         if (mMessageHandler != null) {
@@ -388,6 +438,37 @@ public class LoopbackAudioThread extends Thread {
     }
 
 
+    public int getGlitchUnit() {
+        return mRecorderRunnable.getGlitchUnit();
+    }
+
+
+    public double[] getAllGlitchMagnitudes() {
+        return mRecorderRunnable.getAllGlitchMagnitudes();
+    }
+
+
+    public GlitchEventLog getGlitchEventLog() {
+        return mRecorderRunnable.getGlitchEventLog();
+    }
+
+
+    public int getPipeSize() {
+        return mRecorderRunnable.getPipeSize();
+    }
+
+
+    public int getPipeHighWatermark() {
+        return mRecorderRunnable.getPipeHighWatermark();
+    }
+
+
+    /** Return the lag and the overruns of each reader of the recorded audio, one line each. */
+    public String getPipeConsumerStats() {
+        return mRecordedAudio.getConsumerStats();
+    }
+
+
     public boolean getGlitchingIntervalTooLong() {
         return mRecorderRunnable.getGlitchingIntervalTooLong();
     }
@@ -75,8 +75,15 @@ public class NativeAudioThread extends Thread {
     private int[]   mPlayerBufferPeriod;
     private int     mPlayerMaxBufferPeriod;
     private double  mPlayerStdDevBufferPeriod;
+    private HdrHistogram mRecorderBufferPeriodHistogram;
+    private HdrHistogram mPlayerBufferPeriodHistogram;
+    private WindowedMoments mRecorderBufferPeriodMoments;
+    private WindowedMoments mPlayerBufferPeriodMoments;
     private BufferCallbackTimes mPlayerCallbackTimes;
     private BufferCallbackTimes mRecorderCallbackTimes;
+    private volatile LiveBufferStats mLiveBufferStats; // read while the test runs
+    private CallbackTimeline mPlayerCallbackTimeline;   // drained from mLiveBufferStats
+    private CallbackTimeline mRecorderCallbackTimeline;
     private int     mBufferTestWavePlotDurationInSeconds;
     private double  mFrequency1 = Constant.PRIME_FREQUENCY_1;
     private double  mFrequency2 = Constant.PRIME_FREQUENCY_2; // not actually used
@@ -84,12 +91,24 @@ public class NativeAudioThread extends Thread {
     private int     mFFTSamplingSize;
     private int     mFFTOverlapSamples;
     private int[]   mAllGlitches;
+    private int     mGlitchUnit; // number of samples per unit of mAllGlitches
+    private double[] mAllGlitchMagnitudes;
     private boolean mGlitchingIntervalTooLong;
     private final CaptureHolder mCaptureHolder;
-
-    private PipeByteBuffer        mPipeByteBuffer;
+    private int     mGlitchDetector = Constant.GLITCH_DETECTOR_CENTER_OF_MASS;
+    private int     mExtraGlitchDetectors; // bit n set to also run glitch detector n
+    private GlitchEventLog mGlitchEventLog;
+    private int     mPipeStallMs = Constant.DEFAULT_PIPE_STALL_MS;
+    private int     mPipeSize;          // of mPipeByteBuffer
+    private int     mPipeHighWatermark; // of mPipeByteBuffer
+
+    private PipeByteBuffer        mPipeByteBuffer; // written from C, so not a BroadcastRing
     private GlitchDetectionThread mGlitchDetectionThread;
 
+    // for latency monitor test
+    private int               mLatencyMonitorDurationInSeconds = 60;
+    private LatencyTimeSeries mLatencyTimeSeries;
+
     /** Check if it's safe to use getProperty(). */
     static boolean isSafeToUseGetProperty() {
         return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1;
@@ -145,6 +164,10 @@ public class NativeAudioThread extends Thread {
         mBufferTestWavePlotDurationInSeconds = old.mBufferTestWavePlotDurationInSeconds;
         mIgnoreFirstFrames = old.mIgnoreFirstFrames;
         mCaptureHolder = old.mCaptureHolder;
+        mGlitchDetector = old.mGlitchDetector;
+        mExtraGlitchDetectors = old.mExtraGlitchDetectors;
+        mPipeStallMs = old.mPipeStallMs;
+        mLatencyMonitorDurationInSeconds = old.mLatencyMonitorDurationInSeconds;
         setName("Loopback_NativeAudio");
     }
 
@@ -170,6 +193,7 @@ public class NativeAudioThread extends Thread {
                                  short[] sincTone, int maxRecordedLateCallbacks,
                                  int ignoreFirstFrames);
     public native int   nativeProcessNext(long nativeHandle, double[] samples, long offset);
+    public native int   nativeInjectImpulse(long nativeHandle);
     public native int   nativeDestroy(long nativeHandle);
 
     // to get buffer period data
@@ -179,10 +203,15 @@ public class NativeAudioThread extends Thread {
     public native int[]  nativeGetPlayerBufferPeriod(long nativeHandle);
     public native int    nativeGetPlayerMaxBufferPeriod(long nativeHandle);
     public native double nativeGetPlayerVarianceBufferPeriod(long nativeHandle);
+    public native HdrHistogram nativeGetRecorderBufferPeriodHistogram(long nativeHandle);
+    public native HdrHistogram nativeGetPlayerBufferPeriodHistogram(long nativeHandle);
+    public native double[] nativeGetRecorderBufferPeriodMoments(long nativeHandle);
+    public native double[] nativeGetPlayerBufferPeriodMoments(long nativeHandle);
     public native BufferCallbackTimes nativeGetPlayerCallbackTimeStamps(long nativeHandle);
     public native BufferCallbackTimes nativeGetRecorderCallbackTimeStamps(long nativeHandle);
 
     public native int nativeGetCaptureRank(long nativeHandle);
+    public native ByteBuffer nativeGetSharedStats(long nativeHandle);
 
 
     public void run() {
@@ -199,6 +228,7 @@ public class NativeAudioThread extends Thread {
             Message msg = Message.obtain();
             switch (mTestType) {
             case Constant.LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_LATENCY:
+            case Constant.LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_LATENCY_MONITOR:
                 msg.what = LOOPBACK_NATIVE_AUDIO_THREAD_MESSAGE_LATENCY_REC_STARTED;
                 break;
             case Constant.LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_BUFFER_PERIOD:
@@ -210,7 +240,8 @@ public class NativeAudioThread extends Thread {
 
         // generate windowed tone use for loopback test
         short loopbackTone[] = new short[mMinPlayerBufferSizeInBytes / Constant.BYTES_PER_FRAME];
-        if (mTestType == Constant.LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_LATENCY) {
+        if (mTestType == Constant.LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_LATENCY
+                || mTestType == Constant.LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_LATENCY_MONITOR) {
             ToneGeneration sincToneGen = new RampedSineTone(mSamplingRate,
                     Constant.LOOPBACK_FREQUENCY);
             int sincLength = Math.min(Constant.LOOPBACK_SAMPLE_FRAMES, loopbackTone.length);
@@ -220,14 +251,26 @@ public class NativeAudioThread extends Thread {
         log(String.format("about to init, sampling rate: %d, buffer:%d", mSamplingRate,
                 mMinPlayerBufferSizeInBytes / Constant.BYTES_PER_FRAME));
 
-        // mPipeByteBuffer is only used in buffer test
-        mPipeByteBuffer = new PipeByteBuffer(Constant.MAX_SHORTS);
+        // mPipeByteBuffer is only used in buffer test, where it's sized for the worst stall of
+        // the glitch detection
+        int pipeStallMs = 0;
+        if (mTestType == Constant.LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_BUFFER_PERIOD) {
+            pipeStallMs = mPipeStallMs;
+        }
+        mPipeByteBuffer = new PipeByteBuffer(Pipe.getSize(mSamplingRate,
+                mMinPlayerBufferSizeInBytes / Constant.BYTES_PER_FRAME, pipeStallMs),
+                mSamplingRate);
+        log("pipe size: " + mPipeByteBuffer.getSize());
+        int testDurationInSeconds = mBufferTestDurationInSeconds;
+        if (mTestType == Constant.LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_LATENCY_MONITOR) {
+            testDurationInSeconds = mLatencyMonitorDurationInSeconds;
+        }
         long startTimeMs = System.currentTimeMillis();
         long nativeHandle = nativeInit(mThreadType, mSamplingRate,
                 mMinPlayerBufferSizeInBytes / Constant.BYTES_PER_FRAME, mMicSource,
                 mPerformanceMode, mTestType,
                 mFrequency1, mPipeByteBuffer.getByteBuffer(), loopbackTone,
-                mBufferTestDurationInSeconds * Constant.MAX_RECORDED_LATE_CALLBACKS_PER_SECOND,
+                testDurationInSeconds * Constant.MAX_RECORDED_LATE_CALLBACKS_PER_SECOND,
                 mIgnoreFirstFrames);
         log(String.format("nativeHandle = 0x%X", nativeHandle));
 
@@ -238,6 +281,7 @@ public class NativeAudioThread extends Thread {
                 Message msg = Message.obtain();
                 switch (mTestType) {
                 case Constant.LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_LATENCY:
+                case Constant.LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_LATENCY_MONITOR:
                     msg.what = LOOPBACK_NATIVE_AUDIO_THREAD_MESSAGE_LATENCY_REC_ERROR;
                     break;
                 case Constant.LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_BUFFER_PERIOD:
@@ -247,6 +291,9 @@ public class NativeAudioThread extends Thread {
                 mMessageHandler.sendMessage(msg);
             }
         } else {
+            mLiveBufferStats = new LiveBufferStats(nativeGetSharedStats(nativeHandle));
+            setUpCallbackTimelines();
+
             // wait a little bit
             try {
                 final int setUpTime = 10;
@@ -259,7 +306,7 @@ public class NativeAudioThread extends Thread {
             int totalSamplesRead = 0;
             switch (mTestType) {
             case Constant.LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_LATENCY:
-                final int latencyTestDurationInSeconds = 2;
+                final int latencyTestDurationInSeconds = Constant.LATENCY_TEST_DURATION_SECONDS;
                 int nNewSize = (int) (1.1 * mSamplingRate * latencyTestDurationInSeconds);
                 mSamples = new double[nNewSize];
                 mSamplesIndex = 0; //reset index
@@ -267,19 +314,35 @@ public class NativeAudioThread extends Thread {
 
                 //TODO use a ByteBuffer to retrieve recorded data instead
                 long offset = 0;
-                // retrieve native recorder's recorded data
-                for (int ii = 0; ii < latencyTestDurationInSeconds; ii++) {
-                    log(String.format("block %d...", ii));
+                // retrieve native recorder's recorded data, one period at a time, until the
+                // loopback tone is found or the maximum duration has elapsed
+                StreamingCorrelation streamingCorrelation =
+                        new StreamingCorrelation(mSamplingRate);
+                int periods = latencyTestDurationInSeconds * Constant.MILLIS_PER_SECOND
+                        / Constant.NATIVE_PROCESS_NEXT_PERIOD_MS;
+                for (int ii = 0; ii < periods; ii++) {
                     int samplesRead = nativeProcessNext(nativeHandle, mSamples, offset);
+                    samplesRead = (int) Math.min(samplesRead, mSamples.length - offset);
+                    drainCallbackTimelines();
                     totalSamplesRead += samplesRead;
+                    boolean isLoopbackFound = streamingCorrelation.process(mSamples,
+                            (int) offset, samplesRead);
                     offset += samplesRead;
                     log(" [" + ii + "] jni samples read:" + samplesRead +
                         "  currentOffset:" + offset);
+                    if (isLoopbackFound) {
+                        log(String.format("Loopback found after %d periods", ii + 1));
+                        mSamples = Arrays.copyOf(mSamples, (int) offset);
+                        break;
+                    }
                 }
 
                 log(String.format(" samplesRead: %d, sampleOffset:%d", totalSamplesRead, offset));
                 log("about to destroy...");
                 break;
+            case Constant.LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_LATENCY_MONITOR:
+                totalSamplesRead = runLatencyMonitor(nativeHandle, startTimeMs);
+                break;
             case Constant.LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_BUFFER_PERIOD:
                 setUpGlitchDetectionThread();
                 long testDurationMs = mBufferTestDurationInSeconds * Constant.MILLIS_PER_SECOND;
@@ -293,6 +356,7 @@ public class NativeAudioThread extends Thread {
                             //log("Late callback detected");
                             mCaptureHolder.captureState(rank);
                         }
+                        drainCallbackTimelines();
                         try {
                             final int setUpTime = 100;
                             sleep(setUpTime); //just to let it start properly
@@ -317,19 +381,32 @@ public class NativeAudioThread extends Thread {
             mPlayerMaxBufferPeriod = nativeGetPlayerMaxBufferPeriod(nativeHandle);
             mPlayerStdDevBufferPeriod = Math.sqrt(nativeGetPlayerVarianceBufferPeriod(
                     nativeHandle));
-
-            mPlayerCallbackTimes = nativeGetPlayerCallbackTimeStamps(nativeHandle);
-            mRecorderCallbackTimes = nativeGetRecorderCallbackTimeStamps(nativeHandle);
+            mRecorderBufferPeriodHistogram = nativeGetRecorderBufferPeriodHistogram(nativeHandle);
+            mPlayerBufferPeriodHistogram = nativeGetPlayerBufferPeriodHistogram(nativeHandle);
+            mRecorderBufferPeriodMoments = new WindowedMoments(
+                    nativeGetRecorderBufferPeriodMoments(nativeHandle));
+            mPlayerBufferPeriodMoments = new WindowedMoments(
+                    nativeGetPlayerBufferPeriodMoments(nativeHandle));
+
+            drainCallbackTimelines();
+            mPlayerCallbackTimes = getCallbackTimes(mPlayerCallbackTimeline,
+                    nativeGetPlayerCallbackTimeStamps(nativeHandle));
+            mRecorderCallbackTimes = getCallbackTimes(mRecorderCallbackTimeline,
+                    nativeGetRecorderCallbackTimeStamps(nativeHandle));
 
             // get glitches data only for buffer test
             if (mTestType == Constant.LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_BUFFER_PERIOD) {
                 mAllGlitches = mGlitchDetectionThread.getGlitches();
+                mGlitchUnit = mGlitchDetectionThread.getGlitchUnit();
+                mAllGlitchMagnitudes = mGlitchDetectionThread.getGlitchMagnitudes();
+                mGlitchEventLog = mGlitchDetectionThread.getGlitchEventLog();
                 mSamples = mGlitchDetectionThread.getWaveData();
                 mGlitchingIntervalTooLong = mGlitchDetectionThread.getGlitchingIntervalTooLong();
                 endDetecting();
             }
 
-            if (mTestType == Constant.LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_LATENCY) {
+            if (mTestType == Constant.LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_LATENCY
+                    || mTestType == Constant.LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_LATENCY_MONITOR) {
                 mCaptureHolder.captureState(0);
             }
 
@@ -372,6 +449,121 @@ public class NativeAudioThread extends Thread {
     }
 
 
+    /**
+     * Measure the latency once per period until the latency monitor duration has elapsed or the
+     * test is stopped, keeping the same streams open. The tone is injected again at the end of
+     * each period, and each period is correlated as it's being read. Each measurement is stamped
+     * with the time of the first sample of its period in the recording. Returns the number of
+     * samples read.
+     */
+    private int runLatencyMonitor(long nativeHandle, long startTimeMs) {
+        int periodsPerWindow = Constant.LATENCY_MONITOR_PERIOD_MS
+                / Constant.NATIVE_PROCESS_NEXT_PERIOD_MS;
+        double[] window = new double[(int) (1.1 * mSamplingRate
+                * Constant.LATENCY_MONITOR_PERIOD_MS / Constant.MILLIS_PER_SECOND)];
+        mLatencyTimeSeries = new LatencyTimeSeries(mLatencyMonitorDurationInSeconds
+                * Constant.MILLIS_PER_SECOND / Constant.LATENCY_MONITOR_PERIOD_MS + 1);
+        StreamingCorrelation streamingCorrelation = new StreamingCorrelation(mSamplingRate);
+        Correlation correlation = new Correlation();
+
+        int totalSamplesRead = 0;
+        long testDurationMs = mLatencyMonitorDurationInSeconds * Constant.MILLIS_PER_SECOND;
+        long elapsedTimeMs = System.currentTimeMillis() - startTimeMs;
+        // the tone is injected on its own in the first window, then at the end of every window
+        while (elapsedTimeMs < testDurationMs && !mIsRequestStop) {
+            int windowStartMs = (int) ((long) totalSamplesRead * Constant.MILLIS_PER_SECOND
+                    / mSamplingRate);
+            streamingCorrelation.reset();
+            boolean isLoopbackFound = false;
+            int offset = 0;
+            Arrays.fill(window, 0);
+            for (int ii = 0; ii < periodsPerWindow && !mIsRequestStop; ii++) {
+                int samplesRead = nativeProcessNext(nativeHandle, window, offset);
+                samplesRead = Math.min(samplesRead, window.length - offset);
+                drainCallbackTimelines();
+                if (!isLoopbackFound) {
+                    isLoopbackFound = streamingCorrelation.process(window, offset, samplesRead);
+                }
+                offset += samplesRead;
+            }
+            totalSamplesRead += offset;
+
+            // the last window is the one shown on WavePlotView
+            mSamples = Arrays.copyOf(window, offset);
+            correlation.invalidate();
+            if (isLoopbackFound) {
+                // measure again over the whole window, with sub-sample precision
+                correlation.computeCorrelation(mSamples, mSamplingRate);
+            }
+            if (correlation.isValid()) {
+                mLatencyTimeSeries.recordLatency(windowStartMs,
+                        correlation.mEstimatedLatencyMs,
+                        correlation.mEstimatedLatencyConfidence);
+                log(String.format("latency at %d ms: %.2f ms, confidence %.2f", windowStartMs,
+                        correlation.mEstimatedLatencyMs,
+                        correlation.mEstimatedLatencyConfidence));
+            } else {
+                log(String.format("loopback not found in window at %d ms", windowStartMs));
+            }
+
+            nativeInjectImpulse(nativeHandle);
+            elapsedTimeMs = System.currentTimeMillis() - startTimeMs;
+        }
+
+        return totalSamplesRead;
+    }
+
+
+    /** Create the timelines of every callback of the native streams, for the whole test. */
+    private void setUpCallbackTimelines() {
+        int durationInSeconds;
+        switch (mTestType) {
+        case Constant.LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_LATENCY_MONITOR:
+            durationInSeconds = mLatencyMonitorDurationInSeconds;
+            break;
+        case Constant.LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_BUFFER_PERIOD:
+            durationInSeconds = mBufferTestDurationInSeconds;
+            break;
+        default:
+            durationInSeconds = Constant.LATENCY_TEST_DURATION_SECONDS;
+            break;
+        }
+        // both streams use the same buffer size
+        long expectedPeriodUs = (long) mMinPlayerBufferSizeInBytes / Constant.BYTES_PER_FRAME
+                * Constant.MICROS_PER_SECOND / mSamplingRate;
+        long durationUs = durationInSeconds * Constant.MICROS_PER_SECOND;
+        mPlayerCallbackTimeline = new CallbackTimeline(expectedPeriodUs, durationUs);
+        mRecorderCallbackTimeline = new CallbackTimeline(expectedPeriodUs, durationUs);
+    }
+
+
+    /**
+     * Append the callbacks of the native streams since the last call to their timelines. The
+     * native rings hold a few seconds of callbacks, so this is called at least once per
+     * NATIVE_PROCESS_NEXT_PERIOD_MS.
+     */
+    private void drainCallbackTimelines() {
+        mLiveBufferStats.drainCallbacks(LiveBufferStats.PLAYER, mPlayerCallbackTimeline);
+        mLiveBufferStats.drainCallbacks(LiveBufferStats.RECORDER, mRecorderCallbackTimeline);
+    }
+
+
+    /**
+     * Return the late and early callbacks of a stream from its timeline, or else those that the
+     * native code recorded, as a stream without callbacks of its own has an empty timeline:
+     * the AAudio recorder is read from the player callback.
+     */
+    private static BufferCallbackTimes getCallbackTimes(CallbackTimeline timeline,
+                                                        BufferCallbackTimes nativeCallbackTimes) {
+        if (timeline.getCount() == 0) {
+            return nativeCallbackTimes;
+        }
+        // the same callbacks as the buffer periods, the first ones are discarded
+        return new BufferCallbackTimes(timeline, Math.max(Constant.BUFFER_PERIOD_DISCARD, 1),
+                nativeCallbackTimes.getExpectedBufferPeriod());
+    }
+
+
     /** Set up parameters needed for GlitchDetectionThread, then create and run this thread. */
     private void setUpGlitchDetectionThread() {
         final int targetFFTMs = 20; // we want each FFT to cover 20ms of samples
@@ -386,12 +578,15 @@ public class NativeAudioThread extends Thread {
 
         mGlitchDetectionThread = new GlitchDetectionThread(mFrequency1, mFrequency2, mSamplingRate,
             mFFTSamplingSize, mFFTOverlapSamples, mBufferTestDurationInSeconds,
-            mBufferTestWavePlotDurationInSeconds, mPipeByteBuffer, mCaptureHolder);
+            mBufferTestWavePlotDurationInSeconds, mPipeByteBuffer, mCaptureHolder,
+            mGlitchDetector, mExtraGlitchDetectors);
         mGlitchDetectionThread.start();
     }
 
 
     public void endDetecting() {
+        mPipeSize = mPipeByteBuffer.getSize();
+        mPipeHighWatermark = mPipeByteBuffer.getHighWatermark();
         mPipeByteBuffer.flush();
         mPipeByteBuffer = null;
         mGlitchDetectionThread.requestStop();
@@ -410,6 +605,35 @@ public class NativeAudioThread extends Thread {
     }
 
 
+    /** Select the glitch detector used by the buffer test, must be called before start(). */
+    public void setGlitchDetector(int glitchDetector) {
+        mGlitchDetector = glitchDetector;
+    }
+
+
+    /**
+     * Select the glitch detectors that run next to the one of setGlitchDetector(), bit n set for
+     * detector n. Must be called before start().
+     */
+    public void setExtraGlitchDetectors(int extraGlitchDetectors) {
+        mExtraGlitchDetectors = extraGlitchDetectors;
+    }
+
+
+    /**
+     * Set the worst stall of the glitch detection the pipe must allow for in buffer test, which
+     * sizes the pipe. Must be called before start().
+     */
+    public void setPipeStallMs(int pipeStallMs) {
+        mPipeStallMs = pipeStallMs;
+    }
+
+
+    public void setLatencyMonitorDuration(int latencyMonitorDurationInSeconds) {
+        mLatencyMonitorDurationInSeconds = latencyMonitorDurationInSeconds;
+    }
+
+
     private void runDestroy(final long localNativeHandle) {
         isDestroying = true;
 
@@ -449,6 +673,7 @@ public class NativeAudioThread extends Thread {
            if (hasDestroyingErrors) {
                switch (mTestType) {
                    case Constant.LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_LATENCY:
+                   case Constant.LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_LATENCY_MONITOR:
                        msg.what = LOOPBACK_NATIVE_AUDIO_THREAD_MESSAGE_LATENCY_REC_COMPLETE_ERRORS;
                        break;
                    case Constant.LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_BUFFER_PERIOD:
@@ -458,6 +683,7 @@ public class NativeAudioThread extends Thread {
            } else if (mIsRequestStop) {
                switch (mTestType) {
                    case Constant.LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_LATENCY:
+                   case Constant.LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_LATENCY_MONITOR:
                        msg.what = LOOPBACK_NATIVE_AUDIO_THREAD_MESSAGE_LATENCY_REC_STOP;
                        break;
                    case Constant.LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_BUFFER_PERIOD:
@@ -467,6 +693,7 @@ public class NativeAudioThread extends Thread {
            } else {
                switch (mTestType) {
                case Constant.LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_LATENCY:
+               case Constant.LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_LATENCY_MONITOR:
                    msg.what = LOOPBACK_NATIVE_AUDIO_THREAD_MESSAGE_LATENCY_REC_COMPLETE;
                    break;
                case Constant.LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_BUFFER_PERIOD:
@@ -519,11 +746,54 @@ public class NativeAudioThread extends Thread {
         return mPlayerStdDevBufferPeriod;
     }
 
+    public HdrHistogram getRecorderBufferPeriodHistogram() {
+        return mRecorderBufferPeriodHistogram;
+    }
+
+    public HdrHistogram getPlayerBufferPeriodHistogram() {
+        return mPlayerBufferPeriodHistogram;
+    }
+
+    public WindowedMoments getRecorderBufferPeriodMoments() {
+        return mRecorderBufferPeriodMoments;
+    }
+
+    public WindowedMoments getPlayerBufferPeriodMoments() {
+        return mPlayerBufferPeriodMoments;
+    }
+
     public int[] getNativeAllGlitches() {
         return mAllGlitches;
     }
 
 
+    public int getGlitchUnit() {
+        return mGlitchUnit;
+    }
+
+
+    public double[] getNativeAllGlitchMagnitudes() {
+        return mAllGlitchMagnitudes;
+    }
+
+
+    public GlitchEventLog getGlitchEventLog() {
+        return mGlitchEventLog;
+    }
+
+
+    /** Return the size of the pipe read by the glitch detection, in samples. */
+    public int getPipeSize() {
+        return mPipeSize;
+    }
+
+
+    /** Return the most samples that waited in the pipe read by the glitch detection. */
+    public int getPipeHighWatermark() {
+        return mPipeHighWatermark;
+    }
+
+
     public boolean getGlitchingIntervalTooLong() {
         return mGlitchingIntervalTooLong;
     }
@@ -550,4 +820,23 @@ public class NativeAudioThread extends Thread {
     public BufferCallbackTimes getRecorderCallbackTimes() {
         return mRecorderCallbackTimes;
     }
+
+    /** Return every callback of the native player, or null before the test starts. */
+    public CallbackTimeline getPlayerCallbackTimeline() {
+        return mPlayerCallbackTimeline;
+    }
+
+    /** Return every callback of the native recorder, empty if it has no callbacks of its own. */
+    public CallbackTimeline getRecorderCallbackTimeline() {
+        return mRecorderCallbackTimeline;
+    }
+
+    /** Return the stats that the native callbacks update, or null before the test starts. */
+    public LiveBufferStats getLiveBufferStats() {
+        return mLiveBufferStats;
+    }
+
+    public LatencyTimeSeries getLatencyTimeSeries() {
+        return mLatencyTimeSeries;
+    }
 }
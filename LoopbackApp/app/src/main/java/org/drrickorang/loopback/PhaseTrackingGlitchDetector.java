@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.drrickorang.loopback;
+
+import android.util.Log;
+
+
+/**
+ * This class detects glitches in a sine wave of known frequency by tracking its amplitude and
+ * phase sample by sample, which works like a phase-locked loop. Each sample is predicted from the
+ * current estimate of the sine wave, and the estimate is then moved towards the sample. A glitch
+ * is found when the prediction error stands out from its usual level, so short discontinuities
+ * such as a single dropped buffer, phase jumps and amplitude steps are found where they happen.
+ */
+
+public class PhaseTrackingGlitchDetector implements GlitchDetector {
+    private static final String TAG = "PhaseTrackingGlitchDetector";
+
+    // how fast the estimate follows the sine wave, the time constant is 2 / ADAPTATION_RATE samples
+    private static final double ADAPTATION_RATE = 0.01;
+    // a prediction error is a glitch if it's this many times larger than its usual RMS value,
+    // and larger than this fraction of the amplitude of the sine wave
+    private static final double GLITCH_ERROR_TO_RMS_RATIO = 8;
+    private static final double GLITCH_ERROR_TO_AMPLITUDE_RATIO = 0.02;
+    private static final double ERROR_POWER_SMOOTHING = 0.0005; // per sample
+    // amplitude below this is considered as silence, 0.001 = -60 dB
+    private static final double MIN_AMPLITUDE = 0.001;
+    // the estimate must follow the sine wave for this long before glitches are reported
+    private static final int    LOCK_MS = 50;
+    // the reference sine wave is computed again from its phase this often
+    private static final int    RESYNC_SAMPLES = 4096;
+
+    private final GlitchListener mListener;
+    private final double mPhaseIncrement;       // radians per sample
+    private final double mCosIncrement;
+    private final double mSinIncrement;
+    private final int    mLockSamples;
+    private final int    mPeriodSamples;
+
+    private double  mPhase;                     // phase of the reference for mSampleIndex
+    private double  mCos = 1;                   // reference sine wave
+    private double  mSin = 0;
+    private double  mInPhase;                   // estimate of the sine wave, relative to reference
+    private double  mQuadrature;
+    private double  mErrorPower;                // usual value of the prediction error squared
+    private long    mSampleIndex;
+
+    private boolean mIsLocked;
+    private boolean mIsGlitching;
+    private int     mCleanSamples;              // consecutive samples without a glitch
+
+
+    public PhaseTrackingGlitchDetector(double frequency, int samplingRate,
+                                       GlitchListener listener) {
+        mListener = listener;
+        mPhaseIncrement = Constant.TWO_PI * frequency / samplingRate;
+        mCosIncrement = Math.cos(mPhaseIncrement);
+        mSinIncrement = Math.sin(mPhaseIncrement);
+        mLockSamples = LOCK_MS * samplingRate / Constant.MILLIS_PER_SECOND;
+        mPeriodSamples = (int) Math.ceil(samplingRate / frequency);
+    }
+
+
+    @Override
+    public void process(double[] data, int offset, int count) {
+        for (int i = 0; i < count; i++) {
+            processSample(data[offset + i]);
+        }
+    }
+
+
+    /**
+     * The sine wave goes on during the lost samples, so the reference is moved ahead by as many
+     * samples and the estimate stays locked.
+     */
+    @Override
+    public void skip(long count) {
+        mSampleIndex += count;
+        mPhase = (mPhase + count * mPhaseIncrement) % Constant.TWO_PI;
+        mCos = Math.cos(mPhase);
+        mSin = Math.sin(mPhase);
+    }
+
+
+    private void processSample(double sample) {
+        double error = sample - (mInPhase * mCos + mQuadrature * mSin);
+        double errorSquared = error * error;
+        double amplitude = Math.sqrt(mInPhase * mInPhase + mQuadrature * mQuadrature);
+        double threshold = Math.max(GLITCH_ERROR_TO_RMS_RATIO * Math.sqrt(mErrorPower),
+                GLITCH_ERROR_TO_AMPLITUDE_RATIO * amplitude);
+        boolean isClean = amplitude >= MIN_AMPLITUDE && Math.abs(error) <= threshold;
+
+        if (isClean) {
+            mCleanSamples++;
+        } else {
+            mCleanSamples = 0;
+        }
+
+        if (!mIsLocked) {
+            mErrorPower += ERROR_POWER_SMOOTHING * (errorSquared - mErrorPower);
+            if (mCleanSamples >= mLockSamples) {
+                mIsLocked = true;
+                log(String.format("locked at %d, amplitude %f", mSampleIndex, amplitude));
+            }
+        } else if (mIsGlitching) {
+            // the glitch is over once the sine wave has been followed for a whole period again
+            if (mCleanSamples >= mPeriodSamples) {
+                mIsGlitching = false;
+            }
+        } else if (!isClean) {
+            mIsGlitching = true;
+            double magnitude = amplitude >= MIN_AMPLITUDE ? Math.abs(error) / amplitude : 1;
+            mListener.onGlitch(mSampleIndex, magnitude);
+        } else {
+            mErrorPower += ERROR_POWER_SMOOTHING * (errorSquared - mErrorPower);
+        }
+
+        // move the estimate towards the sample, this also follows slow drifts of the frequency
+        mInPhase += ADAPTATION_RATE * error * mCos;
+        mQuadrature += ADAPTATION_RATE * error * mSin;
+
+        // advance the reference to the next sample
+        mSampleIndex++;
+        mPhase += mPhaseIncrement;
+        if (mSampleIndex % RESYNC_SAMPLES == 0) {
+            mPhase %= Constant.TWO_PI;
+            mCos = Math.cos(mPhase);
+            mSin = Math.sin(mPhase);
+        } else {
+            double cos = mCos * mCosIncrement - mSin * mSinIncrement;
+            mSin = mSin * mCosIncrement + mCos * mSinIncrement;
+            mCos = cos;
+        }
+    }
+
+
+    private static void log(String msg) {
+        Log.v(TAG, msg);
+    }
+
+}
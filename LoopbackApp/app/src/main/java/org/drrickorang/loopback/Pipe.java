@@ -23,10 +23,35 @@ package org.drrickorang.loopback;
 
 public abstract class Pipe {
     public static final int OVERRUN = -2;   // when there's an overrun, return this value
+    protected static final double SHORT_TO_DOUBLE = 1.0 / Short.MAX_VALUE;
+
+    // at most this many overruns are kept as gaps, the following ones are only counted
+    public static final int MAX_GAPS = 1000;
+
+    // the sizes chosen by getSize() are between these
+    public static final int MIN_SIZE_SAMPLES = 1 << 12;
+    public static final int MAX_SIZE_SAMPLES = 1 << 22; // about 87 seconds at 48 kHz
+    // a pipe always holds this long of audio, plus a few buffers, plus STALL_MARGIN times the
+    // worst stall of its reader
+    private static final int MIN_SIZE_MS = 250;
+    private static final int STALL_MARGIN = 2;
 
     protected int       mSamplesOverrun;
     protected int       mOverruns;
     protected final int mMaxValues;   // always a power of two
+    protected volatile int mHighWatermark; // most samples waiting to be read at once
+
+    // Every sample that goes through the pipe has an absolute index, counted from the first sample
+    // written after the pipe was created or flushed. Samples lost in an overrun keep their indices,
+    // so that the samples read after an overrun are still aligned with the recording.
+    private volatile long mReadIndex;     // index of the next sample to read
+    private long          mLastReadIndex; // index of the first sample returned by the last read
+
+    // the overruns, as gaps of mGapLostFrames[i] samples starting at index mGapStartFrames[i]
+    private final long[]  mGapStartFrames = new long[MAX_GAPS];
+    private final int[]   mGapLostFrames = new int[MAX_GAPS];
+    private int           mNumGaps;
+    private long          mLostFrames;  // total of all the overruns, including those not kept
 
     /** maxSamples must be >= 2. */
     public Pipe(int maxSamples) {
@@ -37,13 +62,144 @@ public abstract class Pipe {
      * Read at most "count" number of samples into array "buffer", starting from index "offset".
      * If the available samples to read is smaller than count, just read as much as it can and
      * return the amount of samples read (non-blocking). offset + count must be <= buffer.length.
+     * The absolute index of the first sample read is then returned by getLastReadIndex().
      */
     public abstract int read(short[] buffer, int offset, int count);
 
+    /**
+     * Same as read(), except that the samples are converted to doubles in [-1, 1] as they are
+     * copied out of the pipe, so that no intermediate array of shorts is needed.
+     */
+    public abstract int read(double[] buffer, int offset, int count);
+
+    /**
+     * Same as read(), except that it first waits until at least "minSamples" samples are
+     * available to read, or "timeoutMs" has elapsed. Return OVERRUN if there's an overrun, or the
+     * amount of samples read, which is smaller than minSamples (maybe 0) after a timeout.
+     */
+    public int read(short[] buffer, int offset, int count, int minSamples, int timeoutMs)
+            throws InterruptedException {
+        int avail = waitForSamples(minSamples, timeoutMs);
+        if (avail <= 0) {
+            return avail;
+        }
+        return read(buffer, offset, count);
+    }
+
+    /**
+     * Wait until at least "minSamples" samples are available to read, or "timeoutMs" has elapsed.
+     * Return the amount of samples available to read, or OVERRUN if there's an overrun.
+     */
+    public abstract int waitForSamples(int minSamples, int timeoutMs) throws InterruptedException;
+
     /** Return the amount of samples available to read. */
     public abstract int availableToRead();
 
-    /** Clear the pipe. */
+    /** Clear the pipe. The next sample written has index 0 again. */
     public abstract void flush();
 
+
+    /**
+     * Return the size of a pipe for audio at samplingRate written bufferSizeInFrames at a time,
+     * that lets its reader stall for stallMs without an overrun.
+     */
+    public static int getSize(int samplingRate, int bufferSizeInFrames, int stallMs) {
+        long sizeMs = MIN_SIZE_MS + (long) STALL_MARGIN * Math.max(stallMs, 0);
+        long size = sizeMs * samplingRate / Constant.MILLIS_PER_SECOND + 2L * bufferSizeInFrames;
+        size = Math.max(MIN_SIZE_SAMPLES, Math.min(size, MAX_SIZE_SAMPLES));
+        return Utilities.roundup((int) size);
+    }
+
+
+    /** Return the number of samples the pipe can hold. */
+    public int getSize() {
+        return mMaxValues;
+    }
+
+
+    /**
+     * Return the most samples that were waiting to be read at once, which is getSize() if there
+     * was an overrun. This tells how far behind the reader fell.
+     */
+    public int getHighWatermark() {
+        return mHighWatermark;
+    }
+
+
+    /** Must be called by the reader with the samples available to read, to update the maximum. */
+    protected void updateHighWatermark(int avail) {
+        if (avail > mHighWatermark) {
+            mHighWatermark = Math.min(avail, mMaxValues);
+        }
+    }
+
+
+    /** Return the absolute index of the next sample to be read. */
+    public long getReadIndex() {
+        return mReadIndex;
+    }
+
+
+    /**
+     * Return the absolute index of the first sample returned by the last successful read, to
+     * tell where the samples read belong in the recording when there were overruns before them.
+     */
+    public long getLastReadIndex() {
+        return mLastReadIndex;
+    }
+
+
+    /** Return the total number of samples lost in overruns. */
+    public synchronized long getLostFrames() {
+        return mLostFrames;
+    }
+
+
+    /** Return the absolute index of the first sample lost in each overrun that was kept. */
+    public synchronized long[] getGapStartFrames() {
+        long[] output = new long[mNumGaps];
+        System.arraycopy(mGapStartFrames, 0, output, 0, mNumGaps);
+        return output;
+    }
+
+
+    /** Return the number of samples lost in each overrun, in the order of getGapStartFrames(). */
+    public synchronized int[] getGapLostFrames() {
+        int[] output = new int[mNumGaps];
+        System.arraycopy(mGapLostFrames, 0, output, 0, mNumGaps);
+        return output;
+    }
+
+
+    /** Must be called by the reader after it reads "count" samples. */
+    protected void onSamplesRead(int count) {
+        mLastReadIndex = mReadIndex;
+        mReadIndex += count;
+    }
+
+
+    /** Must be called by the reader when "count" samples are lost in an overrun. */
+    protected synchronized void onSamplesLost(int count) {
+        if (mNumGaps < MAX_GAPS) {
+            mGapStartFrames[mNumGaps] = mReadIndex;
+            mGapLostFrames[mNumGaps] = count;
+            mNumGaps++;
+        }
+        mLostFrames += count;
+        mHighWatermark = mMaxValues;
+        mSamplesOverrun += count;
+        ++mOverruns;
+        mReadIndex += count;
+    }
+
+
+    /** Must be called by flush(), to count the samples from 0 again. */
+    protected synchronized void resetReadIndex() {
+        mReadIndex = 0;
+        mLastReadIndex = 0;
+        mNumGaps = 0;
+        mLostFrames = 0;
+        mHighWatermark = 0;
+    }
+
 }
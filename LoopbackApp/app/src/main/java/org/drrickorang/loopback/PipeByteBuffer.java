@@ -18,6 +18,8 @@ package org.drrickorang.loopback;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.concurrent.locks.LockSupport;
 
 import android.util.Log;
 
@@ -27,15 +29,22 @@ import android.util.Log;
  * and write to this ByteBuffer directly. On the other hand, reader reads from the pipe using
  * read(), which converts data in ByteBuffer into shorts.
  * Data in the pipe are stored in the ByteBuffer array "mByteBuffer".
+ * The writer is the native audio callback, which can't wake up a Java thread, so a reader waiting
+ * in waitForSamples() sleeps for as long as the missing data takes to arrive at the sampling rate.
  * The write side of a pipe permits overruns; flow control is the caller's responsibility.
  * TODO move to audio_utils
  */
 
 public class PipeByteBuffer extends Pipe {
     private static final String TAG = "PipeByteBuffer";
+    private static final long   MIN_WAIT_NS = Constant.NANOS_PER_MILLI;
 
-    private final ByteBuffer mByteBuffer;
+    private final ByteBuffer  mByteBuffer;
+    private final ShortBuffer mShortBuffer; // view of the pipe section of mByteBuffer
+    private final int         mRearPosition; // in bytes, where the writer stores the rear
     private int              mFront = 0; // reader's current position
+    private final int        mSamplingRate;
+    private volatile int     mFence; // see readRear()
 
 
     /**
@@ -52,27 +61,31 @@ public class PipeByteBuffer extends Pipe {
      * exceed 2^31 - 1, or else overflows happens and the positions of read and mFront becomes
      * incorrect.
      */
-    public PipeByteBuffer(int maxSamples) {
+    public PipeByteBuffer(int maxSamples, int samplingRate) {
         super(maxSamples);
+        mSamplingRate = samplingRate;
         int extraInt = 1; // used to store rear
         int extraShort = extraInt * Constant.SHORTS_PER_INT;
         int numberOfShorts = mMaxValues + extraShort;
         mByteBuffer = ByteBuffer.allocateDirect(numberOfShorts * Constant.BYTES_PER_SHORT);
         mByteBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        mRearPosition = mMaxValues * Constant.BYTES_PER_SHORT;
+
+        // the view has the byte order of mByteBuffer, and doesn't cover the rear
+        mByteBuffer.limit(mRearPosition);
+        mShortBuffer = mByteBuffer.asShortBuffer();
+        mByteBuffer.clear();
     }
 
 
     /**
-     * Convert data in mByteBuffer into short, and put them into "buffer".
+     * Copy data in mByteBuffer into "buffer", in at most two bulk copies.
      * Note: rear and mFront are kept in terms of number of shorts instead of number of bytes.
      */
     @Override
     public int read(short[] buffer, int offset, int requiredSamples) {
         // first, update the current rear
-        int rear;
-        synchronized (mByteBuffer) {
-            rear = mByteBuffer.getInt(mMaxValues * Constant.BYTES_PER_SHORT);
-        }
+        int rear = readRear();
         //log("initial offset: " + offset + "\n initial requiredSamples: " + requiredSamples);
 
         // after here, rear may actually be updated further. However, we don't care. If at the point
@@ -95,32 +108,64 @@ public class PipeByteBuffer extends Pipe {
             read = requiredSamples;
         }
 
-        int byteBufferFront = front * Constant.BYTES_PER_SHORT; // start reading from here
-        byteBufferToArray(buffer, offset, read, byteBufferFront);
+        mShortBuffer.position(front);
+        mShortBuffer.get(buffer, offset, read);
 
-        if (front + read == mMaxValues) {
-            int samplesLeft = requiredSamples - read;
-            if (samplesLeft > 0) {
-                byteBufferFront = 0;
-                byteBufferToArray(buffer, offset + read, read + samplesLeft, byteBufferFront);
-                read += samplesLeft;
-            }
+        int samplesLeft = requiredSamples - read;
+        if (samplesLeft > 0) {
+            // the data wraps around to the beginning of the pipe
+            mShortBuffer.position(0);
+            mShortBuffer.get(buffer, offset + read, samplesLeft);
+            read += samplesLeft;
         }
 
         mFront += read;
+        onSamplesRead(read);
         return read;
     }
 
 
+    @Override
+    public int read(double[] buffer, int offset, int requiredSamples) {
+        int avail = availableToRead(readRear(), mFront);
+        if (avail <= 0) {
+            return avail;
+        }
+        if (requiredSamples > avail) {
+            requiredSamples = avail;
+        }
+
+        // convert straight out of the direct buffer, the samples wrap around at most once
+        int mask = mMaxValues - 1;
+        for (int i = 0; i < requiredSamples; i++) {
+            buffer[offset + i] = mShortBuffer.get((mFront + i) & mask) * SHORT_TO_DOUBLE;
+        }
+
+        mFront += requiredSamples;
+        onSamplesRead(requiredSamples);
+        return requiredSamples;
+    }
+
+
     /**
-     * Copy mByteBuffer's data (starting from "byteBufferFront") into double array "buffer".
-     * "start" is the starting index of "buffer" and "length" is the amount of samples copying.
+     * Return the rear stored by the writer. The writer stores it with release ordering after
+     * writing the data, and the fence that follows keeps the data from being read before the
+     * rear, as Java has no acquire load for the memory of a ByteBuffer.
      */
-    private void byteBufferToArray(short[] buffer, int start, int length, int byteBufferFront) {
-        for (int i = start; i < (start + length); i++) {
-            buffer[i] = mByteBuffer.getShort(byteBufferFront);
-            byteBufferFront += Constant.BYTES_PER_SHORT;
-        }
+    private int readRear() {
+        int rear = mByteBuffer.getInt(mRearPosition);
+        fence();
+        return rear;
+    }
+
+
+    /**
+     * A volatile store then a volatile load, which no read of the buffer can be moved across,
+     * as there are no explicit memory fences before Java 8. Returns the value loaded.
+     */
+    private int fence() {
+        mFence = 0;
+        return mFence;
     }
 
 
@@ -131,25 +176,42 @@ public class PipeByteBuffer extends Pipe {
             // Discard 1/16 of the most recent data in pipe to avoid another overrun immediately
             int oldFront = mFront;
             mFront = rear - mMaxValues + (mMaxValues >> 5);
-            mSamplesOverrun += mFront - oldFront;
-            ++mOverruns;
+            onSamplesLost(mFront - oldFront);
             return OVERRUN;
         }
 
+        updateHighWatermark(avail);
         return avail;
     }
 
 
     @Override
-    public int availableToRead() {
-        int rear;
-        int avail;
-        synchronized (mByteBuffer) {
-            rear = mByteBuffer.getInt(mMaxValues * Constant.BYTES_PER_SHORT);
+    public int waitForSamples(int minSamples, int timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutMs * Constant.NANOS_PER_MILLI;
+        while (true) {
+            int avail = availableToRead();
+            if (avail >= minSamples || avail == OVERRUN) {
+                return avail;
+            }
+
+            long remainingNs = deadline - System.nanoTime();
+            if (remainingNs <= 0) {
+                return avail;
+            }
+            // the writer delivers a whole callback at once, so don't wake up too often for it
+            long missingNs = Math.max(MIN_WAIT_NS, (minSamples - avail)
+                    * Constant.NANOS_PER_MILLI * Constant.MILLIS_PER_SECOND / mSamplingRate);
+            LockSupport.parkNanos(this, Math.min(missingNs, remainingNs));
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
         }
+    }
 
-        avail = availableToRead(rear, mFront);
-        return avail;
+
+    @Override
+    public int availableToRead() {
+        return availableToRead(readRear(), mFront);
     }
 
 
@@ -162,9 +224,8 @@ public class PipeByteBuffer extends Pipe {
     public void flush() {
         //set rear and front to zero
         mFront = 0;
-        synchronized (mByteBuffer) {
-            mByteBuffer.putInt(mMaxValues * Constant.BYTES_PER_SHORT, 0);
-        }
+        mByteBuffer.putInt(mRearPosition, 0);
+        resetReadIndex();
     }
 
 
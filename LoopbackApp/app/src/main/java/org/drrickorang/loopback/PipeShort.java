@@ -16,10 +16,14 @@
 
 package org.drrickorang.loopback;
 
+import java.util.concurrent.locks.LockSupport;
+
 
 /**
  * Non-blocking pipe where writer writes to the pipe using write() and read reads from the pipe
  * using read(). Data in the pipe are stored in the short array "mBuffer".
+ * The reader can also wait for data with waitForSamples(), in which case the writer wakes it up
+ * once enough data has been written, without taking a lock.
  * The write side of a pipe permits overruns; flow control is the caller's responsibility.
  */
 
@@ -29,6 +33,11 @@ public class PipeShort extends Pipe {
     private final short  mBuffer[]; // store that data in the pipe
     private volatile int mVolatileRear; // used to keep rear synchronized
 
+    // the reader waiting in waitForSamples(), to be woken up by the writer once mRear reaches
+    // mWakeRear. Both are volatile so that the writer never needs to take a lock.
+    private volatile Thread mWaitingReader;
+    private volatile int    mWakeRear;
+
 
     /**
      * IMPORTANT: Since a signed integer is used to store mRear and mFront, their values should not
@@ -68,6 +77,11 @@ public class PipeShort extends Pipe {
 
         mRear += written;
         mVolatileRear = mRear;
+
+        Thread reader = mWaitingReader;
+        if (reader != null && mRear - mWakeRear >= 0) {
+            LockSupport.unpark(reader);
+        }
         return written;
     }
 
@@ -108,10 +122,62 @@ public class PipeShort extends Pipe {
         }
 
         mFront += read;
+        onSamplesRead(read);
         return read;
     }
 
 
+    @Override
+    public int read(double[] buffer, int offset, int count) {
+        int avail = availableToRead();
+        if (avail <= 0) {
+            return avail;
+        }
+        if (count > avail) {
+            count = avail;
+        }
+
+        // the samples wrap around at most once, mask the upper bits to get their positions
+        int mask = mMaxValues - 1;
+        for (int i = 0; i < count; i++) {
+            buffer[offset + i] = mBuffer[(mFront + i) & mask] * SHORT_TO_DOUBLE;
+        }
+
+        mFront += count;
+        onSamplesRead(count);
+        return count;
+    }
+
+
+    @Override
+    public int waitForSamples(int minSamples, int timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutMs * Constant.NANOS_PER_MILLI;
+
+        // mWakeRear must be set before mWaitingReader, and mWaitingReader before checking the
+        // available samples, so that either this sees the samples or the writer sees the reader
+        mWakeRear = mFront + minSamples;
+        mWaitingReader = Thread.currentThread();
+        try {
+            while (true) {
+                int avail = availableToRead();
+                if (avail >= minSamples || avail == OVERRUN) {
+                    return avail;
+                }
+
+                long remainingNs = deadline - System.nanoTime();
+                if (remainingNs <= 0) {
+                    return avail;
+                }
+                LockSupport.parkNanos(this, remainingNs);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        } finally {
+            mWaitingReader = null;
+        }
+    }
+
 
     @Override
     public int availableToRead() {
@@ -121,11 +187,11 @@ public class PipeShort extends Pipe {
             // Discard 1/16 of the most recent data in pipe to avoid another overrun immediately
             int oldFront = mFront;
             mFront = rear - mMaxValues + (mMaxValues >> 4);
-            mSamplesOverrun += mFront - oldFront;
-            ++mOverruns;
+            onSamplesLost(mFront - oldFront);
             return OVERRUN;
         }
 
+        updateHighWatermark(avail);
         return avail;
     }
 
@@ -134,6 +200,7 @@ public class PipeShort extends Pipe {
     public void flush() {
         mRear = mFront;
         mVolatileRear = mFront;
+        resetReadIndex();
     }
 
 }
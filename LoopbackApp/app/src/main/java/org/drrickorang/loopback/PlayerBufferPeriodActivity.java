@@ -43,6 +43,8 @@ public class PlayerBufferPeriodActivity extends Activity {
         int bufferDataMax = bundle.getInt("playerBufferPeriodMax");
         histogramView.setBufferPeriodArray(bufferData);
         histogramView.setMaxBufferPeriod(bufferDataMax);
+        histogramView.setHistogram((HdrHistogram) bundle.getParcelable(
+                "playerBufferPeriodHistogram"));
     }
 
 }
@@ -45,6 +45,8 @@ public class RecorderBufferPeriodActivity extends Activity {
         int bufferDataMax = bundle.getInt("recorderBufferPeriodMax");
         histogramView.setBufferPeriodArray(bufferData);
         histogramView.setMaxBufferPeriod(bufferDataMax);
+        histogramView.setHistogram((HdrHistogram) bundle.getParcelable(
+                "recorderBufferPeriodHistogram"));
 
     }
 
@@ -23,6 +23,8 @@ import android.media.AudioRecord;
 import android.os.Build;
 import android.util.Log;
 
+import java.util.Arrays;
+
 /**
  * This thread records incoming sound samples (uses AudioRecord).
  */
@@ -36,10 +38,11 @@ public class RecorderRunnable implements Runnable {
     private static final Object sRecordingLock = new Object();
 
     private final LoopbackAudioThread mAudioThread;
-    // This is the pipe that connects the player and the recorder in latency test.
-    private final PipeShort           mLatencyTestPipeShort;
-    // This is the pipe that is used in buffer test to send data to GlitchDetectionThread
-    private PipeShort                 mBufferTestPipeShort;
+    // All the recorded samples are written here once, and read by each of their consumers: the
+    // player in latency test, and GlitchDetectionThread in buffer test.
+    private final BroadcastRing       mRecordedAudio;
+    // This is the consumer that is used in buffer test to send data to GlitchDetectionThread
+    private BroadcastRing.Consumer    mBufferTestPipe;
 
     private boolean   mIsRequestStop = false;
     private final int mTestType;    // latency test or buffer test
@@ -62,6 +65,8 @@ public class RecorderRunnable implements Runnable {
     private final double          mFrequency1;
     private final double          mFrequency2; // not actually used
     private int[]                 mAllGlitches; // value = 1 means there's a glitch in that interval
+    private int                   mGlitchUnit;  // number of samples per unit of mAllGlitches
+    private double[]              mAllGlitchMagnitudes;
     private boolean               mGlitchingIntervalTooLong;
     private int                   mFFTSamplingSize; // the amount of samples used per FFT.
     private int                   mFFTOverlapSamples; // overlap half the samples
@@ -72,6 +77,11 @@ public class RecorderRunnable implements Runnable {
     private final Context         mContext;
     private AudioManager          mAudioManager;
     private GlitchDetectionThread mGlitchDetectionThread;
+    private int                   mGlitchDetector = Constant.GLITCH_DETECTOR_CENTER_OF_MASS;
+    private int                   mExtraGlitchDetectors;
+    private GlitchEventLog        mGlitchEventLog;
+    private int                   mPipeSize;          // of mBufferTestPipe
+    private int                   mPipeHighWatermark; // of mBufferTestPipe
 
     // for adjusting sound level in buffer test
     private double[] mSoundLevelSamples;
@@ -84,13 +94,15 @@ public class RecorderRunnable implements Runnable {
 
     private double[]  mSamples; // samples shown on WavePlotView
     private int       mSamplesIndex;
+    private StreamingCorrelation mStreamingCorrelation; // used to end latency test early
 
-    RecorderRunnable(PipeShort latencyPipe, int samplingRate, int channelConfig, int audioFormat,
-                     int recorderBufferInBytes, int micSource, LoopbackAudioThread audioThread,
+    RecorderRunnable(BroadcastRing recordedAudio, int samplingRate, int channelConfig,
+                     int audioFormat, int recorderBufferInBytes, int micSource,
+                     LoopbackAudioThread audioThread,
                      BufferPeriod recorderBufferPeriod, int testType, double frequency1,
                      double frequency2, int bufferTestWavePlotDurationInSeconds,
                      Context context, int channelIndex, CaptureHolder captureHolder) {
-        mLatencyTestPipeShort = latencyPipe;
+        mRecordedAudio = recordedAudio;
         mSamplingRate = samplingRate;
         mChannelConfig = channelConfig;
         mAudioFormat = audioFormat;
@@ -245,9 +257,10 @@ public class RecorderRunnable implements Runnable {
             mIsRecording = true;
         }
 
-        final int samplesDurationInSecond = 2;
-        int nNewSize = mSamplingRate * samplesDurationInSecond; // 2 seconds!
+        final int samplesDurationInSecond = Constant.LATENCY_TEST_DURATION_SECONDS;
+        int nNewSize = mSamplingRate * samplesDurationInSecond;
         mSamples = new double[nNewSize];
+        mStreamingCorrelation = new StreamingCorrelation(mSamplingRate);
 
         boolean status = initRecord();
         if (status) {
@@ -285,16 +298,16 @@ public class RecorderRunnable implements Runnable {
 
 
     void startRecordingForReal() {
-        mLatencyTestPipeShort.flush();
         mRecorder.startRecording();
     }
 
 
     void startBufferRecordingForReal() {
-        mBufferTestPipeShort = new PipeShort(Constant.MAX_SHORTS);
+        mBufferTestPipe = mRecordedAudio.addConsumer("glitch detection");
         mGlitchDetectionThread = new GlitchDetectionThread(mFrequency1, mFrequency2, mSamplingRate,
                 mFFTSamplingSize, mFFTOverlapSamples, mBufferTestDurationInSeconds,
-                mBufferTestWavePlotDurationInSeconds, mBufferTestPipeShort, mCaptureHolder);
+                mBufferTestWavePlotDurationInSeconds, mBufferTestPipe, mCaptureHolder,
+                mGlitchDetector, mExtraGlitchDetectors);
         mGlitchDetectionThread.start();
         mRecorder.startRecording();
     }
@@ -353,8 +366,9 @@ public class RecorderRunnable implements Runnable {
                             }
                         }
 
-                        mLatencyTestPipeShort.write(mAudioShortArray, 0, nSamplesRead);
+                        mRecordedAudio.write(mAudioShortArray, 0, nSamplesRead);
                         if (isStillRoomToRecord()) { //record to vector
+                            int startIndex = mSamplesIndex;
                             for (int i = 0; i < nSamplesRead; i++) {
                                 double value = mAudioShortArray[i];
                                 value = value / Short.MAX_VALUE;
@@ -363,6 +377,14 @@ public class RecorderRunnable implements Runnable {
                                 }
 
                             }
+
+                            // stop as soon as the loopback tone is found
+                            if (mStreamingCorrelation.process(mSamples, startIndex,
+                                    mSamplesIndex - startIndex)) {
+                                log("Loopback found after " + mSamplesIndex + " samples");
+                                mSamples = Arrays.copyOf(mSamples, mSamplesIndex);
+                                mIsRunning = false;
+                            }
                         } else {
                             mIsRunning = false;
                         }
@@ -406,7 +428,7 @@ public class RecorderRunnable implements Runnable {
                                         mMinRecorderBuffSizeInSamples);
                                 if (nSamplesRead > 0) {
                                     mRecorderBufferPeriodInRecorder.collectBufferPeriod();
-                                    mBufferTestPipeShort.write(mBufferTestShortArray, 0,
+                                    mRecordedAudio.write(mBufferTestShortArray, 0,
                                             nSamplesRead);
                                 }
                             }
@@ -437,6 +459,9 @@ public class RecorderRunnable implements Runnable {
     private void endBufferTest() {
         mIsRunning = false;
         mAllGlitches = mGlitchDetectionThread.getGlitches();
+        mGlitchUnit = mGlitchDetectionThread.getGlitchUnit();
+        mAllGlitchMagnitudes = mGlitchDetectionThread.getGlitchMagnitudes();
+        mGlitchEventLog = mGlitchDetectionThread.getGlitchEventLog();
         mGlitchingIntervalTooLong = mGlitchDetectionThread.getGlitchingIntervalTooLong();
         mSamples = mGlitchDetectionThread.getWaveData();
         endDetecting();
@@ -445,8 +470,12 @@ public class RecorderRunnable implements Runnable {
 
     /** Clean everything up. */
     public void endDetecting() {
-        mBufferTestPipeShort.flush();
-        mBufferTestPipeShort = null;
+        // report how well the glitch detection kept up with the recorder
+        log(mBufferTestPipe.toString());
+        mPipeSize = mBufferTestPipe.getSize();
+        mPipeHighWatermark = mBufferTestPipe.getHighWatermark();
+        mRecordedAudio.removeConsumer(mBufferTestPipe);
+        mBufferTestPipe = null;
         mGlitchDetectionThread.requestStop();
         GlitchDetectionThread tempThread = mGlitchDetectionThread;
         mGlitchDetectionThread = null;
@@ -525,11 +554,48 @@ public class RecorderRunnable implements Runnable {
     }
 
 
+    public void setGlitchDetector(int glitchDetector) {
+        mGlitchDetector = glitchDetector;
+    }
+
+
+    public void setExtraGlitchDetectors(int extraGlitchDetectors) {
+        mExtraGlitchDetectors = extraGlitchDetectors;
+    }
+
+
     public int[] getAllGlitches() {
         return mAllGlitches;
     }
 
 
+    public int getGlitchUnit() {
+        return mGlitchUnit;
+    }
+
+
+    public double[] getAllGlitchMagnitudes() {
+        return mAllGlitchMagnitudes;
+    }
+
+
+    public GlitchEventLog getGlitchEventLog() {
+        return mGlitchEventLog;
+    }
+
+
+    /** Return the size of the pipe read by the glitch detection, in samples. */
+    public int getPipeSize() {
+        return mPipeSize;
+    }
+
+
+    /** Return the most samples that waited in the pipe read by the glitch detection. */
+    public int getPipeHighWatermark() {
+        return mPipeHighWatermark;
+    }
+
+
     public boolean getGlitchingIntervalTooLong() {
         return mGlitchingIntervalTooLong;
     }
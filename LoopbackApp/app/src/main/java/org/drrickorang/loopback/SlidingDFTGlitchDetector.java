@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.drrickorang.loopback;
+
+import java.util.Arrays;
+
+import android.util.Log;
+
+
+/**
+ * This class detects glitches in a sine wave of known frequency with a sliding DFT: the DFT of
+ * the last few milliseconds of samples is evaluated at the frequency of the sine wave only, and
+ * updated in constant time for every new sample. A glitch is found when the sine wave no longer
+ * holds most of the energy in the window, and is reported at the sample where it started.
+ */
+
+public class SlidingDFTGlitchDetector implements GlitchDetector {
+    private static final String TAG = "SlidingDFTGlitchDetector";
+
+    // the window is a whole number of periods of the sine wave, as close as possible to one
+    private static final double MIN_WINDOW_MS = 2;
+    private static final double MAX_WINDOW_MS = 10;
+    // fraction of the window energy that must be in the sine wave
+    private static final double GLITCH_ENERGY_RATIO = 0.95;
+    // the window is clean while the ratio stays this close to its usual value, relative to the
+    // distance between the usual value and GLITCH_ENERGY_RATIO
+    private static final double CLEAN_MARGIN = 0.1;
+    private static final double BASELINE_SMOOTHING = 0.001; // per sample, about 20 ms at 48 kHz
+    // mean power below this is considered as silence, 1e-6 = -60 dB
+    private static final double SILENCE_POWER = 1e-6;
+
+    private final GlitchListener mListener;
+    private final int      mWindowSize;
+    private final double   mPhaseIncrement;     // radians per sample
+    private final double   mCosIncrement;
+    private final double   mSinIncrement;
+    private final double[] mSamples;            // last mWindowSize samples
+    private final double[] mRotatedReal;        // last mWindowSize samples times e^(-j w n)
+    private final double[] mRotatedImag;
+    private int    mWindowIndex;
+    private long   mSampleIndex;
+    private long   mWindowFullIndex;            // the window holds no lost samples from here on
+
+    private double mPhase;                      // phase of the rotation for mSampleIndex
+    private double mRotationReal = 1;
+    private double mRotationImag = 0;
+    private double mSumReal;                    // DFT of the window at the sine wave frequency
+    private double mSumImag;
+    private double mEnergy;                     // energy of the window
+
+    private double  mBaselineRatio = 1;         // usual value of the ratio when there's no glitch
+    private long    mLastCleanIndex = -1;
+    private boolean mIsGlitching;
+    private long    mGlitchIndex;
+
+
+    public SlidingDFTGlitchDetector(double frequency, int samplingRate, GlitchListener listener) {
+        mListener = listener;
+        mPhaseIncrement = Constant.TWO_PI * frequency / samplingRate;
+        mCosIncrement = Math.cos(mPhaseIncrement);
+        mSinIncrement = Math.sin(mPhaseIncrement);
+
+        // pick the number of periods whose length is closest to a whole number of samples, so
+        // that the negative frequency of the sine wave leaks as little as possible into the DFT
+        double period = samplingRate / frequency;
+        int minPeriods = Math.max(1, (int) Math.ceil(MIN_WINDOW_MS * samplingRate
+                / Constant.MILLIS_PER_SECOND / period));
+        int maxPeriods = Math.max(minPeriods, (int) (MAX_WINDOW_MS * samplingRate
+                / Constant.MILLIS_PER_SECOND / period));
+        int bestPeriods = minPeriods;
+        double bestError = 1;
+        for (int periods = minPeriods; periods <= maxPeriods; periods++) {
+            double error = Math.abs(periods * period - Math.round(periods * period));
+            if (error < bestError) {
+                bestError = error;
+                bestPeriods = periods;
+            }
+        }
+        mWindowSize = Math.max(2, (int) Math.round(bestPeriods * period));
+        log(String.format("window: %d samples, %d periods", mWindowSize, bestPeriods));
+
+        mSamples = new double[mWindowSize];
+        mRotatedReal = new double[mWindowSize];
+        mRotatedImag = new double[mWindowSize];
+        mWindowFullIndex = mWindowSize;
+    }
+
+
+    @Override
+    public void process(double[] data, int offset, int count) {
+        for (int i = 0; i < count; i++) {
+            processSample(data[offset + i]);
+        }
+    }
+
+
+    /**
+     * The window is emptied, as the samples before and after the lost ones don't follow each
+     * other, and no glitch is looked for until it's full again.
+     */
+    @Override
+    public void skip(long count) {
+        Arrays.fill(mSamples, 0);
+        Arrays.fill(mRotatedReal, 0);
+        Arrays.fill(mRotatedImag, 0);
+        mSumReal = 0;
+        mSumImag = 0;
+        mEnergy = 0;
+        mWindowIndex = 0;
+
+        mSampleIndex += count;
+        mWindowFullIndex = mSampleIndex + mWindowSize;
+        mPhase = (mPhase + count * mPhaseIncrement) % Constant.TWO_PI;
+        mRotationReal = Math.cos(mPhase);
+        mRotationImag = -Math.sin(mPhase);
+    }
+
+
+    private void processSample(double sample) {
+        double rotatedReal = sample * mRotationReal;
+        double rotatedImag = sample * mRotationImag;
+
+        // slide the window by one sample
+        double oldSample = mSamples[mWindowIndex];
+        mSumReal += rotatedReal - mRotatedReal[mWindowIndex];
+        mSumImag += rotatedImag - mRotatedImag[mWindowIndex];
+        mEnergy += sample * sample - oldSample * oldSample;
+        mSamples[mWindowIndex] = sample;
+        mRotatedReal[mWindowIndex] = rotatedReal;
+        mRotatedImag[mWindowIndex] = rotatedImag;
+
+        mWindowIndex++;
+        if (mWindowIndex == mWindowSize) {
+            mWindowIndex = 0;
+            resynchronize();
+        }
+
+        // rotate by e^(-j w) for the next sample
+        double real = mRotationReal * mCosIncrement + mRotationImag * mSinIncrement;
+        mRotationImag = mRotationImag * mCosIncrement - mRotationReal * mSinIncrement;
+        mRotationReal = real;
+        mPhase += mPhaseIncrement;
+
+        if (mSampleIndex >= mWindowFullIndex) {
+            checkGlitch();
+        }
+        mSampleIndex++;
+    }
+
+
+    /**
+     * Once per window, compute the sums again from the samples in the window and the rotation
+     * from the phase, so that rounding errors can't build up over long tests.
+     */
+    private void resynchronize() {
+        double sumReal = 0;
+        double sumImag = 0;
+        double energy = 0;
+        for (int i = 0; i < mWindowSize; i++) {
+            sumReal += mRotatedReal[i];
+            sumImag += mRotatedImag[i];
+            energy += mSamples[i] * mSamples[i];
+        }
+        mSumReal = sumReal;
+        mSumImag = sumImag;
+        mEnergy = energy;
+
+        // the rotation is updated after this, for the next sample
+        mPhase %= Constant.TWO_PI;
+        mRotationReal = Math.cos(mPhase);
+        mRotationImag = -Math.sin(mPhase);
+    }
+
+
+    private void checkGlitch() {
+        // energy of the sine wave in the window, over the energy of the window
+        double ratio = 0;
+        if (mEnergy > SILENCE_POWER * mWindowSize) {
+            ratio = 2 * (mSumReal * mSumReal + mSumImag * mSumImag) / mWindowSize / mEnergy;
+        }
+
+        double cleanRatio = mBaselineRatio
+                - CLEAN_MARGIN * Math.max(mBaselineRatio - GLITCH_ENERGY_RATIO, 0);
+        if (ratio >= cleanRatio) {
+            mLastCleanIndex = mSampleIndex;
+        }
+        if (!mIsGlitching && ratio >= GLITCH_ENERGY_RATIO) {
+            mBaselineRatio += BASELINE_SMOOTHING * (ratio - mBaselineRatio);
+        }
+
+        if (mIsGlitching) {
+            // wait until the glitch has left the window
+            if (ratio >= GLITCH_ENERGY_RATIO && mSampleIndex - mGlitchIndex >= mWindowSize) {
+                mIsGlitching = false;
+            }
+        } else if (ratio < GLITCH_ENERGY_RATIO && mLastCleanIndex >= 0) {
+            // nothing is reported until the sine wave has been found once, otherwise the glitch
+            // started right after the last sample where the window was clean
+            mIsGlitching = true;
+            if (mSampleIndex - mLastCleanIndex <= mWindowSize) {
+                mGlitchIndex = mLastCleanIndex + 1;
+            } else {
+                mGlitchIndex = mSampleIndex;
+            }
+            // the magnitude is the fraction of the energy that isn't in the sine wave
+            mListener.onGlitch(mGlitchIndex, 1 - ratio);
+        }
+    }
+
+
+    public int getWindowSize() {
+        return mWindowSize;
+    }
+
+
+    private static void log(String msg) {
+        Log.v(TAG, msg);
+    }
+
+}
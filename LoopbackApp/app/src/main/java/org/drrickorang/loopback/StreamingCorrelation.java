@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.drrickorang.loopback;
+
+import android.util.Log;
+
+import java.util.Arrays;
+
+
+/**
+ * This class matches the recording against the loopback tone while the recording is still in
+ * progress, so the latency test can be stopped as soon as the loopback has been found.
+ * Samples are correlated block by block with the overlap-save method.
+ */
+
+public class StreamingCorrelation {
+    private static final String TAG = "StreamingCorrelation";
+
+    // a peak must be above both of these, 0.001 = -60 dB
+    private static final double MIN_PEAK_MAGNITUDE = 0.001;
+    private static final double MIN_PEAK_TO_NOISE_RATIO = 4.0;
+    // confidence required before reporting the loopback as found
+    private static final int    MIN_SIDELOBE_LAGS = Constant.LOOPBACK_SAMPLE_FRAMES;
+    private static final double DETECTION_CONFIDENCE = 0.9;
+    // a stronger loopback peak may follow the first accepted one by up to this much
+    private static final double GUARD_MS = 50;
+
+    private final int      mSamplingRate;
+    private final int      mTemplateLength;
+    private final int      mMinLag;            // minimum lag between the tone and its loopback
+    private final int      mGuardLags;         // lags searched after a peak is accepted
+    private final FFT      mFFT;
+    private final int      mFFTSize;
+    private final int      mBlockStep;         // new samples correlated for each FFT
+    private final double[] mTemplateReal;      // spectrum of the template
+    private final double[] mTemplateImag;
+    private final double[] mInput;             // samples not yet correlated
+    private final double[] mReal;
+    private final double[] mImag;
+    private int            mInputCount;
+    private long           mBlockStartIndex;   // index of mInput[0] in the recording
+
+    // the last 2 * mTemplateLength magnitudes, before they are added to the sidelobe statistics
+    private final double[] mPendingMagnitudes;
+
+    private long   mFirstIndex = -1;
+    private double mFirstValue;
+    private boolean mIsFirstSettled;
+    private long   mCandidateIndex = -1;
+    private double mCandidateValue;
+    private double mBestValue;          // strongest magnitude at least mMinLag after mFirstIndex
+    private long   mAcceptedIndex = -1; // strongest candidate accepted, until mGuardLags after it
+    private double mAcceptedValue;
+    private double mAcceptedConfidence;
+    private long   mGuardEndIndex;
+    private double mSidelobeSum;
+    private double mSidelobeSumSquared;
+    private long   mSidelobeCount;
+
+    private boolean mIsLoopbackFound;
+    private long    mLatencySamples;
+    private double  mConfidence;
+
+
+    public StreamingCorrelation(int samplingRate) {
+        mSamplingRate = samplingRate;
+        mTemplateLength = Constant.LOOPBACK_SAMPLE_FRAMES;
+        double minLatencyMs = 8; //min latency expected, same as Correlation
+        mMinLag = Math.max(mTemplateLength, (int) (0.5 + minLatencyMs * samplingRate / 1000));
+        mGuardLags = (int) (GUARD_MS * samplingRate / Constant.MILLIS_PER_SECOND);
+
+        mFFTSize = Utilities.roundup(4 * mTemplateLength);
+        mBlockStep = mFFTSize - mTemplateLength + 1;
+        mFFT = new FFT(mFFTSize);
+
+        double[] window = new double[mTemplateLength];
+        double[] real = new double[mTemplateLength];
+        double[] imag = new double[mTemplateLength];
+        Correlation.createTemplate(samplingRate, window, real, imag);
+        mTemplateReal = new double[mFFTSize];
+        mTemplateImag = new double[mFFTSize];
+        System.arraycopy(real, 0, mTemplateReal, 0, mTemplateLength);
+        System.arraycopy(imag, 0, mTemplateImag, 0, mTemplateLength);
+        mFFT.fft(mTemplateReal, mTemplateImag, 1);
+
+        mInput = new double[mFFTSize];
+        mReal = new double[mFFTSize];
+        mImag = new double[mFFTSize];
+        mPendingMagnitudes = new double[2 * mTemplateLength];
+    }
+
+
+    /** Forget the samples processed so far, to look for the loopback in a new recording. */
+    public void reset() {
+        mInputCount = 0;
+        mBlockStartIndex = 0;
+        Arrays.fill(mPendingMagnitudes, 0);
+        mFirstIndex = -1;
+        mFirstValue = 0;
+        mIsFirstSettled = false;
+        mCandidateIndex = -1;
+        mCandidateValue = 0;
+        mBestValue = 0;
+        mAcceptedIndex = -1;
+        mAcceptedValue = 0;
+        mAcceptedConfidence = 0;
+        mGuardEndIndex = 0;
+        mSidelobeSum = 0;
+        mSidelobeSumSquared = 0;
+        mSidelobeCount = 0;
+        mIsLoopbackFound = false;
+        mLatencySamples = 0;
+        mConfidence = 0;
+    }
+
+
+    /** Correlate count samples of data starting at offset. Returns true if loopback is found. */
+    public boolean process(double[] data, int offset, int count) {
+        for (int i = 0; i < count && !mIsLoopbackFound; i++) {
+            mInput[mInputCount++] = data[offset + i];
+            if (mInputCount == mFFTSize) {
+                processBlock();
+
+                // keep the samples needed by the next block
+                System.arraycopy(mInput, mBlockStep, mInput, 0, mFFTSize - mBlockStep);
+                mInputCount = mFFTSize - mBlockStep;
+                mBlockStartIndex += mBlockStep;
+            }
+        }
+        return mIsLoopbackFound;
+    }
+
+
+    /** Compute the matched filter output for the mBlockStep lags of the current block. */
+    private void processBlock() {
+        System.arraycopy(mInput, 0, mReal, 0, mFFTSize);
+        Arrays.fill(mImag, 0);
+        mFFT.fft(mReal, mImag, 1);
+
+        // multiply by the conjugate spectrum of the template, dropping negative frequencies
+        for (int i = 0; i < mFFTSize; i++) {
+            if (i > mFFTSize / 2) {
+                mReal[i] = 0;
+                mImag[i] = 0;
+                continue;
+            }
+            double re = mReal[i] * mTemplateReal[i] + mImag[i] * mTemplateImag[i];
+            double im = mImag[i] * mTemplateReal[i] - mReal[i] * mTemplateImag[i];
+            mReal[i] = re;
+            mImag[i] = im;
+        }
+        mFFT.fft(mReal, mImag, -1);
+
+        double scale = 2.0 / mFFTSize;
+        for (int i = 0; i < mBlockStep && !mIsLoopbackFound; i++) {
+            processLag(mBlockStartIndex + i, Math.hypot(mReal[i], mImag[i]) * scale);
+        }
+    }
+
+
+    /** Update the peak search with the matched filter output for a single lag. */
+    private void processLag(long index, double magnitude) {
+        // once a lag is old enough that any peak near it is settled, it's part of the sidelobes
+        // unless it's near the first occurrence of the tone
+        int pendingIndex = (int) (index % mPendingMagnitudes.length);
+        if (index >= mPendingMagnitudes.length) {
+            long oldIndex = index - mPendingMagnitudes.length;
+            if (!isNearPeak(oldIndex, mFirstIndex) && !isNearPeak(oldIndex, mAcceptedIndex)) {
+                double oldMagnitude = mPendingMagnitudes[pendingIndex];
+                mSidelobeSum += oldMagnitude;
+                mSidelobeSumSquared += oldMagnitude * oldMagnitude;
+                mSidelobeCount++;
+            }
+        }
+        mPendingMagnitudes[pendingIndex] = magnitude;
+
+        if (!mIsFirstSettled) {
+            // search for the first occurrence of the tone
+            if (mFirstIndex < 0) {
+                double noise = mSidelobeCount > 0 ? mSidelobeSum / mSidelobeCount : 0;
+                if (magnitude >= MIN_PEAK_MAGNITUDE
+                        && magnitude >= MIN_PEAK_TO_NOISE_RATIO * noise) {
+                    mFirstIndex = index;
+                    mFirstValue = magnitude;
+                }
+            } else if (magnitude > mFirstValue) {
+                mFirstIndex = index;
+                mFirstValue = magnitude;
+            } else if (index - mFirstIndex >= mTemplateLength) {
+                mIsFirstSettled = true;
+                log(String.format("First occurrence at %d (%f)", mFirstIndex, mFirstValue));
+            }
+            return;
+        }
+
+        if (magnitude > 2 * mFirstValue) {
+            // like Correlation, the tone first appears at a peak at least half of the strongest
+            mFirstIndex = index;
+            mFirstValue = magnitude;
+            mIsFirstSettled = false;
+            mCandidateIndex = -1;
+            mCandidateValue = 0;
+            mBestValue = 0;
+            mAcceptedIndex = -1;
+            return;
+        }
+
+        if (index - mFirstIndex < mMinLag) {
+            return;
+        }
+        mBestValue = Math.max(mBestValue, magnitude);
+
+        if (magnitude > mCandidateValue && magnitude >= MIN_PEAK_MAGNITUDE) {
+            mCandidateIndex = index;
+            mCandidateValue = magnitude;
+        } else if (mCandidateIndex >= 0 && index - mCandidateIndex >= mTemplateLength) {
+            // candidate is settled, keep it if it's the strongest one that stands out enough
+            // from the sidelobes and, like Correlation, is at least half of the strongest peak
+            double confidence = getConfidence(mCandidateValue);
+            if (confidence >= DETECTION_CONFIDENCE && mCandidateValue >= mBestValue / 2
+                    && mCandidateValue > mAcceptedValue) {
+                if (mAcceptedIndex < 0) {
+                    mGuardEndIndex = mCandidateIndex + mGuardLags;
+                }
+                mAcceptedIndex = mCandidateIndex;
+                mAcceptedValue = mCandidateValue;
+                mAcceptedConfidence = confidence;
+            }
+            mCandidateIndex = -1;
+            mCandidateValue = 0;
+        }
+
+        if (mAcceptedIndex >= 0 && index >= mGuardEndIndex && mCandidateIndex < 0) {
+            // no stronger peak followed within the guard interval
+            if (mAcceptedValue >= mBestValue / 2) {
+                mIsLoopbackFound = true;
+                mLatencySamples = mAcceptedIndex - mFirstIndex;
+                mConfidence = mAcceptedConfidence;
+                log(String.format("Loopback found at %d, latency %.2f ms, confidence %.2f",
+                        mAcceptedIndex, getLatencyMs(), mConfidence));
+            } else {
+                mAcceptedIndex = -1;
+                mAcceptedValue = 0;
+            }
+        }
+    }
+
+
+    /** Map the peak to sidelobe ratio of value to a confidence from 0 to 1, like Correlation. */
+    private double getConfidence(double value) {
+        if (mSidelobeCount < MIN_SIDELOBE_LAGS) {
+            return 0.0;
+        }
+        double rms = Math.sqrt(mSidelobeSumSquared / mSidelobeCount);
+        if (rms <= 0) {
+            return 1.0;
+        }
+        double psrDb = 20 * Math.log10(value / rms);
+        return Math.max(Math.min((psrDb - Correlation.PSR_MIN_DB)
+                / (Correlation.PSR_MAX_DB - Correlation.PSR_MIN_DB), 1.0), 0.0);
+    }
+
+
+    private boolean isNearPeak(long index, long peakIndex) {
+        return peakIndex >= 0 && Math.abs(index - peakIndex) < mTemplateLength;
+    }
+
+
+    public boolean isLoopbackFound() {
+        return mIsLoopbackFound;
+    }
+
+
+    /** Latency with a resolution of one sample, Correlation should be used for a finer one. */
+    public double getLatencyMs() {
+        return (double) mLatencySamples * Constant.MILLIS_PER_SECOND / mSamplingRate;
+    }
+
+
+    public double getConfidence() {
+        return mConfidence;
+    }
+
+
+    private static void log(String msg) {
+        Log.v(TAG, msg);
+    }
+
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.drrickorang.loopback;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+
+/**
+ * The mean, variance, skewness and kurtosis of a stream of values, kept up to date with
+ * Welford's method: the mean and the sums of the powers 2 to 4 of the deviations from it are
+ * updated with each value. Nothing is summed as a long, so nothing overflows however long the
+ * test, and no precision is lost to a large sum. Two streams can be merged with add().
+ * Must match cpp/moments.h, which the native engines use.
+ */
+
+public class StreamingMoments implements Parcelable {
+    // the fields of a moments struct, as copied from native
+    public static final int NUM_FIELDS = 5;
+
+    private long   mCount;
+    private double mMean;
+    private double mM2;
+    private double mM3;
+    private double mM4;
+
+
+    public StreamingMoments() {
+    }
+
+
+    /** Create the moments from the NUM_FIELDS values of a native moments struct at offset. */
+    public StreamingMoments(double[] values, int offset) {
+        mCount = (long) values[offset];
+        mMean = values[offset + 1];
+        mM2 = values[offset + 2];
+        mM3 = values[offset + 3];
+        mM4 = values[offset + 4];
+    }
+
+
+    /** Add a value. This doesn't allocate, so it can be called from an audio thread. */
+    public void record(double value) {
+        long n1 = mCount;
+        mCount++;
+        double n = mCount;
+        double delta = value - mMean;
+        double deltaN = delta / n;
+        double deltaN2 = deltaN * deltaN;
+        double term1 = delta * deltaN * n1;
+
+        mMean += deltaN;
+        // mM4 and mM3 are updated first, as they depend on the previous mM2 and mM3
+        mM4 += term1 * deltaN2 * (n * n - 3 * n + 3) + 6 * deltaN2 * mM2 - 4 * deltaN * mM3;
+        mM3 += term1 * deltaN * (n - 2) - 3 * deltaN * mM2;
+        mM2 += term1;
+    }
+
+
+    /** Add the values of other to these moments. */
+    public void add(StreamingMoments other) {
+        if (other.mCount == 0) {
+            return;
+        }
+        if (mCount == 0) {
+            mCount = other.mCount;
+            mMean = other.mMean;
+            mM2 = other.mM2;
+            mM3 = other.mM3;
+            mM4 = other.mM4;
+            return;
+        }
+
+        double na = mCount;
+        double nb = other.mCount;
+        double n = na + nb;
+        double delta = other.mMean - mMean;
+        double delta2 = delta * delta;
+
+        double m2 = mM2 + other.mM2 + delta2 * na * nb / n;
+        double m3 = mM3 + other.mM3 + delta2 * delta * na * nb * (na - nb) / (n * n)
+                + 3 * delta * (na * other.mM2 - nb * mM2) / n;
+        double m4 = mM4 + other.mM4
+                + delta2 * delta2 * na * nb * (na * na - na * nb + nb * nb) / (n * n * n)
+                + 6 * delta2 * (na * na * other.mM2 + nb * nb * mM2) / (n * n)
+                + 4 * delta * (na * other.mM3 - nb * mM3) / n;
+
+        mCount += other.mCount;
+        mMean += delta * nb / n;
+        mM2 = m2;
+        mM3 = m3;
+        mM4 = m4;
+    }
+
+
+    public void reset() {
+        mCount = 0;
+        mMean = 0;
+        mM2 = 0;
+        mM3 = 0;
+        mM4 = 0;
+    }
+
+
+    public long getCount() {
+        return mCount;
+    }
+
+
+    public double getMean() {
+        return mMean;
+    }
+
+
+    /** Return the population variance, or 0 if there are fewer than 2 values. */
+    public double getVariance() {
+        return (mCount > 1) ? mM2 / mCount : 0;
+    }
+
+
+    public double getStdDev() {
+        return Math.sqrt(getVariance());
+    }
+
+
+    /** Return the mean square deviation of the values from reference instead of their mean. */
+    public double getMeanSquareDeviation(double reference) {
+        if (mCount < 2) {
+            return 0;
+        }
+        double deviation = mMean - reference;
+        return getVariance() + deviation * deviation;
+    }
+
+
+    /** Return the skewness, which is positive if the values are spread more above the mean. */
+    public double getSkewness() {
+        if (mM2 == 0) {
+            return 0;
+        }
+        return Math.sqrt(mCount) * mM3 / Math.pow(mM2, 1.5);
+    }
+
+
+    /** Return the excess kurtosis, 0 for a normal distribution, large for rare outliers. */
+    public double getKurtosis() {
+        if (mM2 == 0) {
+            return 0;
+        }
+        return mCount * mM4 / (mM2 * mM2) - 3;
+    }
+
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        Bundle out = new Bundle();
+        out.putLong("mCount", mCount);
+        out.putDoubleArray("mMoments", new double[] {mMean, mM2, mM3, mM4});
+        dest.writeBundle(out);
+    }
+
+    private StreamingMoments(Parcel source) {
+        Bundle in = source.readBundle(getClass().getClassLoader());
+        mCount = in.getLong("mCount");
+        double[] moments = in.getDoubleArray("mMoments");
+        mMean = moments[0];
+        mM2 = moments[1];
+        mM3 = moments[2];
+        mM4 = moments[3];
+    }
+
+    public static final Parcelable.Creator<StreamingMoments> CREATOR
+             = new Parcelable.Creator<StreamingMoments>() {
+         public StreamingMoments createFromParcel(Parcel in) {
+             return new StreamingMoments(in);
+         }
+
+         public StreamingMoments[] newArray(int size) {
+             return new StreamingMoments[size];
+         }
+     };
+
+}
@@ -16,6 +16,8 @@
 
 package org.drrickorang.loopback;
 
+import java.util.Arrays;
+
 
 /**
  * This class contains functions that can be reused in different classes.
@@ -39,6 +41,15 @@ public class Utilities {
     }
 
 
+    /** Return the coefficients of a Hanning window of the given length. */
+    public static double[] hanningWindow(int length) {
+        double[] window = new double[length];
+        Arrays.fill(window, 1);
+        hanningWindow(window);
+        return window;
+    }
+
+
     /** Round up to the nearest power of 2. */
     public static int roundup(int size)
     {
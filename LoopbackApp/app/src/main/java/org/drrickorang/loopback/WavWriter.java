@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.drrickorang.loopback;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * Writes a .wav file as a stream of samples, 16 bit PCM or 32 bit float, with any number of
+ * interleaved channels. The samples are converted in blocks through a direct buffer that is
+ * reused, so nothing is allocated after the writer is created. The header is written again with
+ * the final sizes by finish(), as an RF64 header if the file has grown past 4 GB. Room for the
+ * RF64 sizes is kept from the start in a JUNK chunk, which readers skip. Float samples have the
+ * fact chunk that formats other than PCM need, and more than 2 channels are written as
+ * WAVE_FORMAT_EXTENSIBLE, without speaker positions.
+ */
+
+public class WavWriter {
+    public static final int FORMAT_PCM_16 = 1;      // WAVE_FORMAT_PCM
+    public static final int FORMAT_FLOAT_32 = 3;    // WAVE_FORMAT_IEEE_FLOAT
+
+    private static final int  FORMAT_EXTENSIBLE = 0xFFFE; // WAVE_FORMAT_EXTENSIBLE
+
+    private static final int  BUFFER_SAMPLES = 4096;
+    private static final int  DS64_SIZE = 28;       // size of the ds64 chunk of RF64, without table
+    private static final int  FMT_SIZE = 16;        // of WAVEFORMAT, for PCM
+    private static final int  FMT_EX_SIZE = 18;     // of WAVEFORMATEX, for the other formats
+    private static final int  FMT_EXTENSIBLE_SIZE = 40;
+    private static final int  FACT_SIZE = 4;
+    private static final int  MAX_CHANNELS = 2;     // past which the format must be extensible
+    private static final int  NO_SPEAKER_POSITIONS = 0; // channel mask, KSAUDIO_SPEAKER_DIRECTOUT
+    private static final long MAX_RIFF_SIZE = 0xFFFFFFFFL;
+    // the end of the KSDATAFORMAT_SUBTYPE GUIDs, after the format and 0x00000010
+    private static final byte[] SUBFORMAT_GUID_END =
+            {(byte) 0x80, 0x00, 0x00, (byte) 0xAA, 0x00, 0x38, (byte) 0x9B, 0x71};
+
+    private final FileChannel mChannel;
+    private final int         mSamplingRate;
+    private final int         mChannelCount;
+    private final int         mFormat;
+    private final int         mBytesPerSample;
+    private final int         mFmtSize;
+    private final boolean     mHasFact;
+    private final int         mHeaderSize;
+
+    private final ByteBuffer  mBuffer;      // direct, little endian
+    private final ShortBuffer mShortView;   // views of mBuffer
+    private final FloatBuffer mFloatView;
+    private final short[]     mShorts = new short[BUFFER_SAMPLES]; // converted samples
+    private final float[]     mFloats = new float[BUFFER_SAMPLES];
+    private final long        mHeaderPosition;
+    private long              mDataBytes;
+
+
+    /**
+     * Start a .wav file at the current position of channel, which must be writable. format is
+     * FORMAT_PCM_16 or FORMAT_FLOAT_32.
+     */
+    public WavWriter(FileChannel channel, int samplingRate, int channelCount, int format)
+            throws IOException {
+        if (format != FORMAT_PCM_16 && format != FORMAT_FLOAT_32) {
+            throw new IllegalArgumentException("unsupported format " + format);
+        }
+        mChannel = channel;
+        mSamplingRate = samplingRate;
+        mChannelCount = channelCount;
+        mFormat = format;
+        mBytesPerSample = (format == FORMAT_PCM_16) ? Constant.BYTES_PER_SHORT : 4;
+        if (channelCount > MAX_CHANNELS) {
+            mFmtSize = FMT_EXTENSIBLE_SIZE;
+        } else {
+            mFmtSize = (format == FORMAT_PCM_16) ? FMT_SIZE : FMT_EX_SIZE;
+        }
+        mHasFact = (format != FORMAT_PCM_16);
+        mHeaderSize = 12 + (8 + DS64_SIZE) + (8 + mFmtSize) + (mHasFact ? 8 + FACT_SIZE : 0) + 8;
+
+        mBuffer = ByteBuffer.allocateDirect(BUFFER_SAMPLES * mBytesPerSample);
+        mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        mShortView = mBuffer.asShortBuffer();
+        mFloatView = mBuffer.asFloatBuffer();
+
+        // the sizes are written by finish()
+        mHeaderPosition = channel.position();
+        writeHeader();
+        mChannel.position(mHeaderPosition + mHeaderSize);
+    }
+
+
+    /** Write count samples of data starting at offset, in [-1, 1], channels interleaved. */
+    public void write(double[] data, int offset, int count) throws IOException {
+        while (count > 0) {
+            int length = Math.min(count, BUFFER_SAMPLES);
+            if (mFormat == FORMAT_PCM_16) {
+                for (int i = 0; i < length; i++) {
+                    double value = data[offset + i] * Short.MAX_VALUE;
+                    value = Math.max(Short.MIN_VALUE, Math.min(value, Short.MAX_VALUE));
+                    mShorts[i] = (short) Math.round(value);
+                }
+                mShortView.clear();
+                mShortView.put(mShorts, 0, length);
+            } else {
+                for (int i = 0; i < length; i++) {
+                    mFloats[i] = (float) data[offset + i];
+                }
+                mFloatView.clear();
+                mFloatView.put(mFloats, 0, length);
+            }
+            writeBuffer(length);
+            offset += length;
+            count -= length;
+        }
+    }
+
+
+    /** Write count 16 bit samples of data starting at offset, channels interleaved. */
+    public void write(short[] data, int offset, int count) throws IOException {
+        while (count > 0) {
+            int length = Math.min(count, BUFFER_SAMPLES);
+            if (mFormat == FORMAT_PCM_16) {
+                mShortView.clear();
+                mShortView.put(data, offset, length);
+            } else {
+                for (int i = 0; i < length; i++) {
+                    mFloats[i] = data[offset + i] / (float) Short.MAX_VALUE;
+                }
+                mFloatView.clear();
+                mFloatView.put(mFloats, 0, length);
+            }
+            writeBuffer(length);
+            offset += length;
+            count -= length;
+        }
+    }
+
+
+    /** Write the first samples of mBuffer, which were put there through one of its views. */
+    private void writeBuffer(int samples) throws IOException {
+        mBuffer.clear();
+        mBuffer.limit(samples * mBytesPerSample);
+        while (mBuffer.hasRemaining()) {
+            mChannel.write(mBuffer);
+        }
+        mDataBytes += samples * mBytesPerSample;
+    }
+
+
+    /** Write the header again with the final sizes. The channel is left open. */
+    public void finish() throws IOException {
+        writeHeader();
+    }
+
+
+    public long getDataBytes() {
+        return mDataBytes;
+    }
+
+
+    private void writeHeader() throws IOException {
+        long riffSize = mHeaderSize - 8 + mDataBytes;
+        boolean isRF64 = riffSize > MAX_RIFF_SIZE;
+        int blockAlign = mChannelCount * mBytesPerSample;
+        long frames = mDataBytes / blockAlign;
+
+        ByteBuffer header = ByteBuffer.allocate(mHeaderSize);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        putTag(header, isRF64 ? "RF64" : "RIFF");
+        header.putInt((int) (isRF64 ? MAX_RIFF_SIZE : riffSize));
+        putTag(header, "WAVE");
+
+        // the ds64 chunk of RF64 holds the sizes that don't fit in the other chunks
+        putTag(header, isRF64 ? "ds64" : "JUNK");
+        header.putInt(DS64_SIZE);
+        header.putLong(isRF64 ? riffSize : 0);
+        header.putLong(isRF64 ? mDataBytes : 0);
+        header.putLong(isRF64 ? frames : 0);
+        header.putInt(0); // no table
+
+        int bitsPerSample = mBytesPerSample * 8;
+        putTag(header, "fmt ");
+        header.putInt(mFmtSize);
+        header.putShort((short) (mFmtSize == FMT_EXTENSIBLE_SIZE ? FORMAT_EXTENSIBLE : mFormat));
+        header.putShort((short) mChannelCount);
+        header.putInt(mSamplingRate);
+        header.putInt(mSamplingRate * blockAlign); // byte rate
+        header.putShort((short) blockAlign);
+        header.putShort((short) bitsPerSample);
+        if (mFmtSize > FMT_SIZE) {
+            header.putShort((short) (mFmtSize - FMT_EX_SIZE)); // size of the extension
+        }
+        if (mFmtSize == FMT_EXTENSIBLE_SIZE) {
+            header.putShort((short) bitsPerSample); // valid bits per sample
+            header.putInt(NO_SPEAKER_POSITIONS);
+            header.putInt(mFormat); // the sub format GUID
+            header.putShort((short) 0x0000);
+            header.putShort((short) 0x0010);
+            header.put(SUBFORMAT_GUID_END);
+        }
+
+        if (mHasFact) {
+            // the number of frames, which is in the ds64 chunk for RF64
+            putTag(header, "fact");
+            header.putInt(FACT_SIZE);
+            header.putInt((int) (isRF64 ? MAX_RIFF_SIZE : frames));
+        }
+
+        putTag(header, "data");
+        header.putInt((int) (isRF64 ? MAX_RIFF_SIZE : mDataBytes));
+
+        // positional writes, which leave the position of the channel after the samples
+        header.flip();
+        while (header.hasRemaining()) {
+            mChannel.write(header, mHeaderPosition + header.position());
+        }
+    }
+
+
+    private static void putTag(ByteBuffer buffer, String tag) {
+        for (int i = 0; i < 4; i++) {
+            buffer.put((byte) tag.charAt(i));
+        }
+    }
+
+}
@@ -20,7 +20,12 @@ import java.util.Arrays;
 
 /**
  * Maintains two ring buffers for recording wav data
- * At any one time one buffer is available for writing to file while one is recording incoming data
+ * The loaded deck records incoming data, and the window of a capture is copied from it to the
+ * shelved deck, which is then available for writing to file. Like on an oscilloscope, the window
+ * holds some samples from before the capture was triggered and some from after, so the capture is
+ * only sealed once those have arrived. The loaded deck keeps recording all along.
+ * The samples are stored as 16 bit values, which is what they were recorded as, and are only
+ * converted back to doubles when getWaveRecord() is called.
  */
 public class WaveDataRingBuffer {
 
@@ -28,8 +33,12 @@ public class WaveDataRingBuffer {
         boolean writeToFile(AudioFileOutput audioFile);
     }
 
-    private WaveDeck mLoadedDeck;
-    private WaveDeck mShelvedDeck;
+    private static final double SHORT_TO_DOUBLE = 1.0 / Short.MAX_VALUE;
+
+    private final WaveDeck mLoadedDeck;
+    private final WaveDeck mShelvedDeck;
+    private long mWrittenSamples; // samples written to mLoadedDeck since the start
+    private long mAwaitedSamples = Long.MAX_VALUE; // mWrittenSamples that getWaveDeck() waits for
 
     public WaveDataRingBuffer(int size) {
         if (size < Constant.SAMPLING_RATE_MIN * Constant.BUFFER_TEST_DURATION_SECONDS_MIN) {
@@ -43,31 +52,73 @@ public class WaveDataRingBuffer {
 
     public synchronized void writeWaveData(double[] data, int srcPos, int length) {
         mLoadedDeck.writeWaveData(data, srcPos, length);
+        onSamplesWritten(length);
     }
 
-    public synchronized double[] getWaveRecord() {
-        return mLoadedDeck.getWaveRecord();
+    /** Write length zeros in place of samples that were lost, to keep the later ones in time. */
+    public synchronized void writeSilence(long length) {
+        mLoadedDeck.writeSilence(length);
+        onSamplesWritten(length);
+    }
+
+    private void onSamplesWritten(long length) {
+        mWrittenSamples += length;
+        if (mWrittenSamples >= mAwaitedSamples) {
+            notifyAll();
+        }
     }
 
-    private void swapDecks() {
-        WaveDeck temp = mShelvedDeck;
-        mShelvedDeck = mLoadedDeck;
-        mLoadedDeck = temp;
+    /** Returns the number of samples written so far, which is the index of the next one. */
+    public synchronized long getWrittenSamples() {
+        return mWrittenSamples;
+    }
+
+    public synchronized double[] getWaveRecord() {
+        return mLoadedDeck.getWaveRecord();
     }
 
     /**
-     * Returns currently writing buffer as writeToFile interface, load erased shelved deck for write
-     * If shelved deck is still being read returns null
+     * Returns the window of a capture triggered at sample triggerSample as writeToFile interface:
+     * preSamples samples before the trigger and postSamples from the trigger on. Waits for the
+     * samples after the trigger to be written, for at most timeoutMs, after which the window is
+     * cut short. The window is also cut short at the start to the samples still in the ring.
+     * If shelved deck is still being read, or if the ring has already overwritten all the samples
+     * of the window, returns null
      **/
-    public synchronized ReadableWaveDeck getWaveDeck() {
-        if (!mShelvedDeck.isBeingRead()) {
-            swapDecks();
-            mShelvedDeck.readyForRead();
-            mLoadedDeck.reset();
-            return mShelvedDeck;
-        } else {
+    public synchronized ReadableWaveDeck getWaveDeck(long triggerSample, int preSamples,
+            int postSamples, long timeoutMs) throws InterruptedException {
+        if (mShelvedDeck.isBeingRead()) {
             return null;
         }
+        mShelvedDeck.readyForRead();
+
+        long end = triggerSample + postSamples;
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        try {
+            while (mWrittenSamples < end) {
+                long remainingMs = deadline - System.currentTimeMillis();
+                if (remainingMs <= 0) {
+                    break;
+                }
+                mAwaitedSamples = end;
+                wait(remainingMs);
+            }
+        } catch (InterruptedException e) {
+            mShelvedDeck.writeDone();
+            throw e;
+        } finally {
+            mAwaitedSamples = Long.MAX_VALUE;
+        }
+
+        end = Math.min(end, mWrittenSamples);
+        long start = Math.max(triggerSample - preSamples, mWrittenSamples - mLoadedDeck.size());
+        start = Math.max(start, 0);
+        if (end <= start) {
+            mShelvedDeck.writeDone();
+            return null;
+        }
+        mShelvedDeck.copyWindow(mLoadedDeck, (int) (mWrittenSamples - start), (int) (end - start));
+        return mShelvedDeck;
     }
 
     /**
@@ -75,13 +126,13 @@ public class WaveDataRingBuffer {
      */
     public class WaveDeck implements ReadableWaveDeck {
 
-        private double[] mWaveRecord;
+        private short[] mWaveRecord;
         private volatile int mIndex = 0; // between 0 and mWaveRecord.length - 1
         private boolean mArrayFull = false; // true after mIndex has wrapped
         private boolean mIsBeingRead = false;
 
         public WaveDeck(int size) {
-            mWaveRecord = new double[size];
+            mWaveRecord = new short[size];
         }
 
         /**
@@ -97,12 +148,12 @@ public class WaveDataRingBuffer {
             if (length >= mWaveRecord.length) {
                 // requested write would fill or exceed ring buffer capacity
                 // fill ring buffer with last segment of requested write
-                System.arraycopy(data, srcPos + (length - mWaveRecord.length), mWaveRecord, 0,
+                copyWaveData(data, srcPos + (length - mWaveRecord.length), 0,
                         mWaveRecord.length);
                 mIndex = 0;
             } else if (mWaveRecord.length - mIndex > length) {
                 // write requested data from current offset
-                System.arraycopy(data, srcPos, mWaveRecord, mIndex, length);
+                copyWaveData(data, srcPos, mIndex, length);
                 mIndex += length;
             } else {
                 // write to available buffer then wrap and overwrite previous records
@@ -112,8 +163,8 @@ public class WaveDataRingBuffer {
 
                 int availBuff = mWaveRecord.length - mIndex;
 
-                System.arraycopy(data, srcPos, mWaveRecord, mIndex, availBuff);
-                System.arraycopy(data, srcPos + availBuff, mWaveRecord, 0, length - availBuff);
+                copyWaveData(data, srcPos, mIndex, availBuff);
+                copyWaveData(data, srcPos + availBuff, 0, length - availBuff);
 
                 mIndex = length - availBuff;
 
@@ -121,6 +172,43 @@ public class WaveDataRingBuffer {
 
         }
 
+        /**
+         * Convert length doubles from data starting at srcPos to 16 bit values in the ring buffer
+         * starting at destPos, without wrapping
+         */
+        private void copyWaveData(double[] data, int srcPos, int destPos, int length) {
+            for (int i = 0; i < length; i++) {
+                double value = data[srcPos + i] * Short.MAX_VALUE;
+                // the samples were recorded as 16 bit values, so this only guards against rounding
+                value = Math.max(Short.MIN_VALUE, Math.min(value, Short.MAX_VALUE));
+                mWaveRecord[destPos + i] = (short) Math.round(value);
+            }
+        }
+
+        /**
+         * Write length zeros into ring buffer
+         */
+        public void writeSilence(long length) {
+            if (length >= mWaveRecord.length) {
+                Arrays.fill(mWaveRecord, (short) 0);
+                mIndex = 0;
+                mArrayFull = true;
+                return;
+            }
+
+            int count = (int) length;
+            int availBuff = mWaveRecord.length - mIndex;
+            if (availBuff > count) {
+                Arrays.fill(mWaveRecord, mIndex, mIndex + count, (short) 0);
+                mIndex += count;
+            } else {
+                mArrayFull = true;
+                Arrays.fill(mWaveRecord, mIndex, mWaveRecord.length, (short) 0);
+                Arrays.fill(mWaveRecord, 0, count - availBuff, (short) 0);
+                mIndex = count - availBuff;
+            }
+        }
+
         /**
          * Returns a private copy of recorded wave data
          *
@@ -131,21 +219,42 @@ public class WaveDataRingBuffer {
 
             if (!mArrayFull) {
                 //return partially filled sample with trailing zeroes
-                System.arraycopy(mWaveRecord, 0, outputBuffer, 0, mIndex);
-                Arrays.fill(outputBuffer, mIndex+1, outputBuffer.length-1, 0);
+                convertWaveData(0, outputBuffer, 0, mIndex);
             } else {
                 //copy buffer to contiguous sample and return unwrapped array
-                System.arraycopy(mWaveRecord, mIndex, outputBuffer, 0, mWaveRecord.length - mIndex);
-                System.arraycopy(mWaveRecord, 0, outputBuffer, mWaveRecord.length - mIndex, mIndex);
+                convertWaveData(mIndex, outputBuffer, 0, mWaveRecord.length - mIndex);
+                convertWaveData(0, outputBuffer, mWaveRecord.length - mIndex, mIndex);
             }
 
             return outputBuffer;
         }
 
-        /** Make buffer available for new recording **/
-        private void reset() {
-            mIndex = 0;
-            mArrayFull = false;
+        /** Convert length samples of the ring buffer starting at srcPos back to doubles */
+        private void convertWaveData(int srcPos, double[] dest, int destPos, int length) {
+            for (int i = 0; i < length; i++) {
+                dest[destPos + i] = mWaveRecord[srcPos + i] * SHORT_TO_DOUBLE;
+            }
+        }
+
+        private int size() {
+            return mWaveRecord.length;
+        }
+
+        /**
+         * Replace the recording with length samples of source, starting samplesAgo samples before
+         * the next one that source will record
+         */
+        private void copyWindow(WaveDeck source, int samplesAgo, int length) {
+            int srcPos = source.mIndex - samplesAgo;
+            if (srcPos < 0) {
+                srcPos += mWaveRecord.length;
+            }
+            int firstLength = Math.min(length, mWaveRecord.length - srcPos);
+            System.arraycopy(source.mWaveRecord, srcPos, mWaveRecord, 0, firstLength);
+            System.arraycopy(source.mWaveRecord, 0, mWaveRecord, firstLength,
+                    length - firstLength);
+            mArrayFull = (length == mWaveRecord.length);
+            mIndex = mArrayFull ? 0 : length;
         }
 
         private boolean isBeingRead() {
@@ -156,6 +265,10 @@ public class WaveDataRingBuffer {
             mIsBeingRead = true;
         }
 
+        private void writeDone() {
+            mIsBeingRead = false;
+        }
+
         @Override
         public boolean writeToFile(AudioFileOutput audioFile) {
             boolean successfulWrite;
@@ -166,7 +279,9 @@ public class WaveDataRingBuffer {
                 successfulWrite = audioFile.writeRingBufferData(mWaveRecord, 0, mIndex);
             }
 
-            mIsBeingRead = false;
+            synchronized (WaveDataRingBuffer.this) {
+                writeDone();
+            }
             return successfulWrite;
         }
     }
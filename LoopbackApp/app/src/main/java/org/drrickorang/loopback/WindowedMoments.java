@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.drrickorang.loopback;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.Locale;
+
+
+/**
+ * The StreamingMoments of the buffer periods of a whole test, and of each WINDOW_SECONDS of it,
+ * so that a minute that was worse than the others can be found. The values are in milliseconds.
+ */
+
+public class WindowedMoments implements Parcelable {
+    // Must match the constants in cpp/moments.h
+    public static final int WINDOW_SECONDS = 60;
+    private static final int MAX_WINDOWS =
+            Constant.BUFFER_TEST_DURATION_SECONDS_MAX / WINDOW_SECONDS + 1;
+
+    private final StreamingMoments   mTotal;
+    private final StreamingMoments[] mWindows;  // all allocated, the last one used is open
+    private int                      mNumWindows;
+
+
+    public WindowedMoments() {
+        mTotal = new StreamingMoments();
+        mWindows = new StreamingMoments[MAX_WINDOWS];
+        allocateWindows();
+    }
+
+
+    /**
+     * Create the moments from native, as StreamingMoments.NUM_FIELDS values for the whole test
+     * then for each window.
+     */
+    public WindowedMoments(double[] values) {
+        mTotal = new StreamingMoments(values, 0);
+        mWindows = new StreamingMoments[MAX_WINDOWS];
+        mNumWindows = Math.min(values.length / StreamingMoments.NUM_FIELDS - 1, MAX_WINDOWS);
+        for (int i = 0; i < mNumWindows; i++) {
+            mWindows[i] = new StreamingMoments(values, (i + 1) * StreamingMoments.NUM_FIELDS);
+        }
+        allocateWindows();
+    }
+
+
+    /** Allocate the windows past the ones used, so that record() never allocates. */
+    private void allocateWindows() {
+        for (int i = mNumWindows; i < MAX_WINDOWS; i++) {
+            mWindows[i] = new StreamingMoments();
+        }
+    }
+
+
+    /**
+     * Add a value at timeMs since the start of the test. The windows are all allocated up front,
+     * as in cpp/moments.h, so this can be called from an audio thread.
+     */
+    public void record(double value, long timeMs) {
+        int window = (int) Math.min(timeMs / (WINDOW_SECONDS * Constant.MILLIS_PER_SECOND),
+                MAX_WINDOWS - 1);
+        if (mNumWindows <= window) {
+            mNumWindows = window + 1;
+        }
+        mTotal.record(value);
+        mWindows[window].record(value);
+    }
+
+
+    public void reset() {
+        mTotal.reset();
+        for (int i = 0; i < mNumWindows; i++) {
+            mWindows[i].reset();
+        }
+        mNumWindows = 0;
+    }
+
+
+    public StreamingMoments getTotal() {
+        return mTotal;
+    }
+
+
+    public int getNumWindows() {
+        return mNumWindows;
+    }
+
+
+    public StreamingMoments getWindow(int window) {
+        return mWindows[window];
+    }
+
+
+    /** Return the window with the largest standard deviation, or -1 if there is none. */
+    public int getWorstWindow() {
+        int worst = -1;
+        for (int i = 0; i < mNumWindows; i++) {
+            if (mWindows[i].getCount() > 0 && (worst < 0
+                    || mWindows[i].getStdDev() > mWindows[worst].getStdDev())) {
+                worst = i;
+            }
+        }
+        return worst;
+    }
+
+
+    /** Return a line of comma separated values per window, for a text file. */
+    public String getWindowsString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("start (s),count,mean (ms),std dev (ms),skewness,kurtosis\n");
+        for (int i = 0; i < mNumWindows; i++) {
+            StreamingMoments window = mWindows[i];
+            sb.append(String.format(Locale.US, "%d,%d,%.4f,%.4f,%.4f,%.4f\n",
+                    i * WINDOW_SECONDS, window.getCount(), window.getMean(),
+                    window.getStdDev(), window.getSkewness(), window.getKurtosis()));
+        }
+        return sb.toString();
+    }
+
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        Bundle out = new Bundle();
+        out.putParcelable("mTotal", mTotal);
+        StreamingMoments[] windows = new StreamingMoments[mNumWindows];
+        System.arraycopy(mWindows, 0, windows, 0, mNumWindows);
+        out.putParcelableArray("mWindows", windows);
+        dest.writeBundle(out);
+    }
+
+    private WindowedMoments(Parcel source) {
+        Bundle in = source.readBundle(getClass().getClassLoader());
+        mTotal = in.getParcelable("mTotal");
+        Parcelable[] windows = in.getParcelableArray("mWindows");
+        mWindows = new StreamingMoments[MAX_WINDOWS];
+        mNumWindows = windows.length;
+        for (int i = 0; i < mNumWindows; i++) {
+            mWindows[i] = (StreamingMoments) windows[i];
+        }
+        allocateWindows();
+    }
+
+    public static final Parcelable.Creator<WindowedMoments> CREATOR
+             = new Parcelable.Creator<WindowedMoments>() {
+         public WindowedMoments createFromParcel(Parcel in) {
+             return new WindowedMoments(in);
+         }
+
+         public WindowedMoments[] newArray(int size) {
+             return new WindowedMoments[size];
+         }
+     };
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.drrickorang.loopback;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+
+/**
+ * Microbenchmark of PipeByteBuffer.read(), against the previous implementation which read the
+ * rear while holding the lock of the ByteBuffer and copied the samples one at a time. It's a
+ * local unit test, so it isn't part of the app: run it with ./gradlew test and read the output.
+ */
+
+public class PipeByteBufferBenchmark {
+    private static final int PIPE_SAMPLES = Constant.MAX_SHORTS;
+    private static final int READ_SAMPLES = 1024; // about one hop of the glitch detector
+    private static final int WARMUP_ITERATIONS = 10000;
+    private static final int ITERATIONS = 1000000;
+
+
+    /**
+     * Time ITERATIONS reads of READ_SAMPLES samples with both implementations, each read
+     * preceded by a write of the same amount as the native writer would do.
+     */
+    @Test
+    public void benchmarkRead() {
+        PipeByteBuffer pipe = new PipeByteBuffer(PIPE_SAMPLES, Constant.SAMPLING_RATE_MAX);
+        short[] buffer = new short[READ_SAMPLES];
+        int[] front = new int[1];
+
+        // warm up both, so that they are compiled before being timed
+        benchmarkCurrent(pipe, buffer, WARMUP_ITERATIONS);
+        benchmarkPrevious(pipe, front, buffer, WARMUP_ITERATIONS);
+
+        long currentNs = benchmarkCurrent(pipe, buffer, ITERATIONS);
+        long previousNs = benchmarkPrevious(pipe, front, buffer, ITERATIONS);
+
+        long samples = (long) ITERATIONS * READ_SAMPLES;
+        System.out.println(String.format("PipeByteBuffer.read() of %d samples, current: %.3f"
+                + " ns/sample, previous: %.3f ns/sample", READ_SAMPLES,
+                (double) currentNs / samples, (double) previousNs / samples));
+    }
+
+
+    private static long benchmarkCurrent(PipeByteBuffer pipe, short[] buffer, int iterations) {
+        pipe.flush();
+        ByteBuffer byteBuffer = pipe.getByteBuffer();
+        int rear = 0;
+        long startNs = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            rear += READ_SAMPLES;
+            byteBuffer.putInt(PIPE_SAMPLES * Constant.BYTES_PER_SHORT, rear);
+            assertEquals(READ_SAMPLES, pipe.read(buffer, 0, READ_SAMPLES));
+        }
+        return System.nanoTime() - startNs;
+    }
+
+
+    private static long benchmarkPrevious(PipeByteBuffer pipe, int[] front, short[] buffer,
+                                          int iterations) {
+        pipe.flush();
+        front[0] = 0;
+        ByteBuffer byteBuffer = pipe.getByteBuffer();
+        int rear = 0;
+        long startNs = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            rear += READ_SAMPLES;
+            byteBuffer.putInt(PIPE_SAMPLES * Constant.BYTES_PER_SHORT, rear);
+            assertEquals(READ_SAMPLES, readPrevious(byteBuffer, front, buffer, 0, READ_SAMPLES));
+        }
+        return System.nanoTime() - startNs;
+    }
+
+
+    /** The previous PipeByteBuffer.read(), without the overrun handling. */
+    private static int readPrevious(ByteBuffer byteBuffer, int[] front, short[] buffer,
+                                    int offset, int requiredSamples) {
+        int rear;
+        synchronized (byteBuffer) {
+            rear = byteBuffer.getInt(PIPE_SAMPLES * Constant.BYTES_PER_SHORT);
+        }
+
+        int avail = rear - front[0];
+        if (avail <= 0) {
+            return avail;
+        }
+        if (requiredSamples > avail) {
+            requiredSamples = avail;
+        }
+
+        int maskedFront = front[0] & (PIPE_SAMPLES - 1);
+        int read = PIPE_SAMPLES - maskedFront;
+        if (read > requiredSamples) {
+            read = requiredSamples;
+        }
+
+        int byteBufferFront = maskedFront * Constant.BYTES_PER_SHORT;
+        for (int i = offset; i < offset + read; i++) {
+            buffer[i] = byteBuffer.getShort(byteBufferFront);
+            byteBufferFront += Constant.BYTES_PER_SHORT;
+        }
+
+        int samplesLeft = requiredSamples - read;
+        if (samplesLeft > 0) {
+            byteBufferFront = 0;
+            for (int i = offset + read; i < offset + requiredSamples; i++) {
+                buffer[i] = byteBuffer.getShort(byteBufferFront);
+                byteBufferFront += Constant.BYTES_PER_SHORT;
+            }
+            read += samplesLeft;
+        }
+
+        front[0] += read;
+        return read;
+    }
+
+}